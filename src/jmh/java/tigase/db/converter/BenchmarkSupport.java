@@ -0,0 +1,280 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import tigase.db.DataRepository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * In-memory stand-ins for the source database and helpers giving benchmarks access to converter internals.
+ */
+public final class BenchmarkSupport {
+
+	/**
+	 * Answers queries executed on in-memory repositories.
+	 */
+	@FunctionalInterface
+	public interface QueryHandler {
+
+		/**
+		 * @param queryId id of the prepared statement
+		 * @param parameters values of query parameters
+		 */
+		ResultSet execute(String queryId, List<Object> parameters) throws SQLException;
+	}
+
+	public static Converter.ConverterProperties converterProperties(Converter.SERVER serverType,
+																	DataRepository.dbTypes databaseType,
+																	String vhost, boolean bulkRosterLoading) {
+		final Converter.ConverterProperties properties = new Converter.ConverterProperties();
+		set(properties, "setServerType", Converter.SERVER.class, serverType);
+		set(properties, "setDatabaseType", DataRepository.dbTypes.class, databaseType);
+		set(properties, "setVHost", String.class, vhost);
+		set(properties, "setBulkRosterLoading", boolean.class, bulkRosterLoading);
+		return properties;
+	}
+
+	public static QueryExecutor queryExecutor(DataRepoPool pool) {
+		final QueryExecutor queryExecutor = new QueryExecutor();
+		queryExecutor.initialise(pool);
+		return queryExecutor;
+	}
+
+	/**
+	 * Creates pool of in-memory repositories answering prepared statements with the handler.
+	 */
+	public static DataRepoPool pool(int size, QueryHandler handler) {
+		final DataRepoPool pool = new DataRepoPool();
+		for (int i = 0; i < size; i++) {
+			pool.addRepo(repository(handler));
+		}
+		return pool;
+	}
+
+	public static DataRepository repository(QueryHandler handler) {
+		return proxy(DataRepository.class, new RepositoryHandler(handler));
+	}
+
+	/**
+	 * Implementation of the interface doing nothing, i.e. destination repository which discards all data.
+	 */
+	public static <T> T noop(Class<T> iface) {
+		return proxy(iface, new DefaultHandler("Noop" + iface.getSimpleName()));
+	}
+
+	/**
+	 * Result set over rows held in memory, supporting the same getters as {@link RowSnapshot#asResultSet()}.
+	 */
+	public static ResultSet resultSet(RowSnapshot.Columns columns, List<Object[]> rows) {
+		return proxy(ResultSet.class, new ResultSetHandler(columns, rows));
+	}
+
+	private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+		return iface.cast(
+				Proxy.newProxyInstance(BenchmarkSupport.class.getClassLoader(), new Class[]{iface}, handler));
+	}
+
+	private static void set(Converter.ConverterProperties properties, String setter, Class<?> type, Object value) {
+		try {
+			final Method method = Converter.ConverterProperties.class.getDeclaredMethod(setter, type);
+			method.setAccessible(true);
+			method.invoke(properties, value);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't call " + setter, e);
+		}
+	}
+
+	private BenchmarkSupport() {
+	}
+
+	/**
+	 * Returns default values for all methods apart from {@link Object} ones.
+	 */
+	private static class DefaultHandler
+			implements InvocationHandler {
+
+		private final String name;
+
+		DefaultHandler(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return name + "@" + Integer.toHexString(System.identityHashCode(proxy));
+				default:
+					return handle(method, args);
+			}
+		}
+
+		Object handle(Method method, Object[] args) throws Throwable {
+			final Class<?> type = method.getReturnType();
+			if (type == boolean.class) {
+				return false;
+			} else if (type == int.class) {
+				return 0;
+			} else if (type == long.class) {
+				return 0L;
+			} else if (type == short.class) {
+				return (short) 0;
+			} else if (type == byte.class) {
+				return (byte) 0;
+			} else if (type == double.class) {
+				return 0d;
+			} else if (type == float.class) {
+				return 0f;
+			} else if (type == char.class) {
+				return '\0';
+			} else if (type == Optional.class) {
+				return Optional.empty();
+			}
+			return null;
+		}
+	}
+
+	private static class RepositoryHandler
+			extends DefaultHandler {
+
+		private final QueryHandler queries;
+
+		RepositoryHandler(QueryHandler queries) {
+			super("InMemoryDataRepository");
+			this.queries = queries;
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "getPreparedStatement":
+					return proxy(PreparedStatement.class, new StatementHandler((String) args[1], queries));
+				case "getDatabaseType":
+					return DataRepository.dbTypes.other;
+				default:
+					return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class StatementHandler
+			extends DefaultHandler {
+
+		private final List<Object> parameters = new ArrayList<>();
+		private final QueryHandler queries;
+		private final String queryId;
+
+		StatementHandler(String queryId, QueryHandler queries) {
+			super("InMemoryStatement[" + queryId + "]");
+			this.queryId = queryId;
+			this.queries = queries;
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+				final int index = (Integer) args[0] - 1;
+				while (parameters.size() <= index) {
+					parameters.add(null);
+				}
+				parameters.set(index, args[1]);
+				return null;
+			}
+			switch (name) {
+				case "executeQuery":
+					return queries.execute(queryId, new ArrayList<>(parameters));
+				case "clearParameters":
+					parameters.clear();
+					return null;
+				default:
+					return super.handle(method, args);
+			}
+		}
+	}
+
+	private static class ResultSetHandler
+			extends DefaultHandler {
+
+		private final ResultSetMetaData metaData;
+		private final List<RowSnapshot> rows;
+		private boolean closed = false;
+		private int position = -1;
+
+		ResultSetHandler(RowSnapshot.Columns columns, List<Object[]> values) {
+			super("InMemoryResultSet");
+			this.rows = new ArrayList<>(values.size());
+			for (Object[] row : values) {
+				rows.add(new RowSnapshot(columns, row, rows.size() + 1));
+			}
+			this.metaData = proxy(ResultSetMetaData.class, new DefaultHandler("InMemoryResultSetMetaData") {
+				@Override
+				Object handle(Method method, Object[] args) throws Throwable {
+					switch (method.getName()) {
+						case "getColumnCount":
+							return columns.size();
+						case "getColumnLabel":
+						case "getColumnName":
+							return columns.getLabel((Integer) args[0]);
+						default:
+							return super.handle(method, args);
+					}
+				}
+			});
+		}
+
+		@Override
+		Object handle(Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "next":
+					return ++position < rows.size();
+				case "close":
+					closed = true;
+					return null;
+				case "isClosed":
+					return closed;
+				case "getMetaData":
+					return metaData;
+				default:
+					if (position < 0 || position >= rows.size()) {
+						throw new SQLException("Result set is not positioned on a row");
+					}
+					try {
+						return method.invoke(rows.get(position).asResultSet(), args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import tigase.db.DataRepository;
+
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Taking repositories from {@link DataRepoPool} and returning them by more threads than there are repositories in the
+ * pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DataRepoPoolBenchmark {
+
+	@Param({"2", "8", "16"})
+	int poolSize;
+
+	private DataRepoPool pool;
+
+	@Setup
+	public void setup() {
+		pool = BenchmarkSupport.pool(poolSize, (queryId, parameters) -> {
+			throw new SQLException("No queries expected");
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.println("\n" + pool.getStatistics());
+	}
+
+	@Benchmark
+	public void lease(Blackhole blackhole) throws SQLException {
+		try (DataRepoPool.Lease lease = pool.lease()) {
+			blackhole.consume(lease.getRepository());
+		}
+	}
+
+	@Benchmark
+	public void takeRelease(Blackhole blackhole) {
+		final DataRepository repository = pool.takeRepoHandle(null);
+		blackhole.consume(repository);
+		pool.releaseRepoHandle(repository);
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Fills a database with synthetic ejabberd users and their rosters, either in the old layout (single virtual host)
+ * or in the layout with {@code server_host} column.
+ * <p>
+ * Users are spread over domains following Zipf distribution (few big domains, long tail of small ones), roster sizes
+ * follow log-normal distribution (most rosters are small, few are very large) and most roster items have at most one
+ * group. Generated data only depends on the parameters and the seed.
+ */
+public final class EjabberdDatasetGenerator {
+
+	private static final int BATCH_SIZE = 1000;
+	private static final double EMPTY_ROSTER_SHARE = 0.05;
+	private static final String[] GROUP_NAMES = {"Friends", "Work", "Family", "Colleagues", "Contacts", "Team",
+												 "Football", "University", "Neighbours", "Project"};
+	private static final double[] GROUPS_PER_ITEM = cumulative(0.35, 0.50, 0.10, 0.05);
+	private static final int MAX_ROSTER_SIZE = 2000;
+	private static final double NICK_SHARE = 0.7;
+	private static final double REMOTE_CONTACT_SHARE = 0.3;
+	private static final double ROSTER_SIGMA = 1.0;
+	private static final String[] SUBSCRIPTIONS = {"B", "T", "F", "N"};
+	private static final double[] SUBSCRIPTION_SHARES = cumulative(0.80, 0.05, 0.05, 0.10);
+
+	private final double[] domainWeights;
+	private final double[] groupWeights;
+	private final double rosterMedian;
+	private final long seed;
+	private final int users;
+
+	/**
+	 * Statistics of the generated data.
+	 */
+	public static class Statistics {
+
+		private long rosterGroups;
+		private long rosterItems;
+		private long users;
+
+		public long getRosterGroups() {
+			return rosterGroups;
+		}
+
+		public long getRosterItems() {
+			return rosterItems;
+		}
+
+		public long getRows() {
+			return users + rosterItems + rosterGroups;
+		}
+
+		public long getUsers() {
+			return users;
+		}
+
+		@Override
+		public String toString() {
+			return "users: " + users + ", roster items: " + rosterItems + ", roster groups: " + rosterGroups;
+		}
+	}
+
+	/**
+	 * @param users number of users to generate
+	 * @param domains number of domains over which users are spread (only used with {@code server_host} layout)
+	 * @param rosterMedian median number of items in a roster
+	 * @param seed seed of the random generator
+	 */
+	public EjabberdDatasetGenerator(int users, int domains, double rosterMedian, long seed) {
+		this.users = users;
+		this.rosterMedian = rosterMedian;
+		this.seed = seed;
+		this.domainWeights = zipf(Math.max(1, domains));
+		this.groupWeights = zipf(GROUP_NAMES.length);
+	}
+
+	/**
+	 * Name of the domain with the given index, domain {@code 0} is the biggest one.
+	 */
+	public static String getDomain(int index) {
+		return "domain" + index + ".example";
+	}
+
+	/**
+	 * Creates ejabberd tables and fills them with users and their rosters.
+	 *
+	 * @param connection connection to the database without ejabberd tables
+	 * @param serverHostLayout whether to use layout with {@code server_host} column; otherwise all users belong to
+	 * {@code vhost}
+	 * @param vhost domain of users in the old layout
+	 */
+	public Statistics generate(Connection connection, boolean serverHostLayout, String vhost) throws SQLException {
+		createSchema(connection, serverHostLayout);
+		final boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		final String hostColumn = serverHostLayout ? "server_host, " : "";
+		final String hostParameter = serverHostLayout ? "?, " : "";
+		final Statistics statistics = new Statistics();
+		final Random random = new Random(seed);
+		final int[] userDomains = new int[users];
+		for (int i = 0; i < users; i++) {
+			userDomains[i] = serverHostLayout ? pick(random, domainWeights) : -1;
+		}
+		try (PreparedStatement usersStmt = connection.prepareStatement(
+				"INSERT INTO users (username, " + hostColumn + "password) VALUES (?, " + hostParameter + "?)");
+			 PreparedStatement itemsStmt = connection.prepareStatement(
+					 "INSERT INTO rosterusers (username, " + hostColumn +
+							 "jid, nick, subscription, ask, askmessage, server, subscribe, type) VALUES (?, " +
+							 hostParameter + "?, ?, ?, 'N', '', 'N', '', 'item')");
+			 PreparedStatement groupsStmt = connection.prepareStatement(
+					 "INSERT INTO rostergroups (username, " + hostColumn + "jid, grp) VALUES (?, " + hostParameter +
+							 "?, ?)")) {
+			final Set<String> contacts = new HashSet<>();
+			final Set<String> groups = new HashSet<>();
+			for (int i = 0; i < users; i++) {
+				final String username = getUsername(i);
+				final String host = serverHostLayout ? getDomain(userDomains[i]) : vhost;
+				int column = 1;
+				usersStmt.setString(column++, username);
+				if (serverHostLayout) {
+					usersStmt.setString(column++, host);
+				}
+				usersStmt.setString(column, "pwd" + Long.toHexString(random.nextLong()));
+				usersStmt.addBatch();
+				statistics.users++;
+
+				contacts.clear();
+				final int rosterSize = rosterSize(random);
+				for (int attempt = 0; contacts.size() < rosterSize && attempt < 2 * rosterSize; attempt++) {
+					final String jid = contact(random, userDomains, host, i);
+					if (jid == null || !contacts.add(jid)) {
+						continue;
+					}
+					column = 1;
+					itemsStmt.setString(column++, username);
+					if (serverHostLayout) {
+						itemsStmt.setString(column++, host);
+					}
+					itemsStmt.setString(column++, jid);
+					itemsStmt.setString(column++, random.nextDouble() < NICK_SHARE
+												  ? "Contact " + jid.substring(0, jid.indexOf('@'))
+												  : "");
+					itemsStmt.setString(column, SUBSCRIPTIONS[pick(random, SUBSCRIPTION_SHARES)]);
+					itemsStmt.addBatch();
+					statistics.rosterItems++;
+
+					groups.clear();
+					final int groupCount = pick(random, GROUPS_PER_ITEM);
+					while (groups.size() < groupCount) {
+						groups.add(GROUP_NAMES[pick(random, groupWeights)]);
+					}
+					for (String group : groups) {
+						column = 1;
+						groupsStmt.setString(column++, username);
+						if (serverHostLayout) {
+							groupsStmt.setString(column++, host);
+						}
+						groupsStmt.setString(column++, jid);
+						groupsStmt.setString(column, group);
+						groupsStmt.addBatch();
+						statistics.rosterGroups++;
+					}
+				}
+				if ((i + 1) % BATCH_SIZE == 0 || i + 1 == users) {
+					usersStmt.executeBatch();
+					itemsStmt.executeBatch();
+					groupsStmt.executeBatch();
+					connection.commit();
+				}
+			}
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Creates ejabberd tables: {@code users}, {@code rosterusers} and {@code rostergroups} (with indexes used by
+	 * ejabberd), using types portable between databases supported by the converter.
+	 */
+	public static void createSchema(Connection connection, boolean serverHostLayout) throws SQLException {
+		final String hostColumn = serverHostLayout ? "server_host VARCHAR(191) NOT NULL, " : "";
+		final String hostKey = serverHostLayout ? "server_host, " : "";
+		try (Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE users (username VARCHAR(191) NOT NULL, " + hostColumn +
+									   "password VARCHAR(1024) NOT NULL, serverkey VARCHAR(64) DEFAULT '' NOT NULL, " +
+									   "salt VARCHAR(64) DEFAULT '' NOT NULL, " +
+									   "iterationcount INTEGER DEFAULT 0 NOT NULL, " +
+									   "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, " +
+									   "PRIMARY KEY (" + hostKey + "username))");
+			stmt.executeUpdate("CREATE TABLE rosterusers (username VARCHAR(191) NOT NULL, " + hostColumn +
+									   "jid VARCHAR(191) NOT NULL, nick VARCHAR(1024) NOT NULL, " +
+									   "subscription CHAR(1) NOT NULL, ask CHAR(1) NOT NULL, " +
+									   "askmessage VARCHAR(1024) NOT NULL, server CHAR(1) NOT NULL, " +
+									   "subscribe VARCHAR(1024) NOT NULL, type VARCHAR(64), " +
+									   "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL)");
+			stmt.executeUpdate("CREATE UNIQUE INDEX i_rosteru_user_jid ON rosterusers (" + hostKey + "username, jid)");
+			stmt.executeUpdate("CREATE INDEX i_rosteru_jid ON rosterusers (jid)");
+			stmt.executeUpdate("CREATE TABLE rostergroups (username VARCHAR(191) NOT NULL, " + hostColumn +
+									   "jid VARCHAR(191) NOT NULL, grp VARCHAR(1024) NOT NULL)");
+			stmt.executeUpdate("CREATE INDEX pk_rosterg_user_jid ON rostergroups (" + hostKey + "username, jid)");
+		}
+	}
+
+	/**
+	 * Username of the user with the given index; indexes are scrambled, so the order of usernames doesn't follow
+	 * the order in which users were inserted.
+	 */
+	static String getUsername(int index) {
+		return "user" + Integer.toHexString(index * 0x9E3779B1);
+	}
+
+	/**
+	 * Zipf distribution (with exponent {@code 1}) of {@code n} values.
+	 */
+	private static double[] zipf(int n) {
+		final double[] weights = new double[n];
+		for (int i = 0; i < n; i++) {
+			weights[i] = 1.0 / (i + 1);
+		}
+		return cumulative(weights);
+	}
+
+	/**
+	 * Cumulative distribution of values with the given weights.
+	 */
+	private static double[] cumulative(double... weights) {
+		final double[] distribution = new double[weights.length];
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i];
+			distribution[i] = sum;
+		}
+		for (int i = 0; i < distribution.length; i++) {
+			distribution[i] /= sum;
+		}
+		return distribution;
+	}
+
+	/**
+	 * Index of the value drawn from the cumulative distribution.
+	 */
+	private static int pick(Random random, double[] distribution) {
+		final int idx = Arrays.binarySearch(distribution, random.nextDouble());
+		return Math.min(idx >= 0 ? idx + 1 : -idx - 1, distribution.length - 1);
+	}
+
+	/**
+	 * JID of a contact of the user: another local user (in the domain of that user) or a user of a remote server.
+	 */
+	private String contact(Random random, int[] userDomains, String host, int user) {
+		if (random.nextDouble() < REMOTE_CONTACT_SHARE) {
+			return "contact" + random.nextInt(Math.max(100, users / 2)) + "@remote" +
+					pick(random, domainWeights) + ".example.net";
+		}
+		if (users < 2) {
+			return null;
+		}
+		int contact = random.nextInt(users - 1);
+		if (contact >= user) {
+			contact++;
+		}
+		return getUsername(contact) + "@" + (userDomains[contact] >= 0 ? getDomain(userDomains[contact]) : host);
+	}
+
+	private int rosterSize(Random random) {
+		if (random.nextDouble() < EMPTY_ROSTER_SHARE) {
+			return 0;
+		}
+		final double size = rosterMedian * Math.exp(ROSTER_SIGMA * random.nextGaussian());
+		return (int) Math.min(MAX_ROSTER_SIZE, Math.round(size));
+	}
+}
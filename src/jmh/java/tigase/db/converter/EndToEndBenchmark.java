@@ -0,0 +1,265 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import tigase.db.jdbc.DataRepositoryImpl;
+import tigase.util.ui.console.CommandlineParameter;
+import tigase.util.ui.console.ParameterParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Runs the whole {@link Converter} against synthetic ejabberd data (see {@link EjabberdDatasetGenerator}) stored in
+ * embedded Derby database and reports throughput of the conversion and peak heap usage.
+ * <p>
+ * By default data is converted to local Derby database with Tigase schema installed by {@code
+ * tigase.db.util.SchemaManager}, which needs Tigase database scripts (directory {@code database} of Tigase
+ * distribution) in {@code --tigase-home}; another destination can be used by passing its configuration file.
+ */
+public class EndToEndBenchmark {
+
+	private static final String destinationConfigParameter = "destination-config";
+	private static final String domainsParameter = "domains";
+	private static final String rosterMedianParameter = "roster-median";
+	private static final String seedParameter = "seed";
+	private static final String tigaseHomeParameter = "tigase-home";
+	private static final String usersParameter = "users";
+	private static final String workDirectoryParameter = "work-directory";
+	private static final Logger log = Logger.getLogger(EndToEndBenchmark.class.getName());
+
+	private final String destinationConfig;
+	private final int domains;
+	private final Properties properties;
+	private final double rosterMedian;
+	private final long seed;
+	private final Converter.SERVER serverType;
+	private final File tigaseHome;
+	private final int users;
+	private final Path workDirectory;
+
+	private static List<CommandlineParameter> getCommandlineOptions() {
+		List<CommandlineParameter> options = new ArrayList<>();
+		options.add(new CommandlineParameter.Builder(null, usersParameter).description("Number of generated users")
+							.defaultValue("10000")
+							.build());
+		options.add(new CommandlineParameter.Builder(null, domainsParameter).description(
+				"Number of domains of generated users (only in layout with server_host)").defaultValue("10").build());
+		options.add(new CommandlineParameter.Builder(null, rosterMedianParameter).description(
+				"Median number of items in generated rosters").defaultValue("20").build());
+		options.add(new CommandlineParameter.Builder(null, seedParameter).description(
+				"Seed of generated data").defaultValue("1").build());
+		options.add(new CommandlineParameter.Builder("T", Converter.serverTypeParameter).description(
+				"Layout of generated ejabberd tables").options(Converter.SERVER.strings)
+							.defaultValue(Converter.SERVER.ejabberd_new.name())
+							.build());
+		options.add(new CommandlineParameter.Builder(null, workDirectoryParameter).description(
+				"Directory of generated databases and results").defaultValue("target/e2e").build());
+		options.add(new CommandlineParameter.Builder(null, destinationConfigParameter).description(
+				"Tigase configuration file of the destination; if not set, local Derby database is created").build());
+		options.add(new CommandlineParameter.Builder(null, tigaseHomeParameter).description(
+				"Tigase installation with database scripts used to create local Derby destination")
+							.defaultValue(".")
+							.build());
+		// options passed to the converter
+		options.add(new CommandlineParameter.Builder(null, Converter.transformThreadsParameter).description(
+				"Number of threads processing rows read from the source").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.storeThreadsParameter).description(
+				"Number of threads storing processed entities in the destination").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.queueSizeParameter).description(
+				"Maximal number of items waiting between conversion stages").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.partitionsParameter).description(
+				"Number of key ranges of the source read in parallel").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.batchSizeParameter).description(
+				"Maximal number of entities stored in the destination at once").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.poolSizeParameter).description(
+				"Number of connections to the source database").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.internCacheSizeParameter).description(
+				"Number of contact JIDs and roster group names shared between rosters").build());
+		options.add(new CommandlineParameter.Builder(null, Converter.bulkRosterParameter).description(
+				"Load rosters with single sorted scan of roster tables").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, Converter.streamingReadParameter).description(
+				"Read source tables with server side cursors").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, Converter.dryRunParameter).description(
+				"Only read and transform data, without storing it").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, Converter.nullSinkParameter).description(
+				"Store data in memory instead of the destination database").requireArguments(false).build());
+		return options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		ConverterUtil.initLogger();
+
+		ParameterParser parser = new ParameterParser(true);
+		parser.addOptions(getCommandlineOptions());
+
+		Properties properties = parser.parseArgs(args);
+		if (properties == null) {
+			String usage = "$ mvn -Pbenchmarks test-compile exec:exec@e2e -De2e.args=\"[options]\"";
+			System.out.println(parser.getHelp(usage));
+			System.exit(0);
+		}
+		new EndToEndBenchmark(properties).run();
+		System.exit(0);
+	}
+
+	EndToEndBenchmark(Properties properties) {
+		this.properties = properties;
+		this.users = Integer.parseInt(properties.getProperty(usersParameter, "10000"));
+		this.domains = Integer.parseInt(properties.getProperty(domainsParameter, "10"));
+		this.rosterMedian = Double.parseDouble(properties.getProperty(rosterMedianParameter, "20"));
+		this.seed = Long.parseLong(properties.getProperty(seedParameter, "1"));
+		this.serverType = Converter.SERVER.valueOf(
+				properties.getProperty(Converter.serverTypeParameter, Converter.SERVER.ejabberd_new.name()));
+		this.workDirectory = Paths.get(properties.getProperty(workDirectoryParameter, "target/e2e"))
+				.toAbsolutePath();
+		this.destinationConfig = properties.getProperty(destinationConfigParameter);
+		this.tigaseHome = new File(properties.getProperty(tigaseHomeParameter, "."));
+	}
+
+	void run() throws Exception {
+		Files.createDirectories(workDirectory);
+		final String vhost = EjabberdDatasetGenerator.getDomain(0);
+		final Path sourceDatabase = workDirectory.resolve("ejabberd");
+		delete(sourceDatabase);
+		final String sourceUri = "jdbc:derby:" + toUriPath(sourceDatabase);
+
+		long start = System.nanoTime();
+		final EjabberdDatasetGenerator generator = new EjabberdDatasetGenerator(users, domains, rosterMedian, seed);
+		final EjabberdDatasetGenerator.Statistics dataset;
+		try (Connection connection = DriverManager.getConnection(sourceUri + ";create=true")) {
+			dataset = generator.generate(connection, serverType == Converter.SERVER.ejabberd_new, vhost);
+		}
+		log.log(Level.INFO, "Generated {0} ({1}) in {2} s",
+				new Object[]{dataset, serverType, seconds(System.nanoTime() - start)});
+
+		final Properties converterProperties = new Properties();
+		converterProperties.putAll(properties);
+		converterProperties.setProperty(Converter.repositoryClassParameter, DataRepositoryImpl.class.getName());
+		converterProperties.setProperty(Converter.sourceUriParameter, sourceUri);
+		converterProperties.setProperty(Converter.serverTypeParameter, serverType.name());
+		converterProperties.setProperty(Converter.virtualHostParameter, vhost);
+		converterProperties.setProperty(Converter.configFileParameter,
+										destinationConfig != null ? destinationConfig : prepareDestination(vhost));
+		converterProperties.setProperty(Converter.summaryFileParameter,
+										workDirectory.resolve("conversion-summary.json").toString());
+
+		final Converter converter = new Converter(converterProperties);
+		converter.init();
+
+		System.gc();
+		final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+		start = System.nanoTime();
+		converter.convert();
+		final long elapsed = System.nanoTime() - start;
+		// sum of peaks of all heap pools, which may be reached at different times, so it's the upper bound
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			peakHeap += pool.getPeakUsage().getUsed();
+		}
+
+		final double seconds = seconds(elapsed);
+		final String result = String.format(Locale.ROOT,
+											"{\"serverType\":\"%s\",\"users\":%d,\"rosterItems\":%d," +
+													"\"rosterGroups\":%d,\"seconds\":%.3f,\"usersPerSecond\":%.1f," +
+													"\"rowsPerSecond\":%.1f,\"peakHeapBytes\":%d}", serverType,
+											dataset.getUsers(), dataset.getRosterItems(),
+											dataset.getRosterGroups(), seconds, dataset.getUsers() / seconds,
+											dataset.getRows() / seconds, peakHeap);
+		Files.write(workDirectory.resolve("e2e-result.json"), (result + "\n").getBytes(StandardCharsets.UTF_8));
+		log.log(Level.INFO, String.format(Locale.ROOT,
+										  "Converted %d users (%d source rows) in %.3f s: %.1f users/s, %.1f rows/s, " +
+												  "peak heap %.1f MB; details in %s", dataset.getUsers(),
+										  dataset.getRows(), seconds, dataset.getUsers() / seconds,
+										  dataset.getRows() / seconds, peakHeap / (1024.0 * 1024.0),
+										  workDirectory.resolve("conversion-summary.json")));
+	}
+
+	/**
+	 * Creates local Derby database with Tigase schema and configuration file using it.
+	 *
+	 * @return path of the configuration file
+	 */
+	private String prepareDestination(String vhost) throws IOException, InterruptedException {
+		final Path destinationDatabase = workDirectory.resolve("tigasedb");
+		delete(destinationDatabase);
+		final String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		final Process process = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+												   "tigase.db.util.SchemaManager", "install-schema", "-T", "derby",
+												   "-D", toUriPath(destinationDatabase), "-H", "localhost", "-U",
+												   "tigase", "-P", "tigase", "-R", "root", "-A", "root").directory(
+				tigaseHome).inheritIO().start();
+		if (!process.waitFor(10, TimeUnit.MINUTES) || process.exitValue() != 0) {
+			process.destroyForcibly();
+			throw new IllegalStateException(
+					"Couldn't install Tigase schema in " + destinationDatabase + ", check if " +
+							tigaseHome.getAbsolutePath() + " contains Tigase database scripts");
+		}
+
+		final Path config = workDirectory.resolve("etc").resolve("config.tdsl");
+		Files.createDirectories(config.getParent());
+		final String content = "'config-type' = 'default'\n" + "'default-virtual-host' = '" + vhost + "'\n" +
+				"dataSource () {\n" + "    default () {\n" + "        uri = 'jdbc:derby:" +
+				toUriPath(destinationDatabase) + "'\n" + "    }\n" + "}\n";
+		Files.write(config, content.getBytes(StandardCharsets.UTF_8));
+		return config.toString();
+	}
+
+	private static void delete(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1_000_000_000.0;
+	}
+
+	private static String toUriPath(Path path) {
+		return path.toAbsolutePath().toString().replace('\\', '/');
+	}
+}
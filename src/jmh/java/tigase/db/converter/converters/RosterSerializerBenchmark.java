@@ -0,0 +1,80 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Serialization of a whole roster with {@link RosterSerializer} compared to joining {@code RosterElement} of each
+ * item (as done before); equivalence of both is checked by {@code RosterSerializerTest}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RosterSerializerBenchmark {
+
+	private static final String[] GROUPS = {"Friends", "Work", "R&D", "<Team>", "\"Quoted\"",
+											"\u00dcn\u00efc\u00f6d\u00e9", "a,b"};
+	private static final String[] NICKS = {null, "", "Alice", "Zo\u00eb & Co", "<b>\"quoted\" 'name'</b>",
+										   "\u0141ukasz \u65e5\u672c"};
+
+	@Param({"10", "100", "1000"})
+	int rosterSize;
+
+	private List<UserRosterItem> items;
+	private RosterSerializer serializer;
+
+	@Setup
+	public void setup() {
+		serializer = new RosterSerializer();
+		final BareJID owner = BareJID.bareJIDInstanceNS("owner", "example.com");
+		final Random random = new Random(rosterSize);
+		items = new ArrayList<>(rosterSize);
+		for (int i = 0; i < rosterSize; i++) {
+			final List<String> groups = new ArrayList<>();
+			for (int g = random.nextInt(3); g > 0; g--) {
+				groups.add(GROUPS[random.nextInt(GROUPS.length)]);
+			}
+			items.add(new UserRosterItem(owner, BareJID.bareJIDInstanceNS("contact" + i, "example.net"),
+										 NICKS[random.nextInt(NICKS.length)], "BTFN".substring(i % 4, i % 4 + 1),
+										 groups));
+		}
+	}
+
+	@Benchmark
+	public String rosterElement() {
+		return items.stream()
+				.map(item -> item.getRosterElement().getRosterElement().toString())
+				.collect(Collectors.joining());
+	}
+
+	@Benchmark
+	public String serializer() {
+		return serializer.serialize(items);
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.db.AuthRepository;
+import tigase.db.DataRepository;
+import tigase.db.UserRepository;
+import tigase.db.converter.BenchmarkSupport;
+import tigase.db.converter.Converter;
+import tigase.db.converter.RowSnapshot;
+import tigase.vhosts.VHostManager;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-row path of {@link UserCredentialsConverter}: transforming a users row (including querying roster items and
+ * their groups from in-memory source) and storing the entity in a destination discarding the data, which leaves
+ * serialization of the roster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UserCredentialsConverterBenchmark {
+
+	private static final RowSnapshot.Columns GROUPS = new RowSnapshot.Columns("username", "server_host", "jid",
+																			  "grp");
+	private static final RowSnapshot.Columns ITEMS = new RowSnapshot.Columns("username", "server_host", "jid",
+																			 "nick", "subscription");
+	private static final String[] SUBSCRIPTIONS = {"B", "T", "F", "N"};
+	private static final RowSnapshot.Columns USERS = new RowSnapshot.Columns("username", "server_host",
+																			 "password");
+
+	@Param({"0", "10", "100"})
+	int rosterSize;
+	@Param({"2"})
+	int groupsPerItem;
+
+	private UserCredentialsConverter converter;
+	private UserEntity entity;
+	private RowSnapshot row;
+
+	@Setup
+	public void setup() throws Exception {
+		converter = new UserCredentialsConverter();
+		converter.initialise(
+				BenchmarkSupport.converterProperties(Converter.SERVER.ejabberd_new, DataRepository.dbTypes.mysql,
+													 "example.com", false));
+		converter.queryExecutor = BenchmarkSupport.queryExecutor(BenchmarkSupport.pool(4, this::execute));
+		converter.authRepository = BenchmarkSupport.noop(AuthRepository.class);
+		converter.userRepository = BenchmarkSupport.noop(UserRepository.class);
+		converter.vHostManager = new VHostManager() {
+			@Override
+			public boolean isLocalDomain(String domain) {
+				return true;
+			}
+		};
+		row = new RowSnapshot(USERS, new Object[]{"user", "example.com", "secret"}, 1);
+		entity = converter.processResultSet(row.asResultSet()).get();
+	}
+
+	@Benchmark
+	public Optional<UserEntity> processResultSet() throws Exception {
+		return converter.processResultSet(row.asResultSet());
+	}
+
+	@Benchmark
+	public boolean storeEntity() throws Exception {
+		return converter.storeEntity(entity);
+	}
+
+	private ResultSet execute(String queryId, List<Object> parameters) throws SQLException {
+		final List<Object[]> rows = new ArrayList<>();
+		switch (UserCredentialsConverter.QUERY.valueOf(queryId)) {
+			case rosteritems:
+				for (int i = 0; i < rosterSize; i++) {
+					rows.add(new Object[]{parameters.get(0), parameters.get(1), "contact" + i + "@example.net",
+										  "Contact " + i, SUBSCRIPTIONS[i % SUBSCRIPTIONS.length]});
+				}
+				return BenchmarkSupport.resultSet(ITEMS, rows);
+			case rostergroups:
+				for (int i = 0; i < groupsPerItem; i++) {
+					rows.add(new Object[]{parameters.get(0), parameters.get(2), parameters.get(1), "Group " + i});
+				}
+				return BenchmarkSupport.resultSet(GROUPS, rows);
+			default:
+				return BenchmarkSupport.resultSet(USERS, Collections.emptyList());
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.xmpp.jid.BareJID;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of {@link UserRosterItem} (mapping of the subscription) and serialization of the item to XML with
+ * {@link tigase.xmpp.impl.roster.RosterElement}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UserRosterItemBenchmark {
+
+	@Param({"B", "T", "F", "N"})
+	String subscription;
+
+	private BareJID contactJid;
+	private List<String> groups;
+	private UserRosterItem item;
+	private BareJID ownerJid;
+
+	@Setup
+	public void setup() throws Exception {
+		ownerJid = BareJID.bareJIDInstance("user@example.com");
+		contactJid = BareJID.bareJIDInstance("contact@example.net");
+		groups = Arrays.asList("Friends", "Work");
+		item = create();
+	}
+
+	@Benchmark
+	public UserRosterItem create() {
+		return new UserRosterItem(ownerJid, contactJid, "Contact", subscription, groups);
+	}
+
+	@Benchmark
+	public String serialize() {
+		return item.getRosterElement().getRosterElement().toString();
+	}
+}
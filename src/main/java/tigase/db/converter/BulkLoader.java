@@ -0,0 +1,688 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import tigase.db.DataSource;
+import tigase.db.TigaseDBException;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Destination of the conversion writing users directly to tables of Tigase SQL schema ({@code tig_users}, {@code
+ * tig_nodes} and {@code tig_pairs}) with native bulk load of the database, instead of calling stored procedures for
+ * every user and every item of user data: {@code COPY ... FROM STDIN} of PostgreSQL or {@code LOAD DATA LOCAL INFILE}
+ * of MySQL. Alternatively, rows are written to files in the format of both, to be loaded offline.
+ * <p>
+ * Each batch of users is loaded on own connection in a single transaction, so failure of the batch doesn't leave
+ * its users behind. IDs of users and nodes are allocated by the loader after the highest IDs found in the destination
+ * when the first batch is loaded, so the destination mustn't be used by Tigase while users are loaded. Users are
+ * added with credentials only ({@code TigUpdateUserCredential} procedure), as Tigase derives them from plaintext
+ * passwords. Data of users is kept only in their root node.
+ * <p>
+ * When the conversion is finished, sequences of IDs are moved past loaded rows (PostgreSQL) and loaded rows are
+ * checked: number of rows of each table, rows referring to missing users or nodes and lookup of a sample of users
+ * by Tigase procedures, which verifies hashes of user IDs computed by the loader.
+ */
+public class BulkLoader {
+
+	private static final Logger log = Logger.getLogger(BulkLoader.class.getName());
+	private static final String CREDENTIAL_ID = "default";
+	private static final String GET_USER_UID_QUERY = "{ call TigGetUserDBUid(?) }";
+	private static final String ROOT_NODE = "root";
+	private static final int SAMPLE_SIZE = 100;
+	private static final String UPDATE_CREDENTIAL_QUERY = "{ call TigUpdateUserCredential(?, ?, ?, ?) }";
+
+	private enum Dialect {
+		mysql,
+		postgresql
+	}
+
+	// files of rows of each table and SQL script setting credentials, if rows are written for offline loading
+	private final Path directory;
+	private final BlockingDeque<Connection> idleConnections = new LinkedBlockingDeque<>();
+	private final Queue<Connection> connections = new ConcurrentLinkedQueue<>();
+	private final LongAdder loadedCredentials = new LongAdder();
+	private final LongAdder loadedNodes = new LongAdder();
+	private final LongAdder loadedPairs = new LongAdder();
+	private final LongAdder loadedUsers = new LongAdder();
+	// problems found by the last check or while finishing, empty if none
+	private final List<String> problems = new ArrayList<>();
+	// users of loaded batches looked up by Tigase procedures when loading is finished (reservoir sample)
+	private final Map<String, Long> sample = new LinkedHashMap<>();
+	private long sampledBatches = 0;
+	private boolean checked = false;
+	private String resourceUri;
+	private Dialect dialect;
+	private boolean sha1Column;
+	private long maxUidBefore;
+	private long maxNidBefore;
+	private AtomicLong nextUid;
+	private AtomicLong nextNid;
+	private OutputStream usersFile;
+	private OutputStream nodesFile;
+	private OutputStream pairsFile;
+	private Writer credentialsFile;
+
+	/**
+	 * @param directory directory to which rows are written for offline loading, {@code null} if they are loaded to
+	 * the destination
+	 */
+	public BulkLoader(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Loads users to the destination (or to the files) in a single transaction.
+	 *
+	 * @param destination data source of the users, all users have to be loaded to the same database
+	 * @param users users to load
+	 *
+	 * @throws TigaseDBException if any of the users couldn't be loaded, no user of the batch is loaded then
+	 */
+	public void load(DataSource destination, List<User> users) throws TigaseDBException {
+		if (users.isEmpty()) {
+			return;
+		}
+		initialise(destination);
+		final long firstUid = nextUid.getAndAdd(users.size());
+		final long firstNid = nextNid.getAndAdd(users.size());
+		final Rows usersRows = new Rows();
+		final Rows nodesRows = new Rows();
+		final Rows pairsRows = new Rows();
+		int credentials = 0;
+		for (int i = 0; i < users.size(); i++) {
+			final User user = users.get(i);
+			final String userId = user.jid.toString();
+			final String uid = String.valueOf(firstUid + i);
+			final String nid = String.valueOf(firstNid + i);
+			if (sha1Column) {
+				usersRows.add(uid, userId, sha1UserId(userId));
+			} else {
+				usersRows.add(uid, userId);
+			}
+			nodesRows.add(nid, null, uid, ROOT_NODE);
+			for (Map.Entry<String, String> data : user.data.entrySet()) {
+				pairsRows.add(nid, uid, data.getKey(), data.getValue());
+			}
+			credentials += user.credentials.size();
+		}
+		try {
+			if (directory != null) {
+				write(users, usersRows, nodesRows, pairsRows);
+			} else {
+				stream(users, usersRows, nodesRows, pairsRows);
+			}
+		} catch (SQLException | IOException e) {
+			throw new TigaseDBException("Couldn't load " + users.size() + " users starting with " + users.get(0).jid,
+										e);
+		}
+		loadedUsers.add(users.size());
+		loadedNodes.add(users.size());
+		loadedPairs.add(pairsRows.count);
+		loadedCredentials.add(credentials);
+		final int sampled = ThreadLocalRandom.current().nextInt(users.size());
+		addToSample(users.get(sampled).jid.toString(), firstUid + sampled);
+	}
+
+	/**
+	 * Finishes loading: moves sequences of IDs past loaded rows and checks loaded rows or completes the script
+	 * loading written files.
+	 *
+	 * @return {@code false} if loaded rows are inconsistent
+	 */
+	public boolean close() {
+		boolean consistent = true;
+		try {
+			if (resourceUri == null) {
+				log.log(Level.INFO, "No users were bulk loaded");
+			} else if (directory != null) {
+				closeFiles();
+				writeLoadScript();
+				log.log(Level.INFO, "Rows of {0} users written to {1}, load them with {2} script",
+						new Object[]{loadedUsers.sum(), directory, directory.resolve(getLoadScriptName())});
+			} else {
+				try (Connection connection = openConnection()) {
+					if (dialect == Dialect.postgresql) {
+						resetSequences(connection);
+					}
+					consistent = check(connection);
+				}
+			}
+		} catch (SQLException | IOException e) {
+			log.log(Level.WARNING, "Couldn't finish bulk load", e);
+			synchronized (problems) {
+				problems.add("couldn't finish bulk load: " + e);
+			}
+			consistent = false;
+		} finally {
+			Connection connection;
+			while ((connection = connections.poll()) != null) {
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					log.log(Level.FINEST, "Couldn't close connection", e);
+				}
+			}
+		}
+		return consistent;
+	}
+
+	/**
+	 * Returns numbers of loaded rows and result of their check as a JSON object, for the summary of the conversion.
+	 */
+	public String toJson() {
+		final StringBuilder sb = new StringBuilder(128);
+		sb.append("{\"users\":").append(loadedUsers.sum());
+		sb.append(",\"nodes\":").append(loadedNodes.sum());
+		sb.append(",\"pairs\":").append(loadedPairs.sum());
+		sb.append(",\"credentials\":").append(loadedCredentials.sum());
+		synchronized (problems) {
+			sb.append(",\"checked\":").append(checked);
+			sb.append(",\"consistent\":").append(problems.isEmpty());
+			sb.append(",\"problems\":[");
+			for (int i = 0; i < problems.size(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(ConversionMetrics.jsonString(problems.get(i)));
+			}
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "BulkLoader{users=" + loadedUsers.sum() + ", nodes=" + loadedNodes.sum() + ", pairs=" +
+				loadedPairs.sum() + ", credentials=" + loadedCredentials.sum() + "}";
+	}
+
+	/**
+	 * Reads highest IDs and columns of the destination when the first batch is loaded.
+	 */
+	private synchronized void initialise(DataSource destination) throws TigaseDBException {
+		final String uri = destination.getResourceUri();
+		if (resourceUri != null) {
+			if (!resourceUri.equals(uri)) {
+				throw new TigaseDBException("Users can be bulk loaded only to a single database, " + uri +
+													" isn't " + resourceUri);
+			}
+			return;
+		}
+		if (uri != null && uri.startsWith("jdbc:postgresql:")) {
+			dialect = Dialect.postgresql;
+		} else if (uri != null && uri.startsWith("jdbc:mysql:")) {
+			dialect = Dialect.mysql;
+		} else {
+			throw new TigaseDBException("Users can be bulk loaded only to PostgreSQL or MySQL, not to " + uri);
+		}
+		resourceUri = uri;
+		try (Connection connection = openConnection()) {
+			final DatabaseMetaData metaData = connection.getMetaData();
+			try (ResultSet rs = metaData.getColumns(null, null, metaData.storesUpperCaseIdentifiers()
+																 ? "TIG_USERS"
+																 : "tig_users", null)) {
+				while (rs.next()) {
+					sha1Column |= "sha1_user_id".equalsIgnoreCase(rs.getString("COLUMN_NAME"));
+				}
+			}
+			maxUidBefore = queryLong(connection, "select max(uid) from tig_users");
+			maxNidBefore = queryLong(connection, "select max(nid) from tig_nodes");
+		} catch (SQLException e) {
+			resourceUri = null;
+			throw new TigaseDBException("Couldn't read IDs of users and nodes of the destination", e);
+		}
+		nextUid = new AtomicLong(maxUidBefore + 1);
+		nextNid = new AtomicLong(maxNidBefore + 1);
+		if (directory != null) {
+			try {
+				Files.createDirectories(directory);
+				usersFile = Files.newOutputStream(directory.resolve("tig_users.tsv"));
+				nodesFile = Files.newOutputStream(directory.resolve("tig_nodes.tsv"));
+				pairsFile = Files.newOutputStream(directory.resolve("tig_pairs.tsv"));
+				credentialsFile = Files.newBufferedWriter(directory.resolve("tig_user_credentials.sql"),
+														  StandardCharsets.UTF_8);
+			} catch (IOException e) {
+				throw new TigaseDBException("Couldn't create files of rows in " + directory, e);
+			}
+		}
+		log.log(Level.INFO, "Bulk loading users to {0} database, IDs of users start at {1} and of nodes at {2}",
+				new Object[]{dialect, maxUidBefore + 1, maxNidBefore + 1});
+	}
+
+	private void stream(List<User> users, Rows usersRows, Rows nodesRows, Rows pairsRows)
+			throws SQLException, IOException {
+		final Connection connection = borrowConnection();
+		boolean committed = false;
+		try {
+			copy(connection, "tig_users", sha1Column ? "uid, user_id, sha1_user_id" : "uid, user_id", usersRows);
+			copy(connection, "tig_nodes", "nid, parent_nid, uid, node", nodesRows);
+			copy(connection, "tig_pairs", "nid, uid, pkey, pval", pairsRows);
+			try (CallableStatement updateCredential = connection.prepareCall(UPDATE_CREDENTIAL_QUERY)) {
+				for (User user : users) {
+					for (Map.Entry<String, String> credential : user.credentials.entrySet()) {
+						updateCredential.setString(1, user.jid.toString());
+						updateCredential.setString(2, CREDENTIAL_ID);
+						updateCredential.setString(3, credential.getKey());
+						updateCredential.setString(4, credential.getValue());
+						updateCredential.execute();
+					}
+				}
+			}
+			connection.commit();
+			committed = true;
+		} finally {
+			if (committed) {
+				idleConnections.offerFirst(connection);
+			} else {
+				// connection may be broken, batches of other users get a new one
+				connections.remove(connection);
+				try {
+					connection.rollback();
+					connection.close();
+				} catch (SQLException e) {
+					log.log(Level.FINEST, "Couldn't roll back bulk load", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Streams rows to the table; fails if any row was skipped (i.e. {@code LOAD DATA LOCAL} of MySQL skips duplicates
+	 * with a warning).
+	 */
+	private void copy(Connection connection, String table, String columns, Rows rows)
+			throws SQLException, IOException {
+		if (rows.count == 0) {
+			return;
+		}
+		final long loaded;
+		final InputStream in = new ByteArrayInputStream(rows.toByteArray());
+		if (dialect == Dialect.postgresql) {
+			loaded = copyIn(connection, "COPY " + table + " (" + columns + ") FROM STDIN", in);
+		} else {
+			try (Statement statement = connection.createStatement()) {
+				setLocalInfileInputStream(statement, in);
+				loaded = statement.executeUpdate("LOAD DATA LOCAL INFILE 'stream' INTO TABLE " + table +
+														 " CHARACTER SET utf8mb4 (" + columns + ")");
+			}
+		}
+		if (loaded != rows.count) {
+			throw new SQLException("Loaded " + loaded + " of " + rows.count + " rows of " + table);
+		}
+	}
+
+	/**
+	 * {@code CopyManager} of PostgreSQL driver accessed reflectively, as the driver is only a runtime dependency.
+	 */
+	private static long copyIn(Connection connection, String sql, InputStream in) throws SQLException {
+		try {
+			final Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+			final Object copyManager = pgConnection.getMethod("getCopyAPI").invoke(connection.unwrap(pgConnection));
+			return (Long) copyManager.getClass()
+					.getMethod("copyIn", String.class, InputStream.class)
+					.invoke(copyManager, sql, in);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("Couldn't copy rows to the destination", e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new SQLException("PostgreSQL driver doesn't support COPY", e);
+		}
+	}
+
+	/**
+	 * Sets stream read by {@code LOAD DATA LOCAL INFILE} of MySQL driver, accessed reflectively as {@code CopyManager}
+	 * of PostgreSQL driver.
+	 */
+	private static void setLocalInfileInputStream(Statement statement, InputStream in) throws SQLException {
+		try {
+			final Class<?> jdbcStatement = Class.forName("com.mysql.cj.jdbc.JdbcStatement");
+			jdbcStatement.getMethod("setLocalInfileInputStream", InputStream.class)
+					.invoke(statement.unwrap(jdbcStatement), in);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("Couldn't stream rows to the destination", e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new SQLException("MySQL driver doesn't support LOAD DATA LOCAL INFILE from a stream", e);
+		}
+	}
+
+	private synchronized void write(List<User> users, Rows usersRows, Rows nodesRows, Rows pairsRows)
+			throws IOException {
+		usersRows.buffer.writeTo(usersFile);
+		nodesRows.buffer.writeTo(nodesFile);
+		pairsRows.buffer.writeTo(pairsFile);
+		final String call = dialect == Dialect.postgresql ? "select" : "call";
+		for (User user : users) {
+			for (Map.Entry<String, String> credential : user.credentials.entrySet()) {
+				credentialsFile.write(call + " TigUpdateUserCredential(" + quote(user.jid.toString()) + ", " +
+											  quote(CREDENTIAL_ID) + ", " + quote(credential.getKey()) + ", " +
+											  quote(credential.getValue()) + ");\n");
+			}
+		}
+		// users are reported as stored once their rows are written
+		usersFile.flush();
+		nodesFile.flush();
+		pairsFile.flush();
+		credentialsFile.flush();
+	}
+
+	private synchronized void closeFiles() throws IOException {
+		usersFile.close();
+		nodesFile.close();
+		pairsFile.close();
+		credentialsFile.close();
+	}
+
+	private String getLoadScriptName() {
+		return "load-" + dialect + ".sql";
+	}
+
+	/**
+	 * Writes script loading the files with the command line client of the database (run from the directory of the
+	 * files).
+	 */
+	private void writeLoadScript() throws IOException {
+		final String usersColumns = sha1Column ? "uid, user_id, sha1_user_id" : "uid, user_id";
+		try (Writer writer = Files.newBufferedWriter(directory.resolve(getLoadScriptName()), StandardCharsets.UTF_8)) {
+			writer.write("-- " + loadedUsers.sum() + " users, IDs of users start at " + (maxUidBefore + 1) +
+								 " and of nodes at " + (maxNidBefore + 1) + "\n");
+			if (dialect == Dialect.postgresql) {
+				writer.write("begin;\n");
+				writer.write("\\copy tig_users (" + usersColumns + ") from 'tig_users.tsv'\n");
+				writer.write("\\copy tig_nodes (nid, parent_nid, uid, node) from 'tig_nodes.tsv'\n");
+				writer.write("\\copy tig_pairs (nid, uid, pkey, pval) from 'tig_pairs.tsv'\n");
+				writer.write("\\i tig_user_credentials.sql\n");
+				writer.write("select setval(pg_get_serial_sequence('tig_users', 'uid'), max(uid)) from tig_users;\n");
+				writer.write("select setval(pg_get_serial_sequence('tig_nodes', 'nid'), max(nid)) from tig_nodes;\n");
+				writer.write("commit;\n");
+			} else {
+				writer.write("start transaction;\n");
+				writer.write("load data local infile 'tig_users.tsv' into table tig_users character set utf8mb4 (" +
+									 usersColumns + ");\n");
+				writer.write("load data local infile 'tig_nodes.tsv' into table tig_nodes character set utf8mb4 " +
+									 "(nid, parent_nid, uid, node);\n");
+				writer.write("load data local infile 'tig_pairs.tsv' into table tig_pairs character set utf8mb4 " +
+									 "(nid, uid, pkey, pval);\n");
+				writer.write("source tig_user_credentials.sql\n");
+				writer.write("commit;\n");
+			}
+		}
+	}
+
+	/**
+	 * Moves sequences of IDs past loaded rows, so users added by Tigase don't get IDs of loaded users (MySQL does that
+	 * when rows with explicit IDs are inserted).
+	 */
+	private void resetSequences(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("select setval(pg_get_serial_sequence('tig_users', 'uid'), max(uid)) from tig_users");
+			statement.execute("select setval(pg_get_serial_sequence('tig_nodes', 'nid'), max(nid)) from tig_nodes");
+		}
+		connection.commit();
+	}
+
+	/**
+	 * Checks rows added since loading started (IDs above the highest ones found in the destination).
+	 */
+	boolean check(Connection connection) throws SQLException {
+		final List<String> problems = new ArrayList<>();
+		final long users = queryLong(connection, "select count(*) from tig_users where uid > " + maxUidBefore);
+		final long nodes = queryLong(connection, "select count(*) from tig_nodes where nid > " + maxNidBefore);
+		final long pairs = queryLong(connection, "select count(*) from tig_pairs where nid > " + maxNidBefore);
+		if (users != loadedUsers.sum()) {
+			problems.add(users + " users instead of " + loadedUsers.sum());
+		}
+		if (nodes != loadedNodes.sum()) {
+			problems.add(nodes + " nodes instead of " + loadedNodes.sum());
+		}
+		if (pairs != loadedPairs.sum()) {
+			problems.add(pairs + " pairs instead of " + loadedPairs.sum());
+		}
+		final long orphanedNodes = queryLong(connection,
+											 "select count(*) from tig_nodes n left join tig_users u on n.uid = u.uid" +
+													 " where n.nid > " + maxNidBefore + " and u.uid is null");
+		if (orphanedNodes > 0) {
+			problems.add(orphanedNodes + " nodes of missing users");
+		}
+		final long orphanedPairs = queryLong(connection,
+											 "select count(*) from tig_pairs p left join tig_nodes n on p.nid = n.nid" +
+													 " where p.nid > " + maxNidBefore + " and n.nid is null");
+		if (orphanedPairs > 0) {
+			problems.add(orphanedPairs + " pairs of missing nodes");
+		}
+		final Map<String, Long> sampled;
+		synchronized (sample) {
+			sampled = new LinkedHashMap<>(sample);
+		}
+		try (CallableStatement getUid = connection.prepareCall(GET_USER_UID_QUERY)) {
+			for (Map.Entry<String, Long> user : sampled.entrySet()) {
+				getUid.setString(1, user.getKey());
+				try (ResultSet rs = getUid.executeQuery()) {
+					final long uid = rs.next() ? rs.getLong(1) : 0;
+					if (uid != user.getValue()) {
+						problems.add("user " + user.getKey() + " found with ID " + uid + " instead of " +
+											 user.getValue());
+					}
+				}
+			}
+		}
+		connection.commit();
+		synchronized (this.problems) {
+			checked = true;
+			this.problems.clear();
+			this.problems.addAll(problems);
+		}
+		if (!problems.isEmpty()) {
+			log.log(Level.SEVERE, "Bulk loaded rows are inconsistent: {0}", problems);
+			return false;
+		}
+		log.log(Level.INFO, "Bulk loaded rows are consistent, {0} of {1} users looked up",
+				new Object[]{sampled.size(), loadedUsers.sum()});
+		return true;
+	}
+
+	private void addToSample(String userId, long uid) {
+		synchronized (sample) {
+			sampledBatches++;
+			if (sample.size() < SAMPLE_SIZE) {
+				sample.put(userId, uid);
+			} else {
+				final ThreadLocalRandom random = ThreadLocalRandom.current();
+				if (random.nextLong(sampledBatches) < SAMPLE_SIZE) {
+					final String replaced = new ArrayList<>(sample.keySet()).get(random.nextInt(SAMPLE_SIZE));
+					sample.remove(replaced);
+					sample.put(userId, uid);
+				}
+			}
+		}
+	}
+
+	private Connection borrowConnection() throws SQLException {
+		final Connection connection = idleConnections.pollFirst();
+		return connection != null ? connection : openConnection();
+	}
+
+	private Connection openConnection() throws SQLException {
+		final Properties info = new Properties();
+		if (dialect == Dialect.mysql) {
+			info.setProperty("allowLoadLocalInfile", "true");
+		}
+		final Connection connection = connect(resourceUri, info);
+		connection.setAutoCommit(false);
+		connections.add(connection);
+		return connection;
+	}
+
+	/**
+	 * Opens a connection to the destination; overridden by tests loading users to another database.
+	 */
+	Connection connect(String uri, Properties info) throws SQLException {
+		return DriverManager.getConnection(uri, info);
+	}
+
+	private static long queryLong(Connection connection, String query) throws SQLException {
+		try (Statement statement = connection.createStatement(); ResultSet rs = statement.executeQuery(query)) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	private String quote(String value) {
+		final String quoted = value.replace("'", "''");
+		return "'" + (dialect == Dialect.mysql ? quoted.replace("\\", "\\\\") : quoted) + "'";
+	}
+
+	/**
+	 * Same as {@code sha1(lower(user_id))} of Tigase schema.
+	 */
+	static String sha1UserId(String userId) {
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-1")
+					.digest(userId.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+			final StringBuilder sb = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * User with credentials and data of its root node.
+	 */
+	public static class User {
+
+		private final Map<String, String> credentials = new LinkedHashMap<>(2);
+		private final Map<String, String> data = new LinkedHashMap<>(2);
+		private final BareJID jid;
+
+		public User(BareJID jid) {
+			this.jid = jid;
+		}
+
+		public User addCredential(String mechanism, String value) {
+			credentials.put(mechanism, value);
+			return this;
+		}
+
+		public User addData(String key, String value) {
+			data.put(key, value);
+			return this;
+		}
+	}
+
+	/**
+	 * Rows in text format of both {@code COPY} and {@code LOAD DATA}: tab separated fields, with backslash escapes of
+	 * tabs, line breaks and backslashes and {@code \N} for {@code NULL}.
+	 */
+	static class Rows {
+
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private final StringBuilder line = new StringBuilder();
+		private int count = 0;
+
+		int getCount() {
+			return count;
+		}
+
+		byte[] toByteArray() {
+			return buffer.toByteArray();
+		}
+
+		void add(String... fields) {
+			line.setLength(0);
+			for (int i = 0; i < fields.length; i++) {
+				if (i > 0) {
+					line.append('\t');
+				}
+				appendField(fields[i]);
+			}
+			line.append('\n');
+			final byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+			buffer.write(bytes, 0, bytes.length);
+			count++;
+		}
+
+		private void appendField(String value) {
+			if (value == null) {
+				line.append("\\N");
+				return;
+			}
+			for (int i = 0; i < value.length(); i++) {
+				final char c = value.charAt(i);
+				switch (c) {
+					case '\\':
+						line.append("\\\\");
+						break;
+					case '\t':
+						line.append("\\t");
+						break;
+					case '\n':
+						line.append("\\n");
+						break;
+					case '\r':
+						line.append("\\r");
+						break;
+					default:
+						line.append(c);
+						break;
+				}
+			}
+		}
+	}
+}
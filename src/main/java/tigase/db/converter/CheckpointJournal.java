@@ -0,0 +1,430 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Append-only journal of conversion progress used to resume interrupted conversion.
+ * <p>
+ * Progress is tracked for key ranges read by {@link PartitionedReader}: the journal contains the sampled keys defining
+ * range boundaries, every range (and every change of its upper boundary caused by work stealing) and periodic
+ * checkpoints with the key from which reading of the range has to be restarted. Rows are completed out of order by
+ * store workers, so the checkpoint is the first row of the range which is not completed yet; while all rows read so
+ * far are completed the key of the next row isn't known and the previous checkpoint is kept. Key of the checkpoint is
+ * read again on resume (as the key column doesn't have to be unique), so rows stored after the checkpoint was written
+ * are read again and resumed conversion has to update entities which already exist in the destination. Checkpoints
+ * are written and synced to disk at batch boundaries and on {@link #close()}.
+ * <p>
+ * Each line is a single record of space separated, URL encoded fields:
+ * <pre>
+ * samples &lt;convertible&gt; &lt;key&gt;...
+ * range &lt;convertible&gt; &lt;lower&gt; &lt;upper&gt;
+ * checkpoint &lt;convertible&gt; &lt;lower&gt; &lt;position&gt; &lt;key&gt;
+ * done &lt;convertible&gt; &lt;lower&gt;
+ * finished &lt;convertible&gt;
+ * </pre>
+ * Ranges are identified by index of their lower boundary within the sampled keys (or -1 for the first range).
+ */
+public class CheckpointJournal
+		implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(CheckpointJournal.class.getName());
+
+	private final Map<String, ConvertibleProgress> convertibles = new ConcurrentHashMap<>();
+	private final Path file;
+	private final FileOutputStream stream;
+	private final Writer writer;
+	private boolean closed = false;
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Opens the journal for writing.
+	 *
+	 * @param resume if {@code true} progress recorded in the existing journal is loaded and new records are appended
+	 * to it, otherwise the journal is truncated
+	 */
+	public CheckpointJournal(Path file, boolean resume) throws IOException {
+		this.file = file;
+		if (resume && Files.exists(file)) {
+			replay();
+		} else if (resume) {
+			log.log(Level.WARNING, "Checkpoint journal {0} doesn't exist, starting from the beginning", file);
+		}
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		this.stream = new FileOutputStream(file.toFile(), resume);
+		this.writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+	}
+
+	public boolean isFinished(String convertible) {
+		final ConvertibleProgress progress = convertibles.get(convertible);
+		return progress != null && progress.finished;
+	}
+
+	/**
+	 * Returns progress of the convertible, which is empty unless the journal was opened in resume mode.
+	 */
+	public ConvertibleProgress getProgress(String convertible) {
+		return convertibles.computeIfAbsent(convertible, ConvertibleProgress::new);
+	}
+
+	/**
+	 * Records that all rows of the convertible were processed.
+	 */
+	public synchronized void finished(String convertible) throws IOException {
+		checkpoint();
+		getProgress(convertible).finished = true;
+		append("finished", convertible);
+		sync();
+	}
+
+	/**
+	 * Writes checkpoints of all ranges which made progress since the last checkpoint and syncs the journal to disk.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (closed) {
+			return;
+		}
+		boolean changed = false;
+		for (ConvertibleProgress progress : convertibles.values()) {
+			synchronized (progress.ranges) {
+				for (ConvertibleProgress.RangeProgress range : progress.ranges.values()) {
+					changed |= range.writeCheckpoint();
+				}
+			}
+		}
+		if (changed) {
+			sync();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		try {
+			checkpoint();
+			writer.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't write checkpoint journal " + file, e);
+		} finally {
+			closed = true;
+		}
+	}
+
+	private synchronized void append(String... fields) throws IOException {
+		if (closed) {
+			return;
+		}
+		writer.write(Arrays.stream(fields).map(CheckpointJournal::encode).collect(Collectors.joining(" ")));
+		writer.write('\n');
+	}
+
+	private void sync() throws IOException {
+		writer.flush();
+		stream.getFD().sync();
+	}
+
+	private void replay() throws IOException {
+		int records = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					replay(Arrays.stream(line.split(" ", -1)).map(CheckpointJournal::decode).toArray(String[]::new));
+					records++;
+				} catch (RuntimeException e) {
+					// last record may be incomplete if the process was killed while writing it
+					log.log(Level.WARNING, "Ignoring malformed checkpoint record: {0}", line);
+				}
+			}
+		}
+		log.log(Level.INFO, "Loaded {0} records from checkpoint journal {1}", new Object[]{records, file});
+	}
+
+	private void replay(String[] record) {
+		final ConvertibleProgress progress = getProgress(record[1]);
+		switch (record[0]) {
+			case "samples":
+				progress.samples = Collections.unmodifiableList(
+						new ArrayList<>(Arrays.asList(record).subList(2, record.length)));
+				break;
+			case "range":
+				final ConvertibleProgress.RangeProgress added = progress.range(Integer.parseInt(record[2]));
+				added.upper = Integer.parseInt(record[3]);
+				if (record.length > 4) {
+					added.after = record[4];
+				}
+				break;
+			case "checkpoint":
+				final ConvertibleProgress.RangeProgress range = progress.ranges.get(Integer.parseInt(record[2]));
+				range.resumePosition = Integer.parseInt(record[3]);
+				range.resumeKey = record[4];
+				break;
+			case "done":
+				progress.ranges.get(Integer.parseInt(record[2])).done = true;
+				break;
+			case "finished":
+				progress.finished = true;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown record type: " + record[0]);
+		}
+	}
+
+	/**
+	 * Progress of a single convertible.
+	 */
+	public class ConvertibleProgress {
+
+		private final String name;
+		// sorted by lower boundary so the order of ranges is preserved on resume
+		private final Map<Integer, RangeProgress> ranges = Collections.synchronizedMap(new TreeMap<>());
+		private volatile boolean finished = false;
+		private volatile List<String> samples;
+
+		private ConvertibleProgress(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return sampled keys recorded by previous run or {@code null} if there are none
+		 */
+		List<String> getSamples() {
+			return samples;
+		}
+
+		void setSamples(List<String> samples) throws IOException {
+			this.samples = Collections.unmodifiableList(new ArrayList<>(samples));
+			final List<String> record = new ArrayList<>(samples.size() + 2);
+			record.add("samples");
+			record.add(name);
+			record.addAll(samples);
+			append(record.toArray(new String[0]));
+		}
+
+		/**
+		 * @return ranges which were not completely processed by previous run
+		 */
+		List<RangeProgress> getUnfinishedRanges() {
+			synchronized (ranges) {
+				return ranges.values().stream().filter(range -> !range.done).collect(Collectors.toList());
+			}
+		}
+
+		RangeProgress addRange(int lower, int upper) throws IOException {
+			return addRange(lower, upper, null);
+		}
+
+		/**
+		 * @param after key (exclusive) after which the range starts if it's past the lower sampled key, i.e. the last
+		 * key read by the owner of the range from which it was stolen
+		 */
+		RangeProgress addRange(int lower, int upper, String after) throws IOException {
+			final RangeProgress range = new RangeProgress(lower);
+			range.upper = upper;
+			range.after = after;
+			ranges.put(lower, range);
+			if (after != null) {
+				append("range", name, String.valueOf(lower), String.valueOf(upper), after);
+			} else {
+				append("range", name, String.valueOf(lower), String.valueOf(upper));
+			}
+			return range;
+		}
+
+		private RangeProgress range(int lower) {
+			return ranges.computeIfAbsent(lower, RangeProgress::new);
+		}
+
+		void setUpper(RangeProgress range, int upper) throws IOException {
+			range.upper = upper;
+			append("range", name, String.valueOf(range.lower), String.valueOf(upper));
+		}
+
+		/**
+		 * Progress of a single key range; rows have to be registered in the order in which they are read.
+		 */
+		class RangeProgress {
+
+			private final Deque<RowProgress> inFlight = new ArrayDeque<>();
+			private final int lower;
+			private boolean dirty = false;
+			private volatile boolean done = false;
+			private boolean readCompleted = false;
+			// exclusive lower bound of keys of a stolen range
+			private String after;
+			// first row which wasn't stored, as of the last checkpoint
+			private String resumeKey;
+			private int resumePosition;
+			private volatile int upper;
+
+			private RangeProgress(int lower) {
+				this.lower = lower;
+				this.resumePosition = lower;
+			}
+
+			int getLower() {
+				return lower;
+			}
+
+			int getUpper() {
+				return upper;
+			}
+
+			/**
+			 * @return key (exclusive) after which the range starts, {@code null} if it starts at the lower sampled key
+			 */
+			String getAfter() {
+				return after;
+			}
+
+			/**
+			 * @return key (inclusive) from which reading has to be restarted or {@code null} to read the whole range
+			 */
+			synchronized String getResumeKey() {
+				return resumeKey;
+			}
+
+			/**
+			 * @return index of the last sampled key passed before reaching the resume key
+			 */
+			synchronized int getResumePosition() {
+				return resumePosition;
+			}
+
+			synchronized RowProgress register(String key, int position) {
+				final RowProgress row = new RowProgress(this, key, position);
+				inFlight.add(row);
+				return row;
+			}
+
+			/**
+			 * Marks that all rows of the range were read; range is done once all of them are completed.
+			 */
+			synchronized void readCompleted() {
+				readCompleted = true;
+				dirty = true;
+			}
+
+			private synchronized void completed(RowProgress row) {
+				row.completed = true;
+				while (!inFlight.isEmpty() && inFlight.peek().completed) {
+					inFlight.poll();
+				}
+				dirty = true;
+			}
+
+			private synchronized boolean writeCheckpoint() throws IOException {
+				if (!dirty || done) {
+					return false;
+				}
+				if (readCompleted && inFlight.isEmpty()) {
+					dirty = false;
+					done = true;
+					append("done", name, String.valueOf(lower));
+					return true;
+				}
+				final RowProgress first = inFlight.peek();
+				if (first == null) {
+					// stays dirty, so the checkpoint is written once the next row is read
+					return false;
+				}
+				dirty = false;
+				if (Objects.equals(first.key, resumeKey) && first.position == resumePosition) {
+					return false;
+				}
+				resumeKey = first.key;
+				resumePosition = first.position;
+				append("checkpoint", name, String.valueOf(lower), String.valueOf(first.position), first.key);
+				return true;
+			}
+
+			@Override
+			public String toString() {
+				return name + "[" + lower + ", " + upper + ")" + (resumeKey != null ? " from " + resumeKey : "");
+			}
+		}
+	}
+
+	/**
+	 * Single row read from a range, completed once it's stored (or failed).
+	 */
+	static class RowProgress {
+
+		private final String key;
+		private final int position;
+		private final ConvertibleProgress.RangeProgress range;
+		private boolean completed = false;
+
+		private RowProgress(ConvertibleProgress.RangeProgress range, String key, int position) {
+			this.range = range;
+			this.key = key;
+			this.position = position;
+		}
+
+		void complete() {
+			range.completed(this);
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of conversion of a single {@link Convertible}: numbers of rows in each stage of {@link ConversionPipeline},
+ * latencies of transforming and storing entities, throughput and estimated time to finish.
+ */
+public class ConversionMetrics
+		implements ConversionMetricsMXBean {
+
+	public enum State {
+		pending,
+		running,
+		finished,
+		failed
+	}
+
+	private final String convertible;
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder read = new LongAdder();
+	private final LatencyHistogram storeLatency = new LatencyHistogram();
+	private final LongAdder stored = new LongAdder();
+	private final LatencyHistogram transformLatency = new LatencyHistogram();
+	private final LongAdder transformed = new LongAdder();
+	private final LongAdder unchanged = new LongAdder();
+	private volatile long expectedRows = -1;
+	private volatile long finishTime;
+	private volatile long startTime;
+	private volatile State state = State.pending;
+
+	public ConversionMetrics(String convertible) {
+		this.convertible = convertible;
+	}
+
+	void started() {
+		startTime = System.nanoTime();
+		state = State.running;
+	}
+
+	void finished(boolean success) {
+		finishTime = System.nanoTime();
+		state = success ? State.finished : State.failed;
+	}
+
+	void setExpectedRows(long expectedRows) {
+		this.expectedRows = expectedRows;
+	}
+
+	void rowRead() {
+		read.increment();
+	}
+
+	void rowTransformed(long nanos) {
+		transformed.increment();
+		transformLatency.record(nanos);
+	}
+
+	void rowStored() {
+		stored.increment();
+	}
+
+	void rowFailed() {
+		failed.increment();
+	}
+
+	void rowUnchanged() {
+		unchanged.increment();
+	}
+
+	/**
+	 * Records time of storing a batch, attributed evenly to each of its entities.
+	 */
+	void batchStored(long nanos, int entities) {
+		for (int i = 0; i < entities; i++) {
+			storeLatency.record(nanos / entities);
+		}
+	}
+
+	public LatencyHistogram getTransformLatency() {
+		return transformLatency;
+	}
+
+	public LatencyHistogram getStoreLatency() {
+		return storeLatency;
+	}
+
+	@Override
+	public String getConvertible() {
+		return convertible;
+	}
+
+	@Override
+	public String getState() {
+		return state.name();
+	}
+
+	@Override
+	public long getRowsRead() {
+		return read.sum();
+	}
+
+	@Override
+	public long getRowsTransformed() {
+		return transformed.sum();
+	}
+
+	@Override
+	public long getRowsStored() {
+		return stored.sum();
+	}
+
+	@Override
+	public long getRowsFailed() {
+		return failed.sum();
+	}
+
+	@Override
+	public long getRowsUnchanged() {
+		return unchanged.sum();
+	}
+
+	@Override
+	public long getExpectedRows() {
+		return expectedRows;
+	}
+
+	@Override
+	public long getElapsedSeconds() {
+		return TimeUnit.NANOSECONDS.toSeconds(getElapsedNanos());
+	}
+
+	/**
+	 * @return rows stored, failed or skipped as unchanged per second
+	 */
+	@Override
+	public double getRowsPerSecond() {
+		final long elapsed = getElapsedNanos();
+		return elapsed <= 0 ? 0 : getRowsProcessed() * 1e9 / elapsed;
+	}
+
+	@Override
+	public long getEtaSeconds() {
+		if (state == State.finished) {
+			return 0;
+		}
+		final double rate = getRowsPerSecond();
+		if (expectedRows < 0 || rate <= 0) {
+			return -1;
+		}
+		return (long) (Math.max(0, expectedRows - getRowsProcessed()) / rate);
+	}
+
+	@Override
+	public long getTransformMeanMicros() {
+		return transformLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getTransformP99Micros() {
+		return transformLatency.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long getStoreMeanMicros() {
+		return storeLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getStoreP99Micros() {
+		return storeLatency.getPercentileMicros(0.99);
+	}
+
+	/**
+	 * Single line summary of the progress used for periodic reports.
+	 */
+	public String getProgress() {
+		final long processed = getRowsProcessed();
+		final StringBuilder sb = new StringBuilder(convertible).append(": ");
+		sb.append(processed);
+		if (expectedRows >= 0) {
+			sb.append(" of ").append(expectedRows);
+			if (expectedRows > 0) {
+				sb.append(String.format(" (%.1f%%)", Math.min(100.0, processed * 100.0 / expectedRows)));
+			}
+		}
+		sb.append(" rows processed, ").append(getRowsFailed()).append(" failed");
+		if (getRowsUnchanged() > 0) {
+			sb.append(", ").append(getRowsUnchanged()).append(" unchanged");
+		}
+		sb.append(String.format(", %.1f rows/s", getRowsPerSecond()));
+		final long eta = getEtaSeconds();
+		if (eta >= 0 && state == State.running) {
+			sb.append(String.format(", ETA %d:%02d:%02d", eta / 3600, (eta / 60) % 60, eta % 60));
+		}
+		sb.append("; read ").append(getRowsRead()).append(", transformed ").append(getRowsTransformed());
+		sb.append("; transform ").append(transformLatency).append("; store ").append(storeLatency);
+		return sb.toString();
+	}
+
+	String toJson() {
+		final StringBuilder sb = new StringBuilder("{");
+		sb.append("\"convertible\":").append(jsonString(convertible));
+		sb.append(",\"state\":").append(jsonString(getState()));
+		sb.append(",\"rowsRead\":").append(getRowsRead());
+		sb.append(",\"rowsTransformed\":").append(getRowsTransformed());
+		sb.append(",\"rowsStored\":").append(getRowsStored());
+		sb.append(",\"rowsFailed\":").append(getRowsFailed());
+		sb.append(",\"rowsUnchanged\":").append(getRowsUnchanged());
+		sb.append(",\"expectedRows\":").append(expectedRows);
+		sb.append(",\"elapsedSeconds\":").append(getElapsedSeconds());
+		sb.append(",\"rowsPerSecond\":").append(String.format(Locale.ROOT, "%.2f", getRowsPerSecond()));
+		sb.append(",\"transformLatency\":").append(toJson(transformLatency));
+		sb.append(",\"storeLatency\":").append(toJson(storeLatency));
+		return sb.append('}').toString();
+	}
+
+	@Override
+	public String toString() {
+		return getProgress();
+	}
+
+	private long getRowsProcessed() {
+		return getRowsStored() + getRowsFailed() + getRowsUnchanged();
+	}
+
+	private long getElapsedNanos() {
+		if (startTime == 0) {
+			return 0;
+		}
+		return (state == State.running ? System.nanoTime() : finishTime) - startTime;
+	}
+
+	private static String toJson(LatencyHistogram histogram) {
+		return "{\"count\":" + histogram.getCount() + ",\"meanMicros\":" + histogram.getMeanMicros() +
+				",\"p50Micros\":" + histogram.getPercentileMicros(0.5) + ",\"p90Micros\":" +
+				histogram.getPercentileMicros(0.9) + ",\"p99Micros\":" + histogram.getPercentileMicros(0.99) +
+				",\"maxMicros\":" + histogram.getMaxMicros() + "}";
+	}
+
+	static String jsonString(String value) {
+		final StringBuilder sb = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			switch (c) {
+				case '"':
+				case '\\':
+					sb.append('\\').append(c);
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						sb.append(String.format("\\u%04x", (int) c));
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
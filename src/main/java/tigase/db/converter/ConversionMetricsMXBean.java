@@ -0,0 +1,64 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+/**
+ * JMX view of {@link ConversionMetrics}, registered as {@code
+ * tigase.db.converter:type=ConversionMetrics,name=<convertible>}.
+ */
+public interface ConversionMetricsMXBean {
+
+	String getConvertible();
+
+	String getState();
+
+	long getRowsRead();
+
+	long getRowsTransformed();
+
+	long getRowsStored();
+
+	long getRowsFailed();
+
+	/**
+	 * @return number of rows skipped by incremental conversion as not changed since the previous run
+	 */
+	long getRowsUnchanged();
+
+	/**
+	 * @return number of rows in the source or {@code -1} if unknown
+	 */
+	long getExpectedRows();
+
+	long getElapsedSeconds();
+
+	double getRowsPerSecond();
+
+	/**
+	 * @return estimated number of seconds until all rows are processed or {@code -1} if unknown
+	 */
+	long getEtaSeconds();
+
+	long getTransformMeanMicros();
+
+	long getTransformP99Micros();
+
+	long getStoreMeanMicros();
+
+	long getStoreP99Micros();
+}
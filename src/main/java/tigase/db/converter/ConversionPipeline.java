@@ -0,0 +1,673 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Multi-stage conversion of a single {@link Convertible}. Rows are read from the source cursor by the calling thread,
+ * transformed with {@link Convertible#processResultSet(ResultSet)} by a pool of transform workers and stored in
+ * batches with {@link Convertible#storeEntities(List)} by a pool of store workers. Stages are connected with bounded
+ * queues so a slow stage blocks the preceding one instead of buffering the whole source in memory. If preparation pool
+ * is set, each entity is additionally passed to {@link Convertible#prepareEntity(RowEntity)} on that pool as soon as
+ * it's queued for storing, and store workers wait for the preparation before storing the batch.
+ * <p>
+ * Failure of a single row (while transforming, preparing or storing it) is reported to the {@link Listener} with the
+ * source key of the row and doesn't stop processing of other rows; only failure of the whole stage (i.e. of reading
+ * or storing a batch) aborts the conversion. If retries are enabled, entities failed with a transient error are
+ * stored again after exponentially growing delay.
+ * <p>
+ * In dry-run mode store workers skip {@link Convertible#storeEntities(List)} and complete transformed entities as if
+ * they were stored, so the source and the transformation can be measured on their own. In incremental mode entities
+ * which didn't change since the previous run are completed by transform workers without storing them.
+ */
+class ConversionPipeline<T extends RowEntity> {
+
+	private static final Pending END_OF_ROWS = new Pending(
+			new RowSnapshot(new RowSnapshot.Columns(), new Object[0], -1), null);
+	private static final Logger log = Logger.getLogger(ConversionPipeline.class.getName());
+	private static final long OFFER_TIMEOUT_MS = 100;
+	private static final long RETRY_BACKOFF_MS = 200;
+
+	private final Convertible<T> convertible;
+	private final BlockingQueue<Processed<T>> entities;
+	private final AtomicInteger failCount = new AtomicInteger();
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+	private IncrementalState incrementalState;
+	private Executor preparationPool;
+	private String keyColumn;
+	private Set<String> replayKeys;
+	private int shardCount = 1;
+	private int shardIndex = 0;
+	private int storeAttempts = 1;
+	private Sink<T> sink;
+	private final int batchSize;
+	private final boolean dryRun;
+	private final Listener<T> listener;
+	private final ConversionMetrics metrics;
+	private final String name;
+	private final BlockingQueue<Pending> rows;
+	private final boolean sequential;
+	private final AtomicInteger totalCount = new AtomicInteger();
+	private boolean finishing = false;
+	private int storeThreads;
+	private int transformThreads;
+	private ExecutorService transformers;
+	private ExecutorService writers;
+
+	/**
+	 * @param transformThreads number of transform threads (used only if rows may be processed concurrently)
+	 * @param storeThreads number of store threads
+	 */
+	ConversionPipeline(Convertible<T> convertible, Converter.ConverterProperties properties, int transformThreads,
+					   int storeThreads, Listener<T> listener, ConversionMetrics metrics) {
+		this.convertible = convertible;
+		this.listener = listener;
+		this.metrics = metrics;
+		this.name = convertible.getClass().getSimpleName();
+		this.sequential = convertible.requiresSequentialProcessing();
+		this.transformThreads = sequential ? 1 : Math.max(1, transformThreads);
+		this.storeThreads = Math.max(1, storeThreads);
+		this.rows = new ArrayBlockingQueue<>(Math.max(1, properties.getQueueSize()));
+		this.entities = new ArrayBlockingQueue<>(Math.max(1, properties.getQueueSize()));
+		this.batchSize = Math.max(1, properties.getBatchSize());
+		this.dryRun = properties.isDryRun();
+		this.sink = convertible::storeEntities;
+	}
+
+	/**
+	 * Replaces {@link Convertible#storeEntities(List)} as the destination of entities, i.e. with snapshot of the
+	 * source.
+	 */
+	void setSink(Sink<T> sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Enables CPU-bound preparation of entities with {@link Convertible#prepareEntity(RowEntity)} on the pool, ahead
+	 * of storing them.
+	 */
+	void setPreparationPool(Executor preparationPool) {
+		this.preparationPool = preparationPool;
+	}
+
+	/**
+	 * Sets column of the rows identifying them in the source (key column of {@link Partitioning}), reported as the
+	 * key of failed rows. Entities passed with {@link #acceptEntity(RowEntity)} are identified by their ID.
+	 */
+	void setKeyColumn(String keyColumn) {
+		this.keyColumn = keyColumn;
+	}
+
+	/**
+	 * Limits entities passed with {@link #acceptEntity(RowEntity)} to those with the IDs, i.e. failed by the previous
+	 * run which is being replayed.
+	 */
+	void setReplayKeys(Set<String> replayKeys) {
+		this.replayKeys = replayKeys;
+	}
+
+	/**
+	 * Limits entities passed with {@link #acceptEntity(RowEntity)} to those with IDs in the hash range of the shard.
+	 * Rows of the source database are limited to the key range of the shard by the reader instead, so rows of other
+	 * shards aren't read at all.
+	 */
+	void setShard(int shardIndex, int shardCount) {
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @param storeAttempts number of attempts to store entity failing with transient error
+	 */
+	void setStoreAttempts(int storeAttempts) {
+		this.storeAttempts = Math.max(1, storeAttempts);
+	}
+
+	/**
+	 * Enables incremental conversion: entities unchanged since the previous run are skipped and digests of stored
+	 * entities are recorded in the state.
+	 */
+	void setIncrementalState(IncrementalState incrementalState) {
+		this.incrementalState = incrementalState;
+	}
+
+	/**
+	 * Reads all rows from the result set on the calling thread and waits until all of them are transformed and
+	 * stored.
+	 *
+	 * @throws Exception first error which aborted the conversion
+	 */
+	void run(ResultSet resultSet) throws Exception {
+		run(pipeline -> {
+			final RowSnapshot.Columns columns = RowSnapshot.columnsOf(resultSet);
+			while (!resultSet.isClosed() && resultSet.next()) {
+				if (!pipeline.accept(columns, resultSet)) {
+					break;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts transform and store workers, feeds them with rows passed by the reader to {@link
+	 * #accept(RowSnapshot.Columns, ResultSet)} and waits until all of them are transformed and stored.
+	 *
+	 * @param reader source of the rows, called on the calling thread (it may use additional threads)
+	 *
+	 * @throws Exception first error which aborted the conversion
+	 */
+	void run(Reader reader) throws Exception {
+		synchronized (this) {
+			transformers = Executors.newCachedThreadPool(threadFactory("transform"));
+			writers = Executors.newCachedThreadPool(threadFactory("store"));
+			startWorkers(transformThreads, storeThreads);
+		}
+
+		try {
+			reader.read(this);
+		} catch (Exception e) {
+			abort(e);
+		} finally {
+			synchronized (this) {
+				finishing = true;
+			}
+			// single marker passed on by each transform worker to the next one
+			put(rows, END_OF_ROWS, true);
+			awaitTermination(transformers);
+			// single marker passed on by each store worker to the next one
+			put(entities, new Processed<>(-1, null, null, null, null, null), true);
+			awaitTermination(writers);
+		}
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+	}
+
+	/**
+	 * Adds workers to the running pipeline, i.e. with threads released by pipelines of other convertibles. Transform
+	 * workers aren't added if rows have to be processed sequentially and no workers are added once all rows were
+	 * read.
+	 */
+	synchronized void addWorkers(int transformThreads, int storeThreads) {
+		if (finishing) {
+			return;
+		}
+		final int transform = sequential ? 0 : transformThreads;
+		this.transformThreads += transform;
+		this.storeThreads += storeThreads;
+		if (transformers != null) {
+			log.log(Level.FINE, "Adding {0} transform and {1} store workers to {2}",
+					new Object[]{transform, storeThreads, name});
+			startWorkers(transform, storeThreads);
+		}
+	}
+
+	/**
+	 * Copies current row of the result set and queues it for processing, blocking while the queue is full. May be
+	 * called concurrently by many readers.
+	 *
+	 * @return {@code false} if conversion was aborted and reading should be stopped
+	 */
+	boolean accept(RowSnapshot.Columns columns, ResultSet resultSet) throws Exception {
+		return accept(columns, resultSet, null);
+	}
+
+	/**
+	 * Same as {@link #accept(RowSnapshot.Columns, ResultSet)}, additionally notifying the reader once processing of
+	 * the row is completed, either by storing its entity or by failure. Callback is not called for rows dropped after
+	 * the conversion was aborted.
+	 *
+	 * @param onCompleted called by the worker which completed processing of the row, may be {@code null}
+	 */
+	boolean accept(RowSnapshot.Columns columns, ResultSet resultSet, Runnable onCompleted) throws Exception {
+		if (isAborted()) {
+			return false;
+		}
+		put(rows, new Pending(RowSnapshot.of(columns, resultSet, totalCount.incrementAndGet()), onCompleted),
+			false);
+		metrics.rowRead();
+		return !isAborted();
+	}
+
+	/**
+	 * Queues entity which doesn't need to be transformed (i.e. read from snapshot of the source) for storing,
+	 * blocking while the queue is full. May be called concurrently by many readers.
+	 *
+	 * @param entity entity to store or {@code null} if the reader couldn't create it, which is reported as failure
+	 *
+	 * @return {@code false} if conversion was aborted and reading should be stopped
+	 */
+	boolean acceptEntity(T entity) {
+		if (isAborted()) {
+			return false;
+		}
+		if (replayKeys != null && (entity == null || !replayKeys.contains(entity.getID()))) {
+			return true;
+		}
+		if (shardCount > 1 && entity != null && !ShardCoordinator.isInShard(entity.getID(), shardIndex, shardCount)) {
+			return true;
+		}
+		final long rowNumber = totalCount.incrementAndGet();
+		metrics.rowRead();
+		final IncrementalState.Digest digest = entity != null ? digest(entity) : null;
+		if (!isUnchanged(digest)) {
+			put(entities, new Processed<>(rowNumber, entity != null ? entity.getID() : null, entity, digest, null,
+										  prepare(entity)), false);
+		}
+		return !isAborted();
+	}
+
+	boolean isAborted() {
+		return failure.get() != null;
+	}
+
+	int getFailCount() {
+		return failCount.get();
+	}
+
+	int getTotalCount() {
+		return totalCount.get();
+	}
+
+	private void transform() {
+		try {
+			Pending pending;
+			while ((pending = rows.take()) != END_OF_ROWS) {
+				if (isAborted()) {
+					continue;
+				}
+				final RowSnapshot row = pending.row;
+				final String key = sourceKey(row);
+				Optional<T> entity = Optional.empty();
+				try {
+					final long start = System.nanoTime();
+					entity = convertible.processResultSet(row.asResultSet());
+					IncrementalState.Digest digest = null;
+					if (entity.isPresent()) {
+						metrics.rowTransformed(System.nanoTime() - start);
+						digest = digest(entity.get());
+						if (isUnchanged(digest)) {
+							if (pending.onCompleted != null) {
+								pending.onCompleted.run();
+							}
+							continue;
+						}
+					}
+					put(entities, new Processed<>(row.getRowNumber(), key, entity.orElse(null), digest,
+												  pending.onCompleted, prepare(entity.orElse(null))), false);
+				} catch (Exception e) {
+					// failure of a single row doesn't stop the conversion, it's recorded to be replayed
+					failed(new Processed<>(row.getRowNumber(), key, entity.orElse(null), null, pending.onCompleted,
+										   null), e);
+				}
+			}
+			rows.put(END_OF_ROWS);
+		} catch (InterruptedException e) {
+			abort(e);
+		}
+	}
+
+	/**
+	 * @return value of the key column of the row or {@code null} if it's not known
+	 */
+	private String sourceKey(RowSnapshot row) {
+		if (keyColumn == null) {
+			return null;
+		}
+		try {
+			final Object value = row.getValue(keyColumn);
+			return value != null ? value.toString() : null;
+		} catch (SQLException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts preparation of the entity on the preparation pool, if it's set.
+	 *
+	 * @return completion of the preparation or {@code null} if there is nothing to wait for
+	 */
+	private CompletableFuture<Void> prepare(T entity) {
+		if (preparationPool == null || entity == null) {
+			return null;
+		}
+		return CompletableFuture.runAsync(() -> {
+			try {
+				convertible.prepareEntity(entity);
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, preparationPool);
+	}
+
+	/**
+	 * Waits until preparation of the entity is completed; failed preparation is reported as failure of the entity, the
+	 * same way as failed transformation.
+	 *
+	 * @return {@code true} if the entity may be stored
+	 */
+	private boolean awaitPreparation(Processed<T> processed) {
+		if (processed.prepared == null) {
+			return true;
+		}
+		try {
+			processed.prepared.join();
+			return true;
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception) {
+				failed(processed, (Exception) e.getCause());
+			} else {
+				abort(e);
+			}
+			return false;
+		}
+	}
+
+	private IncrementalState.Digest digest(T entity) {
+		return incrementalState != null ? incrementalState.digest(name, entity) : null;
+	}
+
+	/**
+	 * @return {@code true} if the entity didn't change since the previous incremental conversion, so it doesn't have
+	 * to be stored
+	 */
+	private boolean isUnchanged(IncrementalState.Digest digest) {
+		if (digest != null && incrementalState.isUnchanged(digest)) {
+			incrementalState.record(digest);
+			metrics.rowUnchanged();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Takes processed entities from the queue and stores them in batches of up to configured size; batch contains
+	 * only entities already waiting in the queue, so a store worker never waits for a batch to fill up.
+	 */
+	private void store() {
+		final List<Processed<T>> batch = new ArrayList<>(batchSize);
+		try {
+			while (true) {
+				batch.add(entities.take());
+				entities.drainTo(batch, batchSize - 1);
+				final Processed<T> last = batch.get(batch.size() - 1);
+				if (last.isEndMarker()) {
+					batch.remove(batch.size() - 1);
+				}
+				if (!isAborted()) {
+					store(batch);
+					listener.batchCompleted();
+				}
+				batch.clear();
+				if (last.isEndMarker()) {
+					entities.put(last);
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			abort(e);
+		}
+	}
+
+	private void store(List<Processed<T>> batch) {
+		final List<Processed<T>> storing = new ArrayList<>(batch.size());
+		final List<T> toStore = new ArrayList<>(batch.size());
+		for (Processed<T> processed : batch) {
+			if (processed.entity == null) {
+				failed(processed, null);
+			} else if (awaitPreparation(processed)) {
+				storing.add(processed);
+				toStore.add(processed.entity);
+			}
+		}
+		if (toStore.isEmpty() || isAborted()) {
+			return;
+		}
+		try {
+			final List<StoreResult> results;
+			if (dryRun) {
+				results = Collections.nCopies(toStore.size(), StoreResult.stored());
+			} else {
+				final long start = System.nanoTime();
+				results = sink.store(toStore);
+				metrics.batchStored(System.nanoTime() - start, toStore.size());
+			}
+			int i = 0;
+			for (Processed<T> processed : storing) {
+				StoreResult result = results.get(i++);
+				if (!result.isStored() && storeAttempts > 1 && isTransient(result.getException())) {
+					result = retry(processed.entity, result);
+				}
+				if (result.isStored()) {
+					metrics.rowStored();
+					if (processed.digest != null) {
+						incrementalState.record(processed.digest);
+					}
+					listener.stored(processed.entity, processed.rowNumber);
+					processed.completed();
+				} else {
+					failed(processed, result.getException());
+				}
+			}
+		} catch (Exception e) {
+			abort(e);
+		}
+	}
+
+	/**
+	 * Stores the entity failed with transient error again, after exponentially growing delay, until it's stored, it
+	 * fails with other error or the number of attempts is exhausted.
+	 *
+	 * @return result of the last attempt
+	 */
+	private StoreResult retry(T entity, StoreResult result) {
+		for (int attempt = 1; attempt < storeAttempts && isTransient(result.getException()); attempt++) {
+			try {
+				Thread.sleep(RETRY_BACKOFF_MS << (attempt - 1));
+			} catch (InterruptedException e) {
+				abort(e);
+				return result;
+			}
+			if (isAborted()) {
+				return result;
+			}
+			log.log(Level.FINE, "Storing {0} again (attempt {1}) after {2}",
+					new Object[]{entity.getID(), attempt + 1, result.getException()});
+			try {
+				result = sink.store(Collections.singletonList(entity)).get(0);
+			} catch (Exception e) {
+				result = StoreResult.failed(e);
+			}
+			if (result.isStored()) {
+				return result;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Checks whether the failure may not happen again (i.e. lost connection, deadlock or timeout).
+	 */
+	private static boolean isTransient(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException) {
+				return true;
+			}
+			if (cause instanceof SQLException) {
+				// connection exception or transaction rollback (i.e. deadlock)
+				final String state = ((SQLException) cause).getSQLState();
+				if (state != null && (state.startsWith("08") || state.startsWith("40"))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void failed(Processed<T> processed, Exception e) {
+		failCount.incrementAndGet();
+		metrics.rowFailed();
+		listener.failed(processed.entity, processed.rowNumber, processed.key, e);
+		processed.completed();
+	}
+
+	private void abort(Exception e) {
+		if (failure.compareAndSet(null, e)) {
+			log.log(Level.FINE, "Aborting conversion for " + name, e);
+		}
+	}
+
+	/**
+	 * Blocks until there is room in the queue; data items are dropped once the pipeline is aborted (as nobody will
+	 * consume them) but end markers are always delivered.
+	 */
+	private <X> void put(BlockingQueue<X> queue, X item, boolean endMarker) {
+		try {
+			while (!queue.offer(item, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				if (isAborted() && !endMarker) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			abort(e);
+		}
+	}
+
+	private void startWorkers(int transformThreads, int storeThreads) {
+		for (int i = 0; i < transformThreads; i++) {
+			transformers.execute(this::transform);
+		}
+		for (int i = 0; i < storeThreads; i++) {
+			writers.execute(this::store);
+		}
+	}
+
+	private void awaitTermination(ExecutorService executor) {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.log(Level.FINEST, "Waiting for {0} workers to finish", name);
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			abort(e);
+		}
+	}
+
+	private ThreadFactory threadFactory(String stage) {
+		final AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, name + "-" + stage + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Destination of the entities.
+	 */
+	@FunctionalInterface
+	interface Sink<T extends RowEntity> {
+
+		/**
+		 * @return list with {@link StoreResult} of each entity, in the order of the passed entities
+		 */
+		List<StoreResult> store(List<T> entities) throws Exception;
+	}
+
+	@FunctionalInterface
+	interface Reader {
+
+		void read(ConversionPipeline<?> pipeline) throws Exception;
+	}
+
+	interface Listener<T extends RowEntity> {
+
+		void stored(T entity, long rowNumber);
+
+		/**
+		 * @param entity failed entity or {@code null} if the row couldn't be transformed into one
+		 * @param key source key of the row, {@code null} if it's not known
+		 * @param e cause of the failure or {@code null} if the store was simply unsuccessful
+		 */
+		void failed(T entity, long rowNumber, String key, Exception e);
+
+		/**
+		 * Called by a store worker after each stored batch.
+		 */
+		default void batchCompleted() {
+		}
+	}
+
+	private static class Pending {
+
+		final Runnable onCompleted;
+		final RowSnapshot row;
+
+		Pending(RowSnapshot row, Runnable onCompleted) {
+			this.row = row;
+			this.onCompleted = onCompleted;
+		}
+	}
+
+	private static class Processed<T extends RowEntity> {
+
+		final IncrementalState.Digest digest;
+		final T entity;
+		final String key;
+		final Runnable onCompleted;
+		// completion of the preparation of the entity, null if it isn't prepared
+		final CompletableFuture<Void> prepared;
+		final long rowNumber;
+
+		Processed(long rowNumber, String key, T entity, IncrementalState.Digest digest, Runnable onCompleted,
+				  CompletableFuture<Void> prepared) {
+			this.rowNumber = rowNumber;
+			this.key = key;
+			this.entity = entity;
+			this.digest = digest;
+			this.onCompleted = onCompleted;
+			this.prepared = prepared;
+		}
+
+		boolean isEndMarker() {
+			return rowNumber < 0;
+		}
+
+		void completed() {
+			if (onCompleted != null) {
+				onCompleted.run();
+			}
+		}
+	}
+}
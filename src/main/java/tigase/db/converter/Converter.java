@@ -18,10 +18,10 @@
 package tigase.db.converter;
 
 import tigase.component.DSLBeanConfigurator;
-import tigase.component.exceptions.RepositoryException;
 import tigase.conf.ConfigReader;
 import tigase.db.DataRepository;
 import tigase.db.DataSource;
+import tigase.db.beans.DataSourceBean;
 import tigase.db.jdbc.DataRepositoryImpl;
 import tigase.kernel.KernelException;
 import tigase.kernel.beans.RegistrarBean;
@@ -31,11 +31,15 @@ import tigase.util.ui.console.CommandlineParameter;
 import tigase.util.ui.console.ParameterParser;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.StringWriter;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -46,9 +50,61 @@ public class Converter {
 	final static String sourceUriParameter = "source-uri";
 	final static String serverTypeParameter = "server-type";
 	final static String virtualHostParameter = "virtual-host";
+	final static String transformThreadsParameter = "transform-threads";
+	final static String storeThreadsParameter = "store-threads";
+	final static String queueSizeParameter = "queue-size";
+	final static String bulkRosterParameter = "bulk-roster";
+	final static String streamingReadParameter = "streaming-read";
+	final static String fetchSizeParameter = "fetch-size";
+	final static String partitionsParameter = "partitions";
+	final static String batchSizeParameter = "batch-size";
+	final static String checkpointFileParameter = "checkpoint-file";
+	final static String resumeParameter = "resume";
+	final static String poolSizeParameter = "pool-size";
+	final static String poolTimeoutParameter = "pool-timeout";
+	final static String progressIntervalParameter = "progress-interval";
+	final static String summaryFileParameter = "summary-file";
+	final static String configFileParameter = "config-file";
+	final static String parallelConvertiblesParameter = "parallel-convertibles";
+	final static String internCacheSizeParameter = "intern-cache-size";
+	final static String rosterChunkSizeParameter = "roster-chunk-size";
+	final static String logStoredParameter = "log-stored";
+	final static String dryRunParameter = "dry-run";
+	final static String nullSinkParameter = "null-sink";
+	final static String bulkLoadParameter = "bulk-load";
+	final static String bulkLoadDirParameter = "bulk-load-dir";
+	final static String incrementalStateParameter = "incremental-state";
+	final static String exportSnapshotParameter = "export-snapshot";
+	final static String importSnapshotParameter = "import-snapshot";
+	final static String importXep0227Parameter = "import-xep0227";
+	final static String scramHashParameter = "scram-hash";
+	final static String hashPasswordsParameter = "hash-passwords";
+	final static String scramIterationsParameter = "scram-iterations";
+	final static String deadLetterFileParameter = "dead-letter-file";
+	final static String replayFailuresParameter = "replay-failures";
+	final static String replayAttemptsParameter = "replay-attempts";
+	final static String shardIndexParameter = "shard-index";
+	final static String shardCountParameter = "shard-count";
 	private static final Logger log = Logger.getLogger(Converter.class.getName());
 	private static final String defaultRepositoryClass = DataRepositoryImpl.class.getName();
-	private static final Logger loggerFor = Logger.getLogger("convertible");
+	private static final int defaultThreads = Runtime.getRuntime().availableProcessors();
+	private static final int defaultQueueSize = 1000;
+	private static final int defaultFetchSize = 1000;
+	private static final int defaultBatchSize = 100;
+	private static final String defaultCheckpointFile = "logs/converter-checkpoint.journal";
+	private static final int defaultPoolTimeout = 60;
+	private static final int defaultProgressInterval = 10;
+	private static final String defaultSummaryFile = "logs/conversion-summary.json";
+	private static final String defaultConfigFile = "etc/config.tdsl";
+	private static final int defaultParallelConvertibles = 4;
+	private static final int defaultInternCacheSize = 65536;
+	private static final int defaultRosterChunkSize = 5000;
+	private static final String defaultScramHash = "SHA-1";
+	private static final int defaultScramIterations = 4096;
+	private static final String defaultDeadLetterFile = "logs/converter-dead-letter.jsonl";
+	private static final int defaultReplayAttempts = 5;
+	private static final String shardReportFile = "conversion-shards-summary.json";
+	private static final int statusLogCapacity = 8192;
 
 	public enum SERVER {
 		ejabberd,
@@ -61,9 +117,46 @@ public class Converter {
 
 	}
 
+	private final Path checkpointFile;
+	private final File configFile;
+	private final int parallelConvertibles;
 	private final ConverterProperties converterProperties;
+	private final int poolSize;
+	private final int poolTimeout;
+	private final int progressInterval;
+	private final boolean nullSinkMode;
+	private NullSink nullSink;
+	private final boolean bulkLoad;
+	private final Path bulkLoadDirectory;
+	private BulkLoader bulkLoader;
+	private ForkJoinPool preparationPool;
+	private final Path summaryFile;
 	private final String respositoryClassStr;
+	private final boolean resume;
+	private final boolean logStored;
+	private CheckpointJournal checkpointJournal;
+	private final Path deadLetterFile;
+	private DeadLetterJournal deadLetterJournal;
+	private final Path replayFile;
+	private final int replayAttempts;
+	// keys of rows of each convertible failed by the replayed run
+	private Map<String, Set<String>> replayKeys;
+	private final Path incrementalStateFile;
+	private final int shardIndex;
+	private final int shardCount;
+	private ShardCoordinator shardCoordinator;
+	// whether all convertibles of the shard were converted successfully
+	private volatile boolean allConverted = true;
+	private final Path exportSnapshotFile;
+	private final Path importSnapshotFile;
+	private SnapshotReader snapshotReader;
+	private SnapshotWriter snapshotWriter;
+	private final Path portableFormatFile;
+	private PortableFormatReader portableFormatReader;
+	private IncrementalState incrementalState;
+	private StatusLog statusLog;
 	private final String sourceURI;
+	private final int streamingFetchSize;
 	DataRepoPool dataRepoPool;
 	private Set<Class<Convertible>> convertibles;
 	private boolean initialised = false;
@@ -76,7 +169,8 @@ public class Converter {
 				"Data Repository implementation used for reading data from source; must implement " +
 						DataSource.class.getName()).defaultValue(defaultRepositoryClass).required(true).build());
 		options.add(new CommandlineParameter.Builder("S", sourceUriParameter).description(
-				"URI of the source do the data: `jdbc:xxxx://<host>/<database>…`").required(true).build());
+				"URI of the source do the data: `jdbc:xxxx://<host>/<database>…` (not used when importing " +
+						"snapshot or XEP-0227 file)").build());
 		options.add(new CommandlineParameter.Builder("T", serverTypeParameter).description(
 				"Type of the server from which import will be performed")
 							.options(SERVER.strings)
@@ -85,6 +179,133 @@ public class Converter {
 
 		options.add(new CommandlineParameter.Builder("H", virtualHostParameter).description(
 				"Virtual-host / domain name used by installation").required(true).build());
+		options.add(new CommandlineParameter.Builder(null, transformThreadsParameter).description(
+				"Number of threads processing rows read from the source")
+							.defaultValue(String.valueOf(defaultThreads))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, storeThreadsParameter).description(
+				"Number of threads storing processed entities in the destination")
+							.defaultValue(String.valueOf(defaultThreads))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, queueSizeParameter).description(
+				"Maximal number of items waiting between conversion stages")
+							.defaultValue(String.valueOf(defaultQueueSize))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, bulkRosterParameter).description(
+				"Load rosters with single sorted scan of roster tables instead of querying them for each user")
+							.requireArguments(false)
+							.build());
+		options.add(new CommandlineParameter.Builder(null, streamingReadParameter).description(
+				"Read source tables with server side cursors instead of loading whole result into memory")
+							.requireArguments(false)
+							.build());
+		options.add(new CommandlineParameter.Builder(null, fetchSizeParameter).description(
+				"Number of rows fetched at once from the source in streaming read mode")
+							.defaultValue(String.valueOf(defaultFetchSize))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, partitionsParameter).description(
+				"Number of key ranges of the source read in parallel (if supported by converter)")
+							.defaultValue("1")
+							.build());
+		options.add(new CommandlineParameter.Builder(null, batchSizeParameter).description(
+				"Maximal number of entities stored in the destination at once")
+							.defaultValue(String.valueOf(defaultBatchSize))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, checkpointFileParameter).description(
+				"Journal to which progress of the conversion is checkpointed; if not set, progress is only " +
+						"checkpointed when resuming (to the default journal)").build());
+		options.add(new CommandlineParameter.Builder(null, resumeParameter).description(
+				"Resume interrupted conversion from the checkpoint journal (" + defaultCheckpointFile +
+						" unless set otherwise)").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, deadLetterFileParameter).description(
+				"File to which failed rows are recorded (as JSON lines) with their source key and error")
+							.defaultValue(defaultDeadLetterFile)
+							.build());
+		options.add(new CommandlineParameter.Builder(null, replayFailuresParameter).description(
+				"Dead-letter file of a previous run; only rows recorded in it are read again from the source and " +
+						"stored (updating them if they already exist in the destination)").build());
+		options.add(new CommandlineParameter.Builder(null, replayAttemptsParameter).description(
+				"Number of attempts to store row failing with a transient error when replaying failures")
+							.defaultValue(String.valueOf(defaultReplayAttempts))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, shardCountParameter).description(
+				"Number of processes (shards) converting the source together, each of them rows with source keys in " +
+						"own hash range; progress of shards is coordinated in tig_converter_shards table of the " +
+						"destination").defaultValue("1").build());
+		options.add(new CommandlineParameter.Builder(null, shardIndexParameter).description(
+				"Index of the shard converted by this process, from 0 to shard count - 1").defaultValue("0").build());
+		options.add(new CommandlineParameter.Builder(null, incrementalStateParameter).description(
+				"File with digests of converted users; when set, only users changed since the run which wrote it are " +
+						"stored (and updated if they exist in the destination)").build());
+		options.add(new CommandlineParameter.Builder(null, exportSnapshotParameter).description(
+				"Export data read from the source to the snapshot file instead of storing it").build());
+		options.add(new CommandlineParameter.Builder(null, importSnapshotParameter).description(
+				"Store data read from the snapshot file instead of the source").build());
+		options.add(new CommandlineParameter.Builder(null, importXep0227Parameter).description(
+				"Store data read from XEP-0227 (Portable Import/Export Format) file instead of the source").build());
+		options.add(new CommandlineParameter.Builder(null, scramHashParameter).description(
+				"Hash function of SCRAM credentials kept by the source instead of passwords (ejabberd " +
+						"auth_scram_hash option)").options("SHA-1", "SHA-256").defaultValue(defaultScramHash).build());
+		options.add(new CommandlineParameter.Builder(null, hashPasswordsParameter).description(
+				"Comma separated SCRAM mechanisms (SCRAM-SHA-1, SCRAM-SHA-256) of credentials derived from plaintext " +
+						"passwords by the converter on a separate pool instead of by Tigase while storing (only SQL " +
+						"destination, mechanisms should match credentials encoders configured in Tigase)").build());
+		options.add(new CommandlineParameter.Builder(null, scramIterationsParameter).description(
+				"Iteration count of SCRAM credentials derived from plaintext passwords")
+							.defaultValue(String.valueOf(defaultScramIterations))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, dryRunParameter).description(
+				"Read and transform all data without storing it, to measure the source and the transformation on " +
+						"their own").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, nullSinkParameter).description(
+				"Store all data in memory instead of Tigase repositories, to measure the conversion without the " +
+						"destination database (data is discarded)").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, bulkLoadParameter).description(
+				"Load users directly to tables of Tigase schema with COPY (PostgreSQL) or LOAD DATA (MySQL) in " +
+						"batches (batch size of 1000 or more is recommended); destination mustn't be used by Tigase " +
+						"during the conversion, passwords are stored as SCRAM credentials")
+							.requireArguments(false)
+							.build());
+		options.add(new CommandlineParameter.Builder(null, bulkLoadDirParameter).description(
+				"Write rows of Tigase schema tables to files in the directory, with a script loading them, instead " +
+						"of loading them to the destination (implies bulk load)").build());
+		options.add(new CommandlineParameter.Builder(null, logStoredParameter).description(
+				"Record every stored entity in the status log (" + ConverterUtil.STATUS_LOG_FILE +
+						"), by default only failures are recorded").requireArguments(false).build());
+		options.add(new CommandlineParameter.Builder(null, poolSizeParameter).description(
+				"Number of connections to the source database (by default enough for all readers and transform " +
+						"threads, at least 10)").build());
+		options.add(new CommandlineParameter.Builder(null, poolTimeoutParameter).description(
+				"Maximal time (in seconds) to wait for a free connection to the source database")
+							.defaultValue(String.valueOf(defaultPoolTimeout))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, progressIntervalParameter).description(
+				"Interval (in seconds) of reporting progress of the conversion, 0 disables reporting")
+							.defaultValue(String.valueOf(defaultProgressInterval))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, summaryFileParameter).description(
+				"File to which JSON summary of the conversion is written")
+							.defaultValue(defaultSummaryFile)
+							.build());
+		options.add(new CommandlineParameter.Builder(null, parallelConvertiblesParameter).description(
+				"Maximal number of converters running at the same time (sharing transform and store threads); " +
+						"converter depending on another one starts after it's finished")
+							.defaultValue(String.valueOf(defaultParallelConvertibles))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, internCacheSizeParameter).description(
+				"Number of contact JIDs and of roster group names (each) kept to be shared between rosters instead " +
+						"of being parsed and allocated again, 0 disables sharing")
+							.defaultValue(String.valueOf(defaultInternCacheSize))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, rosterChunkSizeParameter).description(
+				"Number of roster items of a user kept in memory; larger rosters are serialized in chunks of that " +
+						"many items as they are read, 0 keeps all items until the user is stored")
+							.defaultValue(String.valueOf(defaultRosterChunkSize))
+							.build());
+		options.add(new CommandlineParameter.Builder(null, configFileParameter).description(
+				"Tigase configuration file describing the destination of the conversion")
+							.defaultValue(defaultConfigFile)
+							.build());
 		return options;
 	}
 
@@ -118,87 +339,468 @@ public class Converter {
 			}
 			System.exit(1);
 		}
-		converter.convert();
-		System.exit(0);
+		System.exit(converter.convert() ? 0 : 1);
 	}
 
 	public Converter(Properties properties) {
 		this.sourceURI = properties.getProperty(sourceUriParameter);
 		this.respositoryClassStr = properties.getProperty(repositoryClassParameter);
+		this.streamingFetchSize = Boolean.parseBoolean(properties.getProperty(streamingReadParameter, "false"))
+								  ? getIntProperty(properties, fetchSizeParameter, defaultFetchSize)
+								  : 0;
+		this.resume = Boolean.parseBoolean(properties.getProperty(resumeParameter, "false"));
+		this.logStored = Boolean.parseBoolean(properties.getProperty(logStoredParameter, "false"));
+		final boolean dryRun = Boolean.parseBoolean(properties.getProperty(dryRunParameter, "false"));
+		this.nullSinkMode = !dryRun && Boolean.parseBoolean(properties.getProperty(nullSinkParameter, "false"));
+		this.poolSize = getIntProperty(properties, poolSizeParameter, 0);
+		this.poolTimeout = getIntProperty(properties, poolTimeoutParameter, defaultPoolTimeout);
+		this.progressInterval = getIntProperty(properties, progressIntervalParameter, defaultProgressInterval);
+		this.shardCount = getIntProperty(properties, shardCountParameter, 1);
+		this.shardIndex = getIntProperty(properties, shardIndexParameter, 0);
+		if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+			throw new IllegalArgumentException("Shard index has to be between 0 and " + (shardCount - 1));
+		}
+		this.summaryFile = Paths.get(properties.getProperty(summaryFileParameter, shardFile(defaultSummaryFile)));
+		this.configFile = new File(properties.getProperty(configFileParameter, defaultConfigFile));
+		this.parallelConvertibles = getIntProperty(properties, parallelConvertiblesParameter,
+												   defaultParallelConvertibles);
+		final String exportSnapshotStr = properties.getProperty(exportSnapshotParameter);
+		final String importSnapshotStr = properties.getProperty(importSnapshotParameter);
+		final String portableFormatStr = properties.getProperty(importXep0227Parameter);
+		if (exportSnapshotStr != null && importSnapshotStr != null) {
+			throw new IllegalArgumentException("Snapshot can't be exported and imported at the same time");
+		}
+		if (importSnapshotStr != null && portableFormatStr != null) {
+			throw new IllegalArgumentException("Snapshot and XEP-0227 file can't be imported at the same time");
+		}
+		if (sourceURI == null && importSnapshotStr == null && portableFormatStr == null) {
+			throw new IllegalArgumentException("Source URI is required unless snapshot or XEP-0227 file is imported");
+		}
+		this.exportSnapshotFile = exportSnapshotStr != null ? Paths.get(exportSnapshotStr) : null;
+		this.importSnapshotFile = importSnapshotStr != null ? Paths.get(importSnapshotStr) : null;
+		this.portableFormatFile = portableFormatStr != null ? Paths.get(portableFormatStr) : null;
+		this.deadLetterFile = Paths.get(
+				properties.getProperty(deadLetterFileParameter, shardFile(defaultDeadLetterFile)));
+		final String replayFailuresStr = properties.getProperty(replayFailuresParameter);
+		this.replayFile = replayFailuresStr != null ? Paths.get(replayFailuresStr) : null;
+		this.replayAttempts = getIntProperty(properties, replayAttemptsParameter, defaultReplayAttempts);
+		final boolean storing = !dryRun && !nullSinkMode && exportSnapshotFile == null;
+		final String bulkLoadDirStr = properties.getProperty(bulkLoadDirParameter);
+		final boolean bulkLoadRequested =
+				bulkLoadDirStr != null || Boolean.parseBoolean(properties.getProperty(bulkLoadParameter, "false"));
+		// resumed ranges are read again from the checkpoint, so some of their rows may already be stored
+		final boolean incremental =
+				properties.getProperty(incrementalStateParameter) != null || replayFile != null || resume;
+		if (bulkLoadRequested && (!storing || incremental || shardCount > 1)) {
+			// bulk load only adds users, it can't update users stored by the previous run; IDs allocated by the loader
+			// aren't coordinated between shards
+			log.log(Level.WARNING, "Bulk load is disabled in dry-run, null-sink, snapshot export, incremental, " +
+					"resumed, replay of failures and sharded modes");
+		}
+		this.bulkLoad = bulkLoadRequested && storing && !incremental && shardCount == 1;
+		this.bulkLoadDirectory = bulkLoad && bulkLoadDirStr != null ? Paths.get(bulkLoadDirStr) : null;
+		final String checkpointFileStr = properties.getProperty(checkpointFileParameter);
+		if ((!storing || replayFile != null) && (checkpointFileStr != null || resume)) {
+			// progress of a run which doesn't store anything mustn't be resumed by a real conversion
+			log.log(Level.WARNING,
+					"Checkpointing is disabled in dry-run, null-sink, snapshot export and replay of failures modes");
+		}
+		final String incrementalStateStr = properties.getProperty(incrementalStateParameter);
+		if ((!storing || replayFile != null) && incrementalStateStr != null) {
+			log.log(Level.WARNING,
+					"Incremental state isn't used in dry-run, null-sink, snapshot export and replay of failures modes");
+		}
+		this.incrementalStateFile = !storing || replayFile != null || incrementalStateStr == null
+									? null
+									: Paths.get(incrementalStateStr);
+		this.checkpointFile = !storing || replayFile != null
+							  ? null
+							  : checkpointFileStr != null
+								? Paths.get(checkpointFileStr)
+								: resume ? Paths.get(shardFile(defaultCheckpointFile)) : null;
 
 		converterProperties = new ConverterProperties();
 		final String virtualHost = properties.getProperty(virtualHostParameter);
 		converterProperties.setVHost(virtualHost);
 		final SERVER serverType = SERVER.valueOf(properties.getProperty(serverTypeParameter));
 		converterProperties.setServerType(serverType);
+		converterProperties.setTransformThreads(
+				getIntProperty(properties, transformThreadsParameter, defaultThreads));
+		converterProperties.setStoreThreads(getIntProperty(properties, storeThreadsParameter, defaultThreads));
+		converterProperties.setQueueSize(getIntProperty(properties, queueSizeParameter, defaultQueueSize));
+		converterProperties.setPartitions(getIntProperty(properties, partitionsParameter, 1));
+		converterProperties.setBatchSize(getIntProperty(properties, batchSizeParameter, defaultBatchSize));
+		// entities of the snapshot or XEP-0227 file don't need the source, so there is nothing to merge; replayed rows
+		// are read by key
+		final boolean bulkRosterRequested = importSnapshotFile == null && portableFormatFile == null &&
+				replayFile == null && Boolean.parseBoolean(properties.getProperty(bulkRosterParameter, "false"));
+		if (bulkRosterRequested && shardCount > 1) {
+			// merge needs all users in a single sorted cursor, which can't be limited to the key range of the shard
+			log.log(Level.WARNING, "Bulk roster loading is disabled in sharded mode");
+		}
+		converterProperties.setBulkRosterLoading(bulkRosterRequested && shardCount == 1);
+		converterProperties.setInternCacheSize(
+				getIntProperty(properties, internCacheSizeParameter, defaultInternCacheSize));
+		converterProperties.setRosterChunkSize(
+				getIntProperty(properties, rosterChunkSizeParameter, defaultRosterChunkSize));
+		converterProperties.setDryRun(dryRun);
+		// replayed rows may have been stored partially by the previous run, rows of resumed ranges following the
+		// checkpoint may have been stored completely
+		converterProperties.setIncremental(
+				incrementalStateFile != null || replayFile != null || (resume && checkpointFile != null));
+		converterProperties.setSnapshotExport(exportSnapshotFile != null);
+		converterProperties.setSnapshotImport(importSnapshotFile != null);
+		converterProperties.setPortableFormatImport(portableFormatFile != null);
+		converterProperties.setScramMechanism("SCRAM-" + properties.getProperty(scramHashParameter, defaultScramHash));
+		// passwords are exported to the snapshot as they are, credentials are derived when it's imported
+		final String hashPasswordsStr = properties.getProperty(hashPasswordsParameter);
+		if (hashPasswordsStr != null && exportSnapshotFile == null) {
+			final List<String> mechanisms = new ArrayList<>();
+			for (String mechanism : hashPasswordsStr.split(",")) {
+				if (!mechanism.trim().matches("SCRAM-SHA-(1|256)")) {
+					throw new IllegalArgumentException("Unsupported SCRAM mechanism: " + mechanism);
+				}
+				mechanisms.add(mechanism.trim());
+			}
+			converterProperties.setHashedPasswordMechanisms(mechanisms);
+		} else if (bulkLoad) {
+			// bulk loaded users are added with credentials only
+			converterProperties.setHashedPasswordMechanisms(Collections.singletonList("SCRAM-SHA-1"));
+		}
+		converterProperties.setScramIterations(
+				getIntProperty(properties, scramIterationsParameter, defaultScramIterations));
 	}
 
-	private void log(RowEntity entity, boolean passed, AtomicInteger total, Exception e) {
-		log.log(Level.FINE, String.format("Storing %1$s: entity: %2$s %3$s", (passed ? "OK" : "FAILED"), entity,
-										  (e != null ? " (" + e.getMessage() + ")" : "")), e);
-		loggerFor.log(passed ? Level.INFO : Level.WARNING, "[{0}] {1} : {2}{3}",
-					  new String[]{String.valueOf(total.get()), entity.getID(), (passed ? "OK" : "FAILED"),
-								   (e != null ? " (" + e.getMessage() + ")" : "")});
+	/**
+	 * @return default file name of the shard, so shards may share the working directory
+	 */
+	private String shardFile(String file) {
+		if (shardCount <= 1) {
+			return file;
+		}
+		final int extension = file.lastIndexOf('.');
+		return file.substring(0, extension) + "-shard" + shardIndex + file.substring(extension);
+	}
+
+	private static int getIntProperty(Properties properties, String name, int defaultValue) {
+		final String value = properties.getProperty(name);
+		return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
 	}
 
-	private void convert() {
+	/**
+	 * Listener recording results of storing entities of the convertible in the status log; stored entities are only
+	 * counted by metrics of the pipeline unless logging of them is enabled.
+	 */
+	private ConversionPipeline.Listener<RowEntity> statusListener(String name) {
+		return new ConversionPipeline.Listener<RowEntity>() {
+			@Override
+			public void stored(RowEntity entity, long rowNumber) {
+				if (logStored) {
+					statusLog.stored(name, entity, rowNumber);
+				}
+			}
+
+			@Override
+			public void failed(RowEntity entity, long rowNumber, String key, Exception e) {
+				statusLog.failed(name, entity, rowNumber, e);
+				deadLetterJournal.failed(name, rowNumber, key, entity, e);
+			}
+
+			@Override
+			public void batchCompleted() {
+				if (checkpointJournal != null) {
+					try {
+						checkpointJournal.checkpoint();
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Couldn't write checkpoint", e);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Converts all registered convertibles and writes the summary.
+	 *
+	 * @return {@code false} if conversion of any convertible was aborted or bulk loaded rows are inconsistent
+	 */
+	boolean convert() {
 
 		if (!initialised) {
 			throw new IllegalStateException("Converter hasn't been initialised yet");
 		}
-		registeredConvertibleBeans.stream()
-				.map(bean -> (Convertible) bean.getKernel().getInstance(bean.getClazz()))
-				.sorted(Comparator.comparing(convertible -> convertible.dependsOn().isPresent()))
-				.forEach(convertible -> {
-					final Optional<String> query = convertible.getMainQuery();
-
-					AtomicInteger failCount = new AtomicInteger();
-					AtomicInteger totalCount = new AtomicInteger();
-					if (query.isPresent()) {
-						PreparedStatement preparedStatement = null;
-						ResultSet resultSet = null;
-						try {
-							dataRepoPool.initPreparedStatement(query.get(), query.get());
-							preparedStatement = dataRepoPool.getPreparedStatement(1, query.get());
-
-							resultSet = preparedStatement.executeQuery();
-
-							while (!resultSet.isClosed() && resultSet.next()) {
-								Optional<RowEntity> entity = Optional.empty();
-								totalCount.getAndIncrement();
-								try {
-									entity = convertible.processResultSet(resultSet);
-
-									//TODO: add progress / count of rows
-
-									boolean result;
-									if (entity.isPresent() && (result = convertible.storeEntity(entity.get()))) {
-										log(entity.get(), true, totalCount, null);
-									} else {
-										failCount.getAndIncrement();
-										log(entity.get(), false, totalCount, null);
-									}
-								} catch (RepositoryException e) {
-									failCount.getAndIncrement();
-									log(entity.get(), false, totalCount, e);
-								}
-							}
-						} catch (Exception e) {
-							log.log(Level.WARNING, "Error while converting data", e);
-						} finally {
-							dataRepoPool.release(preparedStatement, resultSet);
+		final ProgressReporter reporter = new ProgressReporter(progressInterval);
+		final WorkerBudget workers = new WorkerBudget(converterProperties.getTransformThreads(),
+													  converterProperties.getStoreThreads());
+		final List<Convertible<?>> convertibles = registeredConvertibleBeans.stream()
+				.map(bean -> (Convertible<?>) bean.getKernel().getInstance(bean.getClazz()))
+				.collect(Collectors.toList());
+		final ConvertibleScheduler scheduler = new ConvertibleScheduler(parallelConvertibles);
+		scheduler.setSharesListener(workers::redistribute);
+		if (!converterProperties.getHashedPasswordMechanisms().isEmpty()) {
+			// CPU-bound stage shared by all running convertibles
+			preparationPool = new ForkJoinPool(defaultThreads);
+			log.log(Level.INFO, "Deriving {0} credentials from passwords using {1} threads",
+					new Object[]{converterProperties.getHashedPasswordMechanisms(), defaultThreads});
+		}
+		try {
+			scheduler.run(convertibles, (convertible, running) -> convert(convertible, reporter, workers, running));
+		} catch (InterruptedException e) {
+			log.log(Level.WARNING, "Conversion interrupted");
+			Thread.currentThread().interrupt();
+			allConverted = false;
+		}
+		if (preparationPool != null) {
+			preparationPool.shutdown();
+		}
+		if (bulkLoader != null) {
+			if (!bulkLoader.close()) {
+				allConverted = false;
+			}
+			log.log(Level.INFO, "Bulk loaded: {0}", bulkLoader);
+			reporter.setBulkLoad(bulkLoader.toJson());
+		}
+		if (shardCoordinator != null) {
+			shardCoordinator.finish(allConverted, summaryFile.toAbsolutePath().resolveSibling(shardReportFile));
+		}
+		deadLetterJournal.close();
+		if (checkpointJournal != null) {
+			checkpointJournal.close();
+		}
+		if (incrementalState != null) {
+			incrementalState.close();
+		}
+		closeSnapshots();
+		statusLog.close();
+		if (nullSink != null) {
+			log.log(Level.INFO, "Null sink content: {0}", nullSink);
+		}
+		reporter.setSuccess(allConverted);
+		try {
+			reporter.writeSummary(summaryFile);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't write conversion summary to " + summaryFile, e);
+		} finally {
+			reporter.close();
+		}
+		return allConverted;
+	}
+
+	private void closeSnapshots() {
+		try {
+			if (snapshotWriter != null) {
+				snapshotWriter.close();
+			}
+			if (snapshotReader != null) {
+				snapshotReader.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't close snapshot", e);
+		}
+	}
+
+	/**
+	 * Converts all rows of the convertible using its share of transform and store threads.
+	 *
+	 * @param running number of convertibles running at the same time
+	 */
+	@SuppressWarnings("unchecked")
+	private void convert(Convertible<?> task, ProgressReporter reporter, WorkerBudget workers, int running)
+			throws InterruptedException {
+		final Convertible<RowEntity> convertible = (Convertible<RowEntity>) task;
+		final String name = convertible.getClass().getSimpleName();
+		if (checkpointJournal != null && checkpointJournal.isFinished(name)) {
+			log.log(Level.INFO, "Conversion for {0} already finished according to checkpoint journal", name);
+			return;
+		}
+		if (shardCoordinator != null && isFinishedByShard(name)) {
+			log.log(Level.INFO, "Conversion for {0} already finished by shard {1}", new Object[]{name, shardIndex});
+			return;
+		}
+		if (shardCount > 1 && shardIndex != 0 && snapshotReader == null && portableFormatReader == null &&
+				(!convertible.getPartitioning().isPresent() || convertible.requiresSequentialProcessing())) {
+			// rows without key (or which have to be read in order of the main query) can't be split between shards
+			log.log(Level.INFO, "{0} is converted only by shard 0", name);
+			return;
+		}
+		final Set<String> keysToReplay = replayKeys != null
+										 ? replayKeys.getOrDefault(name, Collections.emptySet())
+										 : null;
+		if (keysToReplay != null && keysToReplay.isEmpty()) {
+			log.log(Level.INFO, "No failures of {0} to replay", name);
+			return;
+		}
+		final Optional<String> query = convertible.getMainQuery();
+
+		final ConversionMetrics metrics = new ConversionMetrics(name);
+		reporter.track(metrics);
+		try (WorkerBudget.Allocation allocation = workers.allocate(
+				convertible.requiresSequentialProcessing() ? 1 : converterProperties.getTransformThreads(),
+				converterProperties.getStoreThreads(), running)) {
+			log.log(Level.FINE, "Using {0} for {1}", new Object[]{allocation, name});
+			final ConversionPipeline<RowEntity> pipeline = new ConversionPipeline<>(convertible, converterProperties,
+																					allocation.getTransformThreads(),
+																					allocation.getStoreThreads(),
+																					statusListener(name), metrics);
+			allocation.setListener(pipeline::addWorkers);
+			pipeline.setIncrementalState(incrementalState);
+			pipeline.setPreparationPool(preparationPool);
+			pipeline.setShard(shardIndex, shardCount);
+			if (keysToReplay != null) {
+				pipeline.setStoreAttempts(replayAttempts);
+			}
+			final Optional<SnapshotCodec<RowEntity>> codec = convertible.getSnapshotCodec();
+			final Optional<PortableFormatParser<RowEntity>> parser = convertible.getPortableFormatParser();
+			SnapshotWriter.Section<RowEntity> section = null;
+			if (snapshotWriter != null) {
+				section = snapshotWriter.section(name, codec.get());
+				pipeline.setSink(section);
+			}
+			final Optional<Partitioning> partitioning = convertible.getPartitioning();
+			if (snapshotReader != null || portableFormatReader != null) {
+				// entities of files are identified by their ID
+				pipeline.setReplayKeys(keysToReplay);
+			} else {
+				partitioning.ifPresent(value -> pipeline.setKeyColumn(value.getKeyColumn()));
+			}
+			if (query.isPresent() || snapshotReader != null || portableFormatReader != null) {
+				boolean success = false;
+				try {
+					final long expectedRows = keysToReplay != null ? keysToReplay.size() : countRows(convertible);
+					// rows are evenly split between shards
+					metrics.setExpectedRows(expectedRows < 0 || keysToReplay != null
+											? expectedRows
+											: (expectedRows + shardCount - 1) / shardCount);
+					metrics.started();
+					if (shardCoordinator != null) {
+						shardCoordinator.started(metrics);
+					}
+					convertible.startConversion();
+					if (keysToReplay != null && snapshotReader == null && portableFormatReader == null) {
+						if (!partitioning.isPresent()) {
+							throw new UnsupportedOperationException(name + " can't read rows by key to replay them");
+						}
+						log.log(Level.INFO, "Replaying {0} failed rows of {1}",
+								new Object[]{keysToReplay.size(), name});
+						pipeline.run(new ReplayReader(dataRepoPool, partitioning.get(), keysToReplay));
+					} else if (snapshotReader != null) {
+						pipeline.run(reader -> snapshotReader.read(name, codec.get(), pipeline,
+																	 allocation.getTransformThreads()));
+					} else if (portableFormatReader != null) {
+						pipeline.run(reader -> portableFormatReader.read(parser.get(), pipeline,
+																		 allocation.getTransformThreads()));
+					} else if (partitioning.isPresent() && !convertible.requiresSequentialProcessing() &&
+							(converterProperties.getPartitions() > 1 || checkpointJournal != null || shardCount > 1)) {
+						final CheckpointJournal.ConvertibleProgress progress =
+								checkpointJournal != null ? checkpointJournal.getProgress(name) : null;
+						final PartitionedReader reader = new PartitionedReader(dataRepoPool, partitioning.get(),
+																			   converterProperties.getPartitions(),
+																			   name, progress);
+						if (shardCount > 1 && !limitToShard(reader, name, partitioning.get())) {
+							log.log(Level.INFO, "Source has no rows of {0} for shard {1}",
+									new Object[]{name, shardIndex});
+						} else {
+							pipeline.run(reader);
+						}
+					} else {
+						if (checkpointJournal != null) {
+							log.log(Level.WARNING,
+									"{0} can't be checkpointed by key, interrupted conversion will start from the " +
+											"first row", name);
+						}
+						try (SourceCursor cursor = dataRepoPool.openCursor(query.get())) {
+							pipeline.run(cursor.getResultSet());
 						}
 					}
-					log.log(Level.INFO, "Conversion for {0} finished, {1} of {2} failed",
-							new String[]{convertible.getClass().getSimpleName(), String.valueOf(failCount.get()),
-										 String.valueOf(totalCount.get())});
-				});
+					if (section != null) {
+						section.complete();
+					}
+					if (checkpointJournal != null) {
+						checkpointJournal.finished(name);
+					}
+					success = true;
+				} catch (Exception e) {
+					log.log(Level.WARNING, "Error while converting data", e);
+				} finally {
+					convertible.finishConversion();
+					metrics.finished(success);
+					if (shardCoordinator != null) {
+						shardCoordinator.finished(metrics, success);
+					}
+					if (!success) {
+						allConverted = false;
+					}
+				}
+			}
+			log.log(Level.INFO, "Conversion for {0} finished, {1} of {2} failed",
+					new String[]{name, String.valueOf(pipeline.getFailCount()),
+								 String.valueOf(pipeline.getTotalCount())});
+			statusLog.finished(name, metrics.getRowsStored(), metrics.getRowsFailed());
+		}
+		log.log(Level.INFO, "Summary of {0}", metrics.getProgress());
+		if (dataRepoPool != null) {
+			log.log(Level.INFO, "Source connection pool usage: {0}", dataRepoPool.getStatistics());
+		}
+	}
+
+	/**
+	 * Limits the reader to the key range of the shard, split by keys recorded by the first shard converting the
+	 * convertible (or sampled by each shard if progress of shards isn't coordinated).
+	 *
+	 * @return {@code false} if the source has no rows for the shard
+	 */
+	private boolean limitToShard(PartitionedReader reader, String name, Partitioning partitioning) throws Exception {
+		final Callable<List<String>> split = () -> PartitionedReader.split(dataRepoPool, partitioning, shardCount);
+		final List<String> keys = shardCoordinator != null
+								  ? shardCoordinator.getKeyBoundaries(name, split)
+								  : split.call();
+		if (keys.isEmpty()) {
+			// without rows to sample there is nothing to split, the first shard reads whatever is there
+			return shardIndex == 0;
+		}
+		reader.setKeyRange(shardIndex > 0 ? keys.get(shardIndex - 1) : null,
+						   shardIndex < keys.size() ? keys.get(shardIndex) : null);
+		log.log(Level.FINE, "Reading {0} keys from {1} to {2}",
+				new Object[]{name, shardIndex > 0 ? keys.get(shardIndex - 1) : "the first",
+							 shardIndex < keys.size() ? keys.get(shardIndex) : "the last"});
+		return true;
+	}
+
+	private boolean isFinishedByShard(String name) {
+		try {
+			return shardCoordinator.isFinished(name);
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Couldn't read progress of shard " + shardIndex + ", converting " + name, e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of rows to convert or {@code -1} if unknown
+	 */
+	private long countRows(Convertible<?> convertible) {
+		if (snapshotReader != null) {
+			return snapshotReader.getEntities(convertible.getClass().getSimpleName());
+		}
+		if (portableFormatReader != null) {
+			return portableFormatReader.getUsers();
+		}
+		final Optional<String> countQuery = convertible.getCountQuery();
+		if (!countQuery.isPresent()) {
+			return -1;
+		}
+		try (SourceCursor cursor = dataRepoPool.openCursor(countQuery.get())) {
+			return cursor.next() ? cursor.getResultSet().getLong(1) : -1;
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Couldn't count rows of " + convertible.getClass().getSimpleName(), e);
+			return -1;
+		}
 	}
 
 	@SuppressWarnings("unchecked")
-	private void init() throws Exception {
+	void init() throws Exception {
 
-		final Map config = new ConfigReader().read(new File("etc/config.tdsl"));
+		final Map config = new ConfigReader().read(configFile);
 		config.put("schema-management", false);
 		config.put("pool-size", 2);
 
@@ -212,21 +814,99 @@ public class Converter {
 
 		final Class<?> repoClazz = Class.forName(respositoryClassStr);
 
-		try {
-			dataRepoPool = new DataRepoPool();
-			dataRepoPool.initialize(sourceURI);
-			final int repoPoolSize = 10;
-			for (int i = 0; i < repoPoolSize; i++) {
-
-				DataRepository sourceDataRepository = (DataRepository) repoClazz.newInstance();
-				sourceDataRepository.initialize(sourceURI);
-				dataRepoPool.addRepo(sourceDataRepository);
+		statusLog = new StatusLog(Paths.get(ConverterUtil.STATUS_LOG_FILE), statusLogCapacity, resume);
+		// failures queued when the conversion is terminated are still written
+		Runtime.getRuntime().addShutdownHook(new Thread(statusLog::close, "status-log-close"));
+		if (replayFile != null) {
+			// read before the dead-letter journal of this run is opened, it may be the same file
+			replayKeys = DeadLetterJournal.readKeys(replayFile);
+			log.log(Level.INFO, "Replaying failures of {0} recorded in {1}",
+					new Object[]{replayKeys.keySet(), replayFile});
+		}
+		deadLetterJournal = new DeadLetterJournal(deadLetterFile, resume);
+		Runtime.getRuntime().addShutdownHook(new Thread(deadLetterJournal::close, "dead-letter-journal"));
+
+		if (checkpointFile != null) {
+			checkpointJournal = new CheckpointJournal(checkpointFile, resume);
+			final CheckpointJournal journal = checkpointJournal;
+			// SIGTERM (and System.exit) runs shutdown hooks, so progress up to that point is checkpointed
+			Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "checkpoint-journal"));
+			log.log(Level.INFO, "Checkpointing conversion progress to {0}", checkpointFile);
+		}
+		if (shardCount > 1) {
+			initShardCoordinator();
+		}
+		if (incrementalStateFile != null) {
+			incrementalState = new IncrementalState(incrementalStateFile);
+			final IncrementalState state = incrementalState;
+			// digests recorded up to termination are valid, remaining entities are stored again by the next run
+			Runtime.getRuntime().addShutdownHook(new Thread(state::close, "incremental-state"));
+			log.log(Level.INFO, "Incremental conversion, {0} entities known from the previous run",
+					incrementalState.getPreviousSize());
+		}
+
+		if (importSnapshotFile != null) {
+			snapshotReader = new SnapshotReader(importSnapshotFile);
+			if (!snapshotReader.getServerType().equals(converterProperties.getServerType().name())) {
+				log.log(Level.WARNING, "Snapshot was exported from {0}, not {1}",
+						new Object[]{snapshotReader.getServerType(), converterProperties.getServerType()});
+				converterProperties.setServerType(SERVER.valueOf(snapshotReader.getServerType()));
+			}
+			if (!snapshotReader.getDatabaseType().isEmpty()) {
+				converterProperties.setDatabaseType(
+						DataRepository.dbTypes.valueOf(snapshotReader.getDatabaseType()));
 			}
-			log.log(Level.INFO, "Source database type: " + dataRepoPool.getDatabaseType());
+			log.log(Level.INFO, "Reading source data from snapshot {0}", importSnapshotFile);
+		} else if (portableFormatFile != null) {
+			// server type of the source doesn't matter, there is no database to query
+			portableFormatReader = new PortableFormatReader(portableFormatFile);
+			log.log(Level.INFO, "Reading source data from XEP-0227 file {0}", portableFormatFile);
+		} else {
+			try {
+				dataRepoPool = new DataRepoPool();
+				dataRepoPool.initialize(sourceURI);
+				dataRepoPool.setStreamingFetchSize(streamingFetchSize);
+				dataRepoPool.setAcquireTimeout(poolTimeout, TimeUnit.SECONDS);
+				// each reader keeps one connection for its range of the main query and each transform worker may hold
+				// two at once (i.e. UserCredentialsConverter querying roster groups while iterating roster items);
+				// transform workers are shared by converters running at the same time, but each of them has own readers
+				final int requiredPoolSize = 2 * converterProperties.getTransformThreads() +
+						Math.max(1, converterProperties.getPartitions()) * Math.max(1, parallelConvertibles);
+				final int repoPoolSize = poolSize > 0 ? poolSize : Math.max(10, requiredPoolSize);
+				if (repoPoolSize < requiredPoolSize) {
+					log.log(Level.WARNING,
+							"Pool size {0} is lower than {1} connections which may be used at once, workers will " +
+									"wait for connections", new Object[]{repoPoolSize, requiredPoolSize});
+				}
+				for (int i = 0; i < repoPoolSize; i++) {
 
-			converterProperties.setDatabaseType(dataRepoPool.getDatabaseType());
-		} catch (KernelException e) {
-			throw new ClassCastException("Class must implement DataRepository interface");
+					DataRepository sourceDataRepository = (DataRepository) repoClazz.newInstance();
+					sourceDataRepository.initialize(sourceURI);
+					dataRepoPool.addRepo(sourceDataRepository);
+				}
+				log.log(Level.INFO, "Source database type: " + dataRepoPool.getDatabaseType());
+
+				converterProperties.setDatabaseType(dataRepoPool.getDatabaseType());
+			} catch (KernelException e) {
+				throw new ClassCastException("Class must implement DataRepository interface");
+			}
+		}
+		if (exportSnapshotFile != null) {
+			snapshotWriter = new SnapshotWriter(exportSnapshotFile, converterProperties.getServerType(),
+												converterProperties.getDatabaseType() != null
+												? converterProperties.getDatabaseType().name()
+												: null);
+			final SnapshotWriter snapshot = snapshotWriter;
+			// index of the blocks written so far makes the snapshot usable, sections are marked as incomplete
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					snapshot.close();
+				} catch (IOException e) {
+					log.log(Level.WARNING, "Couldn't close snapshot", e);
+				}
+			}, "snapshot-close"));
+			log.log(Level.INFO, "Exporting source data to snapshot {0}, nothing will be converted",
+					exportSnapshotFile);
 		}
 
 		kernel.registerBean("QueryExecutor").asClass(QueryExecutor.class).exportable().exec();
@@ -248,14 +928,50 @@ public class Converter {
 			return convertibleInstance;
 		}).collect(Collectors.toSet());
 
+		if (nullSinkMode) {
+			nullSink = new NullSink();
+			log.log(Level.INFO, "Storing data in memory (null-sink mode), nothing will be converted");
+		} else if (converterProperties.isDryRun()) {
+			log.log(Level.INFO, "Data will be only read and transformed (dry-run mode), nothing will be converted");
+		} else if (bulkLoad) {
+			bulkLoader = new BulkLoader(bulkLoadDirectory);
+			if (bulkLoadDirectory != null) {
+				log.log(Level.INFO, "Writing rows of users to {0} for offline bulk load", bulkLoadDirectory);
+			}
+		}
 		final Set<Convertible> supportedConvertibles = allConvertibleInstances.stream()
-				.filter(convertible -> convertible.getMainQuery().isPresent())
+				.filter(convertible -> snapshotReader != null
+									   ? snapshotReader.contains(convertible.getClass().getSimpleName())
+									   : portableFormatReader != null
+										 ? convertible.getPortableFormatParser().isPresent()
+										 : convertible.getMainQuery().isPresent())
+				.filter(convertible -> {
+					if ((snapshotReader != null || snapshotWriter != null) &&
+							!convertible.getSnapshotCodec().isPresent()) {
+						log.log(Level.WARNING, "{0} doesn't support snapshots, skipping conversion...",
+								convertible.getClass().getSimpleName());
+						return false;
+					}
+					if (nullSink != null && !convertible.useNullSink(nullSink)) {
+						log.log(Level.WARNING, "{0} doesn't support null-sink mode, skipping conversion...",
+								convertible.getClass().getSimpleName());
+						return false;
+					}
+					if (bulkLoader != null && !convertible.useBulkLoader(bulkLoader)) {
+						log.log(Level.WARNING, "{0} doesn't support bulk load, storing in repositories...",
+								convertible.getClass().getSimpleName());
+					}
+					return true;
+				})
 				.collect(Collectors.toSet());
 
-		for (Convertible supportedConvertible : supportedConvertibles) {
-			final Map<String, String> queriesToInit = supportedConvertible.getAdditionalQueriesToInitialise();
-			for (Map.Entry<String, String> entry : queriesToInit.entrySet()) {
-				dataRepoPool.initPreparedStatement(entry.getKey(), entry.getValue());
+		// there are no source queries when snapshot or XEP-0227 file is imported
+		if (dataRepoPool != null) {
+			for (Convertible supportedConvertible : supportedConvertibles) {
+				final Map<String, String> queriesToInit = supportedConvertible.getAdditionalQueriesToInitialise();
+				for (Map.Entry<String, String> entry : queriesToInit.entrySet()) {
+					dataRepoPool.initPreparedStatement(entry.getKey(), entry.getValue());
+				}
 			}
 		}
 
@@ -279,6 +995,27 @@ public class Converter {
 		this.initialised = true;
 	}
 
+	/**
+	 * Registers the shard in the destination database; runs which don't store anything only read their part of the
+	 * source and replayed failures are already limited to the shard.
+	 */
+	private void initShardCoordinator() throws Exception {
+		if (converterProperties.isDryRun() || nullSinkMode || exportSnapshotFile != null || replayFile != null) {
+			log.log(Level.INFO, "Converting shard {0} of {1} shards, progress isn''t coordinated in dry-run, " +
+					"null-sink, snapshot export and replay of failures modes", new Object[]{shardIndex, shardCount});
+			return;
+		}
+		final DataSourceBean dataSourceBean = kernel.getInstance(DataSourceBean.class);
+		final DataSource dataSource = dataSourceBean.getRepository(converterProperties.getVHost());
+		if (!(dataSource instanceof DataRepository)) {
+			throw new IllegalStateException("Shards can be coordinated only in SQL database, destination is " +
+													dataSource);
+		}
+		shardCoordinator = new ShardCoordinator((DataRepository) dataSource, shardIndex, shardCount);
+		shardCoordinator.register();
+		Runtime.getRuntime().addShutdownHook(new Thread(shardCoordinator::close, "shard-coordinator"));
+	}
+
 	private void registerConvertibleBeans() {
 		convertibles.forEach(this::registerConvertibleBean);
 	}
@@ -328,8 +1065,24 @@ public class Converter {
 	public static class ConverterProperties {
 
 		private String VHost;
+		private int batchSize = defaultBatchSize;
+		private boolean bulkRosterLoading = false;
+		private boolean dryRun = false;
+		private boolean incremental = false;
+		private boolean snapshotExport = false;
+		private boolean snapshotImport = false;
+		private boolean portableFormatImport = false;
+		private String scramMechanism = "SCRAM-" + defaultScramHash;
+		private List<String> hashedPasswordMechanisms = Collections.emptyList();
+		private int scramIterations = defaultScramIterations;
+		private int internCacheSize = defaultInternCacheSize;
+		private int rosterChunkSize = defaultRosterChunkSize;
 		private DataRepository.dbTypes databaseType;
+		private int partitions = 1;
+		private int queueSize = defaultQueueSize;
 		private SERVER serverType;
+		private int storeThreads = 1;
+		private int transformThreads = 1;
 
 		public ConverterProperties() {
 		}
@@ -358,6 +1111,164 @@ public class Converter {
 			this.databaseType = databaseType;
 		}
 
+		public int getTransformThreads() {
+			return transformThreads;
+		}
+
+		private void setTransformThreads(int transformThreads) {
+			this.transformThreads = transformThreads;
+		}
+
+		public int getStoreThreads() {
+			return storeThreads;
+		}
+
+		private void setStoreThreads(int storeThreads) {
+			this.storeThreads = storeThreads;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		private void setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		public boolean isBulkRosterLoading() {
+			return bulkRosterLoading;
+		}
+
+		private void setBulkRosterLoading(boolean bulkRosterLoading) {
+			this.bulkRosterLoading = bulkRosterLoading;
+		}
+
+		/**
+		 * @return whether entities are only read and transformed, without storing anything in the destination
+		 */
+		public boolean isDryRun() {
+			return dryRun;
+		}
+
+		private void setDryRun(boolean dryRun) {
+			this.dryRun = dryRun;
+		}
+
+		/**
+		 * @return whether entities may already exist in the destination and have to be updated, as only entities
+		 * changed since the previous run (or failed by it, when its failures are replayed) are stored
+		 */
+		public boolean isIncremental() {
+			return incremental;
+		}
+
+		private void setIncremental(boolean incremental) {
+			this.incremental = incremental;
+		}
+
+		/**
+		 * @return whether entities are exported to snapshot of the source instead of storing them
+		 */
+		public boolean isSnapshotExport() {
+			return snapshotExport;
+		}
+
+		private void setSnapshotExport(boolean snapshotExport) {
+			this.snapshotExport = snapshotExport;
+		}
+
+		/**
+		 * @return whether entities are read from snapshot of the source, without access to the source
+		 */
+		public boolean isSnapshotImport() {
+			return snapshotImport;
+		}
+
+		private void setSnapshotImport(boolean snapshotImport) {
+			this.snapshotImport = snapshotImport;
+		}
+
+		/**
+		 * @return whether entities are read from XEP-0227 file, without access to the source
+		 */
+		public boolean isPortableFormatImport() {
+			return portableFormatImport;
+		}
+
+		private void setPortableFormatImport(boolean portableFormatImport) {
+			this.portableFormatImport = portableFormatImport;
+		}
+
+		/**
+		 * @return SCRAM mechanism of credentials kept by the source instead of passwords
+		 */
+		public String getScramMechanism() {
+			return scramMechanism;
+		}
+
+		private void setScramMechanism(String scramMechanism) {
+			this.scramMechanism = scramMechanism;
+		}
+
+		/**
+		 * @return SCRAM mechanisms of credentials derived from plaintext passwords by the converter ahead of storing,
+		 * empty if passwords are passed to Tigase as they are
+		 */
+		public List<String> getHashedPasswordMechanisms() {
+			return hashedPasswordMechanisms;
+		}
+
+		private void setHashedPasswordMechanisms(List<String> hashedPasswordMechanisms) {
+			this.hashedPasswordMechanisms = hashedPasswordMechanisms;
+		}
+
+		/**
+		 * @return iteration count of SCRAM credentials derived from plaintext passwords
+		 */
+		public int getScramIterations() {
+			return scramIterations;
+		}
+
+		private void setScramIterations(int scramIterations) {
+			this.scramIterations = scramIterations;
+		}
+
+		public int getPartitions() {
+			return partitions;
+		}
+
+		private void setPartitions(int partitions) {
+			this.partitions = partitions;
+		}
+
+		public int getQueueSize() {
+			return queueSize;
+		}
+
+		public int getInternCacheSize() {
+			return internCacheSize;
+		}
+
+		private void setInternCacheSize(int internCacheSize) {
+			this.internCacheSize = internCacheSize;
+		}
+
+		/**
+		 * @return number of roster items of a user kept in memory, larger rosters are serialized in chunks as they are
+		 * read; 0 if rosters aren't serialized until they are stored
+		 */
+		public int getRosterChunkSize() {
+			return rosterChunkSize;
+		}
+
+		private void setRosterChunkSize(int rosterChunkSize) {
+			this.rosterChunkSize = rosterChunkSize;
+		}
+
+		private void setQueueSize(int queueSize) {
+			this.queueSize = queueSize;
+		}
+
 		@Override
 		public String toString() {
 			final StringBuilder sb = new StringBuilder("ConverterProperties{");
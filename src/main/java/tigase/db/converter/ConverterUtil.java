@@ -41,6 +41,7 @@ import java.util.logging.*;
 
 public class ConverterUtil {
 
+	static final String STATUS_LOG_FILE = "logs/tigase-database-converter_status.log";
 	private static final Logger log = Logger.getLogger(ConverterUtil.class.getCanonicalName());
 
 	static void initLogger() {
@@ -74,17 +75,8 @@ public class ConverterUtil {
 		Logger logger = Logger.getLogger("convertible");
 		logger.setLevel(Level.ALL);
 		logger.setUseParentHandlers(false);
+		// status log file is written by StatusLog, this logger only reports failures on console
 		final LogFormatter logFormatter = new PlainLogFormatter();
-		try {
-			FileHandler fileHandler = null;
-			fileHandler = new FileHandler(logsDirectory + "/tigase-database-converter_status.log");
-			fileHandler.setLevel(Level.ALL);
-			fileHandler.setFormatter(logFormatter);
-			logger.addHandler(fileHandler);
-		} catch (IOException e) {
-			System.out.println("problem with adding log file handler");
-			// can be ignored
-		}
 		final ConsoleHandler consoleHandler = new ConsoleHandler();
 		consoleHandler.setLevel(Level.INFO);
 		consoleHandler.setFormatter(logFormatter);
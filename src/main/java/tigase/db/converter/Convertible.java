@@ -18,7 +18,9 @@
 package tigase.db.converter;
 
 import java.sql.ResultSet;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
@@ -67,6 +69,40 @@ public interface Convertible<T extends RowEntity> {
 	 */
 	boolean storeEntity(T entity) throws Exception;
 
+	/**
+	 * Method stores a batch of {@link RowEntity} in the destination repositories. Default implementation stores them
+	 * one by one with {@link #storeEntity(RowEntity)}; any exception thrown for an entity fails only that entity.
+	 *
+	 * @param entities {@link RowEntity} items to be stored
+	 *
+	 * @return list with {@link StoreResult} of each entity, in the order of the passed entities
+	 *
+	 * @throws Exception indicates problem with storing which affects whole batch and the conversion
+	 */
+	default List<StoreResult> storeEntities(List<T> entities) throws Exception {
+		final List<StoreResult> results = new ArrayList<>(entities.size());
+		for (T entity : entities) {
+			try {
+				results.add(storeEntity(entity) ? StoreResult.stored() : StoreResult.failed(null));
+			} catch (Exception e) {
+				results.add(StoreResult.failed(e));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * CPU-bound preparation of the entity for storing (i.e. deriving credentials from the password), called on a
+	 * separate pool after the entity was created and before it's passed to {@link #storeEntities(List)}, so it
+	 * overlaps with reading and storing of other entities. Called only if preparation of entities is enabled.
+	 *
+	 * @param entity {@link RowEntity} to be prepared
+	 *
+	 * @throws Exception indicates any problem with preparation of the {@link RowEntity}
+	 */
+	default void prepareEntity(T entity) throws Exception {
+	}
+
 	/**
 	 * Method allows providing additional queries that needs to be initialised
 	 * in {@link tigase.db.DataRepository} for future use
@@ -84,4 +120,84 @@ public interface Convertible<T extends RowEntity> {
 	default Optional<Class<? extends Convertible>> dependsOn() {
 		return Optional.empty();
 	}
+
+	/**
+	 * Indicates whether {@link #processResultSet(ResultSet)} has to be called for rows in the order returned by the
+	 * main query, one at a time (i.e. when processing merges the main query with other sorted cursors).
+	 */
+	default boolean requiresSequentialProcessing() {
+		return false;
+	}
+
+	/**
+	 * Allows reading data of the main query in parallel, split into key ranges (unless {@link
+	 * #requiresSequentialProcessing()}), and reading again rows with particular keys to replay their failures. Empty
+	 * Optional indicates that the main query has to be read with a single cursor.
+	 */
+	default Optional<Partitioning> getPartitioning() {
+		return Optional.empty();
+	}
+
+	/**
+	 * Query returning number of rows of the main query, used to estimate remaining time of the conversion. By default
+	 * rows of the table of {@link #getPartitioning()} are counted, if present.
+	 */
+	default Optional<String> getCountQuery() {
+		return getPartitioning().map(Partitioning::getCountQuery);
+	}
+
+	/**
+	 * Encoding of entities in snapshot of the source. Empty Optional indicates that entities of the convertible can't
+	 * be exported to snapshot.
+	 */
+	default Optional<SnapshotCodec<T>> getSnapshotCodec() {
+		return Optional.empty();
+	}
+
+	/**
+	 * Parser of entities from XEP-0227 file used instead of the source database. Empty Optional indicates that
+	 * entities of the convertible can't be imported from XEP-0227 file.
+	 */
+	default Optional<PortableFormatParser<T>> getPortableFormatParser() {
+		return Optional.empty();
+	}
+
+	/**
+	 * Makes the convertible store entities in the in-memory {@link NullSink} instead of Tigase repositories.
+	 * Convertibles which don't support it are skipped in null-sink mode.
+	 *
+	 * @param sink in-memory destination replacing the repositories
+	 *
+	 * @return value indicating if null-sink is supported
+	 */
+	default boolean useNullSink(NullSink sink) {
+		return false;
+	}
+
+	/**
+	 * Makes the convertible store entities with {@link BulkLoader} instead of Tigase repositories. Convertibles which
+	 * don't support it store entities in the repositories as usual.
+	 *
+	 * @param loader native bulk load of the destination database
+	 *
+	 * @return value indicating if bulk load is supported
+	 */
+	default boolean useBulkLoader(BulkLoader loader) {
+		return false;
+	}
+
+	/**
+	 * Method called before the main query is executed, allows preparing resources used during the conversion.
+	 *
+	 * @throws Exception indicates problem with preparation resulting in skipping the conversion
+	 */
+	default void startConversion() throws Exception {
+	}
+
+	/**
+	 * Method called after all rows of the main query were processed (successfully or not), allows releasing
+	 * resources acquired in {@link #startConversion()}.
+	 */
+	default void finishConversion() {
+	}
 }
@@ -0,0 +1,167 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.util.*;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs convertibles according to the dependency graph built from {@link Convertible#dependsOn()}: convertibles
+ * which don't depend on each other run concurrently (up to the limit) and each convertible is started as soon as the
+ * convertible it depends on is finished, so the whole conversion takes as long as the longest chain of
+ * dependencies.
+ */
+class ConvertibleScheduler {
+
+	private static final Logger log = Logger.getLogger(ConvertibleScheduler.class.getName());
+
+	private final int parallelism;
+	private IntConsumer sharesListener = shares -> {
+	};
+
+	/**
+	 * Conversion of a single convertible.
+	 */
+	@FunctionalInterface
+	interface Task {
+
+		/**
+		 * @param convertible convertible to convert
+		 * @param running number of convertibles running at the same time (including this one), between which
+		 * resources should be split
+		 */
+		void run(Convertible<?> convertible, int running) throws Exception;
+	}
+
+	/**
+	 * @param parallelism maximal number of convertibles running at the same time
+	 */
+	ConvertibleScheduler(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the listener called (on the thread of {@link #run(Collection, Task)}) after each finished convertible with
+	 * the number of convertibles which will run at the same time from then on, i.e. to hand over resources of the
+	 * finished convertible to those still running.
+	 */
+	void setSharesListener(IntConsumer sharesListener) {
+		this.sharesListener = sharesListener;
+	}
+
+	/**
+	 * Runs all convertibles and waits until they are finished. Convertible is started after the convertible it
+	 * depends on even if it failed; dependencies on convertibles which aren't converted are ignored and
+	 * convertibles with circular dependencies aren't converted at all.
+	 */
+	void run(Collection<Convertible<?>> convertibles, Task task) throws InterruptedException {
+		final Map<Convertible<?>, List<Convertible<?>>> dependents = new HashMap<>();
+		final Map<Convertible<?>, Integer> pending = new HashMap<>();
+		final Deque<Convertible<?>> ready = new ArrayDeque<>();
+		final List<Convertible<?>> sorted = new ArrayList<>(convertibles);
+		sorted.sort(Comparator.comparing(convertible -> convertible.getClass().getSimpleName()));
+		for (Convertible<?> convertible : sorted) {
+			final Optional<Convertible<?>> dependency = findDependency(convertible, sorted);
+			if (dependency.isPresent()) {
+				dependents.computeIfAbsent(dependency.get(), key -> new ArrayList<>()).add(convertible);
+				pending.put(convertible, 1);
+			} else {
+				ready.add(convertible);
+			}
+		}
+
+		final AtomicInteger counter = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> new Thread(
+				runnable, "convertible-" + counter.incrementAndGet()));
+		final CompletionService<Convertible<?>> completion = new ExecutorCompletionService<>(executor);
+		int running = 0;
+		try {
+			while (!ready.isEmpty() || running > 0) {
+				final int shares = Math.min(parallelism, running + ready.size());
+				while (!ready.isEmpty() && running < parallelism) {
+					final Convertible<?> convertible = ready.poll();
+					log.log(Level.INFO, "Starting conversion for {0} ({1} running)",
+							new Object[]{name(convertible), running + 1});
+					completion.submit(() -> {
+						try {
+							task.run(convertible, shares);
+						} catch (Exception e) {
+							log.log(Level.WARNING, "Conversion for " + name(convertible) + " failed", e);
+						}
+						return convertible;
+					});
+					running++;
+				}
+				final Convertible<?> finished = take(completion);
+				running--;
+				for (Convertible<?> dependent : dependents.getOrDefault(finished, Collections.emptyList())) {
+					if (pending.merge(dependent, -1, Integer::sum) == 0) {
+						pending.remove(dependent);
+						ready.add(dependent);
+					}
+				}
+				if (running > 0) {
+					sharesListener.accept(Math.min(parallelism, running + ready.size()));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		for (Convertible<?> convertible : pending.keySet()) {
+			log.log(Level.SEVERE, "Conversion for {0} skipped, its dependency on {1} is circular",
+					new Object[]{name(convertible), convertible.dependsOn().map(Class::getSimpleName).orElse(null)});
+		}
+	}
+
+	private static Optional<Convertible<?>> findDependency(Convertible<?> convertible,
+														   Collection<Convertible<?>> convertibles) {
+		final Optional<Class<? extends Convertible>> dependsOn = convertible.dependsOn();
+		if (!dependsOn.isPresent()) {
+			return Optional.empty();
+		}
+		final Optional<Convertible<?>> dependency = convertibles.stream()
+				.filter(other -> other != convertible && dependsOn.get().isInstance(other))
+				.findFirst();
+		if (!dependency.isPresent()) {
+			log.log(Level.FINE, "{0} depends on {1} which isn't converted",
+					new Object[]{name(convertible), dependsOn.get().getSimpleName()});
+		}
+		return dependency;
+	}
+
+	private static String name(Convertible<?> convertible) {
+		return convertible.getClass().getSimpleName();
+	}
+
+	private static Convertible<?> take(CompletionService<Convertible<?>> completion) throws InterruptedException {
+		try {
+			return completion.take().get();
+		} catch (ExecutionException e) {
+			// tasks return their convertible also when they fail, so this can't happen
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
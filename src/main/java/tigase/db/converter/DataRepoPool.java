@@ -22,36 +22,114 @@ import tigase.db.jdbc.DataRepositoryImpl;
 import tigase.util.Version;
 import tigase.xmpp.jid.BareJID;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.*;
 import java.time.Duration;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Pool of source repositories. Repositories should be used through {@link #lease()} in try-with-resources blocks,
+ * which return them to the pool even if the block fails; waiting for a repository is limited by the acquire timeout
+ * so an exhausted pool results in an error instead of a deadlock.
+ * <p>
+ * Methods of {@link DataRepository} not bound to a transaction take a repository only for the duration of the call.
+ * Statements are available only within {@link #withPreparedStatement(BareJID, String, StatementFunction)} or a
+ * transaction, since outside of them the repository owning the statement would already be back in the pool.
+ */
 public class DataRepoPool
 		implements DataRepository, DataSourcePool<DataRepository> {
 
 	private static final Logger log = Logger.getLogger(DataRepoPool.class.getName());
+	private final LongAdder acquired = new LongAdder();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+	private final AtomicInteger peakInUse = new AtomicInteger();
+	private final Map<String, String> queries = new ConcurrentHashMap<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final LongAdder timedOut = new LongAdder();
+	private final ThreadLocal<Lease> transactionLease = new ThreadLocal<>();
+	private final LongAdder waited = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private long acquireTimeoutMs = 60_000;
 	private dbTypes database = null;
 	private LinkedBlockingQueue<DataRepository> repoPool = new LinkedBlockingQueue<>();
 	private String resource_uri = null;
+	private int streamingFetchSize = 0;
 
 	public DataRepoPool() {
 	}
 
 	public void addRepo(DataRepository repo) {
+		size.incrementAndGet();
 		repoPool.offer(repo);
 	}
 
+	/**
+	 * Sets maximal time for which {@link #lease()} waits for a repository to be returned to the pool.
+	 */
+	public void setAcquireTimeout(long timeout, TimeUnit unit) {
+		this.acquireTimeoutMs = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Takes a repository from the pool for exclusive use until the lease is closed.
+	 *
+	 * @throws SQLTimeoutException if no repository was returned to the pool within the acquire timeout
+	 */
+	public Lease lease() throws SQLException {
+		DataRepository repo = repoPool.poll();
+		if (repo == null) {
+			waited.increment();
+			final long start = System.nanoTime();
+			try {
+				repo = repoPool.poll(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for DataRepository from the pool", e);
+			}
+			final long wait = System.nanoTime() - start;
+			waitNanos.add(wait);
+			maxWaitNanos.accumulate(wait);
+			if (repo == null) {
+				timedOut.increment();
+				throw new SQLTimeoutException(
+						"No DataRepository returned to the pool within " + acquireTimeoutMs + "ms, all " + size.get() +
+								" in use; increase pool size or acquire timeout");
+			}
+		}
+		acquired.increment();
+		final int current = inUse.incrementAndGet();
+		peakInUse.accumulateAndGet(current, Math::max);
+		return new Lease(repo);
+	}
+
+	/**
+	 * Current usage statistics of the pool.
+	 */
+	public Statistics getStatistics() {
+		return new Statistics(size.get(), inUse.get(), peakInUse.get(), acquired.sum(), waited.sum(), timedOut.sum(),
+							  TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()),
+							  TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+	}
+
+	/**
+	 * Takes a repository from the pool; prefer {@link #lease()}, which can't leak the repository.
+	 *
+	 * @return repository or {@code null} if none was available within the acquire timeout
+	 */
 	@Override
 	public DataRepository takeRepoHandle(BareJID user_id) {
 		try {
-			return repoPool.take();
-		} catch (InterruptedException ex) {
+			return lease().getRepository();
+		} catch (SQLException ex) {
 			log.log(Level.WARNING, "Couldn't obtain DataRepository from the pool", ex);
 		}
 
@@ -60,9 +138,69 @@ public class DataRepoPool
 
 	@Override
 	public void releaseRepoHandle(DataRepository repo) {
+		inUse.decrementAndGet();
 		repoPool.offer(repo);
 	}
 
+	/**
+	 * Enables streaming reads for cursors opened with {@link #openCursor(String, Object...)}: rows are fetched from
+	 * the database in chunks of given size instead of loading whole result to memory.
+	 *
+	 * @param fetchSize number of rows fetched at once, {@code 0} disables streaming
+	 */
+	public void setStreamingFetchSize(int fetchSize) {
+		this.streamingFetchSize = fetchSize;
+	}
+
+	public boolean isStreaming() {
+		return streamingFetchSize > 0;
+	}
+
+	/**
+	 * Returns query registered with {@link #initPreparedStatement(String, String)} for given id.
+	 */
+	public Optional<String> getQuery(String stIdKey) {
+		return Optional.ofNullable(queries.get(stIdKey));
+	}
+
+	/**
+	 * Executes forward-only, read-only query on a connection taken from the pool and kept until the returned cursor
+	 * is closed. In streaming mode cursor fetches rows in chunks using method appropriate for the database type:
+	 * <ul>
+	 * <li>MySQL - server side cursor if {@code useCursorFetch=true} is set in the URI or row-by-row streaming
+	 * otherwise,</li>
+	 * <li>PostgreSQL - server side cursor, which requires disabling auto-commit for the duration of the query,</li>
+	 * <li>other databases - configured fetch size.</li>
+	 * </ul>
+	 *
+	 * @param query query to execute
+	 * @param parameters values of query parameters
+	 */
+	public SourceCursor openCursor(String query, Object... parameters) throws SQLException {
+		final Lease lease = lease();
+		Connection connection = null;
+		PreparedStatement statement = null;
+		boolean restoreAutoCommit = false;
+		try {
+			connection = getConnection(lease.getRepository());
+			if (isStreaming() && database == dbTypes.postgresql && connection.getAutoCommit()) {
+				connection.setAutoCommit(false);
+				restoreAutoCommit = true;
+			}
+			statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			if (isStreaming()) {
+				statement.setFetchSize(getFetchSize(connection));
+			}
+			for (int i = 0; i < parameters.length; i++) {
+				statement.setObject(i + 1, parameters[i]);
+			}
+			return new SourceCursor(this, lease, connection, statement, statement.executeQuery(), restoreAutoCommit);
+		} catch (SQLException e) {
+			new SourceCursor(this, lease, connection, statement, null, restoreAutoCommit).close();
+			throw e;
+		}
+	}
+
 	@Override
 	public boolean automaticSchemaManagement() {
 		if (repoPool.isEmpty()) {
@@ -78,97 +216,104 @@ public class DataRepoPool
 
 	@Override
 	public boolean checkSchemaVersion(DataSourceAware<? extends DataSource> datasource, boolean shutdownServer) {
-		DataRepository repo = takeRepoHandle(null);
-
-		if (repo != null) {
-			return repo.checkSchemaVersion(datasource, shutdownServer);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		try (Lease lease = lease()) {
+			return lease.getRepository().checkSchemaVersion(datasource, shutdownServer);
+		} catch (SQLException ex) {
+			log.log(Level.WARNING, "Couldn't check schema version", ex);
 			return false;
 		}
 	}
 
 	@Override
 	public Optional<Version> getSchemaVersion(String component) {
-		DataRepository repo = takeRepoHandle(null);
-
-		if (repo != null) {
-			return repo.getSchemaVersion(component);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		try (Lease lease = lease()) {
+			return lease.getRepository().getSchemaVersion(component);
+		} catch (SQLException ex) {
+			log.log(Level.WARNING, "Couldn't get schema version", ex);
 			return Optional.empty();
 		}
 	}
 
 	@Override
 	public boolean checkTable(String tableName) throws SQLException {
-		DataRepository repo = takeRepoHandle(null);
-
-		if (repo != null) {
-			return repo.checkTable(tableName);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		try (Lease lease = lease()) {
+			return lease.getRepository().checkTable(tableName);
 		}
-
-		return false;
 	}
 
 	@Override
 	public boolean checkTable(String tableName, String createTableQuery) throws SQLException {
-		DataRepository repo = takeRepoHandle(null);
-
-		if (repo != null) {
-			return repo.checkTable(tableName, createTableQuery);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
+		try (Lease lease = lease()) {
+			return lease.getRepository().checkTable(tableName, createTableQuery);
 		}
+	}
 
-		return false;
+	/**
+	 * Applies the function to the prepared statement of the repository bound to the transaction of the current thread
+	 * or, outside of a transaction, of a repository leased from the pool until the function returns. The statement is
+	 * locked while the function runs and mustn't be used after that.
+	 */
+	public <R> R withPreparedStatement(BareJID user_id, String stIdKey, StatementFunction<R> fun)
+			throws SQLException {
+		final Lease transaction = transactionLease.get();
+		if (transaction != null) {
+			return apply(transaction.getRepository().getPreparedStatement(user_id, stIdKey), fun);
+		}
+		try (Lease lease = lease()) {
+			return apply(lease.getRepository().getPreparedStatement(user_id, stIdKey), fun);
+		}
 	}
 
+	/**
+	 * Returns statement of the repository bound to the transaction of the current thread.
+	 *
+	 * @throws SQLException if no transaction was started, as the statement would belong to a repository already
+	 * returned to the pool
+	 *
+	 * @deprecated use {@link #lease()} or {@link #withPreparedStatement(BareJID, String, StatementFunction)}
+	 */
+	@Deprecated
 	@Override
 	public Statement createStatement(BareJID user_id) throws SQLException {
-		DataRepository repo = takeRepoHandle(user_id);
-
-		if (repo != null) {
-			return repo.createStatement(user_id);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
-		}
-
-		return null;
+		return getTransactionRepo().createStatement(user_id);
 	}
 
+	/**
+	 * Returns prepared statement of the repository bound to the transaction of the current thread.
+	 *
+	 * @throws SQLException if no transaction was started, as the statement would belong to a repository already
+	 * returned to the pool
+	 *
+	 * @deprecated use {@link #withPreparedStatement(BareJID, String, StatementFunction)}
+	 */
+	@Deprecated
 	@Override
 	public PreparedStatement getPreparedStatement(BareJID user_id, String stIdKey) throws SQLException {
-		DataRepository repo = takeRepoHandle(user_id);
-
-		if (repo != null) {
-			return repo.getPreparedStatement(user_id, stIdKey);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
-		}
-
-		return null;
+		return getTransactionRepo().getPreparedStatement(user_id, stIdKey);
 	}
 
+	/**
+	 * Returns prepared statement of the repository bound to the transaction of the current thread.
+	 *
+	 * @throws SQLException if no transaction was started, as the statement would belong to a repository already
+	 * returned to the pool
+	 *
+	 * @deprecated use {@link #lease()} or {@link #withPreparedStatement(BareJID, String, StatementFunction)}
+	 */
+	@Deprecated
 	@Override
 	public PreparedStatement getPreparedStatement(int hashCode, String stIdKey) throws SQLException {
-		DataRepository repo = takeRepoHandle(null);
-
-		if (repo != null) {
-			return repo.getPreparedStatement(hashCode, stIdKey);
-		} else {
-			log.log(Level.WARNING, "repo is NULL, pool empty? - {0}", repoPool.size());
-		}
-
-		return null;
+		return getTransactionRepo().getPreparedStatement(hashCode, stIdKey);
 	}
 
 	@Override
 	public String getResourceUri() {
 		if (resource_uri == null && !repoPool.isEmpty()) {
-			return takeRepoHandle(null).getResourceUri();
+			try (Lease lease = lease()) {
+				return lease.getRepository().getResourceUri();
+			} catch (SQLException ex) {
+				log.log(Level.WARNING, "Couldn't get resource URI", ex);
+			}
 		}
 		return resource_uri;
 	}
@@ -180,6 +325,7 @@ public class DataRepoPool
 
 	@Override
 	public void initPreparedStatement(String stIdKey, String query) throws SQLException {
+		queries.put(stIdKey, query);
 		for (DataRepository dataRepository : repoPool) {
 			dataRepository.initPreparedStatement(stIdKey, query);
 		}
@@ -187,6 +333,7 @@ public class DataRepoPool
 
 	@Override
 	public void initPreparedStatement(String stIdKey, String query, int autoGeneratedKeys) throws SQLException {
+		queries.put(stIdKey, query);
 		for (DataRepository dataRepository : repoPool) {
 			dataRepository.initPreparedStatement(stIdKey, query, autoGeneratedKeys);
 		}
@@ -218,31 +365,206 @@ public class DataRepoPool
 		}
 	}
 
+	/**
+	 * Starts transaction on a repository taken from the pool and bound to the current thread; statements obtained by
+	 * the thread are created on that repository until {@link #endTransaction()} is called.
+	 */
 	@Override
 	public void startTransaction() throws SQLException {
-		// TODO Auto-generated method stub
+		if (transactionLease.get() != null) {
+			throw new SQLException("Transaction already started by " + Thread.currentThread().getName());
+		}
+		final Lease lease = lease();
+		try {
+			lease.getRepository().startTransaction();
+		} catch (SQLException e) {
+			lease.close();
+			throw e;
+		}
+		transactionLease.set(lease);
 	}
 
 	@Override
 	public void commit() throws SQLException {
-		// TODO Auto-generated method stub
+		getTransactionRepo().commit();
 	}
 
 	@Override
 	public void rollback() throws SQLException {
-		// TODO Auto-generated method stub
-
+		getTransactionRepo().rollback();
 	}
 
+	/**
+	 * Ends transaction of the current thread and returns its repository to the pool.
+	 */
 	@Override
 	public void endTransaction() throws SQLException {
-		// TODO Auto-generated method stub
-
+		final Lease lease = transactionLease.get();
+		if (lease == null) {
+			return;
+		}
+		transactionLease.remove();
+		try (Lease ignored = lease) {
+			lease.getRepository().endTransaction();
+		}
 	}
 
 	@Override
 	public int getPoolSize() {
-		return repoPool.size();
+		return size.get();
+	}
+
+	private DataRepository getTransactionRepo() throws SQLException {
+		final Lease lease = transactionLease.get();
+		if (lease == null) {
+			throw new SQLException("No transaction started by " + Thread.currentThread().getName());
+		}
+		return lease.getRepository();
+	}
+
+	private <R> R apply(PreparedStatement statement, StatementFunction<R> fun) throws SQLException {
+		synchronized (statement) {
+			return fun.apply(statement);
+		}
+	}
+
+	private Connection getConnection(DataRepository repo) throws SQLException {
+		final Statement statement = repo.createStatement(null);
+		try {
+			return statement.getConnection();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private int getFetchSize(Connection connection) throws SQLException {
+		if (database == dbTypes.mysql && !connection.getMetaData().getURL().contains("useCursorFetch=true")) {
+			// without server side cursors MySQL Connector/J streams rows only with this special value
+			return Integer.MIN_VALUE;
+		}
+		return streamingFetchSize;
+	}
+
+	@FunctionalInterface
+	public interface StatementFunction<R> {
+
+		R apply(PreparedStatement statement) throws SQLException;
+	}
+
+	/**
+	 * Repository taken from the pool, returned to it on {@link #close()}.
+	 */
+	public class Lease
+			implements AutoCloseable {
+
+		private final DataRepository repository;
+		private boolean released = false;
+
+		private Lease(DataRepository repository) {
+			this.repository = repository;
+		}
+
+		public DataRepository getRepository() {
+			if (released) {
+				throw new IllegalStateException("Lease of " + repository + " already released");
+			}
+			return repository;
+		}
+
+		@Override
+		public void close() {
+			if (!released) {
+				released = true;
+				releaseRepoHandle(repository);
+			}
+		}
 	}
 
+	public static class Statistics {
+
+		private final long acquired;
+		private final int inUse;
+		private final long maxWaitMs;
+		private final int peakInUse;
+		private final int size;
+		private final long timedOut;
+		private final long waitMs;
+		private final long waited;
+
+		private Statistics(int size, int inUse, int peakInUse, long acquired, long waited, long timedOut, long waitMs,
+						   long maxWaitMs) {
+			this.size = size;
+			this.inUse = inUse;
+			this.peakInUse = peakInUse;
+			this.acquired = acquired;
+			this.waited = waited;
+			this.timedOut = timedOut;
+			this.waitMs = waitMs;
+			this.maxWaitMs = maxWaitMs;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getInUse() {
+			return inUse;
+		}
+
+		public int getPeakInUse() {
+			return peakInUse;
+		}
+
+		/**
+		 * @return number of repositories taken from the pool
+		 */
+		public long getAcquired() {
+			return acquired;
+		}
+
+		/**
+		 * @return number of acquisitions which had to wait as all repositories were in use
+		 */
+		public long getWaited() {
+			return waited;
+		}
+
+		public long getTimedOut() {
+			return timedOut;
+		}
+
+		/**
+		 * @return total time spent waiting for repositories
+		 */
+		public long getWaitMs() {
+			return waitMs;
+		}
+
+		public long getMaxWaitMs() {
+			return maxWaitMs;
+		}
+
+		/**
+		 * @return share of acquisitions which found the pool exhausted
+		 */
+		public double getSaturation() {
+			return acquired + timedOut == 0 ? 0 : (double) waited / (acquired + timedOut);
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("Statistics{");
+			sb.append("size=").append(size);
+			sb.append(", inUse=").append(inUse);
+			sb.append(", peakInUse=").append(peakInUse);
+			sb.append(", acquired=").append(acquired);
+			sb.append(", waited=").append(waited);
+			sb.append(", timedOut=").append(timedOut);
+			sb.append(", saturation=").append(String.format("%.1f%%", getSaturation() * 100));
+			sb.append(", averageWaitMs=").append(waited == 0 ? 0 : waitMs / waited);
+			sb.append(", maxWaitMs=").append(maxWaitMs);
+			sb.append('}');
+			return sb.toString();
+		}
+	}
 }
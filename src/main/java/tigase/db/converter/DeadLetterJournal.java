@@ -0,0 +1,260 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dead-letter journal of rows which failed to be converted, so they can be inspected and replayed without another
+ * full pass over the source. Each line is a single JSON object:
+ * <pre>
+ * {"convertible":"UserCredentialsConverter","row":42,"key":"juliet","id":"juliet@example.com",
+ *  "error":"tigase.db.TigaseDBException","message":"..."}
+ * </pre>
+ * Key is the value of the key column of {@link Partitioning} for rows read from the source database or ID of the
+ * entity for entities read from snapshot or XEP-0227 file. Key, ID and error are {@code null} if they aren't known
+ * (i.e. row couldn't be transformed into an entity); rows without the key can't be replayed. Content of the entity
+ * isn't recorded, as it may contain passwords or credentials and the journal is meant to be inspected and shared;
+ * replay reads it again from the source. Records are flushed as they are written, as failures are expected to be
+ * rare.
+ */
+class DeadLetterJournal
+		implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(DeadLetterJournal.class.getName());
+
+	private final Path file;
+	private final Writer writer;
+	private boolean closed = false;
+	private long written = 0;
+
+	/**
+	 * Reads keys of failed rows recorded in the journal.
+	 *
+	 * @return keys of failed rows of each convertible
+	 */
+	static Map<String, Set<String>> readKeys(Path file) throws IOException {
+		final Map<String, Set<String>> keys = new HashMap<>();
+		int withoutKey = 0;
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				final Map<String, String> record = new RecordParser(line).parse();
+				final String convertible = record.get("convertible");
+				final String key = record.get("key");
+				if (convertible == null || key == null) {
+					withoutKey++;
+					continue;
+				}
+				keys.computeIfAbsent(convertible, name -> new HashSet<>()).add(key);
+			}
+		}
+		if (withoutKey > 0) {
+			log.log(Level.WARNING, "{0} failures of {1} without key can''t be replayed",
+					new Object[]{withoutKey, file});
+		}
+		return keys;
+	}
+
+	/**
+	 * @param append whether to append to existing journal (i.e. when resuming conversion) instead of overwriting it
+	 */
+	DeadLetterJournal(Path file, boolean append) throws IOException {
+		this.file = file;
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+											  StandardOpenOption.WRITE, append
+																		? StandardOpenOption.APPEND
+																		: StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @param key source key of the row, {@code null} if unknown
+	 * @param entity failed entity or {@code null} if the row couldn't be transformed into one
+	 * @param e cause of the failure or {@code null} if the store was simply unsuccessful
+	 */
+	synchronized void failed(String convertible, long rowNumber, String key, RowEntity entity, Exception e) {
+		if (closed) {
+			log.log(Level.FINE, "Dead-letter journal already closed, dropping {0} of {1}",
+					new Object[]{key, convertible});
+			return;
+		}
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"convertible\":").append(ConversionMetrics.jsonString(convertible));
+		sb.append(",\"row\":").append(rowNumber);
+		sb.append(",\"key\":").append(jsonValue(key));
+		sb.append(",\"id\":").append(jsonValue(entity != null ? entity.getID() : null));
+		sb.append(",\"error\":").append(jsonValue(e != null ? e.getClass().getName() : null));
+		sb.append(",\"message\":").append(jsonValue(e != null ? e.getMessage() : null));
+		sb.append("}\n");
+		try {
+			writer.write(sb.toString());
+			writer.flush();
+			written++;
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "Couldn't write to dead-letter journal " + file, ex);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't close dead-letter journal", e);
+		}
+		if (written > 0) {
+			log.log(Level.INFO, "{0} failed rows recorded in dead-letter journal {1}", new Object[]{written, file});
+		}
+	}
+
+	private static String jsonValue(String value) {
+		return value != null ? ConversionMetrics.jsonString(value) : "null";
+	}
+
+	/**
+	 * Parser of a single record: flat JSON object with string, number or {@code null} values (as written by the
+	 * journal).
+	 */
+	static class RecordParser {
+
+		private final String line;
+		private int position = 0;
+
+		RecordParser(String line) {
+			this.line = line;
+		}
+
+		Map<String, String> parse() throws IOException {
+			final Map<String, String> record = new HashMap<>();
+			expect('{');
+			if (peek() == '}') {
+				return record;
+			}
+			do {
+				final String name = readString();
+				expect(':');
+				record.put(name, readValue());
+			} while (next() == ',');
+			if (line.charAt(position - 1) != '}') {
+				throw new IOException("Invalid dead-letter record: " + line);
+			}
+			return record;
+		}
+
+		private String readValue() throws IOException {
+			if (peek() == '"') {
+				return readString();
+			}
+			final int start = position;
+			while (position < line.length() && line.charAt(position) != ',' && line.charAt(position) != '}') {
+				position++;
+			}
+			final String value = line.substring(start, position).trim();
+			return "null".equals(value) ? null : value;
+		}
+
+		private String readString() throws IOException {
+			expect('"');
+			final StringBuilder sb = new StringBuilder();
+			char c;
+			while ((c = nextRaw()) != '"') {
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				switch (c = nextRaw()) {
+					case 'n':
+						sb.append('\n');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					case 't':
+						sb.append('\t');
+						break;
+					case 'u':
+						if (position + 4 > line.length()) {
+							throw new IOException("Invalid dead-letter record: " + line);
+						}
+						sb.append((char) Integer.parseInt(line.substring(position, position + 4), 16));
+						position += 4;
+						break;
+					default:
+						sb.append(c);
+						break;
+				}
+			}
+			return sb.toString();
+		}
+
+		private void expect(char expected) throws IOException {
+			if (next() != expected) {
+				throw new IOException("Invalid dead-letter record: " + line);
+			}
+		}
+
+		private char peek() throws IOException {
+			skipWhitespace();
+			if (position >= line.length()) {
+				throw new IOException("Invalid dead-letter record: " + line);
+			}
+			return line.charAt(position);
+		}
+
+		private char next() throws IOException {
+			final char c = peek();
+			position++;
+			return c;
+		}
+
+		private char nextRaw() throws IOException {
+			if (position >= line.length()) {
+				throw new IOException("Invalid dead-letter record: " + line);
+			}
+			return line.charAt(position++);
+		}
+
+		private void skipWhitespace() {
+			while (position < line.length() && Character.isWhitespace(line.charAt(position))) {
+				position++;
+			}
+		}
+	}
+}
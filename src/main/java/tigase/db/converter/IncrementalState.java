@@ -0,0 +1,243 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Digests of entities converted by previous runs, used by incremental conversion to store only entities which changed
+ * since then (the source doesn't keep modification times).
+ * <p>
+ * The state file is a sequence of pairs of 64-bit hashes: of the convertible and ID of the entity and of its content
+ * (see {@link RowEntity#digest(MessageDigest)}). Digests of previous run are loaded into memory; digests of entities
+ * stored by this run (or unchanged since the previous one) are written to a new file which replaces the state on
+ * {@link #close()}. Entities which failed aren't recorded, so they are stored again by the next run.
+ */
+class IncrementalState
+		implements AutoCloseable {
+
+	private static final int MAGIC = 0x54444d49;
+	private static final int VERSION = 1;
+	private static final Logger log = Logger.getLogger(IncrementalState.class.getName());
+
+	private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(IncrementalState::newDigest);
+	private final Path file;
+	private final Path next;
+	private final DataOutputStream out;
+	private final DigestTable previous;
+	private boolean closed = false;
+	private long recorded = 0;
+	private IOException writeFailure;
+
+	/**
+	 * Digest of a single entity.
+	 */
+	static class Digest {
+
+		final long key;
+		final long value;
+
+		Digest(long key, long value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	IncrementalState(Path file) throws IOException {
+		this.file = file;
+		this.next = file.resolveSibling(file.getFileName() + ".next");
+		this.previous = Files.exists(file) ? load(file) : new DigestTable(0);
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(next), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**
+	 * @return number of entities known from the previous run
+	 */
+	int getPreviousSize() {
+		return previous.size();
+	}
+
+	/**
+	 * @return digest of the entity or {@code null} if the entity doesn't support digests
+	 */
+	Digest digest(String convertible, RowEntity entity) {
+		final MessageDigest digest = digests.get();
+		digest.reset();
+		if (!entity.digest(digest)) {
+			return null;
+		}
+		final long value = toLong(digest.digest());
+		digest.update(convertible.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+		digest.update(entity.getID().getBytes(StandardCharsets.UTF_8));
+		return new Digest(toLong(digest.digest()), value);
+	}
+
+	/**
+	 * @return {@code true} if the entity was converted by the previous run and its content didn't change since then
+	 */
+	boolean isUnchanged(Digest digest) {
+		return previous.matches(digest.key, digest.value);
+	}
+
+	/**
+	 * Records digest of the entity which is up to date in the destination.
+	 */
+	synchronized void record(Digest digest) {
+		if (closed || writeFailure != null) {
+			return;
+		}
+		try {
+			out.writeLong(digest.key);
+			out.writeLong(digest.value);
+			recorded++;
+		} catch (IOException e) {
+			writeFailure = e;
+			log.log(Level.WARNING, "Couldn't write incremental state to " + next + ", state won't be updated", e);
+		}
+	}
+
+	/**
+	 * Replaces the state with digests recorded by this run.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			out.close();
+			if (writeFailure == null) {
+				Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				log.log(Level.INFO, "Incremental state with {0} entities saved to {1}", new Object[]{recorded, file});
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't save incremental state to " + file, e);
+		}
+	}
+
+	private static DigestTable load(Path file) throws IOException {
+		final long entries = (Files.size(file) - 8) / 16;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+			if (entries < 0 || in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.log(Level.WARNING, "{0} isn't incremental state of this version, all entities will be stored",
+						file);
+				return new DigestTable(0);
+			}
+			final DigestTable table = new DigestTable((int) Math.min(entries, 1 << 28));
+			for (long i = 0; i < entries; i++) {
+				table.put(in.readLong(), in.readLong());
+			}
+			log.log(Level.INFO, "Loaded incremental state of {0} entities from {1}", new Object[]{entries, file});
+			return table;
+		} catch (EOFException e) {
+			throw new IOException("Incremental state " + file + " is truncated", e);
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long toLong(byte[] bytes) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	/**
+	 * Open addressing hash table of digests by their keys, kept in primitive arrays as it may hold millions of them.
+	 */
+	private static class DigestTable {
+
+		// 0 marks empty slot, so key 0 is stored as 1 (keys are hashes, so it's just one more collision)
+		private final long[] keys;
+		private final int mask;
+		private int size = 0;
+		private final long[] values;
+
+		DigestTable(int expected) {
+			final int capacity = Integer.highestOneBit(Math.max(4, expected * 2) * 2 - 1);
+			this.keys = new long[capacity];
+			this.values = new long[capacity];
+			this.mask = capacity - 1;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void put(long key, long value) {
+			if ((size + 1) * 2 > keys.length) {
+				// state file contains more entries than expected, remaining ones are treated as changed
+				return;
+			}
+			key = key == 0 ? 1 : key;
+			int index = index(key);
+			while (keys[index] != 0 && keys[index] != key) {
+				index = (index + 1) & mask;
+			}
+			if (keys[index] == 0) {
+				size++;
+			}
+			keys[index] = key;
+			values[index] = value;
+		}
+
+		boolean matches(long key, long value) {
+			key = key == 0 ? 1 : key;
+			int index = index(key);
+			while (keys[index] != 0) {
+				if (keys[index] == key) {
+					return values[index] == value;
+				}
+				index = (index + 1) & mask;
+			}
+			return false;
+		}
+
+		private int index(long key) {
+			return (int) (key ^ (key >>> 32)) & mask;
+		}
+	}
+}
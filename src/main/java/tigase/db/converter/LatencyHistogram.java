@@ -0,0 +1,87 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with buckets of power of two microseconds; bucket {@code i} counts values lower than
+ * {@code 2^i} microseconds (and not lower than {@code 2^(i-1)}), so percentiles are reported as the upper bound of
+ * their bucket.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	private final LongAdder sum = new LongAdder();
+
+	public void record(long nanos) {
+		final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMeanMicros() {
+		final long count = getCount();
+		return count == 0 ? 0 : sum.sum() / count;
+	}
+
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	/**
+	 * @param quantile quantile in range {@code (0, 1]}, i.e. {@code 0.99}
+	 *
+	 * @return upper bound (in microseconds) of the bucket containing the quantile
+	 */
+	public long getPercentileMicros(double quantile) {
+		final long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(1L << i, getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+
+	@Override
+	public String toString() {
+		return "mean=" + getMeanMicros() + "us, p50=" + getPercentileMicros(0.5) + "us, p99=" +
+				getPercentileMicros(0.99) + "us, max=" + getMaxMicros() + "us";
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import tigase.db.AuthRepository;
+import tigase.db.UserExistsException;
+import tigase.db.UserRepository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory destination of the conversion used instead of Tigase repositories in null-sink mode, so the whole store
+ * path of convertibles can be measured without the cost of the destination database.
+ * <p>
+ * Only users and virtual hosts are kept (to report duplicates as the real repositories do); user data is counted
+ * and discarded. Repositories are proxies handling methods used by convertibles, remaining methods return default
+ * values.
+ */
+public class NullSink {
+
+	private static final Logger log = Logger.getLogger(NullSink.class.getName());
+
+	private final AuthRepository authRepository;
+	private final LongAdder dataChars = new LongAdder();
+	private final LongAdder dataItems = new LongAdder();
+	private final UserRepository userRepository;
+	private final Set<Object> users = ConcurrentHashMap.newKeySet();
+	private final Set<String> vHosts = ConcurrentHashMap.newKeySet();
+
+	public NullSink() {
+		authRepository = proxy(AuthRepository.class, this::invokeAuthRepository);
+		userRepository = proxy(UserRepository.class, this::invokeUserRepository);
+	}
+
+	public AuthRepository getAuthRepository() {
+		return authRepository;
+	}
+
+	public UserRepository getUserRepository() {
+		return userRepository;
+	}
+
+	/**
+	 * @return {@code true} if the virtual host wasn't added before
+	 */
+	public boolean addVHost(String domain) {
+		return vHosts.add(domain);
+	}
+
+	@Override
+	public String toString() {
+		return "NullSink{vHosts=" + vHosts.size() + ", users=" + users.size() + ", dataItems=" + dataItems.sum() +
+				", dataChars=" + dataChars.sum() + "}";
+	}
+
+	private Object invokeAuthRepository(String method, Object[] args) throws Exception {
+		switch (method) {
+			case "addUser":
+				addUser(args[0]);
+				return null;
+			case "getUsersCount":
+				return (long) users.size();
+			default:
+				return unsupported(AuthRepository.class, method);
+		}
+	}
+
+	private Object invokeUserRepository(String method, Object[] args) throws Exception {
+		switch (method) {
+			case "addUser":
+				addUser(args[0]);
+				return null;
+			case "userExists":
+				return users.contains(args[0]);
+			case "setData":
+				dataItems.increment();
+				final Object value = args[args.length - 1];
+				if (value != null) {
+					dataChars.add(value.toString().length());
+				}
+				return null;
+			default:
+				return unsupported(UserRepository.class, method);
+		}
+	}
+
+	private void addUser(Object jid) throws UserExistsException {
+		if (!users.add(jid)) {
+			throw new UserExistsException("User " + jid + " already exists");
+		}
+	}
+
+	private static Object unsupported(Class<?> repository, String method) {
+		log.log(Level.FINEST, "{0}.{1} isn't handled by null sink", new Object[]{repository.getSimpleName(), method});
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <R> R proxy(Class<R> repository, Handler handler) {
+		final InvocationHandler invocationHandler = (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "NullSink." + repository.getSimpleName();
+				default:
+					final Object result = handler.invoke(method.getName(), args == null ? new Object[0] : args);
+					return result != null ? result : defaultValue(method.getReturnType());
+			}
+		};
+		return (R) Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[]{repository},
+										  invocationHandler);
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) {
+			return null;
+		} else if (type == boolean.class) {
+			return false;
+		} else if (type == char.class) {
+			return '\0';
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == float.class) {
+			return 0f;
+		} else if (type == double.class) {
+			return 0d;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == short.class) {
+			return (short) 0;
+		} else {
+			return (byte) 0;
+		}
+	}
+
+	@FunctionalInterface
+	private interface Handler {
+
+		Object invoke(String method, Object[] args) throws Exception;
+	}
+}
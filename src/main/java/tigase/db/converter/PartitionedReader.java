@@ -0,0 +1,380 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.sql.ResultSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads rows of the {@link Partitioning} in key ranges, in parallel, each on a separate connection from {@link
+ * DataRepoPool}.
+ * <p>
+ * Range boundaries are keys sampled from a sorted scan of the key column, several per partition. Each reader tracks
+ * which sampled keys it has already passed, so once a reader runs out of ranges it can steal the not yet read part of
+ * the range with the most remaining samples, starting after the last key read by the owner. All boundaries of each
+ * range are part of its query, so ordering is always decided by the source database: the thief reads the stolen part
+ * with a new query and the owner re-opens its cursor with the new upper boundary as soon as it reaches the next key.
+ * <p>
+ * If {@link CheckpointJournal} progress is passed, sampled keys and ranges are recorded in it and each read row is
+ * registered so that the last completed position within the range can be checkpointed. Sampled keys and not finished
+ * ranges recorded by a previous run are reused, each range being read from its checkpoint.
+ * <p>
+ * Reading may be limited to the key range of a shard, in which case all queries (including sampling) are bounded by
+ * it, so rows of other shards aren't read at all.
+ */
+class PartitionedReader
+		implements ConversionPipeline.Reader {
+
+	private static final Logger log = Logger.getLogger(PartitionedReader.class.getName());
+	private static final int SAMPLES_PER_PARTITION = 16;
+
+	private final List<Range> active = new ArrayList<>();
+	private final String name;
+	private final Partitioning partitioning;
+	private final int partitions;
+	private final Deque<Range> pending = new ArrayDeque<>();
+	private final DataRepoPool pool;
+	private final CheckpointJournal.ConvertibleProgress progress;
+	private final Map<String, Integer> sampleIndexes = new HashMap<>();
+	private String endKey;
+	private String firstKey;
+	private List<String> samples;
+
+	/**
+	 * @param progress progress of the convertible to record and resume from, {@code null} if not checkpointed
+	 */
+	PartitionedReader(DataRepoPool pool, Partitioning partitioning, int partitions, String name,
+					  CheckpointJournal.ConvertibleProgress progress) {
+		this.pool = pool;
+		this.partitioning = partitioning;
+		this.partitions = partitions;
+		this.name = name;
+		this.progress = progress;
+	}
+
+	/**
+	 * Returns keys splitting rows of the partitioning into parts of about the same size, i.e. boundaries of key ranges
+	 * of shards. Fewer distinct keys than needed are padded with the last one (so the remaining parts are empty), none
+	 * are returned if there are no rows.
+	 *
+	 * @param parts number of parts
+	 *
+	 * @return {@code parts - 1} sorted keys, each being the inclusive lower bound of the next part
+	 */
+	static List<String> split(DataRepoPool pool, Partitioning partitioning, int parts) throws Exception {
+		final List<String> keys = sample(pool, partitioning, parts, null, null);
+		if (keys.isEmpty()) {
+			return keys;
+		}
+		while (keys.size() > parts - 1) {
+			keys.remove(keys.size() - 1);
+		}
+		while (keys.size() < parts - 1) {
+			keys.add(keys.get(keys.size() - 1));
+		}
+		return keys;
+	}
+
+	/**
+	 * Limits rows read to keys within the range, i.e. of a single shard.
+	 *
+	 * @param firstKey inclusive lower bound, {@code null} if unbounded
+	 * @param endKey exclusive upper bound, {@code null} if unbounded
+	 */
+	void setKeyRange(String firstKey, String endKey) {
+		this.firstKey = firstKey;
+		this.endKey = endKey;
+	}
+
+	@Override
+	public void read(ConversionPipeline<?> pipeline) throws Exception {
+		if (progress != null && progress.getSamples() != null) {
+			samples = progress.getSamples();
+			for (CheckpointJournal.ConvertibleProgress.RangeProgress range : progress.getUnfinishedRanges()) {
+				pending.add(new Range(range));
+			}
+			log.log(Level.INFO, "Resuming {0} in {1} not finished ranges: {2}",
+					new Object[]{name, pending.size(), pending});
+		} else {
+			samples = sample(pool, partitioning, partitions * SAMPLES_PER_PARTITION, firstKey, endKey);
+			log.log(Level.FINE, "Sampled {0} keys for {1}", new Object[]{samples.size(), name});
+			if (progress != null) {
+				progress.setSamples(samples);
+			}
+			final int ranges = Math.max(1, Math.min(partitions, samples.size()));
+			int lower = -1;
+			for (int i = 1; i <= ranges; i++) {
+				final int upper = i == ranges ? samples.size() : i * samples.size() / ranges;
+				pending.add(newRange(lower, upper, null));
+				lower = upper;
+			}
+			log.log(Level.INFO, "Reading {0} in {1} partitions using {2} sampled keys",
+					new Object[]{name, pending.size(), samples.size()});
+		}
+		for (int i = 0; i < samples.size(); i++) {
+			sampleIndexes.putIfAbsent(samples.get(i), i);
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+		final int count = Math.max(1, Math.min(partitions, samples.size()));
+
+		final AtomicInteger threadCounter = new AtomicInteger();
+		final ExecutorService readers = Executors.newFixedThreadPool(count, runnable -> {
+			final Thread thread = new Thread(runnable, name + "-read-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				futures.add(readers.submit(() -> {
+					Range range;
+					while (!pipeline.isAborted() && (range = nextRange()) != null) {
+						try {
+							read(pipeline, range);
+						} finally {
+							finished(range);
+						}
+					}
+					return null;
+				}));
+			}
+			Exception failure = null;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Samples distinct keys of the range from a sorted scan of the key column, about one per given fraction of rows.
+	 */
+	private static List<String> sample(DataRepoPool pool, Partitioning partitioning, int parts, String firstKey,
+									   String endKey) throws Exception {
+		final Object[] bounds = bounds(firstKey, endKey);
+		long count;
+		try (SourceCursor cursor = pool.openCursor(partitioning.getCountQuery(firstKey != null, endKey != null),
+												   bounds)) {
+			count = cursor.next() ? cursor.getResultSet().getLong(1) : 0;
+		}
+		final long step = Math.max(1, count / parts);
+		final List<String> result = new ArrayList<>();
+		try (SourceCursor cursor = pool.openCursor(partitioning.getSampleQuery(firstKey != null, endKey != null),
+												   bounds)) {
+			long row = 0;
+			String last = null;
+			while (cursor.next()) {
+				final String key = cursor.getResultSet().getString(1);
+				if (++row % step == 0 && key != null && !key.equals(last) && row > 1) {
+					result.add(key);
+					last = key;
+				}
+			}
+		}
+		return result;
+	}
+
+	private static Object[] bounds(String lower, String upper) {
+		return bounds(lower, null, upper);
+	}
+
+	private static Object[] bounds(String lower, String after, String upper) {
+		final List<Object> bounds = new ArrayList<>(3);
+		if (lower != null) {
+			bounds.add(lower);
+		}
+		if (after != null) {
+			bounds.add(after);
+		}
+		if (upper != null) {
+			bounds.add(upper);
+		}
+		return bounds.toArray();
+	}
+
+	private Range newRange(int lower, int upper, String after) throws Exception {
+		return new Range(lower, upper, after, progress != null ? progress.addRange(lower, upper, after) : null);
+	}
+
+	private void read(ConversionPipeline<?> pipeline, Range range) throws Exception {
+		final String resumeKey = range.progress != null ? range.progress.getResumeKey() : null;
+		String lower = resumeKey != null ? resumeKey : range.lower >= 0 ? samples.get(range.lower) : firstKey;
+		boolean completed = true;
+		boolean reopen;
+		do {
+			reopen = false;
+			final int upper;
+			synchronized (this) {
+				range.stolen = false;
+				upper = range.upper;
+			}
+			final String upperKey = upper < samples.size() ? samples.get(upper) : endKey;
+			log.log(Level.FINEST, "Reading {0} range {1} from {2}", new Object[]{name, range, lower});
+			try (SourceCursor cursor = pool.openCursor(
+					partitioning.getRangeQuery(lower != null, range.after != null, upperKey != null),
+					bounds(lower, range.after, upperKey))) {
+				final ResultSet rs = cursor.getResultSet();
+				final RowSnapshot.Columns columns = RowSnapshot.columnsOf(rs);
+				final int keyColumn = columns.indexOf(partitioning.getKeyColumn());
+				while (cursor.next()) {
+					final String key = rs.getString(keyColumn);
+					final CheckpointJournal.RowProgress row;
+					synchronized (this) {
+						// rows with the same key are read from a single cursor, as they can't be told apart
+						if (range.stolen && key != null && !Objects.equals(key, range.lastKey)) {
+							lower = key;
+							reopen = true;
+							break;
+						}
+						advance(range, key);
+						range.lastKey = key;
+						row = range.progress != null ? range.progress.register(key, range.position) : null;
+					}
+					if (!pipeline.accept(columns, rs, row != null ? row::complete : null)) {
+						completed = false;
+						break;
+					}
+				}
+			}
+		} while (reopen);
+		if (completed && range.progress != null) {
+			range.progress.readCompleted();
+		}
+	}
+
+	/**
+	 * Updates position of the reader within the range, used to split the range and to resume it. Any sampled key
+	 * following the current position is accepted, as a resumed range may start past some of them.
+	 */
+	private void advance(Range range, String key) {
+		final Integer index = sampleIndexes.get(key);
+		if (index != null && index > range.position && index < range.upper) {
+			range.position = index;
+		}
+	}
+
+	private synchronized Range nextRange() throws Exception {
+		Range range = pending.poll();
+		if (range == null) {
+			range = steal();
+		}
+		if (range != null) {
+			active.add(range);
+		}
+		return range;
+	}
+
+	/**
+	 * Splits the range with the most remaining samples. As its position is advanced only on sampled keys, the owner may
+	 * already be past the split key (e.g. if sampled keys were deleted), so the stolen range starts after the last key
+	 * read by the owner as well. A resumed range is split only once it reads a row, as rows before its resume key were
+	 * already converted.
+	 */
+	private Range steal() throws Exception {
+		Range victim = null;
+		for (Range range : active) {
+			if (range.remaining() >= 2 && (range.lastKey != null || range.resumeKey == null) &&
+					(victim == null || range.remaining() > victim.remaining())) {
+				victim = range;
+			}
+		}
+		if (victim == null) {
+			return null;
+		}
+		final int split = victim.position + (victim.remaining() + 1) / 2;
+		final Range stolen = newRange(split, victim.upper, victim.lastKey);
+		log.log(Level.FINE, "Splitting {0} range {1} at {2}", new Object[]{name, victim, split});
+		victim.upper = split;
+		// owner re-opens its cursor with the new upper boundary
+		victim.stolen = true;
+		if (victim.progress != null) {
+			progress.setUpper(victim.progress, split);
+		}
+		return stolen;
+	}
+
+	private synchronized void finished(Range range) {
+		active.remove(range);
+	}
+
+	private static class Range {
+
+		// exclusive lower bound of keys, if the range was stolen from a reader already past its lower sampled key
+		final String after;
+		final int lower;
+		final CheckpointJournal.ConvertibleProgress.RangeProgress progress;
+		final String resumeKey;
+		// last key read from the range (guarded by the reader), keys of a range stolen from it have to follow it
+		String lastKey;
+		// index of the last sampled key passed by the reader
+		int position;
+		// index of the first sampled key not belonging to the range (or number of samples if unbounded)
+		int upper;
+		// whether upper boundary was moved since the cursor of the range was opened
+		boolean stolen = false;
+
+		Range(int lower, int upper, String after, CheckpointJournal.ConvertibleProgress.RangeProgress progress) {
+			this.lower = lower;
+			this.upper = upper;
+			this.after = after;
+			this.position = lower;
+			this.progress = progress;
+			this.resumeKey = progress != null ? progress.getResumeKey() : null;
+			this.lastKey = resumeKey == null ? after : null;
+		}
+
+		Range(CheckpointJournal.ConvertibleProgress.RangeProgress progress) {
+			this(progress.getLower(), progress.getUpper(), progress.getAfter(), progress);
+			this.position = progress.getResumePosition();
+		}
+
+		int remaining() {
+			return upper - position;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + lower + ", " + upper + ") at " + position + (after != null ? " after " + after : "");
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+/**
+ * Describes how the main query of {@link Convertible} can be split into key ranges read in parallel. Rows returned
+ * for a range have to contain the same columns as rows of the main query.
+ */
+public class Partitioning {
+
+	private final String columns;
+	private final String keyColumn;
+	private final String table;
+
+	/**
+	 * @param table source table (or other valid {@code FROM} clause) of the main query
+	 * @param columns columns selected by the main query
+	 * @param keyColumn column by which rows are ordered and split into ranges (preferably indexed, without {@code NULL}
+	 * values); it's also used to checkpoint progress of the conversion and to identify failed rows
+	 */
+	public Partitioning(String table, String columns, String keyColumn) {
+		this.table = table;
+		this.columns = columns;
+		this.keyColumn = keyColumn;
+	}
+
+	public String getKeyColumn() {
+		return keyColumn;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	String getCountQuery() {
+		return getCountQuery(false, false);
+	}
+
+	/**
+	 * Query counting rows of the range, with bounds as in {@link #getRangeQuery(boolean, boolean)}.
+	 */
+	String getCountQuery(boolean withLowerBound, boolean withUpperBound) {
+		return bounded(new StringBuilder("SELECT COUNT(*) FROM ").append(table), withLowerBound, false,
+					   withUpperBound).toString();
+	}
+
+	String getSampleQuery() {
+		return getSampleQuery(false, false);
+	}
+
+	/**
+	 * Query returning sorted keys of the range, with bounds as in {@link #getRangeQuery(boolean, boolean)}.
+	 */
+	String getSampleQuery(boolean withLowerBound, boolean withUpperBound) {
+		return bounded(new StringBuilder("SELECT ").append(keyColumn).append(" FROM ").append(table),
+					   withLowerBound, false, withUpperBound).append(" ORDER BY ").append(keyColumn).toString();
+	}
+
+	/**
+	 * Query returning rows of the range sorted by key; lower bound is inclusive, upper bound is exclusive and both
+	 * are passed as parameters (in that order) if present.
+	 */
+	String getRangeQuery(boolean withLowerBound, boolean withUpperBound) {
+		return getRangeQuery(withLowerBound, false, withUpperBound);
+	}
+
+	/**
+	 * Query returning rows of the range sorted by key, as {@link #getRangeQuery(boolean, boolean)} with an additional
+	 * exclusive lower bound passed between the inclusive lower bound and the upper bound.
+	 */
+	String getRangeQuery(boolean withLowerBound, boolean withExclusiveLowerBound, boolean withUpperBound) {
+		return bounded(new StringBuilder("SELECT ").append(columns).append(" FROM ").append(table), withLowerBound,
+					   withExclusiveLowerBound, withUpperBound).append(" ORDER BY ").append(keyColumn).toString();
+	}
+
+	/**
+	 * Query returning rows with any of the keys, passed as parameters.
+	 */
+	String getKeysQuery(int keys) {
+		final StringBuilder sb = new StringBuilder("SELECT ").append(columns).append(" FROM ").append(table);
+		sb.append(" WHERE ").append(keyColumn).append(" IN (");
+		for (int i = 0; i < keys; i++) {
+			sb.append(i == 0 ? "?" : ", ?");
+		}
+		return sb.append(')').toString();
+	}
+
+	private StringBuilder bounded(StringBuilder sb, boolean withLowerBound, boolean withExclusiveLowerBound,
+								  boolean withUpperBound) {
+		String separator = " WHERE ";
+		if (withLowerBound) {
+			sb.append(separator).append(keyColumn).append(" >= ?");
+			separator = " AND ";
+		}
+		if (withExclusiveLowerBound) {
+			sb.append(separator).append(keyColumn).append(" > ?");
+			separator = " AND ";
+		}
+		if (withUpperBound) {
+			sb.append(separator).append(keyColumn).append(" < ?");
+		}
+		return sb;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("Partitioning{");
+		sb.append("table='").append(table).append('\'');
+		sb.append(", keyColumn='").append(keyColumn).append('\'');
+		sb.append('}');
+		return sb.toString();
+	}
+}
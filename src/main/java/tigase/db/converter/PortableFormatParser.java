@@ -0,0 +1,42 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import javax.xml.stream.XMLStreamReader;
+import java.util.Optional;
+
+/**
+ * Creates {@link RowEntity} of a {@link Convertible} from {@code <user/>} element of XEP-0227 (Portable Import/Export
+ * Format) file, used instead of the source database.
+ */
+public interface PortableFormatParser<T extends RowEntity> {
+
+	/**
+	 * Parses {@code <user/>} element; called with the reader positioned at its start element and has to consume the
+	 * element up to its end element. May be called concurrently for different users.
+	 *
+	 * @param host domain of the {@code <host/>} element containing the user
+	 * @param reader reader positioned at the start element of the user
+	 *
+	 * @return {@link RowEntity} of the user or empty Optional if the user can't be converted, which is reported as
+	 * failure
+	 *
+	 * @throws Exception indicates problem with reading of the file which aborts the conversion
+	 */
+	Optional<T> parseUser(String host, XMLStreamReader reader) throws Exception;
+}
@@ -0,0 +1,484 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads users from XEP-0227 (Portable Import/Export Format) file instead of the source database:
+ * <pre>
+ * &lt;server-data xmlns='urn:xmpp:pie:0'&gt;
+ *   &lt;host jid='example.com'&gt;
+ *     &lt;user name='juliet' password='s3crEt'&gt;...&lt;/user&gt;
+ *   &lt;/host&gt;
+ * &lt;/server-data&gt;
+ * </pre>
+ * A single pass over the bytes of the file (which only follows the nesting of elements, without parsing them) splits
+ * users of each host into chunks of about {@link #CHUNK_SIZE} bytes. Chunks are then parsed with StAX in parallel,
+ * each of them wrapped in the original start tags of {@code <server-data/>} and {@code <host/>} so namespaces
+ * declared there still apply. Neither pass keeps more than a single user in memory, so the size of the file isn't
+ * limited.
+ */
+class PortableFormatReader {
+
+	static final int CHUNK_SIZE = 1 << 22;
+	private static final Logger log = Logger.getLogger(PortableFormatReader.class.getName());
+	private static final int READ_BUFFER = 1 << 20;
+
+	private final List<Chunk> chunks = new ArrayList<>();
+	private final Path file;
+	private int hosts = 0;
+	private long users = 0;
+
+	PortableFormatReader(Path file) throws IOException {
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			new Scanner(channel).scan();
+		}
+		log.log(Level.INFO, "Found {0} users of {1} hosts in {2}, split into {3} chunks",
+				new Object[]{users, hosts, file, chunks.size()});
+	}
+
+	/**
+	 * @return number of {@code <user/>} elements in the file
+	 */
+	long getUsers() {
+		return users;
+	}
+
+	/**
+	 * Parses all users of the file with the parser of the convertible and passes them to the pipeline; returns once
+	 * all of them are passed or the pipeline is aborted.
+	 *
+	 * @param threads number of threads parsing chunks of the file
+	 */
+	<T extends RowEntity> void read(PortableFormatParser<T> parser, ConversionPipeline<T> pipeline, int threads)
+			throws Exception {
+		final AtomicInteger nextChunk = new AtomicInteger();
+		final AtomicBoolean stopped = new AtomicBoolean();
+		final AtomicInteger counter = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			final Thread thread = new Thread(runnable, "xep0227-parser-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			final List<Future<?>> parsers = new ArrayList<>();
+			for (int i = 0; i < Math.max(1, threads); i++) {
+				parsers.add(executor.submit(() -> {
+					final XMLInputFactory factory = newFactory();
+					// each thread has own channel, as interrupted read closes the channel
+					try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+						int index;
+						while (!stopped.get() && (index = nextChunk.getAndIncrement()) < chunks.size()) {
+							if (!parse(chunks.get(index), channel, factory, parser, pipeline)) {
+								break;
+							}
+						}
+					} catch (Exception e) {
+						stopped.set(true);
+						throw e;
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : parsers) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private <T extends RowEntity> boolean parse(Chunk chunk, FileChannel channel, XMLInputFactory factory,
+												PortableFormatParser<T> parser, ConversionPipeline<T> pipeline)
+			throws Exception {
+		final InputStream in = new SequenceInputStream(Collections.enumeration(
+				Arrays.asList(new ByteArrayInputStream(chunk.host.prefix),
+							  new BufferedInputStream(new RangeInputStream(channel, chunk.start, chunk.end), 1 << 16),
+							  new ByteArrayInputStream(chunk.host.suffix))));
+		final XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			String host = null;
+			int depth = 0;
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 2) {
+						host = reader.getAttributeValue(null, "jid");
+					} else if (depth == 3 && "user".equals(reader.getLocalName())) {
+						final Optional<T> entity = parser.parseUser(host, reader);
+						depth--;
+						// user which can't be converted is reported as failure
+						if (!pipeline.acceptEntity(entity.orElse(null))) {
+							return false;
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}
+			}
+			return true;
+		} catch (XMLStreamException e) {
+			throw new IOException(
+					"Malformed XEP-0227 data in " + file + " between bytes " + chunk.start + " and " + chunk.end, e);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static XMLInputFactory newFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	}
+
+	private static String localName(String name) {
+		return name.substring(name.indexOf(':') + 1);
+	}
+
+	/**
+	 * Start tags of a {@code <host/>} element and of the root element, and their end tags, surrounding each chunk of
+	 * users of the host.
+	 */
+	private static class Host {
+
+		final byte[] prefix;
+		final byte[] suffix;
+
+		Host(byte[] prefix, byte[] suffix) {
+			this.prefix = prefix;
+			this.suffix = suffix;
+		}
+	}
+
+	private static class Chunk {
+
+		final long end;
+		final Host host;
+		final long start;
+
+		Chunk(Host host, long start, long end) {
+			this.host = host;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Finds chunks of users, tracking only the nesting of elements; comments, CDATA sections, processing instructions
+	 * and quoted attribute values are skipped, so markup inside them isn't mistaken for elements. The file has to be
+	 * encoded in UTF-8 (or another ASCII compatible encoding).
+	 */
+	private class Scanner {
+
+		private static final int TEXT = 0;
+		private static final int TAG = 1;
+		private static final int START_TAG_NAME = 2;
+		private static final int ATTRIBUTES = 3;
+		private static final int QUOTED = 4;
+		private static final int END_TAG = 5;
+		private static final int DECLARATION = 6;
+		private static final int COMMENT = 7;
+		private static final int CDATA = 8;
+		private static final int INSTRUCTION = 9;
+		private static final int DOCTYPE = 10;
+
+		private final FileChannel channel;
+		private final StringBuilder name = new StringBuilder();
+		private int brackets = 0;
+		private long chunkStart = -1;
+		private byte[] declaration = new byte[0];
+		private int depth = 0;
+		private Host host;
+		private byte last;
+		private byte quote;
+		private int repeated = 0;
+		private byte[] root;
+		private String rootName;
+		private int state = TEXT;
+		private long tagStart;
+
+		Scanner(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		void scan() throws IOException {
+			final byte[] bytes = new byte[READ_BUFFER];
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			long offset = 0;
+			int read;
+			while ((read = channel.read(buffer, offset)) >= 0) {
+				if (offset == 0 && read >= 2 && (bytes[0] == 0 || bytes[1] == 0 || (bytes[0] & 0xff) >= 0xfe)) {
+					throw new IOException(file + " isn't encoded in UTF-8");
+				}
+				for (int i = 0; i < read; i++) {
+					// most of the bytes are text and attribute values, which are skipped without the state machine
+					if (state == TEXT || state == QUOTED) {
+						final byte end = state == TEXT ? (byte) '<' : quote;
+						while (i < read && bytes[i] != end) {
+							i++;
+						}
+						if (i == read) {
+							break;
+						}
+					}
+					scan(bytes[i], offset + i);
+				}
+				offset += read;
+				buffer.clear();
+			}
+			if (state != TEXT || depth != 0) {
+				throw new IOException(file + " is truncated");
+			}
+			if (root == null || !"server-data".equals(localName(rootName))) {
+				throw new IOException(file + " doesn't contain XEP-0227 data");
+			}
+		}
+
+		private void scan(byte b, long offset) throws IOException {
+			switch (state) {
+				case TEXT:
+					if (b == '<') {
+						tagStart = offset;
+						state = TAG;
+					}
+					break;
+				case TAG:
+					name.setLength(0);
+					if (b == '/') {
+						state = END_TAG;
+					} else if (b == '!') {
+						state = DECLARATION;
+					} else if (b == '?') {
+						last = 0;
+						state = INSTRUCTION;
+					} else {
+						name.append((char) b);
+						state = START_TAG_NAME;
+					}
+					break;
+				case START_TAG_NAME:
+					if (b == '>') {
+						startTag(false, offset + 1);
+					} else if (b == '/' || isWhitespace(b)) {
+						last = b;
+						state = ATTRIBUTES;
+					} else {
+						// non-ASCII bytes of the name don't matter, only ASCII names are compared
+						name.append((char) b);
+					}
+					break;
+				case ATTRIBUTES:
+					if (b == '>') {
+						startTag(last == '/', offset + 1);
+					} else if (b == '"' || b == '\'') {
+						quote = b;
+						state = QUOTED;
+					} else if (!isWhitespace(b)) {
+						last = b;
+					}
+					break;
+				case QUOTED:
+					if (b == quote) {
+						last = b;
+						state = ATTRIBUTES;
+					}
+					break;
+				case END_TAG:
+					if (b == '>') {
+						endTag();
+					}
+					break;
+				case DECLARATION:
+					name.append((char) b);
+					if (name.length() == 2 && "--".contentEquals(name)) {
+						repeated = 0;
+						state = COMMENT;
+					} else if (name.length() == 7 && "[CDATA[".contentEquals(name)) {
+						repeated = 0;
+						state = CDATA;
+					} else if (!"--".startsWith(name.toString()) && !"[CDATA[".startsWith(name.toString())) {
+						brackets = 0;
+						state = DOCTYPE;
+						scan(b, offset);
+					}
+					break;
+				case COMMENT:
+					if (b == '>' && repeated >= 2) {
+						state = TEXT;
+					}
+					repeated = b == '-' ? repeated + 1 : 0;
+					break;
+				case CDATA:
+					if (b == '>' && repeated >= 2) {
+						state = TEXT;
+					}
+					repeated = b == ']' ? repeated + 1 : 0;
+					break;
+				case INSTRUCTION:
+					if (b == '>' && last == '?') {
+						if (depth == 0 && root == null) {
+							// XML declaration keeps encoding of the chunks
+							declaration = read(tagStart, offset + 1);
+						}
+						state = TEXT;
+					}
+					last = b;
+					break;
+				case DOCTYPE:
+					if (b == '[') {
+						brackets++;
+					} else if (b == ']') {
+						brackets--;
+					} else if (b == '>' && brackets <= 0) {
+						state = TEXT;
+					}
+					break;
+			}
+		}
+
+		private void startTag(boolean empty, long end) throws IOException {
+			state = TEXT;
+			final String localName = localName(name.toString());
+			if (depth == 0) {
+				rootName = name.toString();
+				root = read(tagStart, end);
+			} else if (depth == 1 && !empty && "host".equals(localName)) {
+				final byte[] hostTag = read(tagStart, end);
+				final byte[] prefix = Arrays.copyOf(declaration, declaration.length + root.length + hostTag.length);
+				System.arraycopy(root, 0, prefix, declaration.length, root.length);
+				System.arraycopy(hostTag, 0, prefix, declaration.length + root.length, hostTag.length);
+				host = new Host(prefix, ("</" + name + "></" + rootName + ">").getBytes(StandardCharsets.UTF_8));
+				hosts++;
+			} else if (depth == 2 && host != null && "user".equals(localName)) {
+				users++;
+				if (chunkStart < 0) {
+					chunkStart = tagStart;
+				} else if (tagStart - chunkStart >= CHUNK_SIZE) {
+					chunks.add(new Chunk(host, chunkStart, tagStart));
+					chunkStart = tagStart;
+				}
+			}
+			if (!empty) {
+				depth++;
+			}
+		}
+
+		private void endTag() throws IOException {
+			state = TEXT;
+			depth--;
+			if (depth < 0) {
+				throw new IOException(file + " isn't well-formed, unexpected end tag at byte " + tagStart);
+			}
+			if (depth == 1 && host != null) {
+				if (chunkStart >= 0) {
+					chunks.add(new Chunk(host, chunkStart, tagStart));
+				}
+				chunkStart = -1;
+				host = null;
+			}
+		}
+
+		private byte[] read(long start, long end) throws IOException {
+			final byte[] bytes = new byte[(int) (end - start)];
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) < 0) {
+					throw new EOFException(file + " is truncated");
+				}
+			}
+			return bytes;
+		}
+
+		private boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+		}
+	}
+
+	/**
+	 * Bytes of the file between two offsets, read with positional reads so many of them can share a channel.
+	 */
+	private static class RangeInputStream
+			extends InputStream {
+
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+
+		RangeInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			final int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)),
+										  position);
+			if (read < 0) {
+				throw new EOFException("File was truncated while reading it");
+			}
+			position += read;
+			return read;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes {@link ConversionMetrics} of all convertibles: periodically logs progress of the running ones, registers
+ * them as MBeans and writes JSON summary at the end of the run.
+ */
+class ProgressReporter
+		implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(ProgressReporter.class.getName());
+
+	private final List<ConversionMetrics> metrics = new CopyOnWriteArrayList<>();
+	private final ScheduledExecutorService scheduler;
+	private final long startTime = System.currentTimeMillis();
+	private String bulkLoad;
+	private boolean success = true;
+
+	/**
+	 * @param interval interval of progress reports in seconds, {@code 0} disables them
+	 */
+	ProgressReporter(int interval) {
+		if (interval > 0) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "progress-reporter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.SECONDS);
+		} else {
+			scheduler = null;
+		}
+	}
+
+	void track(ConversionMetrics conversionMetrics) {
+		metrics.add(conversionMetrics);
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final ObjectName name = getObjectName(conversionMetrics);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(conversionMetrics, name);
+			}
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Couldn't register MBean for " + conversionMetrics.getConvertible(), e);
+		}
+	}
+
+	/**
+	 * Sets result of the bulk load (JSON object) included in the summary.
+	 */
+	void setBulkLoad(String bulkLoad) {
+		this.bulkLoad = bulkLoad;
+	}
+
+	/**
+	 * Sets whether all convertibles were converted and loaded rows are consistent, as reported by the summary.
+	 */
+	void setSuccess(boolean success) {
+		this.success = success;
+	}
+
+	/**
+	 * Writes metrics of all tracked convertibles to the file as a single JSON object.
+	 */
+	void writeSummary(Path file) throws IOException {
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("{\"startTime\":" + startTime + ",\"finishTime\":" + System.currentTimeMillis() +
+								 ",\"success\":" + success);
+			if (bulkLoad != null) {
+				writer.write(",\"bulkLoad\":" + bulkLoad);
+			}
+			writer.write(",\"convertibles\":[");
+			boolean first = true;
+			for (ConversionMetrics conversionMetrics : metrics) {
+				if (!first) {
+					writer.write(',');
+				}
+				writer.write("\n  ");
+				writer.write(conversionMetrics.toJson());
+				first = false;
+			}
+			writer.write("\n]}\n");
+		}
+		log.log(Level.INFO, "Conversion summary written to {0}", file);
+	}
+
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ConversionMetrics conversionMetrics : metrics) {
+			try {
+				server.unregisterMBean(getObjectName(conversionMetrics));
+			} catch (Exception e) {
+				log.log(Level.FINEST, "Couldn't unregister MBean for " + conversionMetrics.getConvertible(), e);
+			}
+		}
+	}
+
+	private void report() {
+		for (ConversionMetrics conversionMetrics : metrics) {
+			if (ConversionMetrics.State.running.name().equals(conversionMetrics.getState())) {
+				log.log(Level.INFO, "Progress of {0}", conversionMetrics.getProgress());
+			}
+		}
+	}
+
+	private static ObjectName getObjectName(ConversionMetrics conversionMetrics) throws Exception {
+		return new ObjectName("tigase.db.converter:type=ConversionMetrics,name=" +
+									  ObjectName.quote(conversionMetrics.getConvertible()));
+	}
+}
@@ -22,6 +22,10 @@ import tigase.db.DataRepositoryPool;
 import tigase.db.TigaseDBException;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 
 public class QueryExecutor {
 
@@ -30,17 +34,46 @@ public class QueryExecutor {
 	public QueryExecutor() {
 	}
 
+	/**
+	 * Applies the function to the prepared statement of a repository leased from the pool for the duration of the
+	 * call; repository is returned to the pool even if the function fails.
+	 */
 	public <X> X executeQuery(String preparedStatementId, QueryFunction<PreparedStatement, X> fun)
 			throws Exception {
 
-		final DataRepository dataRepositoryFromPool = dataRepoPool.takeRepoHandle(null);
-		if (DataRepositoryPool.class.isAssignableFrom(dataRepositoryFromPool.getClass())) {
-			throw new TigaseDBException("Wrong DataRepositoryImplementation");
+		try (DataRepoPool.Lease lease = dataRepoPool.lease()) {
+			final DataRepository dataRepositoryFromPool = lease.getRepository();
+			if (DataRepositoryPool.class.isAssignableFrom(dataRepositoryFromPool.getClass())) {
+				throw new TigaseDBException("Wrong DataRepositoryImplementation");
+			}
+			final PreparedStatement preparedStatement = dataRepositoryFromPool.getPreparedStatement(0,
+					preparedStatementId);
+			return fun.apply(preparedStatement);
+		}
+	}
+
+	/**
+	 * Executes parameterless query and returns open cursor over its results. Connection used by the query is kept
+	 * until the cursor is closed.
+	 */
+	public SourceCursor openCursor(String preparedStatementId) throws Exception {
+		final String query = dataRepoPool.getQuery(preparedStatementId)
+				.orElseThrow(() -> new TigaseDBException("Query " + preparedStatementId + " not initialised"));
+		return dataRepoPool.openCursor(query);
+	}
+
+	/**
+	 * Returns names (in lower case) of columns of the table in the source, i.e. to detect version of the schema.
+	 */
+	public Set<String> getColumns(String table) throws Exception {
+		try (SourceCursor cursor = dataRepoPool.openCursor("SELECT * FROM " + table + " WHERE 1 = 0")) {
+			final ResultSetMetaData metaData = cursor.getResultSet().getMetaData();
+			final Set<String> columns = new HashSet<>();
+			for (int i = 1; i <= metaData.getColumnCount(); i++) {
+				columns.add(metaData.getColumnLabel(i).toLowerCase(Locale.ROOT));
+			}
+			return columns;
 		}
-		final PreparedStatement preparedStatement = dataRepositoryFromPool.getPreparedStatement(0, preparedStatementId);
-		final X apply = fun.apply(preparedStatement);
-		dataRepoPool.addRepo(dataRepositoryFromPool);
-		return apply;
 	}
 
 	void initialise(DataRepoPool dataRepoPool) {
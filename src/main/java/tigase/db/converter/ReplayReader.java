@@ -0,0 +1,63 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads again only rows of the {@link Partitioning} with keys recorded in {@link DeadLetterJournal}, in chunks of keys
+ * passed to a single query.
+ */
+class ReplayReader
+		implements ConversionPipeline.Reader {
+
+	private static final Logger log = Logger.getLogger(ReplayReader.class.getName());
+	private static final int KEYS_PER_QUERY = 100;
+
+	private final List<String> keys;
+	private final Partitioning partitioning;
+	private final DataRepoPool pool;
+
+	ReplayReader(DataRepoPool pool, Partitioning partitioning, Set<String> keys) {
+		this.pool = pool;
+		this.partitioning = partitioning;
+		this.keys = new ArrayList<>(keys);
+	}
+
+	@Override
+	public void read(ConversionPipeline<?> pipeline) throws Exception {
+		for (int from = 0; from < keys.size(); from += KEYS_PER_QUERY) {
+			final List<String> chunk = keys.subList(from, Math.min(keys.size(), from + KEYS_PER_QUERY));
+			log.log(Level.FINEST, "Reading {0} keys of {1}", new Object[]{chunk.size(), partitioning});
+			try (SourceCursor cursor = pool.openCursor(partitioning.getKeysQuery(chunk.size()), chunk.toArray())) {
+				final ResultSet rs = cursor.getResultSet();
+				final RowSnapshot.Columns columns = RowSnapshot.columnsOf(rs);
+				while (cursor.next()) {
+					if (!pipeline.accept(columns, rs)) {
+						return;
+					}
+				}
+			}
+		}
+	}
+}
@@ -17,8 +17,21 @@
  */
 package tigase.db.converter;
 
+import java.security.MessageDigest;
+
 public interface RowEntity {
 
 	// should match primary_key values
 	String getID();
+
+	/**
+	 * Feeds the content of the entity (all data which is stored in the destination) to the digest used by
+	 * incremental conversion to detect entities changed since the previous run. Entities which don't support it are
+	 * always stored.
+	 *
+	 * @return value indicating if the entity supports digests
+	 */
+	default boolean digest(MessageDigest digest) {
+		return false;
+	}
 }
@@ -0,0 +1,234 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Detached copy of a single row of {@link ResultSet}. It allows handing over rows read from the source cursor to
+ * other threads, which access the data through regular {@link ResultSet} getters returned by {@link #asResultSet()}.
+ */
+public class RowSnapshot {
+
+	private final Columns columns;
+	private final long rowNumber;
+	private final Object[] values;
+
+	/**
+	 * Copies current row of the {@link ResultSet}
+	 *
+	 * @param columns columns of the result set obtained with {@link #columnsOf(ResultSet)}
+	 * @param rs result set positioned on the row to copy
+	 * @param rowNumber sequential number of the row within the conversion
+	 */
+	public static RowSnapshot of(Columns columns, ResultSet rs, long rowNumber) throws SQLException {
+		final Object[] values = new Object[columns.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = rs.getObject(i + 1);
+		}
+		return new RowSnapshot(columns, values, rowNumber);
+	}
+
+	public static Columns columnsOf(ResultSet rs) throws SQLException {
+		final ResultSetMetaData metaData = rs.getMetaData();
+		final String[] labels = new String[metaData.getColumnCount()];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = metaData.getColumnLabel(i + 1);
+		}
+		return new Columns(labels);
+	}
+
+	public RowSnapshot(Columns columns, Object[] values, long rowNumber) {
+		this.columns = columns;
+		this.values = values;
+		this.rowNumber = rowNumber;
+	}
+
+	public long getRowNumber() {
+		return rowNumber;
+	}
+
+	public Columns getColumns() {
+		return columns;
+	}
+
+	public Object getValue(String label) throws SQLException {
+		return values[columns.indexOf(label) - 1];
+	}
+
+	public Object getValue(int column) {
+		return values[column - 1];
+	}
+
+	/**
+	 * Returns read-only {@link ResultSet} view of the row, already positioned on it. Only getters are supported,
+	 * any other operation results in {@link SQLFeatureNotSupportedException}.
+	 */
+	public ResultSet asResultSet() {
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class[]{ResultSet.class},
+												  new RowHandler());
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("RowSnapshot{");
+		sb.append("rowNumber=").append(rowNumber);
+		sb.append(", columns=").append(columns);
+		sb.append('}');
+		return sb.toString();
+	}
+
+	/**
+	 * Column labels of the result set shared by all snapshots taken from it.
+	 */
+	public static class Columns {
+
+		private final Map<String, Integer> indexes;
+		private final String[] labels;
+
+		public Columns(String... labels) {
+			this.labels = labels;
+			final Map<String, Integer> indexes = new HashMap<>();
+			for (int i = labels.length - 1; i >= 0; i--) {
+				indexes.put(labels[i].toLowerCase(Locale.ROOT), i + 1);
+			}
+			this.indexes = Collections.unmodifiableMap(indexes);
+		}
+
+		public int indexOf(String label) throws SQLException {
+			final Integer index = indexes.get(label.toLowerCase(Locale.ROOT));
+			if (index == null) {
+				throw new SQLException("Column '" + label + "' not found");
+			}
+			return index;
+		}
+
+		public String getLabel(int column) {
+			return labels[column - 1];
+		}
+
+		public int size() {
+			return labels.length;
+		}
+
+		@Override
+		public String toString() {
+			return String.join(", ", labels);
+		}
+	}
+
+	private class RowHandler
+			implements InvocationHandler {
+
+		private boolean wasNull = false;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			switch (name) {
+				case "wasNull":
+					return wasNull;
+				case "isClosed":
+				case "next":
+					return false;
+				case "close":
+					return null;
+				case "getRow":
+					return (int) rowNumber;
+				case "findColumn":
+					return columns.indexOf((String) args[0]);
+				case "getType":
+					return ResultSet.TYPE_FORWARD_ONLY;
+				case "getConcurrency":
+					return ResultSet.CONCUR_READ_ONLY;
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "equals":
+					return proxy == args[0];
+				case "toString":
+					return RowSnapshot.this.toString();
+				default:
+					if (name.startsWith("get") && args != null && args.length == 1) {
+						final Object value = args[0] instanceof String
+											 ? getValue((String) args[0])
+											 : getValue(((Number) args[0]).intValue());
+						wasNull = value == null;
+						return convert(value, method.getReturnType());
+					}
+					throw new SQLFeatureNotSupportedException(name + " is not supported by row snapshot");
+			}
+		}
+
+		private Object convert(Object value, Class<?> type) throws SQLException {
+			if (type == Object.class || (value != null && type.isInstance(value))) {
+				return value;
+			}
+			if (value == null) {
+				if (type == boolean.class) {
+					return false;
+				} else if (type.isPrimitive()) {
+					return type == double.class || type == float.class ? (Object) 0.0d : (Object) 0;
+				}
+				return null;
+			}
+			if (type == String.class) {
+				return value instanceof byte[] ? new String((byte[]) value, StandardCharsets.UTF_8) : value.toString();
+			}
+			if (type == int.class) {
+				return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+			}
+			if (type == long.class) {
+				return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+			}
+			if (type == short.class) {
+				return value instanceof Number ? ((Number) value).shortValue() : Short.parseShort(value.toString());
+			}
+			if (type == double.class) {
+				return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+			}
+			if (type == boolean.class) {
+				return value instanceof Number ? ((Number) value).intValue() != 0 : Boolean.parseBoolean(
+						value.toString());
+			}
+			if (type == BigDecimal.class) {
+				return new BigDecimal(value.toString());
+			}
+			if (type == byte[].class) {
+				return value.toString().getBytes(StandardCharsets.UTF_8);
+			}
+			if (type == Timestamp.class && value instanceof LocalDateTime) {
+				return Timestamp.valueOf((LocalDateTime) value);
+			}
+			if (type == Date.class && value instanceof LocalDate) {
+				return Date.valueOf((LocalDate) value);
+			}
+			throw new SQLException("Cannot convert " + value.getClass().getName() + " to " + type.getName());
+		}
+	}
+}
@@ -0,0 +1,505 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import tigase.db.DataRepository;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates conversion split into shards run by separate processes (possibly on separate hosts), each converting
+ * rows with source keys in own key range (or own hash range for entities read from files). Shards record their
+ * progress in {@code tig_converter_shards} table of the destination database, one row for each convertible of each
+ * shard and one row ({@value #PROCESS}) for the shard itself:
+ * <ul>
+ * <li>key ranges of shards are split by keys sampled from the source by the first shard converting the convertible
+ * and recorded in {@code tig_converter_shard_keys} table, so all shards use the same ranges even if the source
+ * changes in the meantime,</li>
+ * <li>all shards have to use the same number of shards as the ones which recorded progress before,</li>
+ * <li>shard recently updated by another process is refused to be started again (its progress is updated every
+ * {@value #HEARTBEAT_SECONDS} seconds); the shard is claimed by a single conditional update (or insert of its first
+ * row, relying on the primary key), so of the processes started concurrently only one converts it,</li>
+ * <li>convertibles already finished by the shard are skipped when it's restarted, so shards may be stopped and
+ * restarted independently (with {@code --resume} interrupted convertibles continue from their checkpoint),</li>
+ * <li>each shard writes merged report of all shards when it's finished; it's complete once all shards have finished.
+ * </li>
+ * </ul>
+ */
+class ShardCoordinator
+		implements AutoCloseable {
+
+	static final String PROCESS = "*";
+	private static final Logger log = Logger.getLogger(ShardCoordinator.class.getName());
+	private static final String TABLE = "tig_converter_shards";
+	private static final String CREATE_TABLE_QUERY =
+			"create table " + TABLE + " (shard_index int not null, convertible varchar(255) not null, " +
+					"shard_count int not null, owner varchar(255) not null, status varchar(16) not null, " +
+					"rows_read bigint not null, rows_stored bigint not null, rows_failed bigint not null, " +
+					"updated_at bigint not null, primary key (shard_index, convertible))";
+	private static final String KEYS_TABLE = "tig_converter_shard_keys";
+	private static final String CREATE_KEYS_TABLE_QUERY =
+			"create table " + KEYS_TABLE + " (convertible varchar(255) not null, boundary int not null, " +
+					"shard_count int not null, key_value varchar(1024) not null, primary key (convertible, boundary))";
+	private static final String INSERT_KEYS = "converter-shard-insert-keys";
+	private static final String SELECT_KEYS = "converter-shard-select-keys";
+	private static final String SELECT_KEYS_QUERY = "select boundary, shard_count, key_value from " + KEYS_TABLE +
+			" where convertible = ? order by boundary";
+	private static final String INSERT = "converter-shard-insert";
+	private static final String INSERT_QUERY = "insert into " + TABLE +
+			" (shard_index, convertible, shard_count, owner, status, rows_read, rows_stored, rows_failed, updated_at)" +
+			" values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String CLAIM = "converter-shard-claim";
+	private static final String CLAIM_QUERY = "update " + TABLE + " set shard_count = ?, owner = ?, status = ?, " +
+			"rows_read = 0, rows_stored = 0, rows_failed = 0, updated_at = ? " +
+			"where shard_index = ? and convertible = ? and (status <> ? or updated_at < ?)";
+	private static final String UPDATE = "converter-shard-update";
+	private static final String UPDATE_QUERY = "update " + TABLE + " set shard_count = ?, owner = ?, status = ?, " +
+			"rows_read = ?, rows_stored = ?, rows_failed = ?, updated_at = ? where shard_index = ? and convertible = ?";
+	private static final String SELECT_ALL = "converter-shard-select-all";
+	private static final String SELECT_ALL_QUERY = "select shard_index, convertible, shard_count, owner, status, " +
+			"rows_read, rows_stored, rows_failed, updated_at from " + TABLE;
+	private static final int HEARTBEAT_SECONDS = 10;
+	private static final long STALE_MILLIS = TimeUnit.SECONDS.toMillis(6 * HEARTBEAT_SECONDS);
+
+	private static final String RUNNING = "running";
+	private static final String FINISHED = "finished";
+	private static final String FAILED = "failed";
+
+	private final String owner = ManagementFactory.getRuntimeMXBean().getName();
+	private final DataRepository repository;
+	private final ScheduledExecutorService scheduler;
+	private final int shardCount;
+	private final int shardIndex;
+	// convertibles being converted by this shard
+	private final Map<String, ConversionMetrics> running = new ConcurrentHashMap<>();
+
+	/**
+	 * Splits entities read from snapshot or XEP-0227 files, which can't be read by key range, between shards.
+	 *
+	 * @return whether entity with the key belongs to the shard; keys are split by hash of the key into ranges of
+	 * equal size
+	 */
+	static boolean isInShard(String key, int shardIndex, int shardCount) {
+		if (shardCount <= 1) {
+			return true;
+		}
+		// hash codes of similar keys differ only in low bits, they are spread with finalizer of MurmurHash3
+		int hash = key != null ? key.hashCode() : 0;
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return (int) (((hash & 0xffffffffL) * shardCount) >>> 32) == shardIndex;
+	}
+
+	ShardCoordinator(DataRepository repository, int shardIndex, int shardCount) {
+		this.repository = repository;
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "shard-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Creates the table (if it doesn't exist yet) and registers the shard as running.
+	 *
+	 * @throws IllegalStateException if the shard can't be started, as it doesn't match other shards or it's running
+	 */
+	void register() throws SQLException {
+		createTable(TABLE, CREATE_TABLE_QUERY);
+		createTable(KEYS_TABLE, CREATE_KEYS_TABLE_QUERY);
+		repository.initPreparedStatement(CLAIM, CLAIM_QUERY);
+		repository.initPreparedStatement(INSERT_KEYS, getInsertKeysQuery(shardCount - 1));
+		repository.initPreparedStatement(SELECT_KEYS, SELECT_KEYS_QUERY);
+		repository.initPreparedStatement(INSERT, INSERT_QUERY);
+		repository.initPreparedStatement(UPDATE, UPDATE_QUERY);
+		repository.initPreparedStatement(SELECT_ALL, SELECT_ALL_QUERY);
+		final Map<Integer, Progress> shards = readProgress().getOrDefault(PROCESS, new TreeMap<>());
+		for (Progress shard : shards.values()) {
+			if (shard.shardCount != shardCount) {
+				throw new IllegalStateException(
+						"Shard " + shard.shardIndex + " was converted as one of " + shard.shardCount + " shards, not " +
+								shardCount + "; remove rows of " + TABLE + " and " + KEYS_TABLE +
+								" to convert with another number of shards");
+			}
+		}
+		final Progress previous = shards.get(shardIndex);
+		if (!claim()) {
+			final Progress current = readProgress().get(PROCESS).get(shardIndex);
+			throw new IllegalStateException(
+					"Shard " + shardIndex + " is already running by " + current.owner + "; it can be started again " +
+							"when it didn't update its progress for " + TimeUnit.MILLISECONDS.toSeconds(STALE_MILLIS) +
+							" seconds");
+		}
+		scheduler.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+		log.log(Level.INFO, "Converting shard {0} of {1} shards{2}",
+				new Object[]{shardIndex, shardCount, previous != null ? ", restarted" : ""});
+	}
+
+	/**
+	 * Returns keys splitting rows of the convertible into key ranges of shards. Keys recorded by another shard are
+	 * used if there are any, otherwise keys returned by the function are recorded for other shards. All keys are
+	 * recorded by a single statement, so of the shards recording them concurrently only one succeeds and the others
+	 * use its keys.
+	 *
+	 * @param split function sampling keys from the source, as {@link PartitionedReader#split(DataRepoPool,
+	 * Partitioning, int)}
+	 *
+	 * @return {@code shardCount - 1} sorted keys, each being the inclusive lower bound of the range of the next shard,
+	 * or no keys if the source has no rows
+	 */
+	List<String> getKeyBoundaries(String convertible, Callable<List<String>> split) throws Exception {
+		final List<String> recorded = readKeys(convertible);
+		if (recorded != null) {
+			return recorded;
+		}
+		final List<String> keys = split.call();
+		if (keys.isEmpty()) {
+			return keys;
+		}
+		if (keys.size() != shardCount - 1) {
+			throw new IllegalArgumentException(keys.size() + " keys can't split rows between " + shardCount +
+													   " shards");
+		}
+		try {
+			final PreparedStatement insert = repository.getPreparedStatement(shardIndex, INSERT_KEYS);
+			synchronized (insert) {
+				int parameter = 1;
+				for (int i = 0; i < keys.size(); i++) {
+					insert.setString(parameter++, convertible);
+					insert.setInt(parameter++, i);
+					insert.setInt(parameter++, shardCount);
+					insert.setString(parameter++, keys.get(i));
+				}
+				insert.executeUpdate();
+			}
+			log.log(Level.INFO, "Rows of {0} split between shards by keys {1}", new Object[]{convertible, keys});
+			return keys;
+		} catch (SQLException e) {
+			// keys recorded concurrently by another shard
+			final List<String> concurrent = readKeys(convertible);
+			if (concurrent == null) {
+				throw e;
+			}
+			return concurrent;
+		}
+	}
+
+	/**
+	 * @return whether the convertible was already finished by the shard
+	 */
+	boolean isFinished(String convertible) throws SQLException {
+		final Progress progress = readProgress().getOrDefault(convertible, new TreeMap<>())
+				.get(shardIndex);
+		return progress != null && FINISHED.equals(progress.status);
+	}
+
+	void started(ConversionMetrics metrics) throws SQLException {
+		running.put(metrics.getConvertible(), metrics);
+		write(metrics.getConvertible(), RUNNING, metrics);
+	}
+
+	void finished(ConversionMetrics metrics, boolean success) {
+		running.remove(metrics.getConvertible());
+		try {
+			write(metrics.getConvertible(), success ? FINISHED : FAILED, metrics);
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Couldn't record progress of shard " + shardIndex, e);
+		}
+	}
+
+	/**
+	 * Records the shard as finished (or failed) and writes merged report of all shards to the file.
+	 *
+	 * @param success whether all convertibles were converted successfully
+	 */
+	void finish(boolean success, Path reportFile) {
+		scheduler.shutdownNow();
+		try {
+			write(PROCESS, success ? FINISHED : FAILED, 0, 0, 0);
+			writeReport(reportFile);
+		} catch (SQLException | IOException e) {
+			log.log(Level.WARNING, "Couldn't write report of shards", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+	}
+
+	private void heartbeat() {
+		try {
+			write(PROCESS, RUNNING, 0, 0, 0);
+			for (ConversionMetrics metrics : running.values()) {
+				write(metrics.getConvertible(), RUNNING, metrics);
+			}
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Couldn't record progress of shard " + shardIndex, e);
+		}
+	}
+
+	/**
+	 * Records the shard as running unless it's running by another process, which updated its progress recently.
+	 *
+	 * @return whether the shard was claimed by this process
+	 */
+	private boolean claim() throws SQLException {
+		final long now = System.currentTimeMillis();
+		final PreparedStatement claim = repository.getPreparedStatement(shardIndex, CLAIM);
+		synchronized (claim) {
+			claim.setInt(1, shardCount);
+			claim.setString(2, owner);
+			claim.setString(3, RUNNING);
+			claim.setLong(4, now);
+			claim.setInt(5, shardIndex);
+			claim.setString(6, PROCESS);
+			claim.setString(7, RUNNING);
+			claim.setLong(8, now - STALE_MILLIS);
+			if (claim.executeUpdate() > 0) {
+				return true;
+			}
+		}
+		try {
+			insert(PROCESS, RUNNING, 0, 0, 0, now);
+			return true;
+		} catch (SQLException e) {
+			// row of the shard exists, either running or inserted concurrently by another process
+			if (readProgress().getOrDefault(PROCESS, new TreeMap<>()).containsKey(shardIndex)) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private static String getInsertKeysQuery(int rows) {
+		final StringBuilder sb = new StringBuilder("insert into ").append(KEYS_TABLE)
+				.append(" (convertible, boundary, shard_count, key_value) values ");
+		for (int i = 0; i < rows; i++) {
+			sb.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+		}
+		return sb.toString();
+	}
+
+	private void createTable(String table, String createTableQuery) throws SQLException {
+		try {
+			repository.checkTable(table, createTableQuery);
+		} catch (SQLException e) {
+			// table may have been created concurrently by another shard
+			if (!repository.checkTable(table)) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return keys recorded for the convertible or {@code null} if there are none
+	 *
+	 * @throws IllegalStateException if keys were recorded for another number of shards
+	 */
+	private List<String> readKeys(String convertible) throws SQLException {
+		final List<String> keys = new ArrayList<>();
+		final PreparedStatement statement = repository.getPreparedStatement(shardIndex, SELECT_KEYS);
+		synchronized (statement) {
+			statement.setString(1, convertible);
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					if (rs.getInt(1) != keys.size() || rs.getInt(2) != shardCount) {
+						throw new IllegalStateException(
+								"Keys of " + convertible + " in " + KEYS_TABLE + " weren't recorded for " +
+										shardCount + " shards; remove them to convert with another number of shards");
+					}
+					keys.add(rs.getString(3));
+				}
+			}
+		}
+		if (keys.isEmpty()) {
+			return null;
+		}
+		if (keys.size() != shardCount - 1) {
+			throw new IllegalStateException(
+					keys.size() + " keys of " + convertible + " in " + KEYS_TABLE + " can't split rows between " +
+							shardCount + " shards");
+		}
+		return keys;
+	}
+
+	private void writeReport(Path file) throws SQLException, IOException {
+		final Map<String, Map<Integer, Progress>> progress = readProgress();
+		final Map<Integer, Progress> shards = progress.getOrDefault(PROCESS, new TreeMap<>());
+		final List<Integer> pending = new ArrayList<>();
+		for (int i = 0; i < shardCount; i++) {
+			final Progress shard = shards.get(i);
+			if (shard == null || !FINISHED.equals(shard.status)) {
+				pending.add(i);
+			}
+		}
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.write("{\"shardCount\":" + shardCount + ",\"complete\":" + pending.isEmpty() +
+								 ",\"pendingShards\":" + pending.toString().replace(" ", "") + ",\"convertibles\":[");
+			boolean first = true;
+			for (Map.Entry<String, Map<Integer, Progress>> convertible : progress.entrySet()) {
+				if (PROCESS.equals(convertible.getKey())) {
+					continue;
+				}
+				long read = 0;
+				long stored = 0;
+				long failed = 0;
+				final StringBuilder sb = new StringBuilder();
+				for (Progress shard : convertible.getValue().values()) {
+					read += shard.rowsRead;
+					stored += shard.rowsStored;
+					failed += shard.rowsFailed;
+					sb.append(sb.length() == 0 ? "" : ",").append(shard.toJson());
+				}
+				writer.write((first ? "" : ",") + "\n  {\"convertible\":" +
+									 ConversionMetrics.jsonString(convertible.getKey()) + ",\"rowsRead\":" + read +
+									 ",\"rowsStored\":" + stored + ",\"rowsFailed\":" + failed + ",\"shards\":[" + sb +
+									 "]}");
+				first = false;
+				log.log(Level.INFO, "All shards of {0}: {1} read, {2} stored, {3} failed",
+						new Object[]{convertible.getKey(), read, stored, failed});
+			}
+			writer.write("\n]}\n");
+		}
+		if (pending.isEmpty()) {
+			log.log(Level.INFO, "All {0} shards finished, merged report written to {1}",
+					new Object[]{shardCount, file});
+		} else {
+			log.log(Level.INFO, "Shards {0} haven''t finished yet, partial report written to {1}",
+					new Object[]{pending, file});
+		}
+	}
+
+	/**
+	 * @return progress of all shards by convertible and shard index
+	 */
+	private Map<String, Map<Integer, Progress>> readProgress() throws SQLException {
+		final Map<String, Map<Integer, Progress>> progress = new TreeMap<>();
+		final PreparedStatement statement = repository.getPreparedStatement(shardIndex, SELECT_ALL);
+		synchronized (statement) {
+			try (ResultSet rs = statement.executeQuery()) {
+				while (rs.next()) {
+					final Progress shard = new Progress(rs.getInt(1), rs.getInt(3), rs.getString(4), rs.getString(5),
+														rs.getLong(6), rs.getLong(7), rs.getLong(8), rs.getLong(9));
+					progress.computeIfAbsent(rs.getString(2), convertible -> new TreeMap<>())
+							.put(shard.shardIndex, shard);
+				}
+			}
+		}
+		return progress;
+	}
+
+	private void write(String convertible, String status, ConversionMetrics metrics) throws SQLException {
+		write(convertible, status, metrics.getRowsRead(), metrics.getRowsStored(), metrics.getRowsFailed());
+	}
+
+	private void write(String convertible, String status, long read, long stored, long failed) throws SQLException {
+		final long now = System.currentTimeMillis();
+		final PreparedStatement update = repository.getPreparedStatement(shardIndex, UPDATE);
+		synchronized (update) {
+			update.setInt(1, shardCount);
+			update.setString(2, owner);
+			update.setString(3, status);
+			update.setLong(4, read);
+			update.setLong(5, stored);
+			update.setLong(6, failed);
+			update.setLong(7, now);
+			update.setInt(8, shardIndex);
+			update.setString(9, convertible);
+			if (update.executeUpdate() > 0) {
+				return;
+			}
+		}
+		// rows of the shard are written only by the process which claimed it, so there is no concurrent insert
+		insert(convertible, status, read, stored, failed, now);
+	}
+
+	private void insert(String convertible, String status, long read, long stored, long failed, long now)
+			throws SQLException {
+		final PreparedStatement insert = repository.getPreparedStatement(shardIndex, INSERT);
+		synchronized (insert) {
+			insert.setInt(1, shardIndex);
+			insert.setString(2, convertible);
+			insert.setInt(3, shardCount);
+			insert.setString(4, owner);
+			insert.setString(5, status);
+			insert.setLong(6, read);
+			insert.setLong(7, stored);
+			insert.setLong(8, failed);
+			insert.setLong(9, now);
+			insert.executeUpdate();
+		}
+	}
+
+	private static class Progress {
+
+		final String owner;
+		final long rowsFailed;
+		final long rowsRead;
+		final long rowsStored;
+		final int shardCount;
+		final int shardIndex;
+		final String status;
+		final long updatedAt;
+
+		Progress(int shardIndex, int shardCount, String owner, String status, long rowsRead, long rowsStored,
+				 long rowsFailed, long updatedAt) {
+			this.shardIndex = shardIndex;
+			this.shardCount = shardCount;
+			this.owner = owner;
+			this.status = status;
+			this.rowsRead = rowsRead;
+			this.rowsStored = rowsStored;
+			this.rowsFailed = rowsFailed;
+			this.updatedAt = updatedAt;
+		}
+
+		String toJson() {
+			return "{\"shard\":" + shardIndex + ",\"owner\":" + ConversionMetrics.jsonString(owner) + ",\"status\":" +
+					ConversionMetrics.jsonString(status) + ",\"rowsRead\":" + rowsRead + ",\"rowsStored\":" +
+					rowsStored + ",\"rowsFailed\":" + rowsFailed + ",\"updatedAt\":" + updatedAt + "}";
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Binary encoding of {@link RowEntity} of a {@link Convertible} used in snapshot of the source, so entities exported
+ * from the source can be later stored without access to it.
+ */
+public interface SnapshotCodec<T extends RowEntity> {
+
+	/**
+	 * Writes all data of the entity needed to store it.
+	 */
+	void write(T entity, DataOutput out) throws IOException;
+
+	/**
+	 * Reads entity written by {@link #write(RowEntity, DataOutput)}.
+	 */
+	T read(DataInput in) throws IOException;
+}
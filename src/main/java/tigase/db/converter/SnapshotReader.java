@@ -0,0 +1,279 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads snapshot written by {@link SnapshotWriter} and feeds its entities to the store workers of {@link
+ * ConversionPipeline}. The file is memory mapped (in segments of whole blocks, as a single mapping is limited to 2GB)
+ * and blocks of a convertible are decompressed and decoded in parallel.
+ */
+class SnapshotReader
+		implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(SnapshotReader.class.getName());
+	private static final long MAX_SEGMENT = 1L << 30;
+
+	private final FileChannel channel;
+	private final String databaseType;
+	private final Path file;
+	private final Map<String, Section> sections = new HashMap<>();
+	private final String serverType;
+
+	SnapshotReader(Path file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			final long size = channel.size();
+			if (size < 20) {
+				throw new IOException(file + " isn't a complete snapshot");
+			}
+			final ByteBuffer trailer = read(size - 12, 12);
+			final long indexOffset = trailer.getLong();
+			if (trailer.getInt() != SnapshotWriter.MAGIC || indexOffset < 0 || indexOffset > size - 12) {
+				throw new IOException(file + " isn't a complete snapshot");
+			}
+			final DataInputStream header = stream(read(0, (int) Math.min(indexOffset, 1024)));
+			if (header.readInt() != SnapshotWriter.MAGIC || header.readInt() != SnapshotWriter.VERSION) {
+				throw new IOException(file + " isn't a snapshot of supported version");
+			}
+			serverType = header.readUTF();
+			databaseType = header.readUTF();
+
+			final DataInputStream index = stream(read(indexOffset, (int) (size - 12 - indexOffset)));
+			final List<Block> blocks = new ArrayList<>();
+			for (int i = index.readInt(); i > 0; i--) {
+				final Section section = new Section(index.readUTF(), index.readBoolean());
+				for (int j = index.readInt(); j > 0; j--) {
+					final Block block = new Block(index.readLong(), index.readInt(), index.readInt(), index.readInt());
+					section.blocks.add(block);
+					section.entities += block.entities;
+					blocks.add(block);
+				}
+				sections.put(section.convertible, section);
+			}
+			map(blocks);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		for (Section section : sections.values()) {
+			log.log(section.complete ? Level.INFO : Level.WARNING, "Snapshot contains {0} entities of {1}{2}",
+					new Object[]{section.entities, section.convertible,
+								 section.complete ? "" : ", but their export didn't finish"});
+		}
+	}
+
+	String getServerType() {
+		return serverType;
+	}
+
+	/**
+	 * @return type of the source database or empty string if unknown
+	 */
+	String getDatabaseType() {
+		return databaseType;
+	}
+
+	boolean contains(String convertible) {
+		return sections.containsKey(convertible);
+	}
+
+	/**
+	 * @return number of entities of the convertible in the snapshot
+	 */
+	long getEntities(String convertible) {
+		final Section section = sections.get(convertible);
+		return section != null ? section.entities : 0;
+	}
+
+	/**
+	 * Decodes all entities of the convertible and passes them to the pipeline; returns once all of them are passed
+	 * or the pipeline is aborted.
+	 *
+	 * @param threads number of threads decoding blocks
+	 */
+	<T extends RowEntity> void read(String convertible, SnapshotCodec<T> codec, ConversionPipeline<T> pipeline,
+									int threads) throws Exception {
+		final Section section = sections.get(convertible);
+		if (section == null) {
+			return;
+		}
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final AtomicInteger counter = new AtomicInteger();
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			final Thread thread = new Thread(runnable, convertible + "-snapshot-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			final List<Future<?>> decoders = new ArrayList<>();
+			for (int i = 0; i < Math.max(1, threads); i++) {
+				decoders.add(executor.submit(() -> {
+					final Inflater inflater = new Inflater(true);
+					try {
+						int index;
+						while ((index = nextBlock.getAndIncrement()) < section.blocks.size()) {
+							if (!decode(section.blocks.get(index), codec, pipeline, inflater)) {
+								break;
+							}
+						}
+					} finally {
+						inflater.end();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> decoder : decoders) {
+				try {
+					decoder.get();
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private <T extends RowEntity> boolean decode(Block block, SnapshotCodec<T> codec, ConversionPipeline<T> pipeline,
+												 Inflater inflater) throws IOException, DataFormatException {
+		// raw inflater may need an extra byte after the compressed data
+		final byte[] compressed = new byte[block.length + 1];
+		block.buffer.duplicate().get(compressed, 0, block.length);
+		final byte[] raw = new byte[block.rawLength];
+		inflater.reset();
+		inflater.setInput(compressed);
+		int length = 0;
+		while (length < raw.length && !inflater.finished()) {
+			final int inflated = inflater.inflate(raw, length, raw.length - length);
+			if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				break;
+			}
+			length += inflated;
+		}
+		if (length != raw.length) {
+			throw new IOException("Block at " + block.offset + " of snapshot " + file + " is corrupted");
+		}
+		final DataInputStream in = stream(ByteBuffer.wrap(raw));
+		for (int i = 0; i < block.entities; i++) {
+			if (!pipeline.acceptEntity(codec.read(in))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Maps blocks in segments of consecutive blocks of up to {@link #MAX_SEGMENT} bytes.
+	 */
+	private void map(List<Block> blocks) throws IOException {
+		Collections.sort(blocks, (a, b) -> Long.compare(a.offset, b.offset));
+		int first = 0;
+		while (first < blocks.size()) {
+			final long start = blocks.get(first).offset;
+			int last = first;
+			while (last + 1 < blocks.size() &&
+					blocks.get(last + 1).offset + blocks.get(last + 1).length - start <= MAX_SEGMENT) {
+				last++;
+			}
+			final long end = blocks.get(last).offset + blocks.get(last).length;
+			final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			for (int i = first; i <= last; i++) {
+				final Block block = blocks.get(i);
+				final ByteBuffer slice = segment.duplicate();
+				slice.position((int) (block.offset - start));
+				slice.limit((int) (block.offset - start) + block.length);
+				block.buffer = slice.slice();
+			}
+			first = last + 1;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(Math.max(0, length));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException(file + " is truncated");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static DataInputStream stream(ByteBuffer buffer) {
+		return new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(),
+															buffer.remaining()));
+	}
+
+	private static class Block {
+
+		final int entities;
+		final int length;
+		final long offset;
+		final int rawLength;
+		ByteBuffer buffer;
+
+		Block(long offset, int length, int rawLength, int entities) {
+			this.offset = offset;
+			this.length = length;
+			this.rawLength = rawLength;
+			this.entities = entities;
+		}
+	}
+
+	private static class Section {
+
+		final List<Block> blocks = new ArrayList<>();
+		final boolean complete;
+		final String convertible;
+		long entities = 0;
+
+		Section(String convertible, boolean complete) {
+			this.convertible = convertible;
+			this.complete = complete;
+		}
+	}
+}
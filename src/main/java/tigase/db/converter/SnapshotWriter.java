@@ -0,0 +1,239 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Writes entities of convertibles exported from the source to a snapshot file, which can be later imported instead
+ * of reading the source.
+ * <p>
+ * Entities are encoded with {@link SnapshotCodec} of the convertible into blocks of about {@link #BLOCK_SIZE} bytes,
+ * each compressed separately with deflate, so blocks can be decoded in parallel. Blocks of convertibles exported at
+ * the same time are interleaved, the index written at the end of the file lists blocks of each convertible:
+ * <pre>
+ * header:  magic, version, server type, database type
+ * blocks:  compressed entities
+ * index:   number of sections, for each: convertible, completed flag, number of blocks and for each block its
+ *          offset, compressed length, length and number of entities
+ * trailer: offset of the index, magic
+ * </pre>
+ */
+class SnapshotWriter
+		implements AutoCloseable {
+
+	static final int BLOCK_SIZE = 1 << 18;
+	static final int MAGIC = 0x54444d53;
+	static final int VERSION = 2;
+	private static final Logger log = Logger.getLogger(SnapshotWriter.class.getName());
+
+	private final FileChannel channel;
+	private final Path file;
+	private final Map<String, List<long[]>> blocks = new LinkedHashMap<>();
+	private final Map<String, Boolean> completed = new LinkedHashMap<>();
+	private boolean closed = false;
+	private long position;
+
+	SnapshotWriter(Path file, Converter.SERVER serverType, String databaseType) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+										StandardOpenOption.TRUNCATE_EXISTING);
+		final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(serverType.name());
+			out.writeUTF(databaseType != null ? databaseType : "");
+		}
+		write(ByteBuffer.wrap(header.toByteArray()));
+	}
+
+	/**
+	 * Creates section of the snapshot for entities of the convertible, used by store workers instead of storing
+	 * entities in the destination.
+	 */
+	synchronized <T extends RowEntity> Section<T> section(String convertible, SnapshotCodec<T> codec) {
+		blocks.put(convertible, new ArrayList<>());
+		completed.put(convertible, false);
+		return new Section<>(convertible, codec);
+	}
+
+	/**
+	 * Writes the index and closes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			final long indexOffset = position;
+			final ByteArrayOutputStream index = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(index)) {
+				out.writeInt(blocks.size());
+				for (Map.Entry<String, List<long[]>> section : blocks.entrySet()) {
+					out.writeUTF(section.getKey());
+					out.writeBoolean(completed.get(section.getKey()));
+					out.writeInt(section.getValue().size());
+					for (long[] block : section.getValue()) {
+						out.writeLong(block[0]);
+						out.writeInt((int) block[1]);
+						out.writeInt((int) block[2]);
+						out.writeInt((int) block[3]);
+					}
+				}
+				out.writeLong(indexOffset);
+				out.writeInt(MAGIC);
+			}
+			write(ByteBuffer.wrap(index.toByteArray()));
+			channel.force(true);
+			log.log(Level.INFO, "Snapshot of {0} saved to {1} ({2} bytes)", new Object[]{blocks.keySet(), file,
+																					   position});
+		} finally {
+			channel.close();
+		}
+	}
+
+	private synchronized void writeBlock(String convertible, byte[] compressed, int length, int rawLength,
+										 int entities) throws IOException {
+		if (closed) {
+			throw new IOException("Snapshot " + file + " is already closed");
+		}
+		blocks.get(convertible).add(new long[]{position, length, rawLength, entities});
+		write(ByteBuffer.wrap(compressed, 0, length));
+	}
+
+	private synchronized void completed(String convertible) {
+		completed.put(convertible, true);
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Entities of a single convertible; may be written concurrently by many store workers, each of them filling its
+	 * own block.
+	 */
+	class Section<T extends RowEntity>
+			implements ConversionPipeline.Sink<T> {
+
+		private final SnapshotCodec<T> codec;
+		private final String convertible;
+		private final Queue<Block> idle = new ConcurrentLinkedQueue<>();
+
+		private Section(String convertible, SnapshotCodec<T> codec) {
+			this.convertible = convertible;
+			this.codec = codec;
+		}
+
+		@Override
+		public List<StoreResult> store(List<T> entities) throws IOException {
+			Block block = idle.poll();
+			if (block == null) {
+				block = new Block();
+			}
+			for (T entity : entities) {
+				codec.write(entity, block.out);
+				block.entities++;
+			}
+			if (block.bytes.size() >= BLOCK_SIZE) {
+				flush(block);
+			}
+			idle.add(block);
+			return Collections.nCopies(entities.size(), StoreResult.stored());
+		}
+
+		/**
+		 * Writes remaining entities and marks the section as complete; called after all entities were written.
+		 */
+		void complete() throws IOException {
+			Block block;
+			while ((block = idle.poll()) != null) {
+				if (block.entities > 0) {
+					flush(block);
+				}
+				block.deflater.end();
+			}
+			completed(convertible);
+		}
+
+		private void flush(Block block) throws IOException {
+			block.out.flush();
+			final int rawLength = block.bytes.size();
+			final Deflater deflater = block.deflater;
+			deflater.reset();
+			deflater.setInput(block.bytes.buffer(), 0, rawLength);
+			deflater.finish();
+			int length = 0;
+			while (!deflater.finished()) {
+				if (length == block.compressed.length) {
+					block.compressed = Arrays.copyOf(block.compressed, block.compressed.length * 2);
+				}
+				length += deflater.deflate(block.compressed, length, block.compressed.length - length);
+			}
+			writeBlock(convertible, block.compressed, length, rawLength, block.entities);
+			block.bytes.reset();
+			block.entities = 0;
+		}
+	}
+
+	private static class Block {
+
+		final BlockBuffer bytes = new BlockBuffer();
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		final DataOutputStream out = new DataOutputStream(bytes);
+		byte[] compressed = new byte[BLOCK_SIZE / 2];
+		int entities = 0;
+	}
+
+	/**
+	 * Exposes the buffer to avoid copying it before compression.
+	 */
+	private static class BlockBuffer
+			extends ByteArrayOutputStream {
+
+		BlockBuffer() {
+			super(BLOCK_SIZE + BLOCK_SIZE / 4);
+		}
+
+		byte[] buffer() {
+			return buf;
+		}
+	}
+}
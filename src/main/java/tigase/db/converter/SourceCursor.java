@@ -0,0 +1,75 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long-lived cursor over the source repository. It keeps the repository leased from {@link DataRepoPool} for as long
+ * as the cursor is open and returns it to the pool on {@link #close()}. Cursors are opened with {@link
+ * DataRepoPool#openCursor(String, Object...)}.
+ */
+public class SourceCursor
+		implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(SourceCursor.class.getName());
+
+	private final Connection connection;
+	private final DataRepoPool.Lease lease;
+	private final DataRepoPool pool;
+	private final boolean restoreAutoCommit;
+	private final ResultSet resultSet;
+	private final Statement statement;
+
+	SourceCursor(DataRepoPool pool, DataRepoPool.Lease lease, Connection connection, Statement statement,
+				 ResultSet resultSet, boolean restoreAutoCommit) {
+		this.pool = pool;
+		this.connection = connection;
+		this.lease = lease;
+		this.statement = statement;
+		this.resultSet = resultSet;
+		this.restoreAutoCommit = restoreAutoCommit;
+	}
+
+	public ResultSet getResultSet() {
+		return resultSet;
+	}
+
+	public boolean next() throws SQLException {
+		return resultSet.next();
+	}
+
+	@Override
+	public void close() {
+		pool.release(statement, resultSet);
+		if (restoreAutoCommit) {
+			try {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			} catch (SQLException ex) {
+				log.log(Level.WARNING, "Couldn't restore auto-commit of the connection", ex);
+			}
+		}
+		lease.close();
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Status log of the conversion (result of storing each entity) written asynchronously: store workers only put
+ * records into a bounded ring buffer and a single writer thread formats them and writes them to the file in batches.
+ * Failures are always recorded with their details (and reported on console), stored entities only if requested,
+ * otherwise they are just counted by {@link ConversionMetrics} and summarised when the convertible is finished.
+ */
+class StatusLog
+		implements AutoCloseable {
+
+	private static final int BATCH_SIZE = 512;
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+	private static final Logger log = Logger.getLogger(StatusLog.class.getName());
+	private static final Logger loggerFor = Logger.getLogger("convertible");
+
+	private final BlockingQueue<Record> ring;
+	private final Writer writer;
+	private final Thread writerThread;
+	private volatile boolean closed = false;
+
+	private enum Type {
+		stored,
+		failed,
+		finished
+	}
+
+	/**
+	 * @param capacity number of records which may wait for the writer before store workers are blocked
+	 * @param append whether to append to existing file (i.e. when resuming conversion) instead of overwriting it
+	 */
+	StatusLog(Path file, int capacity, boolean append) throws IOException {
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		this.ring = new ArrayBlockingQueue<>(Math.max(BATCH_SIZE, capacity));
+		this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+											  StandardOpenOption.WRITE, append
+																		? StandardOpenOption.APPEND
+																		: StandardOpenOption.TRUNCATE_EXISTING);
+		this.writerThread = new Thread(this::write, "status-log");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	void stored(String convertible, RowEntity entity, long rowNumber) {
+		put(new Record(Type.stored, convertible, entity, rowNumber, null, 0, 0));
+	}
+
+	void failed(String convertible, RowEntity entity, long rowNumber, Exception e) {
+		put(new Record(Type.failed, convertible, entity, rowNumber, e, 0, 0));
+	}
+
+	void finished(String convertible, long stored, long failed) {
+		put(new Record(Type.finished, convertible, null, -1, null, stored, failed));
+	}
+
+	/**
+	 * Writes all queued records and closes the file.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			writer.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't close status log", e);
+		}
+	}
+
+	private void put(Record record) {
+		if (closed) {
+			if (log.isLoggable(Level.FINE)) {
+				final StringBuilder sb = new StringBuilder();
+				record.format(sb);
+				log.log(Level.FINE, "Status log already closed, dropping {0}", sb);
+			}
+			return;
+		}
+		try {
+			ring.put(record);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		final List<Record> batch = new ArrayList<>(BATCH_SIZE);
+		final StringBuilder sb = new StringBuilder();
+		while (!closed || !ring.isEmpty()) {
+			try {
+				final Record first = ring.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				ring.drainTo(batch, BATCH_SIZE - 1);
+				for (Record record : batch) {
+					sb.append('[');
+					TIMESTAMP.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(record.timestamp),
+															   ZoneId.systemDefault()), sb);
+					sb.append("] ");
+					final int start = sb.length();
+					record.format(sb);
+					if (record.type == Type.failed) {
+						final String line = sb.substring(start);
+						loggerFor.log(Level.WARNING, line);
+						log.log(Level.FINE, "Storing FAILED: entity: " + record.entity, record.exception);
+					}
+					sb.append('\n');
+				}
+				writer.write(sb.toString());
+				writer.flush();
+			} catch (InterruptedException e) {
+				// closing is signalled with the flag
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Couldn't write status log", e);
+			} finally {
+				batch.clear();
+				sb.setLength(0);
+			}
+		}
+	}
+
+	private static class Record {
+
+		final String convertible;
+		final RowEntity entity;
+		final Exception exception;
+		final long failedCount;
+		final long rowNumber;
+		final long storedCount;
+		final long timestamp = System.currentTimeMillis();
+		final Type type;
+
+		Record(Type type, String convertible, RowEntity entity, long rowNumber, Exception exception,
+			   long storedCount, long failedCount) {
+			this.type = type;
+			this.convertible = convertible;
+			this.entity = entity;
+			this.rowNumber = rowNumber;
+			this.exception = exception;
+			this.storedCount = storedCount;
+			this.failedCount = failedCount;
+		}
+
+		void format(StringBuilder sb) {
+			sb.append('[').append(convertible).append("] ");
+			switch (type) {
+				case finished:
+					sb.append("finished: ").append(storedCount).append(" stored, ").append(failedCount).append(
+							" failed");
+					break;
+				default:
+					sb.append('[').append(rowNumber).append("] ");
+					sb.append(entity != null ? entity.getID() : "row " + rowNumber);
+					sb.append(type == Type.stored ? " : OK" : " : FAILED");
+					if (exception != null) {
+						sb.append(" (").append(exception.getMessage()).append(')');
+					}
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+/**
+ * Outcome of storing single {@link RowEntity} as part of {@link Convertible#storeEntities(java.util.List)}.
+ */
+public class StoreResult {
+
+	private static final StoreResult STORED = new StoreResult(true, null);
+	private static final StoreResult REJECTED = new StoreResult(false, null);
+
+	private final Exception exception;
+	private final boolean stored;
+
+	public static StoreResult stored() {
+		return STORED;
+	}
+
+	/**
+	 * @param exception cause of the failure, {@code null} if entity was simply not stored
+	 */
+	public static StoreResult failed(Exception exception) {
+		return exception == null ? REJECTED : new StoreResult(false, exception);
+	}
+
+	private StoreResult(boolean stored, Exception exception) {
+		this.stored = stored;
+		this.exception = exception;
+	}
+
+	public boolean isStored() {
+		return stored;
+	}
+
+	public Exception getException() {
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		return stored ? "StoreResult{stored}" : "StoreResult{failed=" + exception + '}';
+	}
+}
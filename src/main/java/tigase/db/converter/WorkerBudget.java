@@ -0,0 +1,171 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Global number of transform and store threads shared by {@link ConversionPipeline}s of convertibles running at the
+ * same time, so running them concurrently doesn't multiply number of threads (and source connections used by
+ * them). Threads returned by a finished pipeline are handed over to the pipelines still running with {@link
+ * #redistribute(int)}.
+ */
+class WorkerBudget {
+
+	private final Set<Allocation> allocations = ConcurrentHashMap.newKeySet();
+	private final Semaphore storeThreads;
+	private final Semaphore transformThreads;
+	private final int totalStoreThreads;
+	private final int totalTransformThreads;
+
+	WorkerBudget(int transformThreads, int storeThreads) {
+		this.totalTransformThreads = Math.max(1, transformThreads);
+		this.totalStoreThreads = Math.max(1, storeThreads);
+		this.transformThreads = new Semaphore(totalTransformThreads, true);
+		this.storeThreads = new Semaphore(totalStoreThreads, true);
+	}
+
+	/**
+	 * Takes threads for a pipeline: at least one of each kind (waiting until it's available) and, if free, more up
+	 * to the requested number but no more than the fair share of the budget.
+	 *
+	 * @param transformThreads number of transform threads the pipeline could use
+	 * @param storeThreads number of store threads the pipeline could use
+	 * @param shares number of pipelines between which the budget is split
+	 */
+	Allocation allocate(int transformThreads, int storeThreads, int shares) throws InterruptedException {
+		final int transform = acquire(this.transformThreads, Math.min(transformThreads,
+																	  totalTransformThreads / Math.max(1, shares)));
+		try {
+			final int store = acquire(this.storeThreads,
+									  Math.min(storeThreads, totalStoreThreads / Math.max(1, shares)));
+			final Allocation allocation = new Allocation(transformThreads, storeThreads, transform, store);
+			allocations.add(allocation);
+			return allocation;
+		} catch (InterruptedException e) {
+			this.transformThreads.release(transform);
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives free threads to running pipelines which could use more of them, up to the fair share of each. Allocations
+	 * never shrink, so threads of pipelines exceeding the share are left to them until they are finished.
+	 *
+	 * @param shares number of pipelines which will run from now on, including those not started yet
+	 */
+	void redistribute(int shares) {
+		for (Allocation allocation : new ArrayList<>(allocations)) {
+			allocation.grow(totalTransformThreads / Math.max(1, shares), totalStoreThreads / Math.max(1, shares));
+		}
+	}
+
+	private static int acquire(Semaphore semaphore, int wanted) throws InterruptedException {
+		semaphore.acquire();
+		return 1 + tryAcquire(semaphore, wanted - 1);
+	}
+
+	private static int tryAcquire(Semaphore semaphore, int wanted) {
+		int acquired = 0;
+		while (acquired < wanted && semaphore.tryAcquire()) {
+			acquired++;
+		}
+		return acquired;
+	}
+
+	/**
+	 * Notified about threads added to the allocation by {@link #redistribute(int)}.
+	 */
+	@FunctionalInterface
+	interface Listener {
+
+		void added(int transformThreads, int storeThreads);
+	}
+
+	/**
+	 * Threads taken from the budget, returned on {@link #close()}.
+	 */
+	class Allocation
+			implements AutoCloseable {
+
+		private final int wantedStoreThreads;
+		private final int wantedTransformThreads;
+		private boolean closed = false;
+		private Listener listener;
+		private int storeThreads;
+		private int transformThreads;
+
+		private Allocation(int wantedTransformThreads, int wantedStoreThreads, int transformThreads,
+						   int storeThreads) {
+			this.wantedTransformThreads = wantedTransformThreads;
+			this.wantedStoreThreads = wantedStoreThreads;
+			this.transformThreads = transformThreads;
+			this.storeThreads = storeThreads;
+		}
+
+		synchronized int getStoreThreads() {
+			return storeThreads;
+		}
+
+		synchronized int getTransformThreads() {
+			return transformThreads;
+		}
+
+		/**
+		 * Sets the listener using threads added later. Threads aren't added to the allocation until it has a
+		 * listener, as nobody would use them.
+		 */
+		synchronized void setListener(Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				allocations.remove(this);
+				WorkerBudget.this.transformThreads.release(transformThreads);
+				WorkerBudget.this.storeThreads.release(storeThreads);
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "transform threads: " + transformThreads + ", store threads: " + storeThreads;
+		}
+
+		private synchronized void grow(int transformShare, int storeShare) {
+			if (closed || listener == null) {
+				return;
+			}
+			final int transform = tryAcquire(WorkerBudget.this.transformThreads,
+											 Math.min(wantedTransformThreads, transformShare) - transformThreads);
+			final int store = tryAcquire(WorkerBudget.this.storeThreads,
+										 Math.min(wantedStoreThreads, storeShare) - storeThreads);
+			if (transform > 0 || store > 0) {
+				transformThreads += transform;
+				storeThreads += store;
+				listener.added(transform, store);
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, lock-free cache returning the same instance for equal keys, i.e. parsed contact JIDs or roster group
+ * names repeated in many rosters. It's a direct-mapped table: each key has a single slot and a colliding key simply
+ * replaces the previous entry, so frequently used values stay cached while memory use is fixed.
+ */
+class InterningCache<K, V> {
+
+	private final LongAdder hits = new LongAdder();
+	private final int mask;
+	private final LongAdder misses = new LongAdder();
+	private final String name;
+	private final AtomicReferenceArray<Entry<K, V>> table;
+
+	/**
+	 * Creates value for the key which isn't cached.
+	 */
+	@FunctionalInterface
+	interface Factory<K, V> {
+
+		V create(K key) throws Exception;
+	}
+
+	/**
+	 * @param size maximal number of cached values (rounded up to power of two), {@code 0} disables caching
+	 */
+	InterningCache(String name, int size) {
+		this.name = name;
+		final int capacity = size <= 0 ? 0 : Integer.highestOneBit(Math.min(size, 1 << 29) * 2 - 1);
+		this.table = capacity > 0 ? new AtomicReferenceArray<>(capacity) : null;
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Returns cached value of the key or value created by the factory, which is cached for later calls.
+	 */
+	V get(K key, Factory<K, V> factory) throws Exception {
+		if (table == null || key == null) {
+			return factory.create(key);
+		}
+		final int hash = spread(key.hashCode());
+		final int index = hash & mask;
+		final Entry<K, V> entry = table.get(index);
+		if (entry != null && entry.hash == hash && entry.key.equals(key)) {
+			hits.increment();
+			return entry.value;
+		}
+		misses.increment();
+		final V value = factory.create(key);
+		if (value != null) {
+			table.set(index, new Entry<>(hash, key, value));
+		}
+		return value;
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public String toString() {
+		final long hits = getHits();
+		final long total = hits + getMisses();
+		return String.format("%s{size=%d, hits=%d, misses=%d, hitRatio=%.1f%%}", name,
+							 table == null ? 0 : table.length(), hits, total - hits,
+							 total == 0 ? 0.0 : 100.0 * hits / total);
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static class Entry<K, V> {
+
+		final int hash;
+		final K key;
+		final V value;
+
+		Entry(int hash, K key, V value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+/**
+ * Adds roster items to the user as they are read. Once the roster reaches the chunk size, its items are serialized
+ * into a chunk of the roster stored by Tigase and released, so for rosters of any size at most one chunk of items is
+ * kept in memory (and the serialized roster, which is stored as a single value).
+ */
+class RosterChunker {
+
+	private final int chunkSize;
+	private final RosterSerializer serializer;
+
+	/**
+	 * @param chunkSize number of items serialized at once, 0 disables streaming
+	 */
+	RosterChunker(RosterSerializer serializer, int chunkSize) {
+		this.serializer = serializer;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Pre-sizes roster of the user for the number of items which will be added, if it's known in advance.
+	 */
+	void expect(UserEntity entity, int items) {
+		entity.rosterItems.ensureCapacity(chunkSize > 0 ? Math.min(items, chunkSize) : items);
+	}
+
+	void add(UserEntity entity, UserRosterItem item) {
+		entity.addRosterItem(item);
+		if (chunkSize > 0 && entity.rosterItems.size() >= chunkSize) {
+			entity.addRosterChunk(serializer.serialize(entity.rosterItems));
+			entity.rosterItems.clear();
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import tigase.db.converter.QueryExecutor;
+import tigase.db.converter.SourceCursor;
+import tigase.xmpp.jid.BareJID;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bulk roster loading: both roster tables are read once, sorted by (server_host, username, jid), and merged with
+ * the users cursor sorted in the same way. Users have to be passed to {@link #addRosterItems(UserEntity, String,
+ * String)} in the order of {@link UserCredentialsConverter.QUERY#users_sorted} query.
+ */
+class RosterMergeJoin
+		implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(RosterMergeJoin.class.getName());
+
+	private final RosterChunker chunker;
+	private final InterningCache<String, BareJID> contactJids;
+	private final InterningCache<String, String> groupNames;
+	private final KeyedCursor groups;
+	private final KeyedCursor items;
+	private final boolean withServerHost;
+
+	/**
+	 * Compares keys by their code points, matching ordering produced by {@link UserDataQueries#binaryOrder}.
+	 */
+	static int compareKeys(String key1, String key2) {
+		if (key1 == null || key2 == null) {
+			return key1 == null ? (key2 == null ? 0 : -1) : 1;
+		}
+		int i1 = 0;
+		int i2 = 0;
+		while (i1 < key1.length() && i2 < key2.length()) {
+			final int cp1 = key1.codePointAt(i1);
+			final int cp2 = key2.codePointAt(i2);
+			if (cp1 != cp2) {
+				return Integer.compare(cp1, cp2);
+			}
+			i1 += Character.charCount(cp1);
+			i2 += Character.charCount(cp2);
+		}
+		return Integer.compare(key1.length() - i1, key2.length() - i2);
+	}
+
+	RosterMergeJoin(QueryExecutor queryExecutor, boolean withServerHost, InterningCache<String, BareJID> contactJids,
+					InterningCache<String, String> groupNames, RosterChunker chunker) throws Exception {
+		this.withServerHost = withServerHost;
+		this.chunker = chunker;
+		this.contactJids = contactJids;
+		this.groupNames = groupNames;
+		this.items = new KeyedCursor(
+				queryExecutor.openCursor(UserCredentialsConverter.QUERY.rosteritems_all.name()));
+		try {
+			this.groups = new KeyedCursor(
+					queryExecutor.openCursor(UserCredentialsConverter.QUERY.rostergroups_all.name()));
+		} catch (Exception e) {
+			items.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Adds roster of the user to the entity, skipping all roster entries of users preceding it which were not requested
+	 * (i.e. rows without matching user).
+	 */
+	void addRosterItems(UserEntity entity, String username, String serverHost) throws Exception {
+		while (items.isValid() && compare(items, serverHost, username, null) < 0) {
+			log.log(Level.FINEST, "Skipping roster item without matching user: {0}", items);
+			items.advance();
+		}
+		while (items.isValid() && compare(items, serverHost, username, null) == 0) {
+			final ResultSet rs = items.cursor.getResultSet();
+			final String conJidStr = items.jid;
+			final String nick = rs.getString("nick");
+			final String subscription = rs.getString("subscription");
+			final List<String> itemGroups = getGroups(serverHost, username, conJidStr);
+			final BareJID contactJid = contactJids.get(conJidStr, BareJID::bareJIDInstance);
+			chunker.add(entity, new UserRosterItem(entity.getJid(), contactJid, nick, subscription, itemGroups));
+			items.advance();
+		}
+	}
+
+	@Override
+	public void close() {
+		items.close();
+		groups.close();
+	}
+
+	private List<String> getGroups(String serverHost, String username, String jid) throws Exception {
+		// most of roster items have at most a single group
+		List<String> result = Collections.emptyList();
+		while (groups.isValid() && compare(groups, serverHost, username, jid) < 0) {
+			groups.advance();
+		}
+		while (groups.isValid() && compare(groups, serverHost, username, jid) == 0) {
+			if (result.isEmpty()) {
+				result = new ArrayList<>(2);
+			}
+			result.add(groupNames.get(groups.cursor.getResultSet().getString("grp"), group -> group));
+			groups.advance();
+		}
+		return result;
+	}
+
+	private int compare(KeyedCursor cursor, String serverHost, String username, String jid) {
+		int result = withServerHost ? compareKeys(cursor.serverHost, serverHost) : 0;
+		if (result == 0) {
+			result = compareKeys(cursor.username, username);
+		}
+		if (result == 0 && jid != null) {
+			result = compareKeys(cursor.jid, jid);
+		}
+		return result;
+	}
+
+	private class KeyedCursor {
+
+		final SourceCursor cursor;
+		String jid;
+		String serverHost;
+		String username;
+		boolean valid;
+
+		KeyedCursor(SourceCursor cursor) throws Exception {
+			this.cursor = cursor;
+			try {
+				advance();
+			} catch (Exception e) {
+				cursor.close();
+				throw e;
+			}
+		}
+
+		boolean isValid() {
+			return valid;
+		}
+
+		void advance() throws Exception {
+			valid = cursor.next();
+			if (valid) {
+				final ResultSet rs = cursor.getResultSet();
+				username = rs.getString("username");
+				serverHost = withServerHost ? rs.getString("server_host") : null;
+				jid = rs.getString("jid");
+			}
+		}
+
+		void close() {
+			cursor.close();
+		}
+
+		@Override
+		public String toString() {
+			return (serverHost != null ? serverHost + "/" : "") + username + " -> " + jid;
+		}
+	}
+}
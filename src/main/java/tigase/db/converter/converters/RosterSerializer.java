@@ -0,0 +1,132 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Serializes roster items to the XML stored by Tigase as user's roster, writing them directly to a per-thread
+ * reused builder instead of creating {@link tigase.xmpp.impl.roster.RosterElement} and {@link tigase.xml.Element}
+ * for each item. Each item is written as the {@code contact} element read back by {@code RosterElement}:
+ * <pre>
+ * &lt;contact jid="..." subs="..." preped="simple" name="..." groups="...,..."/&gt;
+ * </pre>
+ * Name is written only for items with a nick and groups only for items in any group; groups are joined with commas
+ * (as Tigase splits them). All values are escaped as XML attribute values.
+ */
+class RosterSerializer {
+
+	private static final int MAX_POOLED_CAPACITY = 1 << 20;
+	private static final String PREPED = "simple";
+
+	private final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+	/**
+	 * @return serialized roster or empty string if there are no items
+	 */
+	String serialize(Collection<UserRosterItem> items) {
+		if (items.isEmpty()) {
+			return "";
+		}
+		final StringBuilder sb = builders.get();
+		try {
+			for (UserRosterItem item : items) {
+				append(sb, item);
+			}
+			return sb.toString();
+		} finally {
+			sb.setLength(0);
+			if (sb.capacity() > MAX_POOLED_CAPACITY) {
+				// don't keep memory of exceptionally large rosters
+				builders.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param chunks roster items already serialized in chunks, preceding the items
+	 *
+	 * @return serialized roster or empty string if there are no items
+	 */
+	String serialize(List<String> chunks, Collection<UserRosterItem> items) {
+		if (chunks.isEmpty()) {
+			return serialize(items);
+		}
+		final String tail = serialize(items);
+		int length = tail.length();
+		for (String chunk : chunks) {
+			length += chunk.length();
+		}
+		final StringBuilder sb = new StringBuilder(length);
+		for (String chunk : chunks) {
+			sb.append(chunk);
+		}
+		return sb.append(tail).toString();
+	}
+
+	private static void append(StringBuilder sb, UserRosterItem item) {
+		sb.append("<contact jid=\"");
+		appendEscaped(sb, item.jid.toString());
+		sb.append("\" subs=\"").append(item.subscription.toString());
+		sb.append("\" preped=\"").append(PREPED).append('"');
+		if (item.nick != null) {
+			sb.append(" name=\"");
+			appendEscaped(sb, item.nick);
+			sb.append('"');
+		}
+		final List<String> groups = item.groups;
+		if (!groups.isEmpty()) {
+			sb.append(" groups=\"");
+			for (int i = 0; i < groups.size(); i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				appendEscaped(sb, groups.get(i));
+			}
+			sb.append('"');
+		}
+		sb.append("/>");
+	}
+
+	private static void appendEscaped(StringBuilder sb, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				case '\'':
+					sb.append("&apos;");
+					break;
+				default:
+					sb.append(c);
+					break;
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * SCRAM credentials (RFC 5802) of a user computed by the source server or derived from the password by the converter;
+ * salt and keys are kept Base64 encoded, as they are stored both by the source and by Tigase.
+ */
+public class ScramCredentials {
+
+	public static final String SCRAM_SHA_1 = "SCRAM-SHA-1";
+	public static final String SCRAM_SHA_256 = "SCRAM-SHA-256";
+	private static final int SALT_LENGTH = 16;
+
+	final int iterations;
+	final String mechanism;
+	final String salt;
+	final String serverKey;
+	final String storedKey;
+
+	public ScramCredentials(String mechanism, String salt, int iterations, String storedKey, String serverKey) {
+		this.mechanism = mechanism;
+		this.salt = salt;
+		this.iterations = iterations;
+		this.storedKey = storedKey;
+		this.serverKey = serverKey;
+	}
+
+	static boolean isSupported(String mechanism) {
+		return SCRAM_SHA_1.equals(mechanism) || SCRAM_SHA_256.equals(mechanism);
+	}
+
+	/**
+	 * Derives credentials of the mechanism from the password with a random salt (RFC 5802, section 3).
+	 */
+	static ScramCredentials derive(String mechanism, String password, int iterations, SecureRandom random)
+			throws GeneralSecurityException {
+		final byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		return derive(mechanism, password, iterations, salt);
+	}
+
+	/**
+	 * Derives credentials of the mechanism from the password with the given salt.
+	 */
+	static ScramCredentials derive(String mechanism, String password, int iterations, byte[] salt)
+			throws GeneralSecurityException {
+		final boolean sha1 = SCRAM_SHA_1.equals(mechanism);
+		final byte[] saltedPassword = SecretKeyFactory.getInstance(sha1 ? "PBKDF2WithHmacSHA1" : "PBKDF2WithHmacSHA256")
+				.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, sha1 ? 160 : 256))
+				.getEncoded();
+		final Mac mac = Mac.getInstance(sha1 ? "HmacSHA1" : "HmacSHA256");
+		mac.init(new SecretKeySpec(saltedPassword, mac.getAlgorithm()));
+		final byte[] clientKey = mac.doFinal("Client Key".getBytes(StandardCharsets.UTF_8));
+		final byte[] serverKey = mac.doFinal("Server Key".getBytes(StandardCharsets.UTF_8));
+		final byte[] storedKey = MessageDigest.getInstance(sha1 ? "SHA-1" : "SHA-256").digest(clientKey);
+		final Base64.Encoder base64 = Base64.getEncoder();
+		return new ScramCredentials(mechanism, base64.encodeToString(salt), iterations,
+									base64.encodeToString(storedKey), base64.encodeToString(serverKey));
+	}
+
+	public String getMechanism() {
+		return mechanism;
+	}
+
+	/**
+	 * @return value of the credential in the format of Tigase credentials repository
+	 */
+	public String encode() {
+		return "s=" + salt + ",i=" + iterations + ",t=" + storedKey + ",e=" + serverKey;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("ScramCredentials{");
+		sb.append("mechanism='").append(mechanism).append('\'');
+		sb.append(", iterations=").append(iterations);
+		sb.append('}');
+		return sb.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (o == null || getClass() != o.getClass()) {
+			return false;
+		}
+		final ScramCredentials that = (ScramCredentials) o;
+		return iterations == that.iterations && mechanism.equals(that.mechanism) && salt.equals(that.salt) &&
+				serverKey.equals(that.serverKey) && storedKey.equals(that.storedKey);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = mechanism.hashCode();
+		result = 31 * result + salt.hashCode();
+		result = 31 * result + iterations;
+		result = 31 * result + storedKey.hashCode();
+		result = 31 * result + serverKey.hashCode();
+		return result;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import tigase.db.DataRepository;
+import tigase.db.DataSource;
+import tigase.db.TigaseDBException;
+import tigase.db.beans.DataSourceBean;
+import tigase.db.converter.DataRepoPool;
+import tigase.db.jdbc.DataRepositoryImpl;
+import tigase.xmpp.jid.BareJID;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores users with SCRAM credentials computed by the source directly in the credentials of Tigase SQL schema
+ * ({@code TigAddUserPlainPw} and {@code TigUpdateUserCredential} procedures). Adding user with {@link
+ * tigase.db.AuthRepository#addUser(BareJID, String)} requires the password, from which the credentials would be
+ * derived again.
+ * <p>
+ * Batches of users are stored in a single transaction on connections of own {@link DataRepoPool} of each destination
+ * (one connection per store thread), so users of the batch are committed at once instead of one by one. Procedures
+ * are called one by one, as on some databases they return results, which can't be part of a JDBC batch.
+ */
+class ScramCredentialsWriter {
+
+	private static final Logger log = Logger.getLogger(ScramCredentialsWriter.class.getName());
+
+	private static final String ADD_USER_QUERY = "{ call TigAddUserPlainPw(?, ?) }";
+	private static final String ADD_USER = "converter-scram-add-user";
+	private static final String CREDENTIAL_ID = "default";
+	private static final String UPDATE_CREDENTIAL_QUERY = "{ call TigUpdateUserCredential(?, ?, ?, ?) }";
+	private static final String UPDATE_CREDENTIAL = "converter-scram-update-credential";
+
+	private final int connections;
+	private final DataSourceBean dataSourceBean;
+	private final Set<DataRepository> initialised = ConcurrentHashMap.newKeySet();
+	// repositories with exclusive connections for transactions, by the destination they are connected to
+	private final Map<DataRepository, DataRepoPool> transactionPools = new ConcurrentHashMap<>();
+
+	/**
+	 * @param connections number of connections to each destination used to store batches of users in transactions
+	 */
+	ScramCredentialsWriter(DataSourceBean dataSourceBean, int connections) {
+		this.dataSourceBean = dataSourceBean;
+		this.connections = Math.max(1, connections);
+	}
+
+	/**
+	 * Adds the user (unless it already exists) and sets its credentials.
+	 */
+	void store(BareJID jid, List<ScramCredentials> credentials, boolean exists) throws TigaseDBException {
+		try {
+			write(getRepository(jid.getDomain()), jid, credentials, exists);
+		} catch (SQLException e) {
+			throw new TigaseDBException("Couldn't store SCRAM credentials of " + jid, e);
+		}
+	}
+
+	/**
+	 * Adds the users (unless they already exist) and sets their credentials in a single transaction.
+	 *
+	 * @param users users of the same destination
+	 * @param existing users which already exist and only their credentials are updated
+	 *
+	 * @throws TigaseDBException if any of the users couldn't be stored, none of them is stored then
+	 */
+	void storeAll(List<UserEntity> users, Set<BareJID> existing) throws TigaseDBException {
+		final DataRepoPool pool = getTransactionPool(users.get(0).getJid().getDomain());
+		try (DataRepoPool.Lease lease = pool.lease()) {
+			final DataRepository repository = lease.getRepository();
+			repository.startTransaction();
+			try {
+				for (UserEntity user : users) {
+					write(repository, user.getJid(), user.getScramCredentials(), existing.contains(user.getJid()));
+				}
+				repository.commit();
+			} catch (SQLException e) {
+				try {
+					repository.rollback();
+				} catch (SQLException ex) {
+					log.log(Level.FINEST, "Couldn't roll back transaction", ex);
+				}
+				throw e;
+			} finally {
+				repository.endTransaction();
+			}
+		} catch (SQLException e) {
+			throw new TigaseDBException("Couldn't store SCRAM credentials of " + users.size() + " users", e);
+		}
+	}
+
+	private void write(DataRepository repository, BareJID jid, List<ScramCredentials> credentials, boolean exists)
+			throws SQLException {
+		if (!exists) {
+			final PreparedStatement addUser = repository.getPreparedStatement(jid, ADD_USER);
+			synchronized (addUser) {
+				addUser.setString(1, jid.toString());
+				addUser.setNull(2, Types.VARCHAR);
+				addUser.execute();
+			}
+		}
+		final PreparedStatement updateCredential = repository.getPreparedStatement(jid, UPDATE_CREDENTIAL);
+		synchronized (updateCredential) {
+			for (ScramCredentials credential : credentials) {
+				updateCredential.setString(1, jid.toString());
+				updateCredential.setString(2, CREDENTIAL_ID);
+				updateCredential.setString(3, credential.getMechanism());
+				updateCredential.setString(4, credential.encode());
+				updateCredential.execute();
+			}
+		}
+	}
+
+	private DataRepoPool getTransactionPool(String domain) throws TigaseDBException {
+		final DataRepository repository = getRepository(domain);
+		DataRepoPool pool = transactionPools.get(repository);
+		if (pool == null) {
+			synchronized (this) {
+				pool = transactionPools.get(repository);
+				if (pool == null) {
+					pool = new DataRepoPool();
+					try {
+						pool.initialize(repository.getResourceUri());
+						for (int i = 0; i < connections; i++) {
+							final DataRepository connection = new DataRepositoryImpl();
+							connection.initialize(repository.getResourceUri());
+							pool.addRepo(connection);
+						}
+						pool.initPreparedStatement(ADD_USER, ADD_USER_QUERY);
+						pool.initPreparedStatement(UPDATE_CREDENTIAL, UPDATE_CREDENTIAL_QUERY);
+					} catch (SQLException e) {
+						throw new TigaseDBException("Couldn't prepare statements storing SCRAM credentials", e);
+					}
+					transactionPools.put(repository, pool);
+				}
+			}
+		}
+		return pool;
+	}
+
+	private DataRepository getRepository(String domain) throws TigaseDBException {
+		final DataSource dataSource = dataSourceBean != null ? dataSourceBean.getRepository(domain) : null;
+		if (!(dataSource instanceof DataRepository)) {
+			throw new TigaseDBException(
+					"SCRAM credentials can be stored only in SQL database, destination of " + domain + " is " +
+							dataSource);
+		}
+		final DataRepository repository = (DataRepository) dataSource;
+		if (!initialised.contains(repository)) {
+			synchronized (this) {
+				if (!initialised.contains(repository)) {
+					try {
+						repository.initPreparedStatement(ADD_USER, ADD_USER_QUERY);
+						repository.initPreparedStatement(UPDATE_CREDENTIAL, UPDATE_CREDENTIAL_QUERY);
+					} catch (SQLException e) {
+						throw new TigaseDBException("Couldn't prepare statements storing SCRAM credentials", e);
+					}
+					initialised.add(repository);
+				}
+			}
+		}
+		return repository;
+	}
+}
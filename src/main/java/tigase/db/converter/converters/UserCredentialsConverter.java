@@ -18,24 +18,36 @@
 package tigase.db.converter.converters;
 
 import tigase.db.AuthRepository;
+import tigase.db.DataSource;
+import tigase.db.TigaseDBException;
+import tigase.db.UserExistsException;
 import tigase.db.UserRepository;
+import tigase.db.beans.DataSourceBean;
+import tigase.db.converter.BulkLoader;
 import tigase.db.converter.Converter;
 import tigase.db.converter.Convertible;
+import tigase.db.converter.NullSink;
+import tigase.db.converter.Partitioning;
+import tigase.db.converter.PortableFormatParser;
 import tigase.db.converter.QueryExecutor;
+import tigase.db.converter.SnapshotCodec;
+import tigase.db.converter.SourceCursor;
+import tigase.db.converter.StoreResult;
 import tigase.kernel.beans.Inject;
+import tigase.util.stringprep.TigaseStringprepException;
 import tigase.vhosts.VHostItem;
 import tigase.vhosts.VHostManager;
 import tigase.xmpp.impl.roster.RosterAbstract;
 import tigase.xmpp.jid.BareJID;
 
+import java.security.SecureRandom;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Class responsible for converting user-data
@@ -47,8 +59,12 @@ import java.util.stream.Collectors;
 public class UserCredentialsConverter
 		implements Convertible<UserEntity> {
 
+	private static final Logger log = Logger.getLogger(UserCredentialsConverter.class.getName());
+
 	@Inject
 	AuthRepository authRepository;
+	@Inject(nullAllowed = true)
+	DataSourceBean dataSourceBean;
 	Converter.ConverterProperties properties;
 	@Inject
 	QueryExecutor queryExecutor;
@@ -56,7 +72,25 @@ public class UserCredentialsConverter
 	UserRepository userRepository;
 	@Inject
 	VHostManager vHostManager;
+	// in-memory destination replacing repositories and vHostManager in null-sink mode
+	private NullSink nullSink;
+	// native bulk load of the destination replacing repositories (virtual hosts are still added by vHostManager)
+	private BulkLoader bulkLoader;
+	// domains known to exist in the destination, so storing users doesn't have to check them in repository
+	private final Set<String> knownDomains = ConcurrentHashMap.newKeySet();
 	private UserDataQueries queries;
+	// contact JIDs and group names repeated across rosters of many users
+	private InterningCache<String, BareJID> contactJids;
+	private InterningCache<String, String> groupNames;
+	private RosterMergeJoin rosterMergeJoin;
+	private final RosterSerializer rosterSerializer = new RosterSerializer();
+	private RosterChunker rosterChunker;
+	// whether users table of the source has columns of SCRAM credentials
+	private boolean scramColumns = false;
+	private final LongAdder scramUsers = new LongAdder();
+	private ScramCredentialsWriter scramWriter;
+	// salts of credentials derived from passwords, one generator per thread of the preparation pool
+	private final ThreadLocal<SecureRandom> saltRandom = ThreadLocal.withInitial(SecureRandom::new);
 
 	public UserCredentialsConverter() {
 	}
@@ -64,12 +98,84 @@ public class UserCredentialsConverter
 	@Override
 	public void initialise(Converter.ConverterProperties properties) {
 		this.properties = properties;
-		queries = new UserDataQueries(properties.getServerType(), properties.getDatabaseType());
+		scramColumns = hasScramColumns();
+		queries = new UserDataQueries(properties.getServerType(), properties.getDatabaseType(), scramColumns);
+		contactJids = new InterningCache<>("contactJids", properties.getInternCacheSize());
+		groupNames = new InterningCache<>("groupNames", properties.getInternCacheSize());
+		// exported snapshot needs roster items, not their serialized form
+		rosterChunker = new RosterChunker(rosterSerializer,
+										  properties.isSnapshotExport() ? 0 : properties.getRosterChunkSize());
+		scramWriter = new ScramCredentialsWriter(dataSourceBean, properties.getStoreThreads());
 	}
 
 	@Override
 	public Optional<String> getMainQuery() {
-		return queries.getQuery(QUERY.users.name());
+		return queries.getQuery(properties.isBulkRosterLoading() ? QUERY.users_sorted.name() : QUERY.users.name());
+	}
+
+	@Override
+	public Optional<Partitioning> getPartitioning() {
+		// bulk roster loading merges rosters with a single sorted users cursor, partitioning then only identifies rows
+		return !getMainQuery().isPresent() ? Optional.empty() : Optional.of(queries.getUsersPartitioning());
+	}
+
+	@Override
+	public boolean requiresSequentialProcessing() {
+		return properties.isBulkRosterLoading();
+	}
+
+	@Override
+	public Optional<SnapshotCodec<UserEntity>> getSnapshotCodec() {
+		return Optional.of(new UserEntityCodec(contactJids, groupNames, rosterChunker));
+	}
+
+	@Override
+	public Optional<PortableFormatParser<UserEntity>> getPortableFormatParser() {
+		return Optional.of(new UserPortableFormatParser(contactJids, groupNames, rosterChunker));
+	}
+
+	@Override
+	public boolean useNullSink(NullSink sink) {
+		nullSink = sink;
+		authRepository = sink.getAuthRepository();
+		userRepository = sink.getUserRepository();
+		return true;
+	}
+
+	@Override
+	public boolean useBulkLoader(BulkLoader loader) {
+		bulkLoader = loader;
+		return true;
+	}
+
+	@Override
+	public void startConversion() throws Exception {
+		if (properties.isSnapshotImport() || properties.isPortableFormatImport()) {
+			// users are read from the file without access to the source, virtual hosts are added while storing
+			return;
+		}
+		if (!properties.isDryRun() && !properties.isSnapshotExport()) {
+			provisionVHosts();
+		}
+		if (scramColumns) {
+			log.log(Level.INFO, "Source keeps SCRAM credentials, they will be stored as {0} without hashing passwords",
+					properties.getScramMechanism());
+		}
+		if (properties.isBulkRosterLoading()) {
+			rosterMergeJoin = new RosterMergeJoin(queryExecutor,
+												  Converter.SERVER.ejabberd_new.equals(properties.getServerType()),
+												  contactJids, groupNames, rosterChunker);
+		}
+	}
+
+	@Override
+	public void finishConversion() {
+		if (rosterMergeJoin != null) {
+			rosterMergeJoin.close();
+			rosterMergeJoin = null;
+		}
+		log.log(Level.INFO, "Roster interning: {0}, {1}", new Object[]{contactJids, groupNames});
+		log.log(Level.INFO, "Users with SCRAM credentials: {0}", scramUsers.sum());
 	}
 
 	@Override
@@ -77,6 +183,7 @@ public class UserCredentialsConverter
 		String username = null;
 		String server_host = null;
 		String password = null;
+		int iterationCount = 0;
 		switch (properties.getServerType()) {
 			case ejabberd:
 				username = rs.getString("username");
@@ -89,52 +196,326 @@ public class UserCredentialsConverter
 				password = rs.getString("password");
 				break;
 		}
+		if (scramColumns) {
+			iterationCount = rs.getInt("iterationcount");
+		}
 		if (username != null && server_host != null && password != null) {
 			final BareJID jid = BareJID.bareJIDInstance(username, server_host);
-			final UserEntity userEntity = new UserEntity(jid, password);
-			addRosterItems(userEntity, jid);
+			final UserEntity userEntity;
+			if (iterationCount > 0) {
+				// password column holds StoredKey of SCRAM credentials
+				userEntity = new UserEntity(jid, null);
+				userEntity.addScramCredentials(
+						new ScramCredentials(properties.getScramMechanism(), rs.getString("salt"), iterationCount,
+											 password, rs.getString("serverkey")));
+			} else {
+				userEntity = new UserEntity(jid, password);
+			}
+			if (rosterMergeJoin != null) {
+				rosterMergeJoin.addRosterItems(userEntity, username, server_host);
+			} else {
+				queryExecutor.executeQuery(QUERY.rosteritems.name(), addRosterItems(userEntity));
+			}
 			return Optional.of(userEntity);
 		} else {
 			return Optional.empty();
 		}
 	}
 
+	/**
+	 * Derives SCRAM credentials from the plaintext password (if enabled), so storing the user doesn't keep the
+	 * connection to the destination while Tigase hashes the password.
+	 */
+	@Override
+	public void prepareEntity(UserEntity entity) throws Exception {
+		if (entity.getPassword() == null || !entity.getScramCredentials().isEmpty()) {
+			return;
+		}
+		for (String mechanism : properties.getHashedPasswordMechanisms()) {
+			entity.addScramCredentials(ScramCredentials.derive(mechanism, entity.getPassword(),
+															   properties.getScramIterations(), saltRandom.get()));
+		}
+	}
+
 	@Override
 	public boolean storeEntity(UserEntity entity) throws Exception {
-		authRepository.addUser(entity.getJid(), entity.getPassword());
+		ensureVHost(entity.getJid().getDomain());
+		storeUser(entity);
+		return true;
+	}
 
-		if (!vHostManager.isLocalDomain(entity.getJid().getDomain())) {
-			final VHostItem vHostItem = new VHostItem(entity.getJid().getDomain());
-			vHostManager.getComponentRepository().addItem(vHostItem);
+	/**
+	 * Stores batch of users; failure of a single user doesn't affect remaining users of the batch. Users with SCRAM
+	 * credentials are stored in a single transaction for each destination, users of a failed transaction are stored
+	 * again one by one.
+	 * <p>
+	 * Users with plaintext passwords (unless credentials are derived with {@code --hash-passwords}) are still stored
+	 * one by one with {@link tigase.db.AuthRepository#addUser(BareJID, String)}, each committed on its own, as only
+	 * Tigase knows the credentials encoders to derive their credentials with. Rosters are always stored one by one
+	 * with the user repository, after the transaction of their users.
+	 */
+	@Override
+	public List<StoreResult> storeEntities(List<UserEntity> entities) throws Exception {
+		final StoreResult[] results = new StoreResult[entities.size()];
+		final List<Integer> ready = new ArrayList<>(entities.size());
+		for (int i = 0; i < entities.size(); i++) {
+			try {
+				ensureVHost(entities.get(i).getJid().getDomain());
+				ready.add(i);
+			} catch (Exception e) {
+				results[i] = StoreResult.failed(e);
+			}
+		}
+		if (bulkLoader != null) {
+			final List<UserEntity> loading = new ArrayList<>(ready.size());
+			for (int i : ready) {
+				loading.add(entities.get(i));
+			}
+			final List<StoreResult> loaded = loadUsers(loading);
+			for (int i = 0; i < ready.size(); i++) {
+				results[ready.get(i)] = loaded.get(i);
+			}
+			return Arrays.asList(results);
+		}
+		if (nullSink == null) {
+			storeInTransactions(entities, ready, results);
 		}
+		for (int i : ready) {
+			if (results[i] == null) {
+				try {
+					storeUser(entities.get(i));
+					results[i] = StoreResult.stored();
+				} catch (Exception e) {
+					results[i] = StoreResult.failed(e);
+				}
+			}
+		}
+		return Arrays.asList(results);
+	}
 
-		final String roster = entity.getRosterItems()
-				.stream()
-				.map(userRosterItem -> userRosterItem.getRosterElement().getRosterElement().toString())
-				.collect(Collectors.joining());
-		if (roster != null && !roster.isEmpty()) {
-			userRepository.setData(entity.getJid(), null, RosterAbstract.ROSTER, roster);
+	/**
+	 * Stores users with SCRAM credentials in a single transaction for each destination and sets results of those
+	 * which were stored; results of users of failed transactions are left unset.
+	 */
+	private void storeInTransactions(List<UserEntity> entities, List<Integer> ready, StoreResult[] results) {
+		if (dataSourceBean == null) {
+			return;
 		}
+		final Map<DataSource, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i : ready) {
+			final UserEntity entity = entities.get(i);
+			if (!entity.getScramCredentials().isEmpty()) {
+				groups.computeIfAbsent(dataSourceBean.getRepository(entity.getJid().getDomain()),
+									   dataSource -> new ArrayList<>()).add(i);
+			}
+		}
+		for (List<Integer> group : groups.values()) {
+			if (group.size() < 2) {
+				continue;
+			}
+			final List<UserEntity> users = new ArrayList<>(group.size());
+			final Set<BareJID> existing = new HashSet<>();
+			try {
+				for (int i : group) {
+					final UserEntity entity = entities.get(i);
+					users.add(entity);
+					if (properties.isIncremental() && userRepository.userExists(entity.getJid())) {
+						existing.add(entity.getJid());
+					}
+				}
+				scramWriter.storeAll(users, existing);
+			} catch (Exception e) {
+				log.log(Level.FINE,
+						"Couldn't store " + users.size() + " users in a transaction, storing them one by one", e);
+				continue;
+			}
+			scramUsers.add(group.size());
+			for (int i : group) {
+				final UserEntity entity = entities.get(i);
+				try {
+					storeRoster(entity, existing.contains(entity.getJid()));
+					results[i] = StoreResult.stored();
+				} catch (Exception e) {
+					results[i] = StoreResult.failed(e);
+				}
+			}
+		}
+	}
 
-		return true;
+	/**
+	 * Loads users of the batch with the bulk loader, grouped by the destination of their domains; failure of a group
+	 * fails all of its users, as none of them is loaded.
+	 */
+	private List<StoreResult> loadUsers(List<UserEntity> entities) throws Exception {
+		if (dataSourceBean == null) {
+			throw new TigaseDBException("Users can be bulk loaded only to SQL database");
+		}
+		final StoreResult[] results = new StoreResult[entities.size()];
+		final Map<DataSource, List<Integer>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < entities.size(); i++) {
+			final UserEntity entity = entities.get(i);
+			if (entity.getScramCredentials().isEmpty()) {
+				results[i] = StoreResult.failed(new TigaseDBException(
+						"User " + entity.getJid() + " without SCRAM credentials can't be loaded"));
+			} else {
+				groups.computeIfAbsent(dataSourceBean.getRepository(entity.getJid().getDomain()),
+									   dataSource -> new ArrayList<>()).add(i);
+			}
+		}
+		for (Map.Entry<DataSource, List<Integer>> group : groups.entrySet()) {
+			final List<BulkLoader.User> users = new ArrayList<>(group.getValue().size());
+			for (int i : group.getValue()) {
+				final UserEntity entity = entities.get(i);
+				final BulkLoader.User user = new BulkLoader.User(entity.getJid());
+				for (ScramCredentials credentials : entity.getScramCredentials()) {
+					user.addCredential(credentials.getMechanism(), credentials.encode());
+				}
+				final String roster = rosterSerializer.serialize(entity.getRosterChunks(), entity.getRosterItems());
+				if (!roster.isEmpty()) {
+					user.addData(RosterAbstract.ROSTER, roster);
+				}
+				users.add(user);
+			}
+			StoreResult result;
+			try {
+				bulkLoader.load(group.getKey(), users);
+				result = StoreResult.stored();
+				scramUsers.add(users.size());
+			} catch (TigaseDBException e) {
+				result = StoreResult.failed(e);
+			}
+			for (int i : group.getValue()) {
+				results[i] = result;
+			}
+		}
+		return Arrays.asList(results);
 	}
 
 	@Override
 	public Map<String, String> getAdditionalQueriesToInitialise() {
-		return queries.getAllQueriesForServerAndDatabase().orElse(Collections.emptyMap());
+		return queries.getSelectedQueries();
 	}
 
-	@SuppressWarnings("unchecked")
-	private void addRosterItems(UserEntity userEntity, BareJID jid) throws Exception {
-		final List<UserRosterItem> rosterItems = (List<UserRosterItem>) queryExecutor.executeQuery(
-				QUERY.rosteritems.name(), getRosterItems(jid));
-		userEntity.addRosterItems(rosterItems);
+	/**
+	 * Creates virtual hosts of all users before conversion starts; for {@code ejabberd_new} distinct {@code
+	 * server_host} values are read from the source, otherwise the configured virtual host is used.
+	 */
+	private void provisionVHosts() throws Exception {
+		final Set<String> domains = new LinkedHashSet<>();
+		final Optional<String> serverHostsQuery = queries.getQuery(QUERY.server_hosts.name());
+		if (serverHostsQuery.isPresent()) {
+			try (SourceCursor cursor = queryExecutor.openCursor(QUERY.server_hosts.name())) {
+				while (cursor.next()) {
+					final String serverHost = cursor.getResultSet().getString(1);
+					if (serverHost != null) {
+						domains.add(serverHost);
+					}
+				}
+			}
+		} else if (properties.getVHost() != null) {
+			domains.add(properties.getVHost());
+		}
+		for (String serverHost : domains) {
+			try {
+				// normalised the same way as domain of the users' JIDs
+				addVHost(BareJID.bareJIDInstance(serverHost).getDomain());
+			} catch (TigaseStringprepException e) {
+				log.log(Level.WARNING, "Invalid virtual host {0}, users of it won't be converted", serverHost);
+			}
+		}
+		log.log(Level.INFO, "Provisioned {0} virtual hosts", knownDomains.size());
+	}
+
+	private void ensureVHost(String domain) throws Exception {
+		if (!knownDomains.contains(domain)) {
+			addVHost(domain);
+		}
+	}
+
+	private synchronized void addVHost(String domain) throws Exception {
+		if (knownDomains.contains(domain)) {
+			return;
+		}
+		if (nullSink != null) {
+			nullSink.addVHost(domain);
+		} else if (!vHostManager.isLocalDomain(domain)) {
+			final VHostItem vHostItem = new VHostItem(domain);
+			vHostManager.getComponentRepository().addItem(vHostItem);
+		}
+		knownDomains.add(domain);
+	}
+
+	/**
+	 * Checks whether users table of the source has columns of SCRAM credentials.
+	 */
+	private boolean hasScramColumns() {
+		if (properties.isSnapshotImport() || properties.isPortableFormatImport() ||
+				properties.getDatabaseType() == null) {
+			return false;
+		}
+		try {
+			return queryExecutor.getColumns("users").containsAll(Arrays.asList("serverkey", "salt", "iterationcount"));
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Couldn't check columns of users table, SCRAM credentials won't be converted", e);
+			return false;
+		}
+	}
+
+	private void storeUser(UserEntity entity) throws Exception {
+		storeRoster(entity, entity.getScramCredentials().isEmpty() ? addUser(entity) : addScramUser(entity));
+	}
+
+	/**
+	 * @param existed whether the user was stored by the previous run, so its roster may have to be removed
+	 */
+	private void storeRoster(UserEntity entity, boolean existed) throws Exception {
+		final String roster = rosterSerializer.serialize(entity.getRosterChunks(), entity.getRosterItems());
+		if (!roster.isEmpty()) {
+			userRepository.setData(entity.getJid(), null, RosterAbstract.ROSTER, roster);
+		} else if (existed) {
+			userRepository.removeData(entity.getJid(), null, RosterAbstract.ROSTER);
+		}
+	}
+
+	/**
+	 * @return {@code true} if the user already existed (in incremental mode) and its password was updated
+	 */
+	private boolean addUser(UserEntity entity) throws Exception {
+		try {
+			authRepository.addUser(entity.getJid(), entity.getPassword());
+			return false;
+		} catch (UserExistsException e) {
+			if (!properties.isIncremental()) {
+				throw e;
+			}
+			// user converted by previous run changed since then
+			authRepository.updatePassword(entity.getJid(), entity.getPassword());
+			return true;
+		}
+	}
+
+	/**
+	 * Adds user with SCRAM credentials computed by the source, so there is no password to derive them from, or derived
+	 * from the password ahead of storing.
+	 *
+	 * @return {@code true} if the user already existed (in incremental mode) and its credentials were updated
+	 */
+	private boolean addScramUser(UserEntity entity) throws Exception {
+		scramUsers.increment();
+		if (nullSink != null) {
+			authRepository.addUser(entity.getJid(), null);
+			return false;
+		}
+		final boolean exists = properties.isIncremental() && userRepository.userExists(entity.getJid());
+		scramWriter.store(entity.getJid(), entity.getScramCredentials(), exists);
+		return exists;
 	}
 
 	private QueryExecutor.QueryFunction<PreparedStatement, List<String>> getRosterItemGroups(BareJID ownerJid,
 																							 BareJID contactJid) {
 		return preparedStatement -> {
-			List<String> items = new CopyOnWriteArrayList<>();
+			// most of roster items have at most a single group
+			List<String> items = Collections.emptyList();
 
 			ResultSet resultSet = null;
 			// private final static String ROSTER_GROUPS = "SELECT username, jid, grp FROM rostergroups WHERE username = ? AND jid = ?";
@@ -145,17 +526,24 @@ public class UserCredentialsConverter
 			}
 			resultSet = preparedStatement.executeQuery();
 			while (resultSet.next()) {
-				final String group = resultSet.getString("grp");
-				items.add(group);
+				if (items.isEmpty()) {
+					items = new ArrayList<>(2);
+				}
+				items.add(groupNames.get(resultSet.getString("grp"), group -> group));
 			}
 			return items;
 		};
 	}
 
-	@SuppressWarnings("unchecked")
-	private QueryExecutor.QueryFunction<PreparedStatement, List<UserRosterItem>> getRosterItems(BareJID jid) {
+	/**
+	 * Adds roster items of the user to the entity as they are read.
+	 *
+	 * @return number of added items
+	 */
+	private QueryExecutor.QueryFunction<PreparedStatement, Integer> addRosterItems(UserEntity userEntity) {
+		final BareJID jid = userEntity.getJid();
 		return preparedStatement -> {
-			List<UserRosterItem> items = new CopyOnWriteArrayList<>();
+			int count = 0;
 
 			ResultSet resultSet = null;
 
@@ -167,16 +555,17 @@ public class UserCredentialsConverter
 			resultSet = preparedStatement.executeQuery();
 			while (resultSet.next()) {
 				final String conJidStr = resultSet.getString("jid");
-				final BareJID conJid = BareJID.bareJIDInstance(conJidStr);
+				final BareJID conJid = contactJids.get(conJidStr, BareJID::bareJIDInstance);
 				final String nick = resultSet.getString("nick");
 				final String subscription = resultSet.getString("subscription");
 
-				final List<String> groups = (List<String>) queryExecutor.executeQuery(QUERY.rostergroups.name(),
-																					  getRosterItemGroups(jid, conJid));
+				final List<String> groups = queryExecutor.executeQuery(QUERY.rostergroups.name(),
+																	   getRosterItemGroups(jid, conJid));
 				final UserRosterItem userRosterItem = new UserRosterItem(jid, conJid, nick, subscription, groups);
-				items.add(userRosterItem);
+				rosterChunker.add(userEntity, userRosterItem);
+				count++;
 			}
-			return items;
+			return count;
 		};
 	}
 
@@ -184,6 +573,10 @@ public class UserCredentialsConverter
 		users,
 		rosteritems,
 		rostergroups,
-		vcard
+		vcard,
+		users_sorted,
+		rosteritems_all,
+		rostergroups_all,
+		server_hosts
 	}
 }
@@ -19,6 +19,7 @@ package tigase.db.converter.converters;
 
 import tigase.db.DataRepository;
 import tigase.db.converter.Converter;
+import tigase.db.converter.Partitioning;
 
 import java.util.Collections;
 import java.util.Map;
@@ -27,26 +28,47 @@ import java.util.concurrent.ConcurrentHashMap;
 
 class UserDataQueries {
 
-	private final static String SELECT_USERS = "SELECT username, password FROM users";
-	private final static String SELECT_NEW_USERS = "SELECT username, server_host, password FROM users";
-	private final static String ROSTER_ITEMS = "SELECT username, jid, nick, subscription FROM rosterusers WHERE username = ?";
-	private final static String ROSTER_NEW_ITEMS = "SELECT username, server_host, jid, nick, subscription FROM rosterusers WHERE username = ? AND server_host = ?";
+	private final static String USERS_COLUMNS = "username, password";
+	private final static String USERS_NEW_COLUMNS = "username, server_host, password";
+	// columns of SCRAM credentials (in schema of ejabberd supporting SCRAM), password column holds StoredKey if
+	// iterationcount is positive
+	private final static String SCRAM_COLUMNS = ", serverkey, salt, iterationcount";
+	private final static String SELECT_NEW_SERVER_HOSTS = "SELECT DISTINCT server_host FROM users";
+	private final static String ROSTER_ITEMS = "SELECT username, jid, nick, subscription FROM rosterusers WHERE username = ? ORDER BY jid";
+	private final static String ROSTER_NEW_ITEMS = "SELECT username, server_host, jid, nick, subscription FROM rosterusers WHERE username = ? AND server_host = ? ORDER BY jid";
 	private final static String ROSTER_GROUPS = "SELECT username, jid, grp FROM rostergroups WHERE username = ? AND jid = ?";
 	private final static String ROSTER_NEW_GROUPS = "SELECT username, server_host, jid, grp FROM rostergroups WHERE username = ? AND jid = ? AND server_host = ?";
+	// sorted variants used by bulk roster loading; %1$s - username, %2$s - server_host, %3$s - jid in binary order,
+	// %4$s - SCRAM columns if present
+	private final static String SELECT_USERS_SORTED = "SELECT username, password%4$s FROM users ORDER BY %1$s";
+	private final static String SELECT_NEW_USERS_SORTED = "SELECT username, server_host, password%4$s FROM users ORDER BY %2$s, %1$s";
+	private final static String ROSTER_ALL_ITEMS = "SELECT username, jid, nick, subscription FROM rosterusers ORDER BY %1$s, %3$s";
+	private final static String ROSTER_NEW_ALL_ITEMS = "SELECT username, server_host, jid, nick, subscription FROM rosterusers ORDER BY %2$s, %1$s, %3$s";
+	private final static String ROSTER_ALL_GROUPS = "SELECT username, jid, grp FROM rostergroups ORDER BY %1$s, %3$s";
+	private final static String ROSTER_NEW_ALL_GROUPS = "SELECT username, server_host, jid, grp FROM rostergroups ORDER BY %2$s, %1$s, %3$s";
 	final Map<String, String> selectedQueries;
 	DataRepository.dbTypes dbType;
 	// Converter.SERVER [type] / DataRepository.dbTypes / query
 	Map<String, Map<String, Map<String, String>>> queries = new ConcurrentHashMap<>();
+	// SCRAM_COLUMNS if the source has them, empty otherwise
+	final String scramColumns;
 	Converter.SERVER serverType;
+	// Converter.SERVER [type] / query template for sorted variants
+	Map<String, Map<String, String>> sortedQueries = new ConcurrentHashMap<>();
 
-	UserDataQueries(Converter.SERVER serverType, DataRepository.dbTypes dbType) {
+	/**
+	 * @param scramCredentials whether users table of the source has columns of SCRAM credentials
+	 */
+	UserDataQueries(Converter.SERVER serverType, DataRepository.dbTypes dbType, boolean scramCredentials) {
 		this.serverType = serverType;
 		this.dbType = dbType;
+		this.scramColumns = scramCredentials ? SCRAM_COLUMNS : "";
 		final Map<String, Map<String, String>> ejabberdQueries = queries.computeIfAbsent(
 				Converter.SERVER.ejabberd.name(), k -> new ConcurrentHashMap<>());
 		final Map<String, String> ejabberdSqlGeneric = new ConcurrentHashMap<>();
 
-		ejabberdSqlGeneric.put(UserCredentialsConverter.QUERY.users.name(), SELECT_USERS);
+		ejabberdSqlGeneric.put(UserCredentialsConverter.QUERY.users.name(),
+							   "SELECT " + USERS_COLUMNS + scramColumns + " FROM users");
 		ejabberdSqlGeneric.put(UserCredentialsConverter.QUERY.rosteritems.name(), ROSTER_ITEMS);
 		ejabberdSqlGeneric.put(UserCredentialsConverter.QUERY.rostergroups.name(), ROSTER_GROUPS);
 
@@ -54,29 +76,88 @@ class UserDataQueries {
 		ejabberdQueries.put(DataRepository.dbTypes.jtds.name(), ejabberdSqlGeneric);
 		ejabberdQueries.put(DataRepository.dbTypes.mysql.name(), ejabberdSqlGeneric);
 		ejabberdQueries.put(DataRepository.dbTypes.postgresql.name(), ejabberdSqlGeneric);
+		ejabberdQueries.put(DataRepository.dbTypes.derby.name(), ejabberdSqlGeneric);
+
+		final Map<String, String> ejabberdSorted = sortedQueries.computeIfAbsent(Converter.SERVER.ejabberd.name(),
+																				 k -> new ConcurrentHashMap<>());
+		ejabberdSorted.put(UserCredentialsConverter.QUERY.users_sorted.name(), SELECT_USERS_SORTED);
+		ejabberdSorted.put(UserCredentialsConverter.QUERY.rosteritems_all.name(), ROSTER_ALL_ITEMS);
+		ejabberdSorted.put(UserCredentialsConverter.QUERY.rostergroups_all.name(), ROSTER_ALL_GROUPS);
 
 		final Map<String, Map<String, String>> ejabberdNewQueries = queries.computeIfAbsent(
 				Converter.SERVER.ejabberd_new.name(), k -> new ConcurrentHashMap<>());
 		final Map<String, String> ejabberdSqlNewGeneric = new ConcurrentHashMap<>();
 
-		ejabberdSqlNewGeneric.put(UserCredentialsConverter.QUERY.users.name(), SELECT_NEW_USERS);
+		ejabberdSqlNewGeneric.put(UserCredentialsConverter.QUERY.users.name(),
+								  "SELECT " + USERS_NEW_COLUMNS + scramColumns + " FROM users");
 		ejabberdSqlNewGeneric.put(UserCredentialsConverter.QUERY.rosteritems.name(), ROSTER_NEW_ITEMS);
 		ejabberdSqlNewGeneric.put(UserCredentialsConverter.QUERY.rostergroups.name(), ROSTER_NEW_GROUPS);
+		ejabberdSqlNewGeneric.put(UserCredentialsConverter.QUERY.server_hosts.name(), SELECT_NEW_SERVER_HOSTS);
 
 		ejabberdNewQueries.put(DataRepository.dbTypes.mysql.name(), ejabberdSqlNewGeneric);
 		ejabberdNewQueries.put(DataRepository.dbTypes.postgresql.name(), ejabberdSqlNewGeneric);
+		ejabberdNewQueries.put(DataRepository.dbTypes.derby.name(), ejabberdSqlNewGeneric);
+
+		final Map<String, String> ejabberdNewSorted = sortedQueries.computeIfAbsent(
+				Converter.SERVER.ejabberd_new.name(), k -> new ConcurrentHashMap<>());
+		ejabberdNewSorted.put(UserCredentialsConverter.QUERY.users_sorted.name(), SELECT_NEW_USERS_SORTED);
+		ejabberdNewSorted.put(UserCredentialsConverter.QUERY.rosteritems_all.name(), ROSTER_NEW_ALL_ITEMS);
+		ejabberdNewSorted.put(UserCredentialsConverter.QUERY.rostergroups_all.name(), ROSTER_NEW_ALL_GROUPS);
 
-		selectedQueries = getAllQueriesForServerAndDatabase().orElse(Collections.emptyMap());
+		selectedQueries = getAllQueriesForServerAndDatabase().map(this::withSortedQueries)
+				.orElse(Collections.emptyMap());
+	}
+
+	/**
+	 * Expression ordering values of the column by their binary representation (code points), independently of the
+	 * collation of the column, so the order matches {@link RosterMergeJoin#compareKeys(String, String)}.
+	 */
+	static String binaryOrder(DataRepository.dbTypes dbType, String column) {
+		switch (dbType) {
+			case mysql:
+				return "CAST(" + column + " AS BINARY)";
+			case postgresql:
+				return column + " COLLATE \"C\"";
+			case sqlserver:
+			case jtds:
+				return column + " COLLATE Latin1_General_BIN2";
+			// derby with default UCS_BASIC collation already compares code points
+			default:
+				return column;
+		}
+	}
+
+	private Map<String, String> withSortedQueries(Map<String, String> genericQueries) {
+		final Map<String, String> result = new ConcurrentHashMap<>(genericQueries);
+		sortedQueries.getOrDefault(serverType.name(), Collections.emptyMap())
+				.forEach((id, template) -> result.put(id, String.format(template, binaryOrder(dbType, "username"),
+																		binaryOrder(dbType, "server_host"),
+																		binaryOrder(dbType, "jid"), scramColumns)));
+		return result;
 	}
 
 	Optional<String> getQuery(String query) {
 		return Optional.ofNullable(selectedQueries.get(query));
 	}
 
+	/**
+	 * Partitioning of {@link UserCredentialsConverter.QUERY#users} query by username
+	 */
+	Partitioning getUsersPartitioning() {
+		return new Partitioning("users", Converter.SERVER.ejabberd_new.equals(serverType)
+										 ? USERS_NEW_COLUMNS + scramColumns
+										 : USERS_COLUMNS + scramColumns, "username");
+	}
+
+	Map<String, String> getSelectedQueries() {
+		return selectedQueries;
+	}
+
 	Optional<Map<String, String>> getAllQueriesForServerAndDatabase() {
 		final Map<String, Map<String, String>> orDefault = queries.getOrDefault(serverType.name(),
 																				Collections.emptyMap());
-		final Map<String, String> value = orDefault.get(dbType.name());
+		// there is no database when users are imported from XEP-0227 file
+		final Map<String, String> value = dbType != null ? orDefault.get(dbType.name()) : null;
 		return Optional.ofNullable(value);
 	}
 
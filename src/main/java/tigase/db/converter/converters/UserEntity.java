@@ -20,16 +20,24 @@ package tigase.db.converter.converters;
 import tigase.db.converter.RowEntity;
 import tigase.xmpp.jid.BareJID;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 public class UserEntity
 		implements RowEntity {
 
 	BareJID jid;
 	String password;
-	List<UserRosterItem> rosterItems = new CopyOnWriteArrayList<>();
+	// roster is built and read by a single thread at a time (entity is passed between stages through queues)
+	final ArrayList<UserRosterItem> rosterItems = new ArrayList<>();
+	// serialized roster items preceding rosterItems, if the roster was streamed in chunks (see RosterChunker)
+	List<String> rosterChunks = Collections.emptyList();
+	// credentials computed by the source, used instead of the password
+	List<ScramCredentials> scramCredentials = Collections.emptyList();
 
 	public UserEntity(BareJID jid, String password) {
 		this.jid = jid;
@@ -40,10 +48,24 @@ public class UserEntity
 		return jid;
 	}
 
+	/**
+	 * @return password of the user or {@code null} if the source keeps only SCRAM credentials of the user
+	 */
 	public String getPassword() {
 		return password;
 	}
 
+	public List<ScramCredentials> getScramCredentials() {
+		return scramCredentials;
+	}
+
+	public void addScramCredentials(ScramCredentials credentials) {
+		if (scramCredentials.isEmpty()) {
+			scramCredentials = new ArrayList<>(2);
+		}
+		scramCredentials.add(credentials);
+	}
+
 	@Override
 	public String getID() {
 		return String.valueOf(jid);
@@ -61,11 +83,70 @@ public class UserEntity
 		return rosterItems.addAll(items);
 	}
 
+	/**
+	 * @return serialized roster items preceding {@link #getRosterItems()} if the roster was streamed in chunks, empty
+	 * otherwise
+	 */
+	public List<String> getRosterChunks() {
+		return Collections.unmodifiableList(rosterChunks);
+	}
+
+	void addRosterChunk(String chunk) {
+		if (rosterChunks.isEmpty()) {
+			rosterChunks = new ArrayList<>();
+		}
+		rosterChunks.add(chunk);
+	}
+
+	/**
+	 * Digest of the credentials and the roster; roster items and their groups are digested in sorted order as the
+	 * source doesn't return them in any particular order. Chunks of streamed roster are digested as they are, in the
+	 * order of roster items read from the source (sorted by contact JID).
+	 */
+	@Override
+	public boolean digest(MessageDigest digest) {
+		update(digest, String.valueOf(jid));
+		update(digest, password);
+		for (ScramCredentials credentials : scramCredentials) {
+			update(digest, credentials.encode());
+		}
+		for (String chunk : rosterChunks) {
+			update(digest, chunk);
+		}
+		final List<UserRosterItem> items = new ArrayList<>(rosterItems);
+		items.sort(Comparator.comparing(item -> String.valueOf(item.jid)));
+		for (UserRosterItem item : items) {
+			update(digest, String.valueOf(item.jid));
+			update(digest, item.nick);
+			update(digest, item.subscription.name());
+			final List<String> groups = new ArrayList<>(item.groups);
+			groups.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+			for (String group : groups) {
+				update(digest, group);
+			}
+			digest.update((byte) 2);
+		}
+		return true;
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		if (value == null) {
+			digest.update((byte) 1);
+		} else {
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder("UserEntity{");
 		sb.append("jid=").append(jid);
 		sb.append(", password='").append(password).append('\'');
+		sb.append(", scramCredentials=").append(scramCredentials);
+		if (!rosterChunks.isEmpty()) {
+			sb.append(", rosterChunks=").append(rosterChunks.size());
+		}
 		sb.append(", rosterItems=").append(rosterItems);
 		sb.append('}');
 		return sb.toString();
@@ -88,14 +169,22 @@ public class UserEntity
 		if (password != null ? !password.equals(that.password) : that.password != null) {
 			return false;
 		}
-		return rosterItems != null ? rosterItems.equals(that.rosterItems) : that.rosterItems == null;
+		if (!scramCredentials.equals(that.scramCredentials)) {
+			return false;
+		}
+		if (!rosterChunks.equals(that.rosterChunks)) {
+			return false;
+		}
+		return rosterItems.equals(that.rosterItems);
 	}
 
 	@Override
 	public int hashCode() {
 		int result = jid != null ? jid.hashCode() : 0;
 		result = 31 * result + (password != null ? password.hashCode() : 0);
-		result = 31 * result + (rosterItems != null ? rosterItems.hashCode() : 0);
+		result = 31 * result + scramCredentials.hashCode();
+		result = 31 * result + rosterChunks.hashCode();
+		result = 31 * result + rosterItems.hashCode();
 		return result;
 	}
 }
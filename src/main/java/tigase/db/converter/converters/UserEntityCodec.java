@@ -0,0 +1,131 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import tigase.db.converter.SnapshotCodec;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes user with password or SCRAM credentials and roster; JIDs were already normalised when the user was read
+ * from the source, so they are decoded without stringprep processing. Contact JIDs and group names are shared between
+ * decoded rosters.
+ */
+class UserEntityCodec
+		implements SnapshotCodec<UserEntity> {
+
+	private static final RosterAbstract.SubscriptionType[] SUBSCRIPTIONS = RosterAbstract.SubscriptionType.values();
+
+	private final RosterChunker chunker;
+	private final InterningCache<String, BareJID> contactJids;
+	private final InterningCache<String, String> groupNames;
+
+	UserEntityCodec(InterningCache<String, BareJID> contactJids, InterningCache<String, String> groupNames,
+					RosterChunker chunker) {
+		this.contactJids = contactJids;
+		this.groupNames = groupNames;
+		this.chunker = chunker;
+	}
+
+	@Override
+	public void write(UserEntity entity, DataOutput out) throws IOException {
+		writeString(out, entity.getJid().toString());
+		writeString(out, entity.getPassword());
+		final List<ScramCredentials> credentials = entity.getScramCredentials();
+		out.writeByte(credentials.size());
+		for (ScramCredentials credential : credentials) {
+			writeString(out, credential.mechanism);
+			writeString(out, credential.salt);
+			out.writeInt(credential.iterations);
+			writeString(out, credential.storedKey);
+			writeString(out, credential.serverKey);
+		}
+		if (!entity.getRosterChunks().isEmpty()) {
+			throw new IOException("Roster of " + entity.getJid() + " was already serialized, it can't be exported");
+		}
+		final List<UserRosterItem> items = entity.getRosterItems();
+		out.writeInt(items.size());
+		for (UserRosterItem item : items) {
+			writeString(out, item.jid.toString());
+			writeString(out, item.nick);
+			out.writeByte(item.subscription.ordinal());
+			out.writeInt(item.groups.size());
+			for (String group : item.groups) {
+				writeString(out, group);
+			}
+		}
+	}
+
+	@Override
+	public UserEntity read(DataInput in) throws IOException {
+		final BareJID jid = BareJID.bareJIDInstanceNS(readString(in));
+		final UserEntity entity = new UserEntity(jid, readString(in));
+		for (int i = in.readUnsignedByte(); i > 0; i--) {
+			entity.addScramCredentials(
+					new ScramCredentials(readString(in), readString(in), in.readInt(), readString(in), readString(in)));
+		}
+		final int itemCount = in.readInt();
+		chunker.expect(entity, itemCount);
+		try {
+			for (int i = 0; i < itemCount; i++) {
+				final BareJID contactJid = contactJids.get(readString(in), BareJID::bareJIDInstanceNS);
+				final String nick = readString(in);
+				final RosterAbstract.SubscriptionType subscription = SUBSCRIPTIONS[in.readUnsignedByte()];
+				final int groupCount = in.readInt();
+				final List<String> groups = groupCount == 0 ? Collections.emptyList() : new ArrayList<>(groupCount);
+				for (int g = 0; g < groupCount; g++) {
+					groups.add(groupNames.get(readString(in), group -> group));
+				}
+				chunker.add(entity, new UserRosterItem(jid, contactJid, nick, subscription, groups));
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Couldn't decode roster of " + jid, e);
+		}
+		return entity;
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
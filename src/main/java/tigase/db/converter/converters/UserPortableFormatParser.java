@@ -0,0 +1,227 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import tigase.db.converter.PortableFormatParser;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.jid.BareJID;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses credentials (password or SCRAM credentials) and roster ({@code jabber:iq:roster} query) of a user of XEP-0227
+ * file; remaining data of the user (i.e. vCard, offline messages or private storage) is skipped.
+ * <pre>
+ * &lt;user name='juliet' password='s3crEt'&gt;
+ *   &lt;scram-credentials xmlns='urn:xmpp:pie:0#scram' mechanism='SCRAM-SHA-1'&gt;
+ *     &lt;iter-count&gt;4096&lt;/iter-count&gt;
+ *     &lt;salt&gt;...&lt;/salt&gt;
+ *     &lt;server-key&gt;...&lt;/server-key&gt;
+ *     &lt;stored-key&gt;...&lt;/stored-key&gt;
+ *   &lt;/scram-credentials&gt;
+ *   &lt;query xmlns='jabber:iq:roster'&gt;
+ *     &lt;item jid='romeo@montague.net' name='Romeo' subscription='both'&gt;
+ *       &lt;group&gt;Friends&lt;/group&gt;
+ *     &lt;/item&gt;
+ *   &lt;/query&gt;
+ * &lt;/user&gt;
+ * </pre>
+ */
+class UserPortableFormatParser
+		implements PortableFormatParser<UserEntity> {
+
+	private static final Logger log = Logger.getLogger(UserPortableFormatParser.class.getName());
+	private static final String ROSTER_XMLNS = "jabber:iq:roster";
+	private static final String SCRAM_XMLNS = "urn:xmpp:pie:0#scram";
+
+	private final RosterChunker chunker;
+	private final InterningCache<String, BareJID> contactJids;
+	private final InterningCache<String, String> groupNames;
+
+	UserPortableFormatParser(InterningCache<String, BareJID> contactJids, InterningCache<String, String> groupNames,
+							 RosterChunker chunker) {
+		this.contactJids = contactJids;
+		this.groupNames = groupNames;
+		this.chunker = chunker;
+	}
+
+	@Override
+	public Optional<UserEntity> parseUser(String host, XMLStreamReader reader) throws Exception {
+		final String username = reader.getAttributeValue(null, "name");
+		final String password = reader.getAttributeValue(null, "password");
+		if (username == null || host == null) {
+			log.log(Level.WARNING, "User {0} of host {1} without name, skipping...", new Object[]{username, host});
+			skipElement(reader);
+			return Optional.empty();
+		}
+		final BareJID jid;
+		try {
+			jid = BareJID.bareJIDInstance(username, host);
+		} catch (TigaseStringprepException e) {
+			log.log(Level.WARNING, "Invalid JID of user {0} of host {1}, skipping...", new Object[]{username, host});
+			skipElement(reader);
+			return Optional.empty();
+		}
+		final UserEntity entity = new UserEntity(jid, password);
+		while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+			if (reader.isStartElement()) {
+				if ("query".equals(reader.getLocalName()) && ROSTER_XMLNS.equals(reader.getNamespaceURI())) {
+					parseRoster(entity, reader);
+				} else if ("scram-credentials".equals(reader.getLocalName()) &&
+						SCRAM_XMLNS.equals(reader.getNamespaceURI())) {
+					parseScramCredentials(jid, reader).ifPresent(entity::addScramCredentials);
+				} else {
+					skipElement(reader);
+				}
+			}
+		}
+		if (password == null && entity.getScramCredentials().isEmpty()) {
+			log.log(Level.WARNING, "User {0} without password or supported SCRAM credentials, skipping...", jid);
+			return Optional.empty();
+		}
+		return Optional.of(entity);
+	}
+
+	private Optional<ScramCredentials> parseScramCredentials(BareJID jid, XMLStreamReader reader) throws Exception {
+		final String mechanism = reader.getAttributeValue(null, "mechanism");
+		String iterations = null;
+		String salt = null;
+		String serverKey = null;
+		String storedKey = null;
+		while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+			if (reader.isStartElement()) {
+				switch (reader.getLocalName()) {
+					case "iter-count":
+						iterations = reader.getElementText().trim();
+						break;
+					case "salt":
+						salt = reader.getElementText().trim();
+						break;
+					case "server-key":
+						serverKey = reader.getElementText().trim();
+						break;
+					case "stored-key":
+						storedKey = reader.getElementText().trim();
+						break;
+					default:
+						skipElement(reader);
+						break;
+				}
+			}
+		}
+		if (!ScramCredentials.isSupported(mechanism)) {
+			log.log(Level.FINE, "Unsupported {0} credentials of {1}, skipping...", new Object[]{mechanism, jid});
+			return Optional.empty();
+		}
+		if (iterations == null || salt == null || serverKey == null || storedKey == null ||
+				!iterations.matches("[1-9][0-9]{0,8}")) {
+			log.log(Level.WARNING, "Incomplete {0} credentials of {1}, skipping...", new Object[]{mechanism, jid});
+			return Optional.empty();
+		}
+		return Optional.of(new ScramCredentials(mechanism, salt, Integer.parseInt(iterations), storedKey, serverKey));
+	}
+
+	private void parseRoster(UserEntity entity, XMLStreamReader reader) throws Exception {
+		while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+			if (reader.isStartElement()) {
+				if ("item".equals(reader.getLocalName())) {
+					parseItem(entity.getJid(), reader).ifPresent(item -> chunker.add(entity, item));
+				} else {
+					skipElement(reader);
+				}
+			}
+		}
+	}
+
+	private Optional<UserRosterItem> parseItem(BareJID jid, XMLStreamReader reader) throws Exception {
+		final String contact = reader.getAttributeValue(null, "jid");
+		final String nick = reader.getAttributeValue(null, "name");
+		final RosterAbstract.SubscriptionType subscription = getSubscriptionType(
+				reader.getAttributeValue(null, "subscription"), reader.getAttributeValue(null, "ask"));
+		// most of roster items have at most a single group
+		List<String> groups = Collections.emptyList();
+		while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+			if (reader.isStartElement()) {
+				if ("group".equals(reader.getLocalName())) {
+					if (groups.isEmpty()) {
+						groups = new ArrayList<>(2);
+					}
+					groups.add(groupNames.get(reader.getElementText(), group -> group));
+				} else {
+					skipElement(reader);
+				}
+			}
+		}
+		if (contact == null) {
+			return Optional.empty();
+		}
+		try {
+			return Optional.of(new UserRosterItem(jid, contactJids.get(contact, BareJID::bareJIDInstance), nick,
+												  subscription, groups));
+		} catch (TigaseStringprepException e) {
+			log.log(Level.WARNING, "Invalid JID {0} in roster of {1}, skipping...", new Object[]{contact, jid});
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Maps {@code subscription} and {@code ask} attributes of roster item (RFC 6121).
+	 */
+	private static RosterAbstract.SubscriptionType getSubscriptionType(String subscription, String ask) {
+		final boolean pendingOut = "subscribe".equals(ask);
+		switch (subscription != null ? subscription : "none") {
+			case "both":
+				return RosterAbstract.SubscriptionType.both;
+			case "to":
+				return RosterAbstract.SubscriptionType.to;
+			case "from":
+				return pendingOut
+					   ? RosterAbstract.SubscriptionType.from_pending_out
+					   : RosterAbstract.SubscriptionType.from;
+			case "none":
+			default:
+				return pendingOut
+					   ? RosterAbstract.SubscriptionType.none_pending_out
+					   : RosterAbstract.SubscriptionType.none;
+		}
+	}
+
+	/**
+	 * Consumes the current element up to its end element.
+	 */
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
@@ -44,35 +44,43 @@ class UserRosterItem {
 	final BareJID jid;
 	final String nick;
 	final BareJID ownerJid;
-	final RosterElement rosterElement;
 	final RosterAbstract.SubscriptionType subscription;
 
 	public UserRosterItem(BareJID ownerJid, BareJID iid, String nick, String subscription, List<String> groups) {
+		this(ownerJid, iid, nick, getSubscriptionType(subscription), groups);
+	}
+
+	UserRosterItem(BareJID ownerJid, BareJID jid, String nick, RosterAbstract.SubscriptionType subscription,
+				   List<String> groups) {
 		this.ownerJid = ownerJid;
-		this.jid = iid;
+		this.jid = jid;
 		this.nick = nick;
+		this.subscription = subscription;
+		this.groups = groups;
+	}
 
+	private static RosterAbstract.SubscriptionType getSubscriptionType(String subscription) {
 		switch (subscription) {
 			case "B":
-				this.subscription = RosterAbstract.SubscriptionType.both;
-				break;
+				return RosterAbstract.SubscriptionType.both;
 			case "T":
-				this.subscription = RosterAbstract.SubscriptionType.to;
-				break;
+				return RosterAbstract.SubscriptionType.to;
 			case "F":
-				this.subscription = RosterAbstract.SubscriptionType.from;
-				break;
+				return RosterAbstract.SubscriptionType.from;
 			case "N":
 			default:
-				this.subscription = RosterAbstract.SubscriptionType.none;
-				break;
+				return RosterAbstract.SubscriptionType.none;
 		}
-		this.groups = groups;
-		rosterElement = new RosterElement(JID.jidInstance(jid), nick, groups.toArray(new String[0]));
-		rosterElement.setSubscription(this.subscription);
 	}
 
+	/**
+	 * Creates new {@link RosterElement} of the item; roster is stored using {@link RosterSerializer} which doesn't
+	 * need it.
+	 */
 	public RosterElement getRosterElement() {
+		final RosterElement rosterElement = new RosterElement(JID.jidInstance(jid), nick,
+															  groups.toArray(new String[0]));
+		rosterElement.setSubscription(subscription);
 		return rosterElement;
 	}
 
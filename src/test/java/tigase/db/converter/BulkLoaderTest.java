@@ -0,0 +1,278 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.DataSource;
+import tigase.xmpp.jid.BareJID;
+
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Rows are written for offline loading and loaded to tables of Tigase schema in Derby, as the load script would do,
+ * then checked by the loader.
+ */
+public class BulkLoaderTest {
+
+	private static final String DATABASE = "bulk-loader";
+
+	private Path directory;
+
+	/**
+	 * {@code TigGetUserDBUid} procedure of Tigase schema, looking the user up by hash of its ID.
+	 */
+	public static void getUserDBUid(String userId, ResultSet[] result) throws Exception {
+		final Connection connection = DriverManager.getConnection("jdbc:default:connection");
+		final PreparedStatement statement = connection.prepareStatement(
+				"SELECT uid FROM tig_users WHERE sha1_user_id = ?");
+		statement.setString(1, sha1(userId.toLowerCase(Locale.ROOT)));
+		result[0] = statement.executeQuery();
+	}
+
+	private static String sha1(String value) throws Exception {
+		final byte[] hash = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+		return String.format("%040x", new BigInteger(1, hash));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		try (Connection connection = DerbyTestSupport.create(DATABASE); Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE tig_users (uid BIGINT NOT NULL, user_id VARCHAR(2049) NOT NULL, " +
+									   "sha1_user_id CHAR(40) NOT NULL, PRIMARY KEY (uid))");
+			stmt.executeUpdate("CREATE TABLE tig_nodes (nid BIGINT NOT NULL, parent_nid BIGINT, uid BIGINT NOT NULL, " +
+									   "node VARCHAR(255) NOT NULL, PRIMARY KEY (nid))");
+			stmt.executeUpdate("CREATE TABLE tig_pairs (nid BIGINT, uid BIGINT NOT NULL, pkey VARCHAR(255) NOT NULL, " +
+									   "pval VARCHAR(32672))");
+			stmt.executeUpdate("CREATE PROCEDURE TigGetUserDBUid(IN user_id VARCHAR(2049)) PARAMETER STYLE JAVA " +
+									   "READS SQL DATA LANGUAGE JAVA DYNAMIC RESULT SETS 1 EXTERNAL NAME '" +
+									   BulkLoaderTest.class.getName() + ".getUserDBUid'");
+			// users added by Tigase before the conversion
+			stmt.executeUpdate("INSERT INTO tig_users VALUES (41, 'admin@example.com', '" +
+									   sha1("admin@example.com") + "')");
+			stmt.executeUpdate("INSERT INTO tig_nodes VALUES (99, NULL, 41, 'root')");
+		}
+		directory = Files.createTempDirectory("bulk-loader");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		DerbyTestSupport.drop(DATABASE);
+		DerbyTestSupport.delete(directory);
+	}
+
+	@Test
+	public void testRowsEscaping() {
+		final BulkLoader.Rows rows = new BulkLoader.Rows();
+		rows.add("a\tb", null, "c\\d\ne\rf", "za\u017c\u00f3\u0142\u0107");
+		rows.add("\\N", "");
+		assertEquals(2, rows.getCount());
+		assertEquals("a\\tb\t\\N\tc\\\\d\\ne\\rf\tza\u017c\u00f3\u0142\u0107\n\\\\N\t\n",
+					 new String(rows.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testSha1UserId() throws Exception {
+		// FIPS 180-2 test vector
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", BulkLoader.sha1UserId("ABC"));
+		assertEquals(sha1("juliet@example.com"), BulkLoader.sha1UserId("Juliet@Example.COM"));
+	}
+
+	@Test
+	public void testLoadOfWrittenRows() throws Exception {
+		final BulkLoader loader = loader();
+		loader.load(destination("jdbc:postgresql://localhost/tigase"),
+					Arrays.asList(user("juliet@example.com").addData("roster", "<contact jid='romeo@example.com'/>"),
+								  user("romeo@example.com")));
+		loader.load(destination("jdbc:postgresql://localhost/tigase"),
+					Arrays.asList(user("nurse@example.com").addData("a\tb", "c\nd")));
+		assertTrue(loader.close());
+
+		// IDs are allocated after the highest ones of the destination
+		final String juliet = BulkLoader.sha1UserId("juliet@example.com");
+		final String romeo = BulkLoader.sha1UserId("romeo@example.com");
+		final String nurse = BulkLoader.sha1UserId("nurse@example.com");
+		assertEquals(Arrays.asList("42\tjuliet@example.com\t" + juliet, "43\tromeo@example.com\t" + romeo,
+								   "44\tnurse@example.com\t" + nurse), read("tig_users.tsv"));
+		assertEquals(Arrays.asList("100\t\\N\t42\troot", "101\t\\N\t43\troot", "102\t\\N\t44\troot"),
+					 read("tig_nodes.tsv"));
+		assertEquals(Arrays.asList("100\t42\troster\t<contact jid='romeo@example.com'/>", "102\t44\ta\\tb\tc\\nd"),
+					 read("tig_pairs.tsv"));
+		assertEquals(Arrays.asList(
+				"select TigUpdateUserCredential('juliet@example.com', 'default', 'SCRAM-SHA-1', 's=it''s');",
+				"select TigUpdateUserCredential('romeo@example.com', 'default', 'SCRAM-SHA-1', 's=it''s');",
+				"select TigUpdateUserCredential('nurse@example.com', 'default', 'SCRAM-SHA-1', 's=it''s');"),
+					 read("tig_user_credentials.sql"));
+		assertEquals(Arrays.asList("-- 3 users, IDs of users start at 42 and of nodes at 100", "begin;",
+								   "\\copy tig_users (uid, user_id, sha1_user_id) from 'tig_users.tsv'",
+								   "\\copy tig_nodes (nid, parent_nid, uid, node) from 'tig_nodes.tsv'",
+								   "\\copy tig_pairs (nid, uid, pkey, pval) from 'tig_pairs.tsv'",
+								   "\\i tig_user_credentials.sql",
+								   "select setval(pg_get_serial_sequence('tig_users', 'uid'), max(uid)) " +
+										   "from tig_users;",
+								   "select setval(pg_get_serial_sequence('tig_nodes', 'nid'), max(nid)) " +
+										   "from tig_nodes;",
+								   "commit;"), read("load-postgresql.sql"));
+
+		try (Connection connection = DriverManager.getConnection(DerbyTestSupport.uri(DATABASE))) {
+			connection.setAutoCommit(false);
+			insert(connection, "tig_users", 3);
+			insert(connection, "tig_nodes", 4);
+			insert(connection, "tig_pairs", 4);
+			connection.commit();
+			assertTrue(loader.check(connection));
+			assertTrue(loader.toJson(), loader.toJson().contains("\"checked\":true,\"consistent\":true"));
+
+			try (Statement stmt = connection.createStatement()) {
+				stmt.executeUpdate("DELETE FROM tig_nodes WHERE nid = 102");
+			}
+			connection.commit();
+			assertFalse("Missing node and pair of missing node aren't found", loader.check(connection));
+			assertTrue(loader.toJson(), loader.toJson().contains("\"consistent\":false"));
+			assertTrue(loader.toJson(), loader.toJson().contains("1 pairs of missing nodes"));
+		}
+	}
+
+	@Test
+	public void testCheckOfUserWithWrongId() throws Exception {
+		final BulkLoader loader = loader();
+		loader.load(destination("jdbc:postgresql://localhost/tigase"), Arrays.asList(user("juliet@example.com")));
+		assertTrue(loader.close());
+		try (Connection connection = DriverManager.getConnection(DerbyTestSupport.uri(DATABASE))) {
+			connection.setAutoCommit(false);
+			try (Statement stmt = connection.createStatement()) {
+				// counts match, but the hash points the lookup to another user
+				stmt.executeUpdate("INSERT INTO tig_users VALUES (42, 'juliet@example.com', '" +
+										   sha1("admin@example.com") + "')");
+				stmt.executeUpdate("INSERT INTO tig_nodes VALUES (100, NULL, 42, 'root')");
+			}
+			connection.commit();
+			assertFalse(loader.check(connection));
+		}
+	}
+
+	@Test
+	public void testMysqlLoadScript() throws Exception {
+		final BulkLoader loader = loader();
+		loader.load(destination("jdbc:mysql://localhost/tigase"),
+					Arrays.asList(new BulkLoader.User(BareJID.bareJIDInstance("juliet@example.com")).addCredential(
+							"SCRAM-SHA-1", "s=a'b\\c")));
+		assertTrue(loader.close());
+		assertEquals(Arrays.asList(
+				"call TigUpdateUserCredential('juliet@example.com', 'default', 'SCRAM-SHA-1', 's=a''b\\\\c');"),
+					 read("tig_user_credentials.sql"));
+		assertEquals(Arrays.asList("-- 1 users, IDs of users start at 42 and of nodes at 100", "start transaction;",
+								   "load data local infile 'tig_users.tsv' into table tig_users character set " +
+										   "utf8mb4 (uid, user_id, sha1_user_id);",
+								   "load data local infile 'tig_nodes.tsv' into table tig_nodes character set " +
+										   "utf8mb4 (nid, parent_nid, uid, node);",
+								   "load data local infile 'tig_pairs.tsv' into table tig_pairs character set " +
+										   "utf8mb4 (nid, uid, pkey, pval);", "source tig_user_credentials.sql",
+								   "commit;"), read("load-mysql.sql"));
+	}
+
+	/**
+	 * Loader of rows written to the directory, reading IDs and columns of the Derby database instead of the
+	 * destination.
+	 */
+	private BulkLoader loader() {
+		return new BulkLoader(directory) {
+			@Override
+			Connection connect(String uri, Properties info) throws SQLException {
+				return DriverManager.getConnection(DerbyTestSupport.uri(DATABASE));
+			}
+		};
+	}
+
+	private static DataSource destination(String uri) {
+		return (DataSource) Proxy.newProxyInstance(BulkLoaderTest.class.getClassLoader(),
+												   new Class[]{DataSource.class}, (proxy, method, args) -> {
+					if ("getResourceUri".equals(method.getName())) {
+						return uri;
+					}
+					throw new UnsupportedOperationException(method.getName());
+				});
+	}
+
+	private static BulkLoader.User user(String jid) throws Exception {
+		return new BulkLoader.User(BareJID.bareJIDInstance(jid)).addCredential("SCRAM-SHA-1", "s=it's");
+	}
+
+	private List<String> read(String file) throws Exception {
+		return Files.readAllLines(directory.resolve(file), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Inserts rows of the file written for the table, as {@code COPY} of PostgreSQL would.
+	 */
+	private void insert(Connection connection, String table, int columns) throws Exception {
+		final StringBuilder sql = new StringBuilder("INSERT INTO " + table + " VALUES (?");
+		for (int i = 1; i < columns; i++) {
+			sql.append(", ?");
+		}
+		sql.append(')');
+		try (PreparedStatement insert = connection.prepareStatement(sql.toString())) {
+			for (String line : read(table + ".tsv")) {
+				final String[] fields = line.split("\t", -1);
+				assertEquals(line, columns, fields.length);
+				for (int i = 0; i < columns; i++) {
+					insert.setString(i + 1, unescape(fields[i]));
+				}
+				insert.executeUpdate();
+			}
+		}
+	}
+
+	private static String unescape(String field) {
+		if ("\\N".equals(field)) {
+			return null;
+		}
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < field.length(); i++) {
+			final char c = field.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			final char escaped = field.charAt(++i);
+			sb.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckpointJournalTest {
+
+	private Path directory;
+	private Path file;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("checkpoint");
+		file = directory.resolve("checkpoint.journal");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		DerbyTestSupport.delete(directory);
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			progress.setSamples(Arrays.asList("b", "d", "f"));
+			final CheckpointJournal.ConvertibleProgress.RangeProgress first = progress.addRange(-1, 0);
+			final CheckpointJournal.ConvertibleProgress.RangeProgress second = progress.addRange(0, 3);
+			// second range is split by work stealing, its owner having already read past the split key
+			progress.setUpper(second, 2);
+			final CheckpointJournal.ConvertibleProgress.RangeProgress third = progress.addRange(2, 4, "e");
+			progress.setUpper(third, 3);
+
+			first.register("a1", -1).complete();
+			first.register("a2", -1).complete();
+			first.readCompleted();
+
+			final CheckpointJournal.RowProgress b = second.register("b", 0);
+			second.register("c1", 0);
+			final CheckpointJournal.RowProgress c2 = second.register("c2", 0);
+			// rows are completed out of order, so the checkpoint stops at the first row which isn't completed
+			b.complete();
+			c2.complete();
+			journal.checkpoint();
+
+			journal.finished("roster");
+		}
+		// record of the process killed while writing it
+		Files.write(file, "checkpoint users".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+			assertTrue(journal.isFinished("roster"));
+			assertFalse(journal.isFinished("users"));
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			assertEquals(Arrays.asList("b", "d", "f"), progress.getSamples());
+
+			final List<CheckpointJournal.ConvertibleProgress.RangeProgress> ranges = progress.getUnfinishedRanges();
+			assertEquals(2, ranges.size());
+			assertEquals(0, ranges.get(0).getLower());
+			assertEquals(2, ranges.get(0).getUpper());
+			assertEquals("c1", ranges.get(0).getResumeKey());
+			assertEquals(0, ranges.get(0).getResumePosition());
+			assertEquals(2, ranges.get(1).getLower());
+			assertEquals(3, ranges.get(1).getUpper());
+			assertNull(ranges.get(0).getAfter());
+			assertNull(ranges.get(1).getResumeKey());
+			assertEquals("e", ranges.get(1).getAfter());
+			assertEquals(2, ranges.get(1).getResumePosition());
+		}
+	}
+
+	@Test
+	public void testReplayOfEncodedKeys() throws Exception {
+		final String key = "user name+with%special/characters";
+		try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			progress.setSamples(Arrays.asList("a b", "c%d"));
+			final CheckpointJournal.ConvertibleProgress.RangeProgress range = progress.addRange(-1, 2);
+			range.register("a", -1).complete();
+			range.register(key, 0);
+			journal.checkpoint();
+		}
+		try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			assertEquals(Arrays.asList("a b", "c%d"), progress.getSamples());
+			assertEquals(key, progress.getUnfinishedRanges().get(0).getResumeKey());
+		}
+	}
+
+	/**
+	 * Checkpoint is the next row to store; stored rows aren't recorded, as reading from them would store them again.
+	 */
+	@Test
+	public void testCheckpointIsNextRow() throws Exception {
+		try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			progress.setSamples(Arrays.asList("b", "d"));
+			final CheckpointJournal.ConvertibleProgress.RangeProgress range = progress.addRange(-1, 2);
+			range.register("a", -1).complete();
+			final CheckpointJournal.RowProgress b = range.register("b", 0);
+			journal.checkpoint();
+			// all rows read so far are stored, the next one isn't known yet
+			b.complete();
+			journal.checkpoint();
+		}
+		try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+			final CheckpointJournal.ConvertibleProgress.RangeProgress range = journal.getProgress("users")
+					.getUnfinishedRanges()
+					.get(0);
+			assertEquals("b", range.getResumeKey());
+			assertEquals(0, range.getResumePosition());
+		}
+	}
+
+	@Test
+	public void testJournalIsTruncatedWithoutResume() throws Exception {
+		try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+			journal.getProgress("users").setSamples(Arrays.asList("b", "d"));
+			journal.finished("users");
+		}
+		new CheckpointJournal(file, false).close();
+		try (CheckpointJournal journal = new CheckpointJournal(file, true)) {
+			assertFalse(journal.isFinished("users"));
+			assertNull(journal.getProgress("users").getSamples());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.Test;
+import tigase.db.TigaseDBException;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConvertibleTest {
+
+	@Test
+	public void testStoreEntitiesFailsOnlyFailedEntity() throws Exception {
+		final Convertible<RowEntity> convertible = new Convertible<RowEntity>() {
+			@Override
+			public Optional<String> getMainQuery() {
+				return Optional.empty();
+			}
+
+			@Override
+			public void initialise(Converter.ConverterProperties properties) {
+			}
+
+			@Override
+			public Optional<RowEntity> processResultSet(ResultSet rs) {
+				return Optional.empty();
+			}
+
+			@Override
+			public boolean storeEntity(RowEntity entity) throws Exception {
+				switch (entity.getID()) {
+					case "npe":
+						throw new NullPointerException();
+					case "db":
+						throw new TigaseDBException("Couldn't store " + entity.getID());
+					case "rejected":
+						return false;
+					default:
+						return true;
+				}
+			}
+		};
+		final List<StoreResult> results = convertible.storeEntities(
+				Arrays.asList(() -> "npe", () -> "stored", () -> "db", () -> "rejected"));
+
+		assertEquals(4, results.size());
+		assertFalse(results.get(0).isStored());
+		assertTrue(results.get(0).getException() instanceof NullPointerException);
+		assertTrue(results.get(1).isStored());
+		assertFalse(results.get(2).isStored());
+		assertTrue(results.get(2).getException() instanceof TigaseDBException);
+		assertFalse(results.get(3).isStored());
+		assertNull(results.get(3).getException());
+	}
+}
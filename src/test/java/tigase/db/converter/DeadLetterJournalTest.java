@@ -0,0 +1,122 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeadLetterJournalTest {
+
+	private Path directory;
+	private Path file;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("dead-letter");
+		file = directory.resolve("dead-letter.jsonl");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		DerbyTestSupport.delete(directory);
+	}
+
+	@Test
+	public void testRecordRoundTrip() throws Exception {
+		final String key = "ju\"liet\\ \t\n\r\u0001 za\u017c\u00f3\u0142\u0107";
+		final RowEntity entity = new RowEntity() {
+			@Override
+			public String getID() {
+				return "juliet@example.com";
+			}
+
+			@Override
+			public String toString() {
+				return "UserEntity{password='secret'}";
+			}
+		};
+		try (DeadLetterJournal journal = new DeadLetterJournal(file, false)) {
+			journal.failed("UserCredentialsConverter", 42, key, entity, new IOException("Multi\nline \"message\""));
+		}
+		final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		assertEquals(1, lines.size());
+
+		final Map<String, String> record = new DeadLetterJournal.RecordParser(lines.get(0)).parse();
+		assertEquals("UserCredentialsConverter", record.get("convertible"));
+		assertEquals("42", record.get("row"));
+		assertEquals(key, record.get("key"));
+		assertEquals("juliet@example.com", record.get("id"));
+		assertEquals(IOException.class.getName(), record.get("error"));
+		assertEquals("Multi\nline \"message\"", record.get("message"));
+		assertFalse("Entity isn't recorded", record.containsKey("entity"));
+		assertFalse("Password isn't recorded", lines.get(0).contains("secret"));
+	}
+
+	@Test
+	public void testRecordWithoutEntity() throws Exception {
+		try (DeadLetterJournal journal = new DeadLetterJournal(file, false)) {
+			journal.failed("UserCredentialsConverter", 7, null, null, null);
+		}
+		final Map<String, String> record = new DeadLetterJournal.RecordParser(
+				Files.readAllLines(file, StandardCharsets.UTF_8).get(0)).parse();
+		assertEquals("7", record.get("row"));
+		for (String field : Arrays.asList("key", "id", "error", "message")) {
+			assertTrue(field, record.containsKey(field));
+			assertNull(field, record.get(field));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedRecord() throws Exception {
+		new DeadLetterJournal.RecordParser("{\"convertible\":\"UserCredentialsConverter\",\"key\":\"jul").parse();
+	}
+
+	@Test
+	public void testReadKeys() throws Exception {
+		try (DeadLetterJournal journal = new DeadLetterJournal(file, false)) {
+			journal.failed("UserCredentialsConverter", 1, "juliet", null, null);
+			journal.failed("UserCredentialsConverter", 2, "romeo", null, null);
+			journal.failed("UserCredentialsConverter", 3, null, null, null);
+		}
+		// failures of the resumed run are appended
+		try (DeadLetterJournal journal = new DeadLetterJournal(file, true)) {
+			journal.failed("UserCredentialsConverter", 4, "juliet", null, null);
+			journal.failed("VCardConverter", 5, "nurse", null, null);
+		}
+		final Map<String, Set<String>> keys = DeadLetterJournal.readKeys(file);
+		assertEquals(2, keys.size());
+		assertEquals(new HashSet<>(Arrays.asList("juliet", "romeo")), keys.get("UserCredentialsConverter"));
+		assertEquals(new HashSet<>(Arrays.asList("nurse")), keys.get("VCardConverter"));
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import tigase.db.DBInitException;
+import tigase.db.DataRepository;
+import tigase.db.jdbc.DataRepositoryImpl;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+/**
+ * In-memory Derby databases used by tests as the source (and destination) of the conversion, with the layout of
+ * ejabberd tables created by {@code EjabberdDatasetGenerator} of the benchmarks.
+ */
+final class DerbyTestSupport {
+
+	private DerbyTestSupport() {
+	}
+
+	static String uri(String database) {
+		return "jdbc:derby:memory:" + database;
+	}
+
+	static Connection create(String database) throws SQLException {
+		return DriverManager.getConnection(uri(database) + ";create=true");
+	}
+
+	/**
+	 * Drops the in-memory database, so each test starts with an empty one.
+	 */
+	static void drop(String database) {
+		try {
+			DriverManager.getConnection(uri(database) + ";drop=true").close();
+		} catch (SQLException e) {
+			// Derby reports successful drop with an exception
+		}
+	}
+
+	static String getUsername(int index) {
+		return String.format(Locale.ROOT, "user%05d", index);
+	}
+
+	/**
+	 * Creates {@code users} table of ejabberd (without {@code server_host} column) with the users and their roster
+	 * tables, which are left empty.
+	 */
+	static void createUsers(Connection connection, int users) throws SQLException {
+		try (Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE users (username VARCHAR(191) NOT NULL, password VARCHAR(191) NOT NULL, " +
+									   "PRIMARY KEY (username))");
+			stmt.executeUpdate("CREATE TABLE rosterusers (username VARCHAR(191) NOT NULL, jid VARCHAR(191) NOT NULL, " +
+									   "nick VARCHAR(191) NOT NULL, subscription CHAR(1) NOT NULL)");
+			stmt.executeUpdate("CREATE TABLE rostergroups (username VARCHAR(191) NOT NULL, " +
+									   "jid VARCHAR(191) NOT NULL, grp VARCHAR(191) NOT NULL)");
+		}
+		try (PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO users (username, password) VALUES (?, ?)")) {
+			for (int i = 0; i < users; i++) {
+				insert.setString(1, getUsername(i));
+				insert.setString(2, "secret" + i);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+	}
+
+	/**
+	 * Creates pool of source repositories connected to the database.
+	 */
+	static DataRepoPool pool(String database, int size) throws DBInitException {
+		final DataRepoPool pool = new DataRepoPool();
+		pool.initialize(uri(database));
+		for (int i = 0; i < size; i++) {
+			final DataRepository repository = new DataRepositoryImpl();
+			repository.initialize(uri(database));
+			pool.addRepo(repository);
+		}
+		return pool;
+	}
+
+	static void delete(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+}
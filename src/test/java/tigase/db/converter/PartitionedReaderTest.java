@@ -0,0 +1,195 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PartitionedReaderTest {
+
+	private static final String DATABASE = "partitioned-reader";
+	private static final int USERS = 2000;
+
+	private final Partitioning partitioning = new Partitioning("users", "username, password", "username");
+	private Path directory;
+	private DataRepoPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		try (Connection connection = DerbyTestSupport.create(DATABASE)) {
+			DerbyTestSupport.createUsers(connection, USERS);
+		}
+		pool = DerbyTestSupport.pool(DATABASE, 4);
+		directory = Files.createTempDirectory("partitioned-reader");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		DerbyTestSupport.drop(DATABASE);
+		DerbyTestSupport.delete(directory);
+	}
+
+	@Test
+	public void testEachRowIsReadOnce() throws Exception {
+		final UsernameConvertible convertible = new UsernameConvertible(0);
+		run(convertible, new PartitionedReader(pool, partitioning, 4, "users", null));
+		convertible.assertStoredOnce();
+	}
+
+	/**
+	 * Reader of the short first range steals the long second range, whose owner has to stop at the new boundary.
+	 */
+	@Test
+	public void testEachRowIsReadOnceWithWorkStealing() throws Exception {
+		final Path file = directory.resolve("checkpoint.journal");
+		try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			final List<String> samples = new ArrayList<>();
+			samples.add(DerbyTestSupport.getUsername(10));
+			samples.add(DerbyTestSupport.getUsername(20));
+			for (int i = 100; i < USERS; i += 100) {
+				samples.add(DerbyTestSupport.getUsername(i));
+			}
+			progress.setSamples(samples);
+			progress.addRange(-1, 1);
+			progress.addRange(1, samples.size());
+
+			final UsernameConvertible convertible = new UsernameConvertible(TimeUnit.MICROSECONDS.toNanos(200));
+			run(convertible, new PartitionedReader(pool, partitioning, 2, "users", progress));
+			journal.checkpoint();
+			convertible.assertStoredOnce();
+			assertTrue(progress.getUnfinishedRanges().isEmpty());
+		}
+		final long ranges = Files.readAllLines(file, StandardCharsets.UTF_8)
+				.stream()
+				.filter(line -> line.startsWith("range "))
+				.count();
+		assertTrue("No range was stolen", ranges > 2);
+	}
+
+	/**
+	 * Sampled keys of the long second range were deleted, so its owner never passes any of them and may already be
+	 * past the split key when its range is stolen.
+	 */
+	@Test
+	public void testEachRowIsReadOnceWithWorkStealingOfDeletedSamples() throws Exception {
+		try (CheckpointJournal journal = new CheckpointJournal(directory.resolve("checkpoint.journal"), false)) {
+			final CheckpointJournal.ConvertibleProgress progress = journal.getProgress("users");
+			final List<String> samples = new ArrayList<>();
+			samples.add(DerbyTestSupport.getUsername(10));
+			samples.add(DerbyTestSupport.getUsername(20));
+			for (int i = 100; i < USERS; i += 100) {
+				// sorted right after an existing user name, but not present in the table
+				samples.add(DerbyTestSupport.getUsername(i) + "!");
+			}
+			progress.setSamples(samples);
+			progress.addRange(-1, 1);
+			progress.addRange(1, samples.size());
+
+			final UsernameConvertible convertible = new UsernameConvertible(TimeUnit.MICROSECONDS.toNanos(200));
+			run(convertible, new PartitionedReader(pool, partitioning, 2, "users", progress));
+			convertible.assertStoredOnce();
+		}
+	}
+
+	private void run(UsernameConvertible convertible, PartitionedReader reader) throws Exception {
+		final AtomicInteger failures = new AtomicInteger();
+		final ConversionPipeline.Listener<RowEntity> listener = new ConversionPipeline.Listener<RowEntity>() {
+			@Override
+			public void stored(RowEntity entity, long rowNumber) {
+			}
+
+			@Override
+			public void failed(RowEntity entity, long rowNumber, String key, Exception e) {
+				failures.incrementAndGet();
+			}
+		};
+		final ConversionPipeline<RowEntity> pipeline = new ConversionPipeline<>(convertible,
+																				new Converter.ConverterProperties(), 2,
+																				2, listener,
+																				new ConversionMetrics("users"));
+		pipeline.setKeyColumn(partitioning.getKeyColumn());
+		pipeline.run(reader);
+		assertEquals(0, failures.get());
+	}
+
+	/**
+	 * Converts rows of users table to entities identified by the user name, counting how many times each of them
+	 * was stored.
+	 */
+	private static class UsernameConvertible
+			implements Convertible<RowEntity> {
+
+		private final long delayNanos;
+		private final Map<String, Integer> stored = new ConcurrentHashMap<>();
+
+		UsernameConvertible(long delayNanos) {
+			this.delayNanos = delayNanos;
+		}
+
+		@Override
+		public Optional<String> getMainQuery() {
+			return Optional.empty();
+		}
+
+		@Override
+		public void initialise(Converter.ConverterProperties properties) {
+		}
+
+		@Override
+		public Optional<RowEntity> processResultSet(ResultSet rs) throws Exception {
+			if (delayNanos > 0) {
+				LockSupport.parkNanos(delayNanos);
+			}
+			final String username = rs.getString("username");
+			return Optional.of(() -> username);
+		}
+
+		@Override
+		public boolean storeEntity(RowEntity entity) {
+			stored.merge(entity.getID(), 1, Integer::sum);
+			return true;
+		}
+
+		void assertStoredOnce() {
+			assertEquals(USERS, stored.size());
+			for (int i = 0; i < USERS; i++) {
+				final String username = DerbyTestSupport.getUsername(i);
+				assertEquals(username, Integer.valueOf(1), stored.get(username));
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PartitioningTest {
+
+	private static final String DATABASE = "partitioning";
+	private static final int USERS = 100;
+
+	private final Partitioning partitioning = new Partitioning("users", "username, password", "username");
+	private DataRepoPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		try (Connection connection = DerbyTestSupport.create(DATABASE)) {
+			DerbyTestSupport.createUsers(connection, USERS);
+		}
+		pool = DerbyTestSupport.pool(DATABASE, 2);
+	}
+
+	@After
+	public void tearDown() {
+		DerbyTestSupport.drop(DATABASE);
+	}
+
+	@Test
+	public void testQueries() {
+		assertEquals("SELECT COUNT(*) FROM users", partitioning.getCountQuery());
+		assertEquals("SELECT username FROM users ORDER BY username", partitioning.getSampleQuery());
+		assertEquals("SELECT username, password FROM users ORDER BY username",
+					 partitioning.getRangeQuery(false, false));
+		assertEquals("SELECT username, password FROM users WHERE username >= ? ORDER BY username",
+					 partitioning.getRangeQuery(true, false));
+		assertEquals("SELECT username, password FROM users WHERE username < ? ORDER BY username",
+					 partitioning.getRangeQuery(false, true));
+		assertEquals("SELECT username, password FROM users WHERE username >= ? AND username < ? ORDER BY username",
+					 partitioning.getRangeQuery(true, true));
+		assertEquals("SELECT username, password FROM users WHERE username >= ? AND username > ? AND username < ? " +
+							 "ORDER BY username", partitioning.getRangeQuery(true, true, true));
+		assertEquals("SELECT username, password FROM users WHERE username > ? ORDER BY username",
+					 partitioning.getRangeQuery(false, true, false));
+		assertEquals("SELECT username, password FROM users WHERE username IN (?, ?, ?)",
+					 partitioning.getKeysQuery(3));
+	}
+
+	@Test
+	public void testCountAndSample() throws Exception {
+		try (SourceCursor cursor = pool.openCursor(partitioning.getCountQuery())) {
+			cursor.next();
+			assertEquals(USERS, cursor.getResultSet().getLong(1));
+		}
+		assertEquals(usernames(0, USERS), read(partitioning.getSampleQuery()));
+	}
+
+	@Test
+	public void testRanges() throws Exception {
+		final String lower = DerbyTestSupport.getUsername(10);
+		final String upper = DerbyTestSupport.getUsername(20);
+		assertEquals(usernames(0, 20), read(partitioning.getRangeQuery(false, true), upper));
+		assertEquals(usernames(10, 20), read(partitioning.getRangeQuery(true, true), lower, upper));
+		assertEquals(usernames(10, USERS), read(partitioning.getRangeQuery(true, false), lower));
+
+		// adjacent ranges cover all rows exactly once
+		final List<String> all = new ArrayList<>(read(partitioning.getRangeQuery(false, true), lower));
+		all.addAll(read(partitioning.getRangeQuery(true, true), lower, upper));
+		all.addAll(read(partitioning.getRangeQuery(true, false), upper));
+		assertEquals(usernames(0, USERS), all);
+	}
+
+	@Test
+	public void testKeys() throws Exception {
+		final List<String> keys = Arrays.asList(DerbyTestSupport.getUsername(3), DerbyTestSupport.getUsername(50),
+												"missing");
+		assertEquals(keys.subList(0, 2), read(partitioning.getKeysQuery(keys.size()) + " ORDER BY username",
+											  keys.toArray()));
+	}
+
+	private List<String> read(String query, Object... parameters) throws Exception {
+		final List<String> result = new ArrayList<>();
+		try (SourceCursor cursor = pool.openCursor(query, parameters)) {
+			while (cursor.next()) {
+				result.add(cursor.getResultSet().getString(1));
+			}
+		}
+		return result;
+	}
+
+	private static List<String> usernames(int from, int to) {
+		final List<String> result = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			result.add(DerbyTestSupport.getUsername(i));
+		}
+		return result;
+	}
+}
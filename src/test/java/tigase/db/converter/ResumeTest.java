@@ -0,0 +1,270 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Conversion killed after some checkpoints is resumed from the journal on disk; rows stored after the last
+ * checkpoint are read again and have to be updated instead of failing as duplicates.
+ */
+public class ResumeTest {
+
+	private static final String DESTINATION = "resume-destination";
+	private static final String SOURCE = "resume-source";
+	private static final int USERS = 2000;
+	private static final int KILL_AFTER = 700;
+
+	private final Partitioning partitioning = new Partitioning("users", "username, password", "username");
+	private Path directory;
+	private DataRepoPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		try (Connection connection = DerbyTestSupport.create(SOURCE)) {
+			DerbyTestSupport.createUsers(connection, USERS);
+		}
+		try (Connection connection = DerbyTestSupport.create(DESTINATION);
+			 Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE converted (username VARCHAR(191) NOT NULL, " +
+									   "password VARCHAR(191) NOT NULL, PRIMARY KEY (username))");
+		}
+		pool = DerbyTestSupport.pool(SOURCE, 4);
+		directory = Files.createTempDirectory("resume");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		DerbyTestSupport.drop(SOURCE);
+		DerbyTestSupport.drop(DESTINATION);
+		DerbyTestSupport.delete(directory);
+	}
+
+	@Test
+	public void testKilledConversionIsResumedWithoutFailures() throws Exception {
+		final Path file = directory.resolve("checkpoint.journal");
+		// journal as left on disk by the killed process
+		final Path killed = directory.resolve("killed.journal");
+
+		final CopyingConvertible first = new CopyingConvertible(KILL_AFTER);
+		try (CheckpointJournal journal = new CheckpointJournal(file, false)) {
+			try {
+				run(first, journal, false);
+				fail("Conversion wasn't killed");
+			} catch (KilledException e) {
+				// expected
+			}
+			Files.copy(file, killed, StandardCopyOption.REPLACE_EXISTING);
+		}
+		assertEquals(0, first.failures.get());
+		final int stored = count();
+		assertTrue("Stored " + stored + " users before the kill", stored >= KILL_AFTER && stored < USERS);
+
+		final CopyingConvertible second = new CopyingConvertible(Integer.MAX_VALUE);
+		try (CheckpointJournal journal = new CheckpointJournal(killed, true)) {
+			assertTrue(journal.getProgress("users").getSamples() != null);
+			run(second, journal, true);
+		}
+		assertEquals(0, second.failures.get());
+		assertEquals(USERS, count());
+		// at least users of the batch which killed the conversion were stored after the last checkpoint
+		assertTrue(second.updated.get() > 0);
+		// resumed conversion doesn't start from the beginning
+		assertTrue("Resumed conversion stored " + second.stored.get() + " users",
+				   second.stored.get() < USERS - KILL_AFTER / 2);
+	}
+
+	private void run(CopyingConvertible convertible, CheckpointJournal journal, boolean resume) throws Exception {
+		final Converter.ConverterProperties properties = new Converter.ConverterProperties();
+		set(properties, "setIncremental", boolean.class, resume);
+		// small batches, so the conversion is killed between checkpoints
+		set(properties, "setBatchSize", int.class, 10);
+		set(properties, "setQueueSize", int.class, 50);
+		convertible.initialise(properties);
+		final ConversionPipeline.Listener<RowEntity> listener = new ConversionPipeline.Listener<RowEntity>() {
+			@Override
+			public void stored(RowEntity entity, long rowNumber) {
+			}
+
+			@Override
+			public void failed(RowEntity entity, long rowNumber, String key, Exception e) {
+				convertible.failures.incrementAndGet();
+			}
+
+			@Override
+			public void batchCompleted() {
+				// the process is dead once the convertible is killed, so it can't write any more checkpoints
+				synchronized (convertible) {
+					if (convertible.killed) {
+						return;
+					}
+					try {
+						journal.checkpoint();
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		};
+		final ConversionPipeline<RowEntity> pipeline = new ConversionPipeline<>(convertible, properties, 2, 2,
+																				listener,
+																				new ConversionMetrics("users"));
+		pipeline.setKeyColumn(partitioning.getKeyColumn());
+		pipeline.run(new PartitionedReader(pool, partitioning, 2, "users", journal.getProgress("users")));
+	}
+
+	private static void set(Converter.ConverterProperties properties, String setter, Class<?> type, Object value) {
+		try {
+			final Method method = Converter.ConverterProperties.class.getDeclaredMethod(setter, type);
+			method.setAccessible(true);
+			method.invoke(properties, value);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't call " + setter, e);
+		}
+	}
+
+	private static int count() throws SQLException {
+		try (Connection connection = DriverManager.getConnection(DerbyTestSupport.uri(DESTINATION));
+			 Statement stmt = connection.createStatement();
+			 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM converted")) {
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	private static class KilledException
+			extends Exception {
+
+		KilledException() {
+			super("Killed");
+		}
+	}
+
+	/**
+	 * Copies users to the destination table the way users are added to Tigase: a user which already exists is a
+	 * failure unless conversion is incremental, in which case it's updated. Once the given number of users is stored,
+	 * the conversion is killed: no more checkpoints are written and following batches fail.
+	 */
+	private static class CopyingConvertible
+			implements Convertible<RowEntity> {
+
+		private final AtomicInteger failures = new AtomicInteger();
+		private final int killAfter;
+		private final AtomicInteger stored = new AtomicInteger();
+		private final AtomicInteger updated = new AtomicInteger();
+		private boolean killed = false;
+		private Converter.ConverterProperties properties;
+
+		CopyingConvertible(int killAfter) {
+			this.killAfter = killAfter;
+		}
+
+		@Override
+		public Optional<String> getMainQuery() {
+			return Optional.empty();
+		}
+
+		@Override
+		public void initialise(Converter.ConverterProperties properties) {
+			this.properties = properties;
+		}
+
+		@Override
+		public Optional<RowEntity> processResultSet(ResultSet rs) throws Exception {
+			final String username = rs.getString("username");
+			final String password = rs.getString("password");
+			return Optional.of(new RowEntity() {
+				@Override
+				public String getID() {
+					return username;
+				}
+
+				@Override
+				public String toString() {
+					return password;
+				}
+			});
+		}
+
+		@Override
+		public boolean storeEntity(RowEntity entity) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<StoreResult> storeEntities(List<RowEntity> entities) throws Exception {
+			synchronized (this) {
+				if (killed) {
+					throw new KilledException();
+				}
+			}
+			final List<StoreResult> results = new ArrayList<>(entities.size());
+			try (Connection connection = DriverManager.getConnection(DerbyTestSupport.uri(DESTINATION));
+				 PreparedStatement insert = connection.prepareStatement(
+						 "INSERT INTO converted (username, password) VALUES (?, ?)");
+				 PreparedStatement update = connection.prepareStatement(
+						 "UPDATE converted SET password = ? WHERE username = ?")) {
+				for (RowEntity entity : entities) {
+					try {
+						insert.setString(1, entity.getID());
+						insert.setString(2, entity.toString());
+						insert.executeUpdate();
+						results.add(StoreResult.stored());
+					} catch (SQLException e) {
+						if (!"23505".equals(e.getSQLState()) || !properties.isIncremental()) {
+							results.add(StoreResult.failed(e));
+							continue;
+						}
+						update.setString(1, entity.toString());
+						update.setString(2, entity.getID());
+						update.executeUpdate();
+						updated.incrementAndGet();
+						results.add(StoreResult.stored());
+					}
+				}
+			}
+			if (stored.addAndGet(entities.size()) >= killAfter) {
+				synchronized (this) {
+					killed = true;
+				}
+			}
+			return results;
+		}
+	}
+}
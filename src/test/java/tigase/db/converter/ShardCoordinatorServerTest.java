@@ -0,0 +1,270 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.apache.derby.drda.NetworkServerControl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.DataRepository;
+import tigase.db.jdbc.DataRepositoryImpl;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shards coordinated in a destination shared over Derby Network Server, as processes on separate hosts would be.
+ */
+public class ShardCoordinatorServerTest {
+
+	private static final String DESTINATION = "shards-destination";
+	private static final String SOURCE = "shards-source";
+	private static final int USERS = 2000;
+
+	private final Partitioning partitioning = new Partitioning("users", "username, password", "username");
+
+	private Path directory;
+	private int port;
+	private NetworkServerControl server;
+
+	@Before
+	public void setUp() throws Exception {
+		try (Connection connection = DerbyTestSupport.create(SOURCE)) {
+			DerbyTestSupport.createUsers(connection, USERS);
+		}
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new NetworkServerControl(InetAddress.getByName("localhost"), port);
+		server.start(new PrintWriter(System.err));
+		for (int i = 0; ; i++) {
+			try {
+				server.ping();
+				break;
+			} catch (Exception e) {
+				if (i == 100) {
+					throw e;
+				}
+				Thread.sleep(100);
+			}
+		}
+		directory = Files.createTempDirectory("shards");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		DerbyTestSupport.drop(SOURCE);
+		DerbyTestSupport.drop(DESTINATION);
+		DerbyTestSupport.delete(directory);
+	}
+
+	@Test
+	public void testShardsConvertDisjointKeys() throws Exception {
+		final Map<String, Integer> shardsOfKeys = new ConcurrentHashMap<>();
+		final ShardCoordinator first = new ShardCoordinator(connect(), 0, 2);
+		final ShardCoordinator second = new ShardCoordinator(connect(), 1, 2);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<Void> firstConversion = executor.submit(() -> convert(first, 0, shardsOfKeys));
+			final Future<Void> secondConversion = executor.submit(() -> convert(second, 1, shardsOfKeys));
+			firstConversion.get();
+			secondConversion.get();
+		} finally {
+			executor.shutdownNow();
+		}
+
+		// each key was converted by a single shard, both shards converted some and keys of the first one precede
+		// keys of the second one
+		assertEquals(USERS, shardsOfKeys.size());
+		final int[] counts = new int[2];
+		final String boundary = first.getKeyBoundaries("users", Collections::emptyList).get(0);
+		for (Map.Entry<String, Integer> key : shardsOfKeys.entrySet()) {
+			assertEquals(key.getKey(), key.getKey().compareTo(boundary) < 0 ? 0 : 1, (int) key.getValue());
+			counts[key.getValue()]++;
+		}
+		assertTrue(counts[0] > 0 && counts[1] > 0);
+		assertEquals("Shards are balanced", USERS / 2.0, counts[0], USERS / 10.0);
+
+		final Path firstReport = directory.resolve("first.json");
+		final Path secondReport = directory.resolve("second.json");
+		first.finish(true, firstReport);
+		second.finish(true, secondReport);
+		final String partial = new String(Files.readAllBytes(firstReport), StandardCharsets.UTF_8);
+		assertTrue(partial, partial.contains("\"complete\":false,\"pendingShards\":[1]"));
+		final String merged = new String(Files.readAllBytes(secondReport), StandardCharsets.UTF_8);
+		assertTrue(merged, merged.contains("\"complete\":true,\"pendingShards\":[]"));
+		assertTrue(merged, merged.contains(
+				"{\"convertible\":\"users\",\"rowsRead\":" + USERS + ",\"rowsStored\":" + USERS + ",\"rowsFailed\":0"));
+		assertTrue(merged, merged.contains("\"rowsStored\":" + counts[0] + ","));
+		assertTrue(merged, merged.contains("\"rowsStored\":" + counts[1] + ","));
+	}
+
+	/**
+	 * Shards splitting the same convertible concurrently all use keys recorded by one of them.
+	 */
+	@Test
+	public void testKeyBoundariesAreRecordedOnce() throws Exception {
+		final int shards = 4;
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(shards);
+		final List<ShardCoordinator> coordinators = new ArrayList<>();
+		try {
+			final List<Future<List<String>>> keys = new ArrayList<>();
+			for (int i = 0; i < shards; i++) {
+				final ShardCoordinator coordinator = new ShardCoordinator(connect(), i, shards);
+				coordinator.register();
+				coordinators.add(coordinator);
+				// each shard would sample different keys, i.e. if the source changes between samplings
+				final List<String> sampled = Arrays.asList("a" + i, "b" + i, "c" + i);
+				keys.add(executor.submit(() -> {
+					start.await();
+					return coordinator.getKeyBoundaries("users", () -> sampled);
+				}));
+			}
+			start.countDown();
+			final List<String> recorded = keys.get(0).get();
+			assertEquals(3, recorded.size());
+			for (Future<List<String>> shardKeys : keys) {
+				assertEquals(recorded, shardKeys.get());
+			}
+		} finally {
+			executor.shutdownNow();
+			coordinators.forEach(ShardCoordinator::close);
+		}
+	}
+
+	/**
+	 * Of the processes started concurrently for the same shard only one converts it.
+	 */
+	@Test
+	public void testShardIsClaimedOnce() throws Exception {
+		final int processes = 4;
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(processes);
+		final List<ShardCoordinator> coordinators = new ArrayList<>();
+		try {
+			final List<Future<Boolean>> claims = new ArrayList<>();
+			for (int i = 0; i < processes; i++) {
+				final ShardCoordinator coordinator = new ShardCoordinator(connect(), 0, 2);
+				coordinators.add(coordinator);
+				claims.add(executor.submit((Callable<Boolean>) () -> {
+					start.await();
+					try {
+						coordinator.register();
+						return true;
+					} catch (IllegalStateException e) {
+						return false;
+					}
+				}));
+			}
+			start.countDown();
+			int claimed = 0;
+			for (Future<Boolean> claim : claims) {
+				if (claim.get()) {
+					claimed++;
+				}
+			}
+			assertEquals(1, claimed);
+		} finally {
+			executor.shutdownNow();
+			coordinators.forEach(ShardCoordinator::close);
+		}
+	}
+
+	private DataRepository connect() throws Exception {
+		final DataRepository repository = new DataRepositoryImpl();
+		repository.initialize("jdbc:derby://localhost:" + port + "/memory:" + DESTINATION + ";create=true");
+		return repository;
+	}
+
+	/**
+	 * Converts users of the key range of the shard, as the converter does.
+	 */
+	private Void convert(ShardCoordinator coordinator, int shardIndex, Map<String, Integer> shardsOfKeys)
+			throws Exception {
+		coordinator.register();
+		final ConversionMetrics metrics = new ConversionMetrics("users");
+		coordinator.started(metrics);
+		final Convertible<RowEntity> convertible = new Convertible<RowEntity>() {
+			@Override
+			public Optional<String> getMainQuery() {
+				return Optional.empty();
+			}
+
+			@Override
+			public void initialise(Converter.ConverterProperties properties) {
+			}
+
+			@Override
+			public Optional<RowEntity> processResultSet(ResultSet rs) throws Exception {
+				final String username = rs.getString("username");
+				return Optional.of(() -> username);
+			}
+
+			@Override
+			public boolean storeEntity(RowEntity entity) {
+				final Integer previous = shardsOfKeys.putIfAbsent(entity.getID(), shardIndex);
+				return previous == null;
+			}
+		};
+		final ConversionPipeline.Listener<RowEntity> listener = new ConversionPipeline.Listener<RowEntity>() {
+			@Override
+			public void stored(RowEntity entity, long rowNumber) {
+			}
+
+			@Override
+			public void failed(RowEntity entity, long rowNumber, String key, Exception e) {
+			}
+		};
+		final ConversionPipeline<RowEntity> pipeline = new ConversionPipeline<>(convertible,
+																				new Converter.ConverterProperties(), 2,
+																				2, listener, metrics);
+		pipeline.setKeyColumn("username");
+		pipeline.setShard(shardIndex, 2);
+		final DataRepoPool pool = DerbyTestSupport.pool(SOURCE, 2);
+		final List<String> keys = coordinator.getKeyBoundaries(
+				"users", () -> PartitionedReader.split(pool, partitioning, 2));
+		final PartitionedReader reader = new PartitionedReader(pool, partitioning, 2, "users", null);
+		reader.setKeyRange(shardIndex > 0 ? keys.get(0) : null, shardIndex == 0 ? keys.get(0) : null);
+		pipeline.run(reader);
+		coordinator.finished(metrics, true);
+		return null;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardCoordinatorTest {
+
+	@Test
+	public void testEachKeyBelongsToSingleShard() {
+		for (int shardCount = 1; shardCount <= 5; shardCount++) {
+			for (int i = 0; i < 1000; i++) {
+				final String key = DerbyTestSupport.getUsername(i);
+				int shards = 0;
+				for (int shard = 0; shard < shardCount; shard++) {
+					if (ShardCoordinator.isInShard(key, shard, shardCount)) {
+						shards++;
+					}
+				}
+				assertEquals(key, 1, shards);
+			}
+		}
+		assertTrue(ShardCoordinator.isInShard(null, 0, 1));
+	}
+
+	@Test
+	public void testDistribution() {
+		final int keys = 100_000;
+		final int shardCount = 4;
+		final int[] counts = new int[shardCount];
+		// sequential keys differing only in the last characters, as usual for generated user names
+		for (int i = 0; i < keys; i++) {
+			final String key = "user" + i;
+			for (int shard = 0; shard < shardCount; shard++) {
+				if (ShardCoordinator.isInShard(key, shard, shardCount)) {
+					counts[shard]++;
+				}
+			}
+		}
+		for (int shard = 0; shard < shardCount; shard++) {
+			final double share = counts[shard] / (double) keys;
+			assertEquals("Share of shard " + shard, 1.0 / shardCount, share, 0.02);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerBudgetTest {
+
+	@Test
+	public void testFairShare() throws Exception {
+		final WorkerBudget budget = new WorkerBudget(4, 6);
+		try (WorkerBudget.Allocation first = budget.allocate(8, 8, 2);
+			 WorkerBudget.Allocation second = budget.allocate(1, 8, 2)) {
+			assertEquals(2, first.getTransformThreads());
+			assertEquals(3, first.getStoreThreads());
+			assertEquals(1, second.getTransformThreads());
+			assertEquals(3, second.getStoreThreads());
+		}
+	}
+
+	@Test
+	public void testRedistributeThreadsOfFinishedAllocation() throws Exception {
+		final WorkerBudget budget = new WorkerBudget(4, 6);
+		final List<Integer> added = new ArrayList<>();
+		try (WorkerBudget.Allocation running = budget.allocate(8, 8, 2)) {
+			running.setListener((transformThreads, storeThreads) -> added.addAll(
+					Arrays.asList(transformThreads, storeThreads)));
+			try (WorkerBudget.Allocation finished = budget.allocate(8, 8, 2)) {
+				budget.redistribute(2);
+				assertTrue("Nothing is free until the allocation is closed", added.isEmpty());
+			}
+			budget.redistribute(1);
+			assertEquals(Arrays.asList(2, 3), added);
+			assertEquals(4, running.getTransformThreads());
+			assertEquals(6, running.getStoreThreads());
+		}
+		try (WorkerBudget.Allocation next = budget.allocate(8, 8, 1)) {
+			assertEquals("All threads are returned when the allocation is closed", 4, next.getTransformThreads());
+			assertEquals(6, next.getStoreThreads());
+		}
+	}
+
+	@Test
+	public void testRedistributeLeavesShareOfPendingAllocations() throws Exception {
+		final WorkerBudget budget = new WorkerBudget(4, 4);
+		final List<Integer> added = new ArrayList<>();
+		try (WorkerBudget.Allocation running = budget.allocate(2, 8, 4)) {
+			running.setListener((transformThreads, storeThreads) -> added.addAll(
+					Arrays.asList(transformThreads, storeThreads)));
+			budget.redistribute(2);
+			assertEquals("Growth is limited by threads the pipeline could use and by the share", Arrays.asList(1, 1),
+						 added);
+			assertEquals(2, running.getTransformThreads());
+			assertEquals(2, running.getStoreThreads());
+			try (WorkerBudget.Allocation next = budget.allocate(8, 8, 2)) {
+				assertEquals(2, next.getTransformThreads());
+				assertEquals(2, next.getStoreThreads());
+			}
+		}
+	}
+
+	@Test
+	public void testAllocationWithoutListenerDoesntGrow() throws Exception {
+		final WorkerBudget budget = new WorkerBudget(4, 4);
+		try (WorkerBudget.Allocation allocation = budget.allocate(8, 8, 4)) {
+			budget.redistribute(1);
+			assertEquals(1, allocation.getTransformThreads());
+			assertEquals(1, allocation.getStoreThreads());
+		}
+	}
+}
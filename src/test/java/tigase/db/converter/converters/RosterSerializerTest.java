@@ -0,0 +1,152 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.jid.BareJID;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class RosterSerializerTest {
+
+	private static final BareJID OWNER = BareJID.bareJIDInstanceNS("juliet", "example.com");
+	private static final String SPECIAL = "<b>\"Zo\u00eb\" & 'Co'</b>";
+
+	private final RosterSerializer serializer = new RosterSerializer();
+
+	@Test
+	public void testItemWithNickAndGroups() {
+		assertEquals("<contact jid=\"romeo@example.net\" subs=\"both\" preped=\"simple\" name=\"Romeo\" " +
+							 "groups=\"Friends,Work\"/>",
+					 serializer.serialize(Collections.singletonList(
+							 item("romeo", "Romeo", RosterAbstract.SubscriptionType.both, "Friends", "Work"))));
+	}
+
+	@Test
+	public void testItemWithoutNickAndGroups() {
+		assertEquals("<contact jid=\"romeo@example.net\" subs=\"none\" preped=\"simple\"/>",
+					 serializer.serialize(Collections.singletonList(
+							 item("romeo", null, RosterAbstract.SubscriptionType.none))));
+		assertEquals("<contact jid=\"romeo@example.net\" subs=\"to\" preped=\"simple\" name=\"\"/>",
+					 serializer.serialize(Collections.singletonList(
+							 item("romeo", "", RosterAbstract.SubscriptionType.to))));
+	}
+
+	@Test
+	public void testEscaping() {
+		assertEquals("<contact jid=\"romeo@example.net\" subs=\"from\" preped=\"simple\" " +
+							 "name=\"&lt;b&gt;&quot;Zo\u00eb&quot; &amp; &apos;Co&apos;&lt;/b&gt;\" " +
+							 "groups=\"R&amp;D,&lt;Team&gt;\"/>",
+					 serializer.serialize(Collections.singletonList(
+							 item("romeo", SPECIAL, RosterAbstract.SubscriptionType.from, "R&D", "<Team>"))));
+	}
+
+	@Test
+	public void testRosterOfChunks() {
+		final List<UserRosterItem> items = Arrays.asList(item("romeo", "Romeo", RosterAbstract.SubscriptionType.both),
+														 item("nurse", null, RosterAbstract.SubscriptionType.to));
+		assertEquals("", serializer.serialize(Collections.emptyList()));
+		assertEquals("", serializer.serialize(Collections.emptyList(), Collections.emptyList()));
+		final String chunk = serializer.serialize(items.subList(0, 1));
+		assertEquals(serializer.serialize(items), serializer.serialize(Collections.singletonList(chunk),
+																		 items.subList(1, 2)));
+		assertEquals(chunk, serializer.serialize(Collections.singletonList(chunk), Collections.emptyList()));
+	}
+
+	/**
+	 * Serialized items have to be read back by Tigase as their {@code RosterElement} rendering, compared as XML, as
+	 * order of attributes of {@link tigase.xml.Element} isn't defined.
+	 */
+	@Test
+	public void testEquivalentToRosterElement() throws Exception {
+		final List<UserRosterItem> items = new ArrayList<>();
+		final List<List<String>> groupLists = Arrays.asList(Collections.emptyList(),
+															Collections.singletonList("Friends"),
+															Arrays.asList("Work", "R&D", SPECIAL, "\u65e5\u672c"));
+		for (RosterAbstract.SubscriptionType subscription : RosterAbstract.SubscriptionType.values()) {
+			for (String nick : Arrays.asList(null, "", "Romeo", SPECIAL)) {
+				for (List<String> groups : groupLists) {
+					final UserRosterItem item = new UserRosterItem(OWNER, BareJID.bareJIDInstanceNS(
+							"contact" + items.size(), "example.net"), nick, subscription, groups);
+					assertEquals(item.toString(), parse(item.getRosterElement().getRosterElement().toString()),
+								 parse(serializer.serialize(Collections.singletonList(item))));
+					items.add(item);
+				}
+			}
+		}
+		final StringBuilder expected = new StringBuilder();
+		for (UserRosterItem item : items) {
+			expected.append(item.getRosterElement().getRosterElement().toString());
+		}
+		assertEquals(parse(expected.toString()), parse(serializer.serialize(items)));
+	}
+
+	private static UserRosterItem item(String localpart, String nick, RosterAbstract.SubscriptionType subscription,
+									   String... groups) {
+		return new UserRosterItem(OWNER, BareJID.bareJIDInstanceNS(localpart, "example.net"), nick, subscription,
+								  Arrays.asList(groups));
+	}
+
+	/**
+	 * @return attributes and content of each element of the roster
+	 */
+	private static List<String> parse(String roster) throws Exception {
+		final Element root = DocumentBuilderFactory.newInstance()
+				.newDocumentBuilder()
+				.parse(new InputSource(new StringReader("<roster>" + roster + "</roster>")))
+				.getDocumentElement();
+		final List<String> result = new ArrayList<>();
+		final NodeList items = root.getChildNodes();
+		for (int i = 0; i < items.getLength(); i++) {
+			result.add(describe(items.item(i)));
+		}
+		return result;
+	}
+
+	private static String describe(Node node) {
+		if (node.getNodeType() != Node.ELEMENT_NODE) {
+			return node.getTextContent();
+		}
+		final Map<String, String> attributes = new TreeMap<>();
+		final NamedNodeMap map = node.getAttributes();
+		for (int i = 0; i < map.getLength(); i++) {
+			attributes.put(map.item(i).getNodeName(), map.item(i).getNodeValue());
+		}
+		final StringBuilder sb = new StringBuilder(node.getNodeName()).append(attributes);
+		final NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			sb.append('[').append(describe(children.item(i))).append(']');
+		}
+		return sb.toString();
+	}
+}
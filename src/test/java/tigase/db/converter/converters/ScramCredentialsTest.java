@@ -0,0 +1,116 @@
+/*
+ * Tigase Database Migrator - Component responsible for migrating data from other XMPP servers
+ * Copyright (C) 2018 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.converter.converters;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScramCredentialsTest {
+
+	@Test
+	public void testEncode() {
+		final ScramCredentials credentials = new ScramCredentials(ScramCredentials.SCRAM_SHA_1, "QSXCR+Q6sek8bf92",
+																  4096, "6dlGYMOdZcOPutkcNY8U2g7vK9Y=",
+																  "D+CSWLOshSulAsxiupA+qs2/fTE=");
+		assertEquals("s=QSXCR+Q6sek8bf92,i=4096,t=6dlGYMOdZcOPutkcNY8U2g7vK9Y=,e=D+CSWLOshSulAsxiupA+qs2/fTE=",
+					 credentials.encode());
+	}
+
+	@Test
+	public void testEncodeOfDerivedCredentials() throws Exception {
+		final SecureRandom random = new SecureRandom();
+		final ScramCredentials sha1 = ScramCredentials.derive(ScramCredentials.SCRAM_SHA_1, "pencil", 4096, random);
+		final ScramCredentials sha256 = ScramCredentials.derive(ScramCredentials.SCRAM_SHA_256, "pencil", 4096,
+																 random);
+		final String base64 = "[A-Za-z0-9+/]+={0,2}";
+		assertTrue(sha1.encode(), sha1.encode().matches("s=" + base64 + ",i=4096,t=" + base64 + ",e=" + base64));
+		assertTrue(sha256.encode(), sha256.encode().matches("s=" + base64 + ",i=4096,t=" + base64 + ",e=" + base64));
+		final Base64.Decoder decoder = Base64.getDecoder();
+		assertEquals(16, decoder.decode(sha1.salt).length);
+		assertEquals(20, decoder.decode(sha1.storedKey).length);
+		assertEquals(20, decoder.decode(sha1.serverKey).length);
+		assertEquals(32, decoder.decode(sha256.storedKey).length);
+		assertEquals(32, decoder.decode(sha256.serverKey).length);
+		// each derivation uses a new salt
+		assertNotEquals(sha1.salt, sha256.salt);
+	}
+
+	/**
+	 * Example exchange of RFC 5802, section 5.
+	 */
+	@Test
+	public void testDeriveScramSha1() throws Exception {
+		final ScramCredentials credentials = ScramCredentials.derive(ScramCredentials.SCRAM_SHA_1, "pencil", 4096,
+																	 Base64.getDecoder().decode("QSXCR+Q6sek8bf92"));
+		final String authMessage = "n=user,r=fyko+d2lbbFgONRv9qkxdawL," +
+				"r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096," +
+				"c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j";
+		verify(credentials, "HmacSHA1", "SHA-1", authMessage, "v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=",
+			   "rmF9pqV8S7suAoZWja4dJRkFsKQ=");
+	}
+
+	/**
+	 * Example exchange of RFC 7677, section 3.
+	 */
+	@Test
+	public void testDeriveScramSha256() throws Exception {
+		final ScramCredentials credentials = ScramCredentials.derive(ScramCredentials.SCRAM_SHA_256, "pencil", 4096,
+																	 Base64.getDecoder()
+																			 .decode("W22ZaJ0SNY7soEsUEjb6gQ=="));
+		final String authMessage = "n=user,r=rOprNGfwEbeRWgbNEkqO," +
+				"r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096," +
+				"c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0";
+		verify(credentials, "HmacSHA256", "SHA-256", authMessage, "dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ=",
+			   "6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4=");
+	}
+
+	/**
+	 * Verifies the credentials the way the server does: proof of the client has to match the stored key and
+	 * signature of the server computed with the server key has to match the one of the example.
+	 */
+	private static void verify(ScramCredentials credentials, String hmac, String hash, String authMessage,
+							   String clientProof, String serverSignature) throws Exception {
+		final Base64.Decoder decoder = Base64.getDecoder();
+		final byte[] storedKey = decoder.decode(credentials.storedKey);
+		final byte[] clientSignature = hmac(hmac, storedKey, authMessage);
+		final byte[] clientKey = decoder.decode(clientProof);
+		for (int i = 0; i < clientKey.length; i++) {
+			clientKey[i] ^= clientSignature[i];
+		}
+		assertArrayEquals(storedKey, MessageDigest.getInstance(hash).digest(clientKey));
+		assertEquals(serverSignature, Base64.getEncoder()
+				.encodeToString(hmac(hmac, decoder.decode(credentials.serverKey), authMessage)));
+	}
+
+	private static byte[] hmac(String algorithm, byte[] key, String message) throws Exception {
+		final Mac mac = Mac.getInstance(algorithm);
+		mac.init(new SecretKeySpec(key, algorithm));
+		return mac.doFinal(message.getBytes(StandardCharsets.UTF_8));
+	}
+}